@@ -8,14 +8,18 @@ import static ca.ubc.bps.factory.BPSFactoryHelpers.local;
 import static ca.ubc.bps.factory.BPSFactoryHelpers.standard;
 import static ca.ubc.bps.factory.BPSFactoryHelpers.zero;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Random;
 import java.util.Set;
 
@@ -34,11 +38,17 @@ import blang.inits.parsing.CSVFile;
 import briefj.BriefIO;
 import ca.ubc.bps.bounces.BounceFactory;
 import ca.ubc.bps.models.Model;
+import ca.ubc.bps.processors.DiscretizeTrajectory;
+import ca.ubc.bps.processors.IntegrateMoments;
 import ca.ubc.bps.processors.IntegrateTrajectory;
 import ca.ubc.bps.refresh.RefreshmentFactory;
 import ca.ubc.bps.processors.MemorizeTrajectory;
-import ca.ubc.bps.processors.MomentIntegrator;
-import ca.ubc.bps.processors.SegmentIntegrator;
+import ca.ubc.bps.processors.OnlineCovariance;
+import ca.ubc.bps.processors.OnlineEffectiveSampleSize;
+import ca.ubc.bps.processors.ResumableFile;
+import ca.ubc.bps.processors.SegmentStore;
+import ca.ubc.bps.processors.TrajectoryFormat;
+import ca.ubc.bps.processors.WriteBinaryTrajectory;
 import ca.ubc.bps.processors.WriteTrajectory;
 import ca.ubc.bps.state.PositionVelocity;
 import ca.ubc.bps.state.Dynamics;
@@ -65,15 +75,39 @@ public class BPSFactory extends Experiment
   @Arg @DefaultValue("none")
   public MonitoredIndices write = none;
   
+  @Arg(description = "Format of the trajectories of the variables in the write option (binary formats are read back by TrajectoryLoader)") 
+                  @DefaultValue("CSV")
+  public TrajectoryFormat writeFormat = TrajectoryFormat.CSV;
+  
+  @Arg(description = "Variables whose positions are written at the multiples of discretizationInterval (in writeFormat), instead of full trajectories") 
+                  @DefaultValue("none")
+  public MonitoredIndices discretize = none;
+  
+  @Arg @DefaultValue("1.0")
+  public double discretizationInterval = 1.0;
+  
   @Arg @DefaultValue("none")
   public MonitoredIndices memorize = none;
   
+  @Arg(description = "Where the memorized trajectories are stored (OFF_HEAP and MAPPED keep them outside the Java heap)") 
+                  @DefaultValue("HEAP")
+  public SegmentStore.Storage memorizeStorage = SegmentStore.Storage.HEAP;
+  
   @Arg @DefaultValue("none")
   public MonitoredIndices summarize = none;
   
   @Arg @DefaultValue({"1", "2", "3", "4"})
   public List<Integer> summarizedMomentDegrees = Arrays.asList(1, 2, 3, 4);
   
+  @Arg(description = "Also estimate, in constant memory, the ESS and Monte Carlo standard error of the summarized moments (batch means), "
+      + "written to " + ONLINE_ESS_FILE_NAME + " and " + MCSE_FILE_NAME + ", and to " + ESS_FILE_NAME + " for the variables not memorized") 
+                  @DefaultValue("false")
+  public boolean summarizeEss = false;
+  
+  @Arg(description = "Variables whose time-integrated covariances (all pairs) are computed during the simulation") 
+                  @DefaultValue("none")
+  public MonitoredIndices covariance = none;
+  
   @Arg @DefaultValue("EXPONENTIALLY_SPACED")
   public PartialSumOutputMode partialSumOutputMode = PartialSumOutputMode.EXPONENTIALLY_SPACED; 
   
@@ -89,6 +123,38 @@ public class BPSFactory extends Experiment
   @Arg @DefaultValue("Zero") 
   public InitializationStrategy initialization = zero;
   
+  @Arg(description = "Store positions and velocities in contiguous arrays (not supported for Hyperbolic dynamics)") 
+                  @DefaultValue("false")
+  public boolean contiguousStateStore = false;
+  
+  @Arg(description = "Number of threads used to process independent events concurrently (1 for sequential)") 
+                  @DefaultValue("1")
+  public int nThreads = 1;
+  
+  @Arg(description = "When nThreads > 1, process events speculatively with rollbacks instead of conservatively") 
+                  @DefaultValue("false")
+  public boolean optimisticParallelism = false;
+  
+  @Arg(description = "Carry pending events across trajectory chunks instead of resampling all clocks") 
+                  @DefaultValue("false")
+  public boolean rebaseTimes = false;
+  
+  @Arg(description = "Number of threads running the trajectory processors (write, memorize, summarize) concurrently with the simulation (0 to run them on the simulation thread)") 
+                  @DefaultValue("0")
+  public int processorThreads = 0;
+  
+  @Arg(description = "Record per jump process polls, bound events and time spent in clocks and kernels (see Instrumentation)") 
+                  @DefaultValue("false")
+  public boolean instrument = false;
+  
+  @Arg(description = "Wall clock time between checkpoints of the simulation, in seconds (0 for no checkpoints)") 
+                  @DefaultValue("0")
+  public double checkpointIntervalSeconds = 0.0;
+  
+  @Arg(description = "Continue the run from a checkpoint file written by a run with the same arguments. " 
+      + "Output files written during the simulation (and the checkpoints) are continued in the folder of the checkpoint file") 
+  public Optional<File> resumeFrom = Optional.empty();
+  
   @Arg @DefaultValue("false")
   public boolean forbidOutputFiles = true; // Note: programmatic initialization intentionally different
   
@@ -131,10 +197,16 @@ public class BPSFactory extends Experiment
   {
     private final PDMP pdmp;
     public final Map<PositionVelocity, MemorizeTrajectory> memorizedTrajectories = new LinkedHashMap<>();
+    public final Map<PositionVelocity, IntegrateMoments> summarizedMoments = new LinkedHashMap<>();
+    // variable -> moment key -> read-only view of the corresponding moment in summarizedMoments
     public final Table<PositionVelocity, String, IntegrateTrajectory> summarizedTrajectories 
       = Tables.newCustomTable(new LinkedHashMap<>(), LinkedHashMap::new);
+    public final Map<PositionVelocity, OnlineEffectiveSampleSize> summarizedEss = new LinkedHashMap<>();
+    public OnlineCovariance covariances = null;
     private final ModelBuildingContext modelContext;
     private final int nBounceProcesses;
+    // processors writing files during the simulation, closed once it is done
+    private final List<Closeable> outputs = new ArrayList<>();
     
     public List<PositionVelocity> positionVelocityCoordinates()
     {
@@ -149,6 +221,7 @@ public class BPSFactory extends Experiment
     public BPS()
     {
       modelContext = new ModelBuildingContext(new Random(8493L * initializationRandom + 948), dynamics, bounce);
+      modelContext.useContiguousStore = contiguousStateStore;
       
       // setup bounces and variables
       pdmp = setupVariablesAndBounces();
@@ -160,6 +233,7 @@ public class BPSFactory extends Experiment
       // monitors
       for (MonitorType type : MonitorType.values())
         setupMonitors(pdmp, type);
+      setupCovariances(pdmp);
       
       // initializations 
       initializeVelocities(modelContext.positionVelocityCoordinates);
@@ -183,7 +257,51 @@ public class BPSFactory extends Experiment
     public void run()
     {
       simulator = new PDMPSimulator(pdmp);
-      simulator.simulate(new Random(74737L * simulationRandom + 33304L), stoppingRule);
+      simulator.setParallelism(nThreads);
+      simulator.setOptimistic(optimisticParallelism);
+      simulator.setRebaseTimes(rebaseTimes);
+      simulator.setInstrumented(instrument);
+      simulator.setAsynchronousProcessors(processorThreads);
+      if (checkpointIntervalSeconds > 0.0)
+      {
+        if (forbidOutputFiles)
+          throw new RuntimeException("Checkpoints require output files");
+        simulator.setCheckpoints(runTimeOutputFile(results, CHECKPOINT_FILE_NAME), (long) (1000.0 * checkpointIntervalSeconds));
+      }
+      try
+      {
+        if (resumeFrom.isPresent())
+          simulator.resume(resumeFrom.get(), stoppingRule);
+        else
+          simulator.simulate(new Random(74737L * simulationRandom + 33304L), stoppingRule);
+      }
+      finally
+      {
+        // write the last blocks even if the simulation failed
+        for (Closeable output : outputs)
+          try { output.close(); }
+          catch (IOException e) { throw new RuntimeException(e); }
+      }
+    }
+    
+    /*
+     * A resumed run continues the files of the interrupted run, in the folder of its checkpoint, 
+     * see ResumableOutput.
+     */
+    private File runTimeOutputFile(ExperimentResults variableResults, String fileName)
+    {
+      File file = variableResults.getFileInResultFolder(fileName);
+      if (!resumeFrom.isPresent())
+        return file;
+      File resumedFolder = resumeFrom.get().getAbsoluteFile().getParentFile();
+      File result = new File(resumedFolder, results.resultsFolder.toPath().relativize(file.toPath()).toString());
+      result.getParentFile().mkdirs();
+      return result;
+    }
+    
+    private ResumableFile resumableFile(ExperimentResults variableResults, String fileName)
+    {
+      return new ResumableFile(runTimeOutputFile(variableResults, fileName), resumeFrom.isPresent());
     }
     
     public boolean isRun()
@@ -203,20 +321,55 @@ public class BPSFactory extends Experiment
           result.append("" + cell.getRowKey().key + "," + cell.getColumnKey() + "," + cell.getValue().integrate() + "\n");
         BriefIO.write(results.getFileInResultFolder(SUMMARY_STATS_FILE_NAME), result);
       }
-      if (!memorizedTrajectories.isEmpty())
+      if (!memorizedTrajectories.isEmpty() || !summarizedEss.isEmpty())
       {
+        // estimates from the memorized trajectories when available, otherwise online estimates
         StringBuilder result = new StringBuilder();
         result.append(VARIABLE_KEY + ",moment,value\n");
-        for (int degree : summarizedMomentDegrees)
+        for (int i = 0; i < summarizedMomentDegrees.size(); i++)
+        {
+          final int degree = summarizedMomentDegrees.get(i);
           for (PositionVelocity variable : memorizedTrajectories.keySet())
             result.append("" + variable.key + "," + degree + "," + memorizedTrajectories.get(variable).getTrajectory().momentEss(degree) + "\n");
+          for (PositionVelocity variable : summarizedEss.keySet())
+            if (!memorizedTrajectories.containsKey(variable))
+              result.append("" + variable.key + "," + degree + "," + summarizedEss.get(variable).ess(i) + "\n");
+        }
         BriefIO.write(results.getFileInResultFolder(ESS_FILE_NAME), result);
       }
+      if (!summarizedEss.isEmpty())
+      {
+        // online (batch means) estimates, in their own files
+        StringBuilder ess = new StringBuilder(), mcse = new StringBuilder();
+        ess.append(VARIABLE_KEY + ",moment,value\n");
+        mcse.append(VARIABLE_KEY + ",moment,value\n");
+        for (PositionVelocity variable : summarizedEss.keySet())
+          for (int i = 0; i < summarizedMomentDegrees.size(); i++)
+          {
+            ess.append("" + variable.key + "," + momentKey(summarizedMomentDegrees.get(i)) + "," + summarizedEss.get(variable).ess(i) + "\n");
+            mcse.append("" + variable.key + "," + momentKey(summarizedMomentDegrees.get(i)) + "," + summarizedEss.get(variable).monteCarloStandardError(i) + "\n");
+          }
+        BriefIO.write(results.getFileInResultFolder(ONLINE_ESS_FILE_NAME), ess);
+        BriefIO.write(results.getFileInResultFolder(MCSE_FILE_NAME), mcse);
+      }
+      if (covariances != null)
+      {
+        StringBuilder result = new StringBuilder();
+        result.append(VARIABLE_KEY + "1," + VARIABLE_KEY + "2,value\n");
+        for (int p = 0; p < covariances.numberOfPairs(); p++)
+        {
+          final int [] pair = covariances.pair(p);
+          result.append("" + covariances.variables().get(pair[0]).key + "," + covariances.variables().get(pair[1]).key + "," + covariances.covariance(p) + "\n");
+        }
+        BriefIO.write(results.getFileInResultFolder(COVARIANCE_FILE_NAME), result);
+      }
       writeFinalSamples();
       BriefIO.write(results.getFileInResultFolder(RUNNING_TIME_SUMMARY), 
           simulator.summaryStatistics() + 
           "nUpdatedVariables\t" + modelContext.modCount.count + "\n"
           );
+      if (simulator.isInstrumented())
+        BriefIO.write(results.getFileInResultFolder(INSTRUMENTATION_FILE_NAME), simulator.getInstrumentation().toCSV());
     }
     
     private void writeFinalSamples()
@@ -227,12 +380,25 @@ public class BPSFactory extends Experiment
         BriefIO.println(out, state.key + "," + state.position.get());
     }
 
+    private void setupCovariances(PDMP pdmp)
+    {
+      Set<Integer> indices = new LinkedHashSet<>(covariance.getIndices(modelContext.positionVelocityCoordinates.size()));
+      List<PositionVelocity> block = new ArrayList<>();
+      for (PositionVelocity variable : modelContext.positionVelocityCoordinates)
+        if (indices.contains((int) variable.key))
+          block.add(variable);
+      if (block.isEmpty())
+        return;
+      covariances = OnlineCovariance.allPairs(block);
+      pdmp.processors.addAll(covariances.processors());
+    }
+
     private void setupMonitors(
         PDMP pdmp, 
         MonitorType type
         )
     {
-      if (type == MonitorType.WRITE && forbidOutputFiles)
+      if ((type == MonitorType.WRITE || type == MonitorType.DISCRETIZE) && forbidOutputFiles)
         return;
       
       ExperimentResults results = null;
@@ -241,6 +407,7 @@ public class BPSFactory extends Experiment
       requested = type == MonitorType.MEMORIZE  ? memorize  : requested;
       requested = type == MonitorType.SUMMARIZE ? summarize : requested;
       requested = type == MonitorType.WRITE     ? write     : requested;
+      requested = type == MonitorType.DISCRETIZE ? discretize : requested;
 
       Set<Integer> savedIndices = new LinkedHashSet<>(requested.getIndices(modelContext.positionVelocityCoordinates.size()));
       
@@ -251,32 +418,75 @@ public class BPSFactory extends Experiment
            continue loop;
         if (type == MonitorType.MEMORIZE)
         {
-          MemorizeTrajectory processor = new MemorizeTrajectory(variable);
+          MemorizeTrajectory processor = new MemorizeTrajectory(variable, memorizeStorage);
           memorizedTrajectories.put(variable, processor);
           pdmp.processors.add(processor);
         }
         else if (type == MonitorType.SUMMARIZE)
-          for (int degree : summarizedMomentDegrees)
+        {
+          // all the degrees in one processor per variable
+          IntegrateMoments processor = new IntegrateMoments(variable, summarizedMomentDegrees); 
+          summarizedMoments.put(variable, processor);
+          for (int i = 0; i < summarizedMomentDegrees.size(); i++)
+            summarizedTrajectories.put(variable, momentKey(summarizedMomentDegrees.get(i)), IntegrateTrajectory.momentOf(processor, i));
+          pdmp.processors.add(processor);
+          if (summarizeEss)
           {
-            SegmentIntegrator integrator = new MomentIntegrator(degree);
-            IntegrateTrajectory processor = new IntegrateTrajectory(variable, integrator); 
-            summarizedTrajectories.put(variable, momentKey(degree), processor);
-            pdmp.processors.add(processor);
-            if (!forbidOutputFiles && partialSumOutputMode != PartialSumOutputMode.OFF)
+            OnlineEffectiveSampleSize essProcessor = OnlineEffectiveSampleSize.forMoments(variable, summarizedMomentDegrees);
+            summarizedEss.put(variable, essProcessor);
+            pdmp.processors.add(essProcessor);
+          }
+          if (!forbidOutputFiles && partialSumOutputMode != PartialSumOutputMode.OFF)
+          {
+            outputs.add(processor);
+            for (int i = 0; i < summarizedMomentDegrees.size(); i++)
             {
               if (results == null)
                 results = BPSFactory.this.results.child(CONTINUOUSLY_EVOLVING_PARTIAL_SUMS_DIR_NAME);
-              ExperimentResults variableResults = results.child(MOMENT_KEY, degree).child(VARIABLE_KEY, index);
-              processor.setOutput(variableResults.getAutoClosedBufferedWriter(DATA_FILE_NAME), partialSumOutputMode == PartialSumOutputMode.EXPONENTIALLY_SPACED);
+              ExperimentResults variableResults = results.child(MOMENT_KEY, summarizedMomentDegrees.get(i)).child(VARIABLE_KEY, index);
+              processor.setOutput(i, resumableFile(variableResults, DATA_FILE_NAME), partialSumOutputMode == PartialSumOutputMode.EXPONENTIALLY_SPACED);
             }
           }
+        }
         else if (type == MonitorType.WRITE)
         {
           if (results == null)
             results = BPSFactory.this.results.child(CONTINUOUSLY_EVOLVING_SAMPLES_DIR_NAME);
           ExperimentResults variableResults = results.child(VARIABLE_KEY, index);
-          WriteTrajectory processor = new WriteTrajectory(variable, variableResults.getAutoClosedBufferedWriter(DATA_FILE_NAME));
-          pdmp.processors.add(processor);
+          if (writeFormat.isBinary())
+          {
+            WriteBinaryTrajectory processor = new WriteBinaryTrajectory(variable, 
+                resumableFile(variableResults, BINARY_DATA_FILE_NAME), 
+                writeFormat == TrajectoryFormat.COMPRESSED_BINARY);
+            outputs.add(processor);
+            pdmp.processors.add(processor);
+          }
+          else
+          {
+            WriteTrajectory processor = new WriteTrajectory(variable, resumableFile(variableResults, DATA_FILE_NAME));
+            outputs.add(processor);
+            pdmp.processors.add(processor);
+          }
+        }
+        else if (type == MonitorType.DISCRETIZE)
+        {
+          if (results == null)
+            results = BPSFactory.this.results.child(DISCRETIZED_SAMPLES_DIR_NAME);
+          ExperimentResults variableResults = results.child(VARIABLE_KEY, index);
+          if (writeFormat.isBinary())
+          {
+            DiscretizeTrajectory processor = new DiscretizeTrajectory(variable, discretizationInterval,
+                resumableFile(variableResults, BINARY_DATA_FILE_NAME), 
+                writeFormat == TrajectoryFormat.COMPRESSED_BINARY);
+            outputs.add(processor);
+            pdmp.processors.add(processor);
+          }
+          else
+          {
+            DiscretizeTrajectory processor = new DiscretizeTrajectory(variable, discretizationInterval, resumableFile(variableResults, DATA_FILE_NAME));
+            outputs.add(processor);
+            pdmp.processors.add(processor);
+          }
         }
         else
           throw new RuntimeException();
@@ -314,11 +524,18 @@ public class BPSFactory extends Experiment
   public static final String 
     FINAL_SAMPLES                               = "finalSamples.csv",
     CONTINUOUSLY_EVOLVING_SAMPLES_DIR_NAME      = "continuouslyEvolvingSamples",
+    DISCRETIZED_SAMPLES_DIR_NAME                = "discretizedSamples",
     CONTINUOUSLY_EVOLVING_PARTIAL_SUMS_DIR_NAME = "continuouslyEvolvingPartialSums",
     SUMMARY_STATS_FILE_NAME                     = "summaryStatistics.csv",
     ESS_FILE_NAME                               = "ess.csv",
+    ONLINE_ESS_FILE_NAME                        = "onlineEss.csv",
+    MCSE_FILE_NAME                              = "monteCarloStandardErrors.csv",
+    COVARIANCE_FILE_NAME                        = "covariances.csv",
     DATA_FILE_NAME                              = "data.csv",
-    RUNNING_TIME_SUMMARY                        = "runningTimeSummary.tsv";
+    BINARY_DATA_FILE_NAME                       = "data.bin",
+    RUNNING_TIME_SUMMARY                        = "runningTimeSummary.tsv",
+    CHECKPOINT_FILE_NAME                        = "checkpoint.bin",
+    INSTRUMENTATION_FILE_NAME                   = "instrumentation.csv";
   
   public static void main(String [] args)
   {
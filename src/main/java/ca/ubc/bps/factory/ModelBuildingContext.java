@@ -12,6 +12,7 @@ import ca.ubc.bps.BPSPotential;
 import ca.ubc.bps.BPSStaticUtils;
 import ca.ubc.bps.bounces.BounceFactory;
 import ca.ubc.bps.state.PositionVelocity;
+import ca.ubc.bps.state.PositionVelocityStore;
 import ca.ubc.bps.state.Dynamics;
 import ca.ubc.bps.state.MonitoredMutableDouble.ModCount;
 import ca.ubc.bps.state.PiecewiseConstant;
@@ -28,6 +29,13 @@ public class ModelBuildingContext
   LinkedHashSet<PiecewiseConstant<?>> piecewiseConstantStates = new LinkedHashSet<>();
   public ModCount modCount = new ModCount();
   
+  /**
+   * If true, buildAndRegisterPositionVelocityCoordinates(..) backs the coordinates by a 
+   * contiguous PositionVelocityStore.
+   */
+  public boolean useContiguousStore = false;
+  public PositionVelocityStore store = null;
+  
   public final Dynamics dynamics;
   private final BounceFactory bounce;
   
@@ -43,7 +51,14 @@ public class ModelBuildingContext
   }
   public List<PositionVelocity> buildAndRegisterPositionVelocityCoordinates(int dim) 
   {
-    List<PositionVelocity> result = PositionVelocity.buildArray(dim, dynamics, modCount);
+    List<PositionVelocity> result;
+    if (useContiguousStore)
+    {
+      store = new PositionVelocityStore(dim, dynamics, modCount);
+      result = store.buildCoordinates();
+    }
+    else
+      result = PositionVelocity.buildArray(dim, dynamics, modCount);
     registerPositionVelocityCoordinates(result);
     return result;
   }
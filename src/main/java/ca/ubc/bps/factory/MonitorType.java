@@ -1,3 +1,3 @@
 package ca.ubc.bps.factory;
 
-enum MonitorType { MEMORIZE, WRITE, SUMMARIZE }
\ No newline at end of file
+enum MonitorType { MEMORIZE, WRITE, SUMMARIZE, DISCRETIZE }
\ No newline at end of file
@@ -81,7 +81,13 @@ public class Poisson extends SimpleLikelihood<Integer>
     @Override
     public DeltaTime next(Random random)
     {
-      return DeltaTime.isEqualTo(BPSStaticUtils.sampleExponential(random, rate()));
+      return DeltaTime.decode(nextEncoded(random));
+    }
+    
+    @Override
+    public double nextEncoded(Random random)
+    {
+      return DeltaTime.encodeEqualTo(BPSStaticUtils.sampleExponential(random, rate()));
     }
     
     private double B(double xi) 
@@ -97,8 +103,8 @@ public class Poisson extends SimpleLikelihood<Integer>
     
     public double rate()
     {
-      double x = variable.position.get();
-      double v = variable.velocity.get();
+      double x = variable.viewPosition(0.0);
+      double v = variable.viewVelocity(0.0);
       double a = - precision * x;
       double b = v;
       double c = v / precision;
@@ -150,14 +156,20 @@ public class Poisson extends SimpleLikelihood<Integer>
     @Override
     public DeltaTime next(Random random)
     {
-      double x = variable.position.get();
-      double v = variable.velocity.get();
+      return DeltaTime.decode(nextEncoded(random));
+    }
+    
+    @Override
+    public double nextEncoded(Random random)
+    {
+      double x = variable.viewPosition(0.0);
+      double v = variable.viewVelocity(0.0);
       double e = BPSStaticUtils.sampleUnitRateExponential(random);
       double candidate = (Math.log(e + Math.exp(x)) - x) / v;
       if (candidate > 0.0)
-        return DeltaTime.isEqualTo(candidate);
+        return DeltaTime.encodeEqualTo(candidate);
       else
-        return DeltaTime.infinity();
+        return DeltaTime.encodedInfinity();
     }
   }
   
@@ -209,11 +221,17 @@ public class Poisson extends SimpleLikelihood<Integer>
     @Override
     public DeltaTime next(Random random)
     {
-      double denom = coefficient * variable.velocity.get();
+      return DeltaTime.decode(nextEncoded(random));
+    }
+    
+    @Override
+    public double nextEncoded(Random random)
+    {
+      double denom = coefficient * variable.viewVelocity(0.0);
       if (denom > 0.0)
-        return DeltaTime.isEqualTo(BPSStaticUtils.sampleUnitRateExponential(random) / denom);
+        return DeltaTime.encodeEqualTo(BPSStaticUtils.sampleUnitRateExponential(random) / denom);
       else
-        return DeltaTime.infinity();
+        return DeltaTime.encodedInfinity();
     }
   }
 }
@@ -0,0 +1,345 @@
+package ca.ubc.bps.processors;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads, one row at a time, the files written by BinaryTrajectoryWriter.
+ *
+ * The file is memory-mapped, in windows of at most WINDOW_SIZE bytes so that
+ * files larger than 2GB can be read.
+ *
+ * Usage:
+ *
+ *   while (reader.next())
+ *     ... reader.get(column) ...
+ *
+ * @author bouchard
+ *
+ */
+public class BinaryTrajectoryReader implements Closeable
+{
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final long fileSize;
+  private final List<String> columnNames;
+  private final int nColumns;
+
+  private MappedByteBuffer window = null;
+  private long windowStart = 0;
+
+  // start of the next block in the file, and of the first one
+  private long position;
+  private final long firstBlockPosition;
+
+  // column major: values[column * blockNRows + row]
+  private double [] values;
+  private int blockNRows = 0, row = -1;
+
+  private byte [] compressed = new byte[0];
+  private ByteBuffer raw = ByteBuffer.allocate(0);
+  private final Inflater inflater = new Inflater();
+
+  public BinaryTrajectoryReader(File input)
+  {
+    try
+    {
+      this.file = new RandomAccessFile(input, "r");
+      this.channel = file.getChannel();
+      this.fileSize = channel.size();
+      if (fileSize < 5 * 4)
+        throw new RuntimeException("Not a binary trajectory file: " + input);
+      final ByteBuffer buffer = map(0, 5 * 4);
+      if (buffer.getInt() != BinaryTrajectoryWriter.MAGIC)
+        throw new RuntimeException("Not a binary trajectory file: " + input);
+      final int version = buffer.getInt();
+      if (version != BinaryTrajectoryWriter.VERSION)
+        throw new RuntimeException("Unsupported binary trajectory version: " + version);
+      buffer.getInt(); // flags, compression is detected per block
+      this.nColumns = buffer.getInt();
+      final int blockSize = buffer.getInt();
+      this.values = new double[nColumns * blockSize];
+      position = 5 * 4;
+      final List<String> names = new ArrayList<>();
+      for (int column = 0; column < nColumns; column++)
+      {
+        final int length = map(position, 4).getInt();
+        final byte [] name = new byte[length];
+        map(position + 4, length).get(name);
+        names.add(new String(name, StandardCharsets.UTF_8));
+        position += 4 + length;
+      }
+      this.columnNames = Collections.unmodifiableList(names);
+      this.firstBlockPosition = position;
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public static boolean isBinaryTrajectory(File file)
+  {
+    if (file.length() < 4)
+      return false;
+    try (RandomAccessFile input = new RandomAccessFile(file, "r"))
+    {
+      return Integer.reverseBytes(input.readInt()) == BinaryTrajectoryWriter.MAGIC;
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public List<String> columnNames()
+  {
+    return columnNames;
+  }
+
+  public int numberOfColumns()
+  {
+    return nColumns;
+  }
+
+  /**
+   * @return If there is a next row, in which case it becomes the current row.
+   */
+  public boolean next()
+  {
+    if (row + 1 < blockNRows)
+    {
+      row++;
+      return true;
+    }
+    while (position < fileSize)
+    {
+      readBlock();
+      if (blockNRows > 0)
+      {
+        row = 0;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return The value of the given column in the current row.
+   */
+  public double get(int column)
+  {
+    return values[column * blockNRows + row];
+  }
+
+  /**
+   * Reads the block headers and the given column (only), in one pass over the file.
+   * Does not change the current row.
+   */
+  public BlockIndex index(int column)
+  {
+    if (column < 0 || column >= nColumns)
+      throw new RuntimeException("Invalid column: " + column);
+    final List<Long> positions = new ArrayList<>();
+    final List<Double> sums = new ArrayList<>();
+    double sum = 0.0;
+    double [] columnValues = new double[0];
+    for (long current = firstBlockPosition; current < fileSize; )
+    {
+      positions.add(current);
+      sums.add(sum);
+      final ByteBuffer header = map(current, BinaryTrajectoryWriter.BLOCK_HEADER_BYTES);
+      final int nRows = header.getInt();
+      final int storedLength = header.getInt();
+      checkBlock(current, nRows, storedLength);
+      if (columnValues.length < nRows)
+        columnValues = new double[nRows];
+      final ByteBuffer data;
+      if (storedLength < 8 * nRows * nColumns)
+      {
+        // columns are contiguous, so only the first ones need to be inflated
+        data = inflate(map(current + BinaryTrajectoryWriter.BLOCK_HEADER_BYTES, storedLength), storedLength, 8 * nRows * (column + 1), false);
+        data.position(8 * nRows * column);
+      }
+      else
+        data = map(current + BinaryTrajectoryWriter.BLOCK_HEADER_BYTES + 8L * nRows * column, 8 * nRows);
+      data.asDoubleBuffer().get(columnValues, 0, nRows);
+      // sequential sum, as computed by readers of the rows
+      for (int i = 0; i < nRows; i++)
+        sum += columnValues[i];
+      current += BinaryTrajectoryWriter.BLOCK_HEADER_BYTES + storedLength;
+    }
+    sums.add(sum);
+    final long [] positionsArray = new long[positions.size()];
+    final double [] sumsArray = new double[sums.size()];
+    for (int i = 0; i < positionsArray.length; i++)
+      positionsArray[i] = positions.get(i);
+    for (int i = 0; i < sumsArray.length; i++)
+      sumsArray[i] = sums.get(i);
+    return new BlockIndex(positionsArray, sumsArray);
+  }
+
+  /**
+   * Moves to the start of the given block, i.e. the next call of next() will
+   * return its first row. 
+   * 
+   * @param index Built by index(..) for the same file.
+   * @param block Between 0 and index.numberOfBlocks(), the latter moving to the end of the file.
+   */
+  public void seek(BlockIndex index, int block)
+  {
+    position = block == index.numberOfBlocks() ? fileSize : index.positions[block];
+    blockNRows = 0;
+    row = -1;
+  }
+
+  /**
+   * The file positions of the blocks of a binary trajectory file, with the running sum of one 
+   * column (e.g. the segment lengths, giving the time at the start of each block).
+   * 
+   * Immutable, so it can be shared by the readers of the same file in different threads.
+   */
+  public static class BlockIndex
+  {
+    private final long [] positions;
+    // sums[block] is the sum of the column over the previous blocks, sums[numberOfBlocks()] the total
+    private final double [] sums;
+    
+    private BlockIndex(long [] positions, double [] sums)
+    {
+      this.positions = positions;
+      this.sums = sums;
+    }
+    
+    public int numberOfBlocks()
+    {
+      return positions.length;
+    }
+    
+    /**
+     * @param block Between 0 and numberOfBlocks() (in which case, the sum over the whole file).
+     */
+    public double sumBefore(int block)
+    {
+      return sums[block];
+    }
+    
+    /**
+     * @return The number of leading blocks with sumBefore(block + 1) at most the given value, 
+     *   assuming the column is non-negative.
+     */
+    public int numberOfBlocksEndingBefore(double value)
+    {
+      // binary search for the first block end exceeding value
+      int low = 0, high = positions.length;
+      while (low < high)
+      {
+        final int middle = (low + high) >>> 1;
+        if (sums[middle + 1] <= value)
+          low = middle + 1;
+        else
+          high = middle;
+      }
+      return low;
+    }
+  }
+
+  private void readBlock()
+  {
+    final ByteBuffer header = map(position, BinaryTrajectoryWriter.BLOCK_HEADER_BYTES);
+    final int nRows = header.getInt();
+    final int storedLength = header.getInt();
+    final int rawLength = 8 * nRows * nColumns;
+    checkBlock(position, nRows, storedLength);
+    ByteBuffer data = map(position + BinaryTrajectoryWriter.BLOCK_HEADER_BYTES, storedLength);
+    if (storedLength < rawLength)
+      data = inflate(data, storedLength, rawLength, true);
+    if (values.length < nRows * nColumns)
+      values = new double[nRows * nColumns];
+    data.asDoubleBuffer().get(values, 0, nRows * nColumns);
+    blockNRows = nRows;
+    row = -1;
+    position += BinaryTrajectoryWriter.BLOCK_HEADER_BYTES + storedLength;
+  }
+  
+  private void checkBlock(long blockPosition, int nRows, int storedLength)
+  {
+    if (nRows < 0 || storedLength < 0 || storedLength > 8 * nRows * nColumns || blockPosition + BinaryTrajectoryWriter.BLOCK_HEADER_BYTES + storedLength > fileSize)
+      throw new RuntimeException("Corrupted or truncated binary trajectory file");
+  }
+
+  /**
+   * @param rawLength The number of bytes to inflate, from the start of the block.
+   * @param wholeBlock If rawLength is the length of the block, which is then checked to be complete.
+   */
+  private ByteBuffer inflate(ByteBuffer data, int storedLength, int rawLength, boolean wholeBlock)
+  {
+    if (compressed.length < storedLength)
+      compressed = new byte[storedLength];
+    if (raw.capacity() < rawLength)
+      raw = ByteBuffer.allocate(rawLength);
+    data.get(compressed, 0, storedLength);
+    inflater.reset();
+    inflater.setInput(compressed, 0, storedLength);
+    try
+    {
+      if (inflater.inflate(raw.array(), 0, rawLength) != rawLength || (wholeBlock && !inflater.finished()))
+        throw new RuntimeException("Corrupted binary trajectory block");
+    }
+    catch (DataFormatException e)
+    {
+      throw new RuntimeException(e);
+    }
+    raw.clear();
+    raw.limit(rawLength);
+    return raw.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * @return A little-endian view of the given region of the file.
+   */
+  private ByteBuffer map(long start, long length)
+  {
+    if (length > WINDOW_SIZE)
+      throw new RuntimeException("Block too large: " + length);
+    if (window == null || start < windowStart || start + length > windowStart + window.capacity())
+    {
+      try
+      {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(fileSize - start, Math.max(length, WINDOW_SIZE)));
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+    final ByteBuffer result = window.duplicate();
+    result.position((int) (start - windowStart));
+    result.limit((int) (start - windowStart + length));
+    return result.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  @Override
+  public void close()
+  {
+    inflater.end();
+    window = null;
+    try { file.close(); }
+    catch (IOException e) { throw new RuntimeException(e); }
+  }
+
+  private static final long WINDOW_SIZE = 1L << 30;
+}
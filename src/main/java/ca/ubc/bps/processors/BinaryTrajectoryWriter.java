@@ -0,0 +1,218 @@
+package ca.ubc.bps.processors;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writes rows of doubles in a binary, block columnar format read by BinaryTrajectoryReader.
+ *
+ * All numbers are little-endian. The header is:
+ *
+ *   int MAGIC, int VERSION, int flags (bit 0: blocks may be compressed), int number of columns,
+ *   int maximum number of rows per block, then for each column, int byte length and UTF-8 name.
+ *
+ * It is followed by blocks, each made of:
+ *
+ *   int number of rows n, int number of stored bytes m, then m bytes holding the n values of
+ *   the first column, then the n values of the second column, etc.
+ *
+ * When m is smaller than 8 * n * (number of columns), the block is compressed with Deflater.
+ * Compression is only kept for the blocks where it saves space.
+ *
+ * Values are stored exactly, so integer columns (e.g. jump process indices) can be stored as doubles.
+ *
+ * The last block is written by close() (or flush()).
+ *
+ * @author bouchard
+ *
+ */
+public class BinaryTrajectoryWriter implements Closeable
+{
+  private final OutputStream out;
+  private final int nColumns;
+  private final int blockSize;
+  private final boolean compress;
+
+  // column major: values[column * blockSize + row]
+  private final double [] values;
+  private int nRows = 0;
+  private long totalNRows = 0;
+
+  public BinaryTrajectoryWriter(OutputStream out, List<String> columnNames, boolean compress)
+  {
+    this(out, columnNames, compress, DEFAULT_BLOCK_SIZE);
+  }
+
+  public BinaryTrajectoryWriter(OutputStream out, List<String> columnNames, boolean compress, int blockSize)
+  {
+    if (columnNames.isEmpty() || blockSize < 1)
+      throw new RuntimeException();
+    this.out = out;
+    this.nColumns = columnNames.size();
+    this.blockSize = blockSize;
+    this.compress = compress;
+    this.values = new double[nColumns * blockSize];
+    writeHeader(columnNames);
+  }
+
+  public int numberOfColumns()
+  {
+    return nColumns;
+  }
+
+  public long numberOfRows()
+  {
+    return totalNRows;
+  }
+
+  /**
+   * @param row One value per column.
+   */
+  public void append(double [] row)
+  {
+    if (row.length != nColumns)
+      throw new RuntimeException("Expected " + nColumns + " columns");
+    for (int column = 0; column < nColumns; column++)
+      values[column * blockSize + nRows] = row[column];
+    endRow();
+  }
+
+  /**
+   * Shortcut for four columns tables, see WriteBinaryTrajectory.
+   */
+  public void append(double c0, double c1, double c2, double c3)
+  {
+    if (nColumns != 4)
+      throw new RuntimeException("Expected " + nColumns + " columns");
+    values[nRows] = c0;
+    values[blockSize + nRows] = c1;
+    values[2 * blockSize + nRows] = c2;
+    values[3 * blockSize + nRows] = c3;
+    endRow();
+  }
+
+  private void endRow()
+  {
+    nRows++;
+    totalNRows++;
+    if (nRows == blockSize)
+      writeBlock();
+  }
+
+  /**
+   * Writes the rows appended so far, as a possibly partial block.
+   */
+  public void flush()
+  {
+    if (nRows > 0)
+      writeBlock();
+    try { out.flush(); }
+    catch (IOException e) { throw new RuntimeException(e); }
+  }
+
+  @Override
+  public void close()
+  {
+    flush();
+    try { out.close(); }
+    catch (IOException e) { throw new RuntimeException(e); }
+  }
+
+  private void writeBlock()
+  {
+    final Scratch scratch = SCRATCH.get();
+    final int rawLength = BLOCK_HEADER_BYTES + 8 * nRows * nColumns;
+    final ByteBuffer raw = scratch.raw(rawLength);
+    raw.putInt(nRows);
+    raw.putInt(rawLength - BLOCK_HEADER_BYTES);
+    for (int column = 0; column < nColumns; column++)
+    {
+      raw.asDoubleBuffer().put(values, column * blockSize, nRows);
+      raw.position(raw.position() + 8 * nRows);
+    }
+    byte [] result = raw.array();
+    int resultLength = rawLength;
+    if (compress)
+    {
+      final Deflater deflater = scratch.deflater;
+      deflater.reset();
+      deflater.setInput(raw.array(), BLOCK_HEADER_BYTES, rawLength - BLOCK_HEADER_BYTES);
+      deflater.finish();
+      final byte [] compressed = scratch.compressed(rawLength);
+      final int compressedLength = deflater.deflate(compressed, BLOCK_HEADER_BYTES, rawLength - BLOCK_HEADER_BYTES - 1);
+      if (deflater.finished())
+      {
+        ByteBuffer.wrap(compressed).order(ByteOrder.LITTLE_ENDIAN).putInt(nRows).putInt(compressedLength);
+        result = compressed;
+        resultLength = BLOCK_HEADER_BYTES + compressedLength;
+      }
+    }
+    try { out.write(result, 0, resultLength); }
+    catch (IOException e) { throw new RuntimeException(e); }
+    nRows = 0;
+  }
+
+  private void writeHeader(List<String> columnNames)
+  {
+    final List<byte[]> names = new ArrayList<>();
+    int length = 5 * 4;
+    for (String name : columnNames)
+    {
+      final byte [] bytes = name.getBytes(StandardCharsets.UTF_8);
+      names.add(bytes);
+      length += 4 + bytes.length;
+    }
+    final ByteBuffer header = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MAGIC);
+    header.putInt(VERSION);
+    header.putInt(compress ? COMPRESSED_FLAG : 0);
+    header.putInt(nColumns);
+    header.putInt(blockSize);
+    for (byte [] name : names)
+    {
+      header.putInt(name.length);
+      header.put(name);
+    }
+    try { out.write(header.array()); }
+    catch (IOException e) { throw new RuntimeException(e); }
+  }
+
+  public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+  static final int MAGIC = 0x4a415254; // "TRAJ" in little-endian
+  static final int VERSION = 1;
+  static final int COMPRESSED_FLAG = 1;
+  static final int BLOCK_HEADER_BYTES = 8;
+
+  // conversion buffers are shared by the writers used by a thread
+  private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+  private static class Scratch
+  {
+    private ByteBuffer raw = ByteBuffer.allocate(0).order(ByteOrder.LITTLE_ENDIAN);
+    private byte [] compressed = new byte[0];
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    private ByteBuffer raw(int length)
+    {
+      if (raw.capacity() < length)
+        raw = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+      raw.clear();
+      return raw;
+    }
+
+    private byte [] compressed(int length)
+    {
+      if (compressed.length < length)
+        compressed = new byte[length];
+      return compressed;
+    }
+  }
+}
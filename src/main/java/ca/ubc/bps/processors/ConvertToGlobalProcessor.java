@@ -2,18 +2,44 @@ package ca.ubc.bps.processors;
 
 import java.util.ArrayList;
 import java.util.List;
-
-import com.google.common.collect.TreeMultimap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 
 import bayonet.math.NumericalUtils;
+import ca.ubc.bps.state.Dynamics;
 import ca.ubc.bps.state.PositionVelocity;
+import ca.ubc.pdmp.IndexedEventQueue;
 
+/**
+ * Merges the trajectories of several variables into a global trajectory, with one event 
+ * each time one of the variables starts a new segment (an end time within MERGE_TOLERANCE 
+ * of the previous one is merged into it). 
+ * 
+ * The trajectories are read as streams, merged through a heap of the end times of the 
+ * current segments (ties broken by order of addition), so that the memory used by 
+ * convert() is proportional to the number of variables.
+ * 
+ * convertInParallel(..) cuts the global time axis into slices processed concurrently
+ * by distinct GlobalProcessors. Each slice reads the trajectories from its start time, 
+ * skipping the earlier segments when the streams support it (see SegmentStream.skip(..)): 
+ * otherwise, they are parsed once per slice.
+ * 
+ * @author bouchard
+ *
+ */
 public class ConvertToGlobalProcessor
 {
-  final TreeMultimap<Double, LabeledSegment> sortedSegments = TreeMultimap.create();
   final List<PositionVelocity> allVariables = new ArrayList<>();
+  final List<Supplier<SegmentStream>> sources = new ArrayList<>();
   final GlobalProcessor processor;
   
+  /**
+   * @param processor Used by convert(), can be null when only convertInParallel(..) is used.
+   */
   public ConvertToGlobalProcessor(GlobalProcessor processor)
   {
     this.processor = processor;
@@ -26,35 +52,58 @@ public class ConvertToGlobalProcessor
 
   public void addTrajectory(Object key, Trajectory trajectory)
   {
-    PositionVelocity variable = new PositionVelocity(trajectory.dynamics, key);
-    allVariables.add(variable);
-    double globalTime = 0.0;
-    for (int i = 0; i < trajectory.segments.size(); i++)
+    addTrajectory(key, trajectory.dynamics, () -> SegmentStream.of(trajectory));
+  }
+  
+  /**
+   * The segments are read during convert(), which closes the stream. 
+   * Not supported by convertInParallel(..), which needs to read each trajectory once per slice.
+   */
+  public void addTrajectory(Object key, Dynamics dynamics, SegmentStream segments)
+  {
+    final boolean [] opened = new boolean[1];
+    addTrajectory(key, dynamics, () -> 
     {
-      TrajectorySegment 
-        current = trajectory.segments.get(i),
-        next    = i + 1 < trajectory.segments.size() ? 
-                    trajectory.segments.get(i + 1)   :
-                    null;
-      if (i == 0)
-      {
-        variable.position.set(current.startPosition);
-        variable.velocity.set(current.startVelocity);
-      }
-      globalTime += current.deltaTime;
-      sortedSegments.put(globalTime, new LabeledSegment(variable, next));
-    }
+      if (opened[0])
+        throw new RuntimeException("The trajectory of " + key + " can only be read once");
+      opened[0] = true;
+      return segments;
+    });
+  }
+  
+  /**
+   * @param segments Called each time the trajectory is read, the returned streams are closed after use.
+   */
+  public void addTrajectory(Object key, Dynamics dynamics, Supplier<SegmentStream> segments)
+  {
+    allVariables.add(new PositionVelocity(dynamics, key));
+    sources.add(segments);
   }
   
   public double tolerance = 10e-12;
   public class GlobalProcessorContext
   {
-    private double globalDelta;
+    private double globalDelta, globalTime, globalEndTime;
     private double interpolatedDelta = 0.0;
     public double getGlobalDelta()
     {
       return globalDelta;
     }
+    /**
+     * @return The global time at the beginning of the current segment.
+     */
+    public double getGlobalTime()
+    {
+      return globalTime;
+    }
+    /**
+     * @return The global time at the end of the current segment (the beginning of the next one, 
+     *   also when it is processed in another slice).
+     */
+    public double getGlobalEndTime()
+    {
+      return globalEndTime;
+    }
     public List<PositionVelocity> allVariables()
     {
       return allVariables;
@@ -72,68 +121,190 @@ public class ConvertToGlobalProcessor
   
   public void convert()
   {
-    TreeMultimap<Double, LabeledSegment> sortedSegments = mergeCloseTimes(this.sortedSegments);
-    GlobalProcessorContext context = new GlobalProcessorContext();
-    
-    double lastEventTime = 0.0;
-    for (double globalTime : sortedSegments.keySet())
+    convert(0.0, Double.POSITIVE_INFINITY);
+  }
+  
+  /**
+   * Processes the global time interval [start, end) in nSlices slices of equal length, 
+   * on nThreads threads, end being the end of the first trajectory.
+   * 
+   * Each slice is processed from scratch by its own GlobalProcessor, so each slice boundary
+   * adds a split point to the global trajectory. Once all the slices before it are combined, 
+   * the processor of each slice is passed to the combiner, on the calling thread.
+   */
+  public <P extends GlobalProcessor> void convertInParallel(
+      int nSlices, 
+      int nThreads, 
+      IntFunction<P> sliceProcessors, 
+      GlobalProcessorCombiner<P> combiner)
+  {
+    if (nSlices < 1 || nThreads < 1)
+      throw new RuntimeException();
+    final double totalTime = allVariables.isEmpty() ? 0.0 : totalTime(sources.get(0));
+    final ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+    try
     {
-      // find out the time
-      context.globalDelta = globalTime - lastEventTime;
-      
-      // process here - provide delta and call back
-      processor.process(context);
-      
-      // move all the variables 
-      for (PositionVelocity var : allVariables)
-        var.extrapolateInPlace(context.globalDelta - context.interpolatedDelta);
-      context.interpolatedDelta = 0.0;
+      final List<Future<P>> slices = new ArrayList<>();
+      for (int slice = 0; slice < nSlices; slice++)
+      {
+        final int sliceIndex = slice;
+        final double 
+          start = totalTime * slice / nSlices,
+          end = slice == nSlices - 1 ? Double.POSITIVE_INFINITY : totalTime * (slice + 1) / nSlices;
+        slices.add(pool.submit(() -> 
+        {
+          P sliceProcessor = sliceProcessors.apply(sliceIndex);
+          ConvertToGlobalProcessor sliceConverter = new ConvertToGlobalProcessor(sliceProcessor);
+          for (int i = 0; i < allVariables.size(); i++)
+          {
+            PositionVelocity variable = allVariables.get(i);
+            sliceConverter.addTrajectory(variable.key, variable.dynamics, sources.get(i));
+          }
+          sliceConverter.convert(start, end);
+          return sliceProcessor;
+        }));
+      }
+      for (int slice = 0; slice < nSlices; slice++)
+        combiner.combine(slice, slices.get(slice).get());
+    }
+    catch (InterruptedException | ExecutionException e)
+    {
+      throw new RuntimeException(e);
+    }
+    finally
+    {
+      pool.shutdownNow();
+    }
+  }
+  
+  private void convert(double start, double end)
+  {
+    final int size = allVariables.size();
+    final List<SegmentStream> streams = new ArrayList<>();
+    try
+    {
+      // Variable -> global time at the end of its current segment
+      final IndexedEventQueue segmentEnds = new IndexedEventQueue(size);
+      final double [] endTimes = new double[size];
+      for (int i = 0; i < size; i++)
+      {
+        streams.add(sources.get(i).get());
+        if (seek(i, streams.get(i), endTimes, start))
+          segmentEnds.add(i, endTimes[i]);
+      }
       
-      // update the variables involved
-      for (LabeledSegment alteredSegment : sortedSegments.get(globalTime))
-        if (alteredSegment.next != null)
+      GlobalProcessorContext context = new GlobalProcessorContext();
+      final int [] altered = new int[size];
+      double lastEventTime = start;
+      double previousEndTime = -1.0;
+      while (!segmentEnds.isEmpty() && segmentEnds.peekTime() < end)
+      {
+        // find out the time: each distinct end time is merged into the previous one if they are close
+        double endTime = segmentEnds.peekTime();
+        final double globalTime = NumericalUtils.isClose(previousEndTime, endTime, MERGE_TOLERANCE) ? previousEndTime : endTime;
+        
+        // and the variables starting a new segment
+        int nAltered = 0;
+        while (!segmentEnds.isEmpty())
+        {
+          final double next = segmentEnds.peekTime();
+          if (next != endTime)
+          {
+            if (endTime != globalTime || !NumericalUtils.isClose(endTime, next, MERGE_TOLERANCE))
+              break;
+            endTime = next;
+          }
+          altered[nAltered++] = segmentEnds.pollEvent();
+        }
+        previousEndTime = endTime;
+        
+        process(context, lastEventTime, globalTime);
+        
+        // update the variables involved
+        for (int i = 0; i < nAltered; i++)
         {
-          alteredSegment.variable.position.set(alteredSegment.next.startPosition);
-          alteredSegment.variable.velocity.set(alteredSegment.next.startVelocity);
+          final int variableIndex = altered[i];
+          if (startNextSegment(variableIndex, streams.get(variableIndex), endTimes))
+            segmentEnds.add(variableIndex, endTimes[variableIndex]);
         }
+        
+        lastEventTime = globalTime;
+      }
       
-      lastEventTime = globalTime;
+      // the end of a slice 
+      if (end != Double.POSITIVE_INFINITY && end > lastEventTime)
+        process(context, lastEventTime, end);
+    }
+    finally
+    {
+      for (SegmentStream stream : streams)
+        try { stream.close(); }
+        catch (Exception e) { throw new RuntimeException(e); }
     }
   }
   
-  private static TreeMultimap<Double, LabeledSegment> mergeCloseTimes(TreeMultimap<Double, LabeledSegment> input)
+  private void process(GlobalProcessorContext context, double startTime, double endTime)
   {
-    TreeMultimap<Double, LabeledSegment> sortedSegments = TreeMultimap.create();
+    context.globalTime = startTime;
+    context.globalEndTime = endTime;
+    context.globalDelta = endTime - startTime;
     
-    double last = -1.0;
+    // process here - provide delta and call back
+    processor.process(context);
     
-    for (double current : input.keySet())
+    // move all the variables 
+    for (PositionVelocity var : allVariables)
+      var.extrapolateInPlace(context.globalDelta - context.interpolatedDelta);
+    context.interpolatedDelta = 0.0;
+  }
+  
+  /**
+   * Moves to the segment containing the given time, and sets the variable to its state at that time.
+   * @return If the variable has a segment ending after the given time.
+   */
+  private boolean seek(int variableIndex, SegmentStream stream, double [] endTimes, double time)
+  {
+    // skip what can be skipped without reading it, e.g. whole blocks of binary files
+    double segmentStart = time > 0.0 ? stream.skip(time) : 0.0;
+    endTimes[variableIndex] = segmentStart;
+    boolean found = startNextSegment(variableIndex, stream, endTimes);
+    while (found && time > 0.0 && endTimes[variableIndex] <= time)
     {
-      double mergedTime = NumericalUtils.isClose(last, current, 1e-12) ?
-                             last :
-                               current;
-      sortedSegments.putAll(mergedTime, input.get(current));
-      last = current;
+      final double previousEnd = endTimes[variableIndex];
+      if (!(found = startNextSegment(variableIndex, stream, endTimes)))
+        break;
+      segmentStart = previousEnd;
     }
-    
-    return sortedSegments;
+    if (time > 0.0)
+      allVariables.get(variableIndex).extrapolateInPlace(time - segmentStart);
+    return found;
   }
-
-  private static class LabeledSegment implements Comparable<LabeledSegment>
+  
+  private boolean startNextSegment(int variableIndex, SegmentStream stream, double [] endTimes)
   {
-    final TrajectorySegment next; // could be null
-    final PositionVelocity variable;
-    
-    public LabeledSegment(PositionVelocity variable, TrajectorySegment next)
+    if (!stream.next())
+      return false;
+    final PositionVelocity variable = allVariables.get(variableIndex);
+    variable.position.set(stream.startPosition());
+    variable.velocity.set(stream.startVelocity());
+    endTimes[variableIndex] += stream.deltaTime();
+    return true;
+  }
+  
+  private static double totalTime(Supplier<SegmentStream> source)
+  {
+    try (SegmentStream stream = source.get())
     {
-      this.next = next;
-      this.variable = variable;
+      double result = stream.skip(Double.POSITIVE_INFINITY);
+      while (stream.next())
+        result += stream.deltaTime();
+      return result;
     }
-
-    @Override
-    public int compareTo(LabeledSegment o)
+    catch (Exception e)
     {
-      return variable.key.toString().compareTo(o.variable.key.toString());
+      throw new RuntimeException(e);
     }
   }
+  
+  private static final double MERGE_TOLERANCE = 1e-12;
 }
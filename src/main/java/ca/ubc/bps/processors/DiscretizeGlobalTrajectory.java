@@ -0,0 +1,65 @@
+package ca.ubc.bps.processors;
+
+import java.util.function.Consumer;
+
+import ca.ubc.bps.processors.ConvertToGlobalProcessor.GlobalProcessorContext;
+import ca.ubc.bps.state.PositionVelocity;
+
+/**
+ * Global version of DiscretizeTrajectory: emits the positions of all the variables at the
+ * multiples of a fixed interval.
+ *
+ * Each grid time t is emitted by the segment [start, end) containing it, so that slices
+ * of ConvertToGlobalProcessor.convertInParallel(..) can each use their own instance.
+ *
+ * @author bouchard
+ *
+ */
+public class DiscretizeGlobalTrajectory implements GlobalProcessor
+{
+  private final double interval;
+  private final Consumer<double[]> output;
+  private double [] row = null;
+
+  // index of the next grid point, -1 before the first segment
+  private long nextIndex = -1;
+
+  /**
+   * @param output Receives the grid time followed by the positions, the array is reused.
+   */
+  public DiscretizeGlobalTrajectory(double interval, Consumer<double[]> output)
+  {
+    if (!(interval > 0.0) || Double.isInfinite(interval))
+      throw new RuntimeException("The interval should be positive: " + interval);
+    this.interval = interval;
+    this.output = output;
+  }
+
+  @Override
+  public void process(GlobalProcessorContext context)
+  {
+    final double start = context.getGlobalTime(), end = context.getGlobalEndTime();
+    if (nextIndex == -1)
+    {
+      // first grid point at or after start (a slice may start anywhere)
+      nextIndex = (long) Math.ceil(start / interval);
+      while (nextIndex > 0 && (nextIndex - 1) * interval >= start)
+        nextIndex--;
+      while (nextIndex * interval < start)
+        nextIndex++;
+      row = new double[context.allVariables().size() + 1];
+    }
+    double current = start, gridTime;
+    while ((gridTime = nextIndex * interval) < end)
+    {
+      context.interpolate(gridTime - current);
+      current = gridTime;
+      int i = 0;
+      row[i++] = gridTime;
+      for (PositionVelocity var : context.allVariables())
+        row[i++] = var.position.get();
+      output.accept(row);
+      nextIndex++;
+    }
+  }
+}
@@ -0,0 +1,178 @@
+package ca.ubc.bps.processors;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import ca.ubc.bps.state.Dynamics;
+import ca.ubc.bps.state.PositionVelocity;
+import ca.ubc.bps.state.PositionVelocityDependent;
+import ca.ubc.pdmp.AsynchronousProcessor;
+
+/**
+ * Writes the position of a variable at the times 0, interval, 2 interval, ..., extrapolated
+ * from the segments as they are processed, instead of the segments themselves.
+ *
+ * The rows (time, position) are written in CSV or in the binary format of BinaryTrajectoryWriter.
+ * close() should be called once the simulation is done for binary rows and ResumableFiles. 
+ * Rows are flushed at each checkpoint, see ResumableOutput.
+ *
+ * See DiscretizeGlobalTrajectory for several variables at once.
+ *
+ * @author bouchard
+ *
+ */
+public class DiscretizeTrajectory extends PositionVelocityDependent implements AsynchronousProcessor, ResumableOutput, Closeable
+{
+  final PositionVelocity variable;
+  private final Dynamics dynamics;
+  private final double interval;
+
+  // exactly one of them is null
+  private final Writer csvWriter;
+  private final BinaryTrajectoryWriter binaryWriter;
+  private final ResumableFile file;
+  private final double [] row = new double[2];
+
+  // time at the start of the next segment, and index of the next grid point
+  private double time = 0.0;
+  private long nextIndex = 0, rowsBeforeResume = 0;
+
+  public DiscretizeTrajectory(PositionVelocity variable, double interval, Writer csvWriter)
+  {
+    this(variable, interval, csvWriter, null, null);
+  }
+
+  public DiscretizeTrajectory(PositionVelocity variable, double interval, OutputStream out, boolean compress)
+  {
+    this(variable, interval, null, new BinaryTrajectoryWriter(out, COLUMN_NAMES, compress), null);
+  }
+
+  /**
+   * CSV rows, continuing the file when resumed, see ResumableFile.
+   */
+  public DiscretizeTrajectory(PositionVelocity variable, double interval, ResumableFile file)
+  {
+    this(variable, interval, file.newBufferedWriter(), null, file);
+  }
+
+  /**
+   * Binary rows, continuing the file when resumed, see ResumableFile.
+   */
+  public DiscretizeTrajectory(PositionVelocity variable, double interval, ResumableFile file, boolean compress)
+  {
+    this(variable, interval, null, new BinaryTrajectoryWriter(file, COLUMN_NAMES, compress), file);
+  }
+
+  private DiscretizeTrajectory(PositionVelocity variable, double interval, Writer csvWriter, BinaryTrajectoryWriter binaryWriter, ResumableFile file)
+  {
+    super(Collections.singletonList(variable));
+    if (!(interval > 0.0) || Double.isInfinite(interval))
+      throw new RuntimeException("The interval should be positive: " + interval);
+    this.variable = variable;
+    this.dynamics = variable.dynamics;
+    this.interval = interval;
+    this.csvWriter = csvWriter;
+    this.binaryWriter = binaryWriter;
+    this.file = file;
+    if (csvWriter != null)
+      try { csvWriter.append(COLUMN_NAMES.get(0) + "," + COLUMN_NAMES.get(1) + "\n"); }
+      catch (IOException e) { throw new RuntimeException(e); }
+  }
+
+  @Override
+  public void process(double deltaTime, int jumpProcessIndex)
+  {
+    process(deltaTime, variable.position.get(), variable.velocity.get());
+  }
+
+  @Override
+  public void process(double deltaTime, int jumpProcessIndex, double [] state, int offset)
+  {
+    // see PositionVelocity.saveState(..)
+    process(deltaTime, state[offset], state[offset + 1]);
+  }
+
+  private void process(double deltaTime, double x, double v)
+  {
+    final double end = time + deltaTime;
+    double gridTime;
+    // grid times are computed from their index to avoid accumulating rounding errors
+    while ((gridTime = nextIndex * interval) < end)
+    {
+      row[0] = gridTime;
+      row[1] = dynamics.extrapolatePosition(gridTime - time, x, v);
+      write();
+      nextIndex++;
+    }
+    time = end;
+  }
+
+  private void write()
+  {
+    if (binaryWriter != null)
+      binaryWriter.append(row);
+    else
+      try { csvWriter.append(row[0] + "," + row[1] + "\n"); }
+      catch (IOException e) { throw new RuntimeException(e); }
+  }
+
+  @Override
+  public void writeState(DataOutput out) throws IOException
+  {
+    if (binaryWriter != null)
+      binaryWriter.flush();
+    else
+      csvWriter.flush();
+    out.writeDouble(time);
+    out.writeLong(nextIndex);
+    ResumableFile.writeLength(file, out);
+  }
+
+  @Override
+  public void readState(DataInput in) throws IOException
+  {
+    time = in.readDouble();
+    nextIndex = rowsBeforeResume = in.readLong();
+    // the header is already in the file
+    if (csvWriter != null)
+      csvWriter.flush();
+    ResumableFile.readLength(file, in);
+  }
+  
+  /**
+   * One row per grid point.
+   */
+  @Override
+  public long rowsBeforeResume()
+  {
+    return rowsBeforeResume;
+  }
+
+  @Override
+  public double timeBeforeResume()
+  {
+    return rowsBeforeResume * interval;
+  }
+
+  /**
+   * Writes the last binary block, see BinaryTrajectoryWriter.close(), or closes the file.
+   */
+  @Override
+  public void close()
+  {
+    if (binaryWriter != null)
+      binaryWriter.close();
+    else if (file != null)
+      try { csvWriter.close(); }
+      catch (IOException e) { throw new RuntimeException(e); }
+  }
+
+  public static final List<String> COLUMN_NAMES = Collections.unmodifiableList(Arrays.asList("time", "position"));
+}
@@ -0,0 +1,13 @@
+package ca.ubc.bps.processors;
+
+/**
+ * Receives, in order, the processors of the slices of ConvertToGlobalProcessor.convertInParallel(..).
+ * 
+ * @author bouchard
+ *
+ */
+@FunctionalInterface
+public interface GlobalProcessorCombiner<P extends GlobalProcessor>
+{
+  public void combine(int sliceIndex, P sliceProcessor);
+}
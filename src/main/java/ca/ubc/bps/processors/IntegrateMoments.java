@@ -0,0 +1,174 @@
+package ca.ubc.bps.processors;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+
+import ca.ubc.bps.state.PositionVelocity;
+import ca.ubc.bps.state.PositionVelocityDependent;
+import ca.ubc.pdmp.AsynchronousProcessor;
+import ca.ubc.pdmp.Checkpointable;
+
+/**
+ * Same as one IntegrateTrajectory with a MomentIntegrator per degree, but as a single
+ * processor using a MomentsIntegrator, i.e. one dispatch and one pass per segment.
+ *
+ * @author bouchard
+ *
+ */
+public class IntegrateMoments extends PositionVelocityDependent implements AsynchronousProcessor, Checkpointable, Closeable
+{
+  final PositionVelocity variable;
+  private final MomentsIntegrator integrator;
+  private final double [] sums, segmentIntegrals;
+  private double totalLength = 0.0;
+
+  public IntegrateMoments(PositionVelocity variable, List<Integer> degrees)
+  {
+    super(Collections.singletonList(variable));
+    this.variable = variable;
+    this.integrator = new MomentsIntegrator(degrees);
+    integrator.setup(variable.dynamics);
+    this.sums = new double[integrator.size()];
+    this.segmentIntegrals = new double[integrator.size()];
+    this.outs = new Writer[integrator.size()];
+    this.files = new ResumableFile[integrator.size()];
+  }
+
+  public int numberOfMoments()
+  {
+    return integrator.size();
+  }
+
+  public int degree(int index)
+  {
+    return integrator.degree(index);
+  }
+
+  /**
+   * @return The average of x^degree(index) over the trajectory.
+   */
+  public double integrate(int index)
+  {
+    if (totalLength == 0.0)
+      throw new RuntimeException();
+    return sums[index] / totalLength;
+  }
+
+  @Override
+  public void process(double deltaTime, int jumpProcessIndex)
+  {
+    process(deltaTime, variable.position.get(), variable.velocity.get());
+  }
+
+  @Override
+  public void process(double deltaTime, int jumpProcessIndex, double [] state, int offset)
+  {
+    // see PositionVelocity.saveState(..)
+    process(deltaTime, state[offset], state[offset + 1]);
+  }
+
+  private void process(double deltaTime, double position, double velocity)
+  {
+    totalLength += deltaTime;
+    integrator.evaluate(position, velocity, deltaTime, segmentIntegrals);
+    for (int i = 0; i < sums.length; i++)
+      sums[i] += segmentIntegrals[i];
+    if (hasOutput)
+      write();
+  }
+
+  @Override
+  public void writeState(DataOutput out) throws IOException
+  {
+    // so that the files of an interrupted run contain all the rows up to the checkpoint 
+    // (a resumed run continues ResumableFiles from there)
+    for (Writer writer : outs)
+      if (writer != null)
+        writer.flush();
+    out.writeDouble(totalLength);
+    for (double sum : sums)
+      out.writeDouble(sum);
+    out.writeInt(counter);
+    out.writeInt(next);
+    for (ResumableFile file : files)
+      ResumableFile.writeLength(file, out);
+  }
+
+  @Override
+  public void readState(DataInput in) throws IOException
+  {
+    totalLength = in.readDouble();
+    for (int i = 0; i < sums.length; i++)
+      sums[i] = in.readDouble();
+    counter = in.readInt();
+    next = in.readInt();
+    for (int i = 0; i < outs.length; i++)
+    {
+      // the headers are already in the files
+      if (outs[i] != null)
+        outs[i].flush();
+      ResumableFile.readLength(files[i], in);
+    }
+  }
+
+  /**
+   * Closes the ResumableFiles, see setOutput(..).
+   */
+  @Override
+  public void close() throws IOException
+  {
+    for (int i = 0; i < outs.length; i++)
+      if (files[i] != null)
+        outs[i].close();
+  }
+
+  // see IntegrateTrajectory.write()
+  private void write()
+  {
+    if (!exponentiallySpaced || counter == next)
+    {
+      try
+      {
+        for (int i = 0; i < outs.length; i++)
+          if (outs[i] != null)
+          {
+            outs[i].append("" + counter + "," + integrate(i) + "\n");
+            if (exponentiallySpaced && counter > 1000)
+              outs[i].flush();
+          }
+      } catch (Exception e) { throw new RuntimeException(e); }
+      next *= 2;
+    }
+    counter++;
+  }
+
+  private final Writer [] outs;
+  private final ResumableFile [] files;
+  private boolean hasOutput = false, exponentiallySpaced = false;
+  private int counter = 0, next = 1;
+  public void setOutput(int index, Writer out, boolean exponentiallySpaced)
+  {
+    if (hasOutput && exponentiallySpaced != this.exponentiallySpaced)
+      throw new RuntimeException("All the moments should use the same spacing");
+    this.outs[index] = out;
+    this.hasOutput = true;
+    this.exponentiallySpaced = exponentiallySpaced;
+    try { out.append("eventIndex,currentAverage\n"); }
+    catch (Exception e) { throw new RuntimeException(e); }
+  }
+  
+  /**
+   * Continues the file when resumed, see ResumableFile. close() should be called once the 
+   * simulation is done.
+   */
+  public void setOutput(int index, ResumableFile file, boolean exponentiallySpaced)
+  {
+    setOutput(index, file.newBufferedWriter(), exponentiallySpaced);
+    this.files[index] = file;
+  }
+}
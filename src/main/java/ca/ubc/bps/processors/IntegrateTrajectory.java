@@ -1,29 +1,33 @@
 package ca.ubc.bps.processors;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Writer;
 import java.util.Collections;
 
 import ca.ubc.bps.state.PositionVelocityDependent;
 import ca.ubc.bps.state.PositionVelocity;
-import ca.ubc.pdmp.Processor;
+import ca.ubc.pdmp.AsynchronousProcessor;
+import ca.ubc.pdmp.Checkpointable;
 
-public class IntegrateTrajectory extends PositionVelocityDependent implements Processor
+public class IntegrateTrajectory extends PositionVelocityDependent implements AsynchronousProcessor, Checkpointable
 {
   final PositionVelocity variable;
   final TrajectoryIntegrator integrator;
   
+  // for views, see momentOf(..), otherwise null
+  private final IntegrateMoments moments;
+  private final int momentIndex;
+  
   public static double integrate(Trajectory trajectory, SegmentIntegrator integral)
   {
-    integral.setup(trajectory.dynamics);
-    TrajectoryIntegrator integrator = new TrajectoryIntegrator(integral);
-    for (TrajectorySegment segment : trajectory.segments)
-      integrator.process(segment.deltaTime, segment.startPosition, segment.startVelocity);
-    return integrator.integrate();
+    return trajectory.integrate(integral);
   }
   
   public double integrate()
   {
-    return integrator.integrate();
+    return moments == null ? integrator.integrate() : moments.integrate(momentIndex);
   }
   
   public IntegrateTrajectory(PositionVelocity variable, SegmentIntegrator integral)
@@ -32,16 +36,70 @@ public class IntegrateTrajectory extends PositionVelocityDependent implements Pr
     this.variable = variable;
     integral.setup(variable.dynamics);
     this.integrator = new TrajectoryIntegrator(integral);
+    this.moments = null;
+    this.momentIndex = -1;
+  }
+  
+  private IntegrateTrajectory(IntegrateMoments moments, int momentIndex)
+  {
+    super(Collections.singletonList(moments.variable));
+    this.variable = moments.variable;
+    this.integrator = null;
+    this.moments = moments;
+    this.momentIndex = momentIndex;
+  }
+  
+  /**
+   * @return A read-only view of one of the moments computed by an IntegrateMoments processor 
+   *   (see BPSFactory.BPS.summarizedTrajectories). It should not be added to a PDMP.
+   */
+  public static IntegrateTrajectory momentOf(IntegrateMoments moments, int index)
+  {
+    if (index < 0 || index >= moments.numberOfMoments())
+      throw new RuntimeException("Invalid moment index: " + index);
+    return new IntegrateTrajectory(moments, index);
   }
 
   @Override
   public void process(double deltaTime, int jumpProcessIndex)
   {
-    integrator.process(deltaTime, variable.position.get(), variable.velocity.get());
+    process(deltaTime, variable.position.get(), variable.velocity.get());
+  }
+  
+  @Override
+  public void process(double deltaTime, int jumpProcessIndex, double [] state, int offset)
+  {
+    // see PositionVelocity.saveState(..)
+    process(deltaTime, state[offset], state[offset + 1]);
+  }
+  
+  private void process(double deltaTime, double position, double velocity)
+  {
+    if (moments != null)
+      throw new RuntimeException("Views of IntegrateMoments are read-only");
+    integrator.process(deltaTime, position, velocity);
     if (out != null)
       write();
   }
   
+  @Override
+  public void writeState(DataOutput out) throws IOException
+  {
+    out.writeDouble(integrator.totalLength);
+    out.writeDouble(integrator.sum);
+    out.writeInt(counter);
+    out.writeInt(next);
+  }
+
+  @Override
+  public void readState(DataInput in) throws IOException
+  {
+    integrator.totalLength = in.readDouble();
+    integrator.sum = in.readDouble();
+    counter = in.readInt();
+    next = in.readInt();
+  }
+  
   private void write()
   {
     if (!exponentiallySpaced || counter == next)
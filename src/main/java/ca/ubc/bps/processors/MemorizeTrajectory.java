@@ -1,31 +1,72 @@
 package ca.ubc.bps.processors;
 
-import java.util.ArrayList;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Collections;
-import java.util.List;
 
 import ca.ubc.bps.state.PositionVelocityDependent;
 import ca.ubc.bps.state.PositionVelocity;
-import ca.ubc.pdmp.Processor;
+import ca.ubc.pdmp.AsynchronousProcessor;
+import ca.ubc.pdmp.Checkpointable;
 
-public class MemorizeTrajectory extends PositionVelocityDependent implements Processor
+public class MemorizeTrajectory extends PositionVelocityDependent implements AsynchronousProcessor, Checkpointable
 {
-  final List<TrajectorySegment> trajectory = new ArrayList<>();
+  final SegmentStore trajectory;
   final PositionVelocity variable;
   
   public MemorizeTrajectory(PositionVelocity variable)
+  {
+    this(variable, SegmentStore.Storage.HEAP);
+  } 
+  
+  public MemorizeTrajectory(PositionVelocity variable, SegmentStore.Storage storage)
   {
     super(Collections.singletonList(variable));
     this.variable = variable;
+    this.trajectory = new SegmentStore(storage);
   } 
   
   @Override
   public void process(double deltaTime, int jumpProcessIndex)
   {
-    final TrajectorySegment current = new TrajectorySegment(deltaTime, variable.position.get(), variable.velocity.get());
-    trajectory.add(current);
+    trajectory.add(deltaTime, variable.position.get(), variable.velocity.get());
+  }
+  
+  @Override
+  public void process(double deltaTime, int jumpProcessIndex, double [] state, int offset)
+  {
+    // see PositionVelocity.saveState(..)
+    trajectory.add(deltaTime, state[offset], state[offset + 1]);
+  }
+
+  @Override
+  public void writeState(DataOutput out) throws IOException
+  {
+    trajectory.writeSegments(out);
+  }
+  
+  /**
+   * Only records the number of segments, see SegmentStore.snapshot().
+   */
+  @Override
+  public Snapshot snapshot()
+  {
+    return trajectory.snapshot();
+  }
+
+  @Override
+  public void readState(DataInput in) throws IOException
+  {
+    trajectory.clear();
+    final int size = in.readInt();
+    for (int i = 0; i < size; i++)
+      trajectory.add(in.readDouble(), in.readDouble(), in.readDouble());
   }
 
+  /**
+   * @return A trajectory sharing the memorized segments, including those added later.
+   */
   public Trajectory getTrajectory()
   {
     return new Trajectory(variable.dynamics, trajectory);
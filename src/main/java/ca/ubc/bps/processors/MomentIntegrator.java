@@ -1,5 +1,7 @@
 package ca.ubc.bps.processors;
 
+import java.util.Collections;
+
 import bayonet.math.SpecialFunctions;
 import ca.ubc.bps.state.Dynamics;
 import ca.ubc.bps.state.PiecewiseLinear;
@@ -8,39 +10,67 @@ public class MomentIntegrator implements SegmentIntegrator
 {
   final int degree;
   
-  private SegmentIntegrator numericalDelegate = null;
+  // binomials[k] = binom(degree, k), computed as below before being tabulated
+  private final double [] binomials;
+  
+  // closed form (IsotropicHamiltonian) or quadrature (other dynamics), see MomentsIntegrator
+  private MomentsIntegrator delegate = null;
+  private final double [] delegateResult = new double[1];
   
   public MomentIntegrator(int degree)
   {
     if (degree < 0)
       throw new RuntimeException();
     this.degree = degree;
+    this.binomials = new double[degree + 1];
+    for (int k = 0; k <= degree; k++)
+      binomials[k] = Math.exp(SpecialFunctions.logBinomial(degree, k));
   }
 
   @Override
   public void setup(Dynamics dynamics)
   {
+    delegate = null;
     if (!(dynamics instanceof PiecewiseLinear))
     {
-      numericalDelegate = new NumericalIntegrator(d -> Math.pow(d, degree));
-      numericalDelegate.setup(dynamics);
+      delegate = new MomentsIntegrator(Collections.singletonList(degree));
+      delegate.setup(dynamics);
     }
   }
 
   @Override
   public double evaluate(double x, double v, double deltaT)
   {
-    if (numericalDelegate != null)
-      return numericalDelegate.evaluate(x, v, deltaT);
+    if (delegate != null)
+    {
+      delegate.evaluate(x, v, deltaT, delegateResult);
+      return delegateResult[0];
+    }
     
     double sum = 0.0;
     for (int k = 0; k <= degree; k++) 
       sum += 
-        Math.exp(SpecialFunctions.logBinomial(degree, k)) 
+        binomials[k] 
         * Math.pow(x, k) 
         * Math.pow(v, degree - k) 
         * Math.pow(deltaT, degree - k + 1) 
         / (degree - k + 1);
     return sum;
   }
+
+  @Override
+  public int hashCode()
+  {
+    return 31 + degree;
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    if (this == obj)
+      return true;
+    if (obj == null || getClass() != obj.getClass())
+      return false;
+    return degree == ((MomentIntegrator) obj).degree;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,156 @@
+package ca.ubc.bps.processors;
+
+import java.util.Arrays;
+
+import ca.ubc.bps.state.Dynamics;
+
+/**
+ * Adaptive Gauss-Kronrod (7, 15) quadrature of several moments along a segment, for dynamics
+ * without closed forms (e.g. Hyperbolic).
+ *
+ * The nodes and weights are tabulated once, the position at each node is obtained with a
+ * single call to Dynamics.extrapolatePosition(..) and shared by all the degrees, and an
+ * interval is bisected until the Kronrod and Gauss estimates agree for every degree.
+ *
+ * Not thread safe (scratch arrays are reused).
+ *
+ * @author bouchard
+ *
+ */
+class MomentQuadrature
+{
+  private final Dynamics dynamics;
+  private final int [] degrees;
+  private final int maxDegree;
+
+  // scratch: per degree estimates and powers of the position
+  private final double [] kronrod, gauss, powers;
+
+  // pending intervals (start, length)
+  private double [] stack = new double[2 * 16];
+
+  MomentQuadrature(Dynamics dynamics, int [] degrees)
+  {
+    this.dynamics = dynamics;
+    this.degrees = degrees.clone();
+    int max = 0;
+    for (int degree : degrees)
+      max = Math.max(max, degree);
+    this.maxDegree = max;
+    this.kronrod = new double[degrees.length];
+    this.gauss = new double[degrees.length];
+    this.powers = new double[maxDegree + 1];
+  }
+
+  void evaluate(double x, double v, double deltaT, double [] result)
+  {
+    for (int i = 0; i < degrees.length; i++)
+      result[i] = 0.0;
+    if (deltaT == 0.0)
+      return;
+    int nPending = 0, nIntervals = 1;
+    push(nPending++, 0.0, deltaT);
+    while (nPending > 0)
+    {
+      nPending--;
+      final double start = stack[2 * nPending], length = stack[2 * nPending + 1];
+      rule(x, v, start, length);
+      if (nIntervals < MAX_INTERVALS && !converged(length / deltaT))
+      {
+        final double half = length / 2.0;
+        push(nPending++, start + half, half);
+        push(nPending++, start, half);
+        nIntervals++;
+        continue;
+      }
+      for (int i = 0; i < degrees.length; i++)
+        result[i] += kronrod[i];
+    }
+  }
+
+  // the error on an interval is compared to a share of the tolerance proportional to its length
+  private boolean converged(double relativeLength)
+  {
+    for (int i = 0; i < degrees.length; i++)
+    {
+      final double error = Math.abs(kronrod[i] - gauss[i]);
+      if (!(error <= relativeLength * ABSOLUTE_TOLERANCE || error <= RELATIVE_TOLERANCE * Math.abs(kronrod[i])))
+        return false;
+    }
+    return true;
+  }
+
+  private void rule(double x, double v, double start, double length)
+  {
+    final double halfLength = length / 2.0, center = start + halfLength;
+    for (int i = 0; i < degrees.length; i++)
+      kronrod[i] = gauss[i] = 0.0;
+    for (int node = 0; node < KRONROD_NODES.length; node++)
+    {
+      final double offset = halfLength * KRONROD_NODES[node];
+      accumulate(x, v, center - offset, node);
+      if (offset != 0.0)
+        accumulate(x, v, center + offset, node);
+    }
+    for (int i = 0; i < degrees.length; i++)
+    {
+      kronrod[i] *= halfLength;
+      gauss[i] *= halfLength;
+    }
+  }
+
+  private void accumulate(double x, double v, double time, int node)
+  {
+    final double position = dynamics.extrapolatePosition(time, x, v);
+    powers[0] = 1.0;
+    for (int k = 1; k <= maxDegree; k++)
+      powers[k] = powers[k - 1] * position;
+    final double kronrodWeight = KRONROD_WEIGHTS[node];
+    // the Gauss nodes are the odd Kronrod nodes
+    final double gaussWeight = node % 2 == 1 ? GAUSS_WEIGHTS[node / 2] : 0.0;
+    for (int i = 0; i < degrees.length; i++)
+    {
+      final double value = powers[degrees[i]];
+      kronrod[i] += kronrodWeight * value;
+      gauss[i] += gaussWeight * value;
+    }
+  }
+
+  private void push(int index, double start, double length)
+  {
+    if (2 * index + 2 > stack.length)
+      stack = Arrays.copyOf(stack, 2 * stack.length);
+    stack[2 * index] = start;
+    stack[2 * index + 1] = length;
+  }
+
+  static final double RELATIVE_TOLERANCE = 1e-10, ABSOLUTE_TOLERANCE = 1e-14;
+  static final int MAX_INTERVALS = 1000;
+
+  // non-negative nodes of the 15 points Kronrod rule on [-1, 1], in decreasing order, and weights
+  private static final double [] KRONROD_NODES = {
+    0.991455371120812639206854697526329,
+    0.949107912342758524526189684047851,
+    0.864864423359769072789712788640926,
+    0.741531185599394439863864773280788,
+    0.586087235467691130294144845693013,
+    0.405845151377397166906606412076961,
+    0.207784955007898467600689403773245,
+    0.000000000000000000000000000000000 };
+  private static final double [] KRONROD_WEIGHTS = {
+    0.022935322010529224963732008058970,
+    0.063092092629978553290700663189204,
+    0.104790010322250183839876322541518,
+    0.140653259715525918745189590510238,
+    0.169004726639267902826583426598550,
+    0.190350578064785409913256402421014,
+    0.204432940075298892414161999234649,
+    0.209482141084727828012999174891714 };
+
+  // weights of the 7 points Gauss rule, at KRONROD_NODES[1], [3], [5], [7]
+  private static final double [] GAUSS_WEIGHTS = {
+    0.129484966168869693270611432679082,
+    0.279705391489276667901467771423780,
+    0.381830050505118944950369775488975,
+    0.417959183673469387755102040816327 };
+}
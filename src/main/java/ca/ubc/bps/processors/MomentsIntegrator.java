@@ -0,0 +1,184 @@
+package ca.ubc.bps.processors;
+
+import java.util.List;
+
+import ca.ubc.bps.state.Dynamics;
+import ca.ubc.bps.state.IsotropicHamiltonian;
+import ca.ubc.bps.state.PiecewiseLinear;
+
+/**
+ * Integrals of several moments, x^degree, computed in one pass over each segment.
+ *
+ * For PiecewiseLinear dynamics, x(t) = x + v t, so that
+ *
+ *   int_0^T x(t)^d dt = T sum_k binom(d, k)/(d - k + 1) x^k (v T)^(d - k),
+ *
+ * the coefficients are tabulated once and the powers of x and v T are shared by all degrees.
+ *
+ * For IsotropicHamiltonian dynamics, x(t) = A cos(t) + B sin(t) with A = x, B = v / precision.
+ * Writing x(t) = R cos(t - phi) and using the power reduction identity
+ * cos^d = 2^-d sum_j binom(d, j) cos((d - 2j) .), with m = d - 2j,
+ *
+ *   int_0^T x(t)^d dt = 2^(2-d) sum_{m > 0} binom(d, j) R^(2j) Re(z^m) sin(m T/2) / m
+ *                       + [d even] 2^-d binom(d, d/2) R^d T,
+ *
+ * where z = R exp(i (T/2 - phi)) = x(T/2) + i (A sin(T/2) - B cos(T/2)). Only sin(T/2) and
+ * cos(T/2) are needed, the rest is shared products. The rounding error is relative to R^d T
+ * rather than to the integral, which only matters for short segments near the origin, where
+ * the integrals are negligible.
+ *
+ * Other dynamics (e.g. Hyperbolic) use an adaptive quadrature, see MomentQuadrature.
+ *
+ * Agrees with MomentIntegrator (for PiecewiseLinear dynamics) up to floating point rounding.
+ *
+ * @author bouchard
+ *
+ */
+public class MomentsIntegrator implements MultiSegmentIntegrator
+{
+  private final int [] degrees;
+  private final int maxDegree;
+
+  // binomials[degree][k] = binom(degree, k), coefficients[degree][k] = binom(degree, k) / (degree - k + 1)
+  private final double [][] binomials, coefficients;
+
+  private final double [] xPowers, vtPowers;
+
+  // IsotropicHamiltonian only: powers of R^2, of z = re + i im, and sines of multiples of T/2
+  private IsotropicHamiltonian hamiltonian = null;
+  private final double [] squaredRadiusPowers, zRealPowers, sines;
+
+  private MomentQuadrature quadrature = null;
+
+  public MomentsIntegrator(List<Integer> degrees)
+  {
+    if (degrees.isEmpty())
+      throw new RuntimeException();
+    this.degrees = new int[degrees.size()];
+    int max = 0;
+    for (int i = 0; i < this.degrees.length; i++)
+    {
+      final int degree = degrees.get(i);
+      if (degree < 0)
+        throw new RuntimeException();
+      this.degrees[i] = degree;
+      max = Math.max(max, degree);
+    }
+    this.maxDegree = max;
+    this.binomials = new double[maxDegree + 1][];
+    this.coefficients = new double[maxDegree + 1][];
+    for (int degree = 0; degree <= maxDegree; degree++)
+    {
+      // Pascal's triangle, exact for the degrees of interest
+      binomials[degree] = new double[degree + 1];
+      binomials[degree][0] = binomials[degree][degree] = 1.0;
+      for (int k = 1; k < degree; k++)
+        binomials[degree][k] = binomials[degree - 1][k - 1] + binomials[degree - 1][k];
+      coefficients[degree] = new double[degree + 1];
+      for (int k = 0; k <= degree; k++)
+        coefficients[degree][k] = binomials[degree][k] / (degree - k + 1);
+    }
+    this.xPowers = new double[maxDegree + 1];
+    this.vtPowers = new double[maxDegree + 1];
+    this.squaredRadiusPowers = new double[maxDegree / 2 + 1];
+    this.zRealPowers = new double[maxDegree + 1];
+    this.sines = new double[maxDegree + 1];
+  }
+
+  public int degree(int index)
+  {
+    return degrees[index];
+  }
+
+  @Override
+  public int size()
+  {
+    return degrees.length;
+  }
+
+  @Override
+  public void setup(Dynamics dynamics)
+  {
+    hamiltonian = null;
+    quadrature = null;
+    if (dynamics instanceof IsotropicHamiltonian)
+      hamiltonian = (IsotropicHamiltonian) dynamics;
+    else if (!(dynamics instanceof PiecewiseLinear))
+      quadrature = new MomentQuadrature(dynamics, degrees);
+  }
+
+  @Override
+  public void evaluate(double x, double v, double deltaT, double [] result)
+  {
+    if (hamiltonian != null)
+    {
+      evaluateElliptical(x, v / hamiltonian.getPrecision(), deltaT, result);
+      return;
+    }
+    if (quadrature != null)
+    {
+      quadrature.evaluate(x, v, deltaT, result);
+      return;
+    }
+    final double vt = v * deltaT;
+    xPowers[0] = 1.0;
+    vtPowers[0] = 1.0;
+    for (int k = 1; k <= maxDegree; k++)
+    {
+      xPowers[k] = xPowers[k - 1] * x;
+      vtPowers[k] = vtPowers[k - 1] * vt;
+    }
+    for (int i = 0; i < degrees.length; i++)
+    {
+      final int degree = degrees[i];
+      final double [] current = coefficients[degree];
+      double sum = 0.0;
+      for (int k = 0; k <= degree; k++)
+        sum += current[k] * xPowers[k] * vtPowers[degree - k];
+      result[i] = sum * deltaT;
+    }
+  }
+
+  // x(t) = a cos(t) + b sin(t), see the class comment
+  private void evaluateElliptical(double a, double b, double deltaT, double [] result)
+  {
+    if (Double.isNaN(b))
+      throw new RuntimeException();
+    final double half = deltaT / 2.0, sin = Math.sin(half), cos = Math.cos(half);
+    final double re = a * cos + b * sin, im = a * sin - b * cos;
+    final double squaredRadius = a * a + b * b;
+    squaredRadiusPowers[0] = 1.0;
+    for (int j = 1; j < squaredRadiusPowers.length; j++)
+      squaredRadiusPowers[j] = squaredRadiusPowers[j - 1] * squaredRadius;
+    // Re(z^m) and sin(m T/2), by complex products
+    double zRe = 1.0, zIm = 0.0, sinM = 0.0, cosM = 1.0;
+    zRealPowers[0] = 1.0;
+    sines[0] = 0.0;
+    for (int m = 1; m <= maxDegree; m++)
+    {
+      final double nextZRe = zRe * re - zIm * im;
+      zIm = zRe * im + zIm * re;
+      zRe = nextZRe;
+      zRealPowers[m] = zRe;
+      final double nextSinM = sinM * cos + cosM * sin;
+      cosM = cosM * cos - sinM * sin;
+      sinM = nextSinM;
+      sines[m] = sinM;
+    }
+    for (int i = 0; i < degrees.length; i++)
+    {
+      final int degree = degrees[i];
+      final double [] current = binomials[degree];
+      double sum = 0.0;
+      for (int j = 0; 2 * j < degree; j++)
+      {
+        final int m = degree - 2 * j;
+        sum += current[j] * squaredRadiusPowers[j] * zRealPowers[m] * sines[m] / m;
+      }
+      sum *= 4.0;
+      if (degree % 2 == 0)
+        sum += current[degree / 2] * squaredRadiusPowers[degree / 2] * deltaT;
+      result[i] = Math.scalb(sum, -degree);
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package ca.ubc.bps.processors;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.ubc.bps.state.Dynamics;
+
+/**
+ * Several SegmentIntegrators evaluated together, so that implementations can share
+ * work across them (see MomentsIntegrator).
+ *
+ * @author bouchard
+ *
+ */
+public interface MultiSegmentIntegrator
+{
+  void setup(Dynamics dynamics);
+  int size();
+
+  /**
+   * @param result Filled with the integral of each of the size() test functions.
+   */
+  void evaluate(double x, double v, double deltaT, double [] result);
+
+  public static MultiSegmentIntegrator of(List<? extends SegmentIntegrator> integrators)
+  {
+    final List<SegmentIntegrator> copy = new ArrayList<>(integrators);
+    return new MultiSegmentIntegrator()
+    {
+      @Override
+      public void setup(Dynamics dynamics)
+      {
+        for (SegmentIntegrator integrator : copy)
+          integrator.setup(dynamics);
+      }
+
+      @Override
+      public int size()
+      {
+        return copy.size();
+      }
+
+      @Override
+      public void evaluate(double x, double v, double deltaT, double [] result)
+      {
+        for (int i = 0; i < copy.size(); i++)
+          result[i] = copy.get(i).evaluate(x, v, deltaT);
+      }
+    };
+  }
+}
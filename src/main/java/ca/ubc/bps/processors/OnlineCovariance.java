@@ -0,0 +1,340 @@
+package ca.ubc.bps.processors;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import ca.ubc.bps.state.Dynamics;
+import ca.ubc.bps.state.IsotropicHamiltonian;
+import ca.ubc.bps.state.PiecewiseLinear;
+import ca.ubc.bps.state.PositionVelocity;
+import ca.ubc.bps.state.PositionVelocityDependent;
+import ca.ubc.pdmp.Checkpointable;
+import ca.ubc.pdmp.Processor;
+
+/**
+ * Exact time-integrated means and covariances of pairs of variables, computed during
+ * the simulation, for all the pairs of a block of variables or for a given list of pairs.
+ *
+ * Rather than one joint processor for the block (see Processor), which would update all the
+ * pairs at each event of any variable, each variable gets its own processor (see processors()),
+ * and the variables are synchronized lazily: the segments of each variable are kept until all
+ * its partners have moved past their end, so that a segment only costs one update per partner. Since processors are called
+ * in the order of the end times of the segments, each overlap of a segment of i and one of
+ * j is integrated exactly once, by whichever ends last, in closed form:
+ *
+ *   int_0^L (x_i + v_i t)(x_j + v_j t) dt = x_i x_j L + (x_i v_j + x_j v_i) L^2/2 + v_i v_j L^3/3
+ *
+ * for PiecewiseLinear dynamics, and similarly with products of sines and cosines for
+ * IsotropicHamiltonian dynamics.
+ *
+ * The processors are deliberately not AsynchronousProcessors: the asynchronous pipeline
+ * only orders the calls of each variable, not across variables.
+ *
+ * @author bouchard
+ *
+ */
+public class OnlineCovariance
+{
+  private final List<PositionVelocity> variables;
+
+  // pairs[p] = {i, j}, indices in variables, i <= j
+  private final int [][] pairs;
+  private final double [] crossIntegrals;
+
+  private final VariableState [] states;
+  private final List<Processor> processors = new ArrayList<>();
+
+  /**
+   * @return Estimators for all the pairs (i, j), i <= j, of the given variables.
+   */
+  public static OnlineCovariance allPairs(List<PositionVelocity> variables)
+  {
+    final List<int[]> pairs = new ArrayList<>();
+    for (int i = 0; i < variables.size(); i++)
+      for (int j = i; j < variables.size(); j++)
+        pairs.add(new int[] {i, j});
+    return new OnlineCovariance(variables, pairs);
+  }
+
+  /**
+   * @param pairs Pairs of indices in variables (a pair (i, i) gives the variance of i).
+   */
+  public OnlineCovariance(List<PositionVelocity> variables, List<int[]> pairs)
+  {
+    this.variables = new ArrayList<>(variables);
+    this.pairs = new int[pairs.size()][];
+    for (int p = 0; p < pairs.size(); p++)
+    {
+      final int [] pair = pairs.get(p);
+      if (pair.length != 2 || pair[0] < 0 || pair[1] < 0 || pair[0] >= variables.size() || pair[1] >= variables.size())
+        throw new RuntimeException("Invalid pair: " + Arrays.toString(pair));
+      this.pairs[p] = new int[] {Math.min(pair[0], pair[1]), Math.max(pair[0], pair[1])};
+    }
+    this.crossIntegrals = new double[pairs.size()];
+    this.states = new VariableState[variables.size()];
+    for (int i = 0; i < states.length; i++)
+      states[i] = new VariableState(i);
+    // adjacency lists
+    final List<List<Integer>> partners = new ArrayList<>();
+    for (int i = 0; i < states.length; i++)
+      partners.add(new ArrayList<>());
+    for (int p = 0; p < this.pairs.length; p++)
+    {
+      partners.get(this.pairs[p][0]).add(p);
+      if (this.pairs[p][0] != this.pairs[p][1])
+        partners.get(this.pairs[p][1]).add(p);
+    }
+    for (int i = 0; i < states.length; i++)
+    {
+      final VariableState state = states[i];
+      state.pairIndices = partners.get(i).stream().mapToInt(Integer::intValue).toArray();
+      state.partners = new int[state.pairIndices.length];
+      for (int k = 0; k < state.partners.length; k++)
+      {
+        final int [] pair = this.pairs[state.pairIndices[k]];
+        state.partners[k] = pair[0] == i ? pair[1] : pair[0];
+      }
+      processors.add(new VariableProcessor(state));
+    }
+  }
+
+  /**
+   * @return One processor per variable, all of which should be added to the PDMP.
+   */
+  public List<Processor> processors()
+  {
+    return Collections.unmodifiableList(processors);
+  }
+
+  public List<PositionVelocity> variables()
+  {
+    return Collections.unmodifiableList(variables);
+  }
+
+  public int numberOfPairs()
+  {
+    return pairs.length;
+  }
+
+  /**
+   * @return The indices (in variables()) of the given pair.
+   */
+  public int [] pair(int pairIndex)
+  {
+    return pairs[pairIndex].clone();
+  }
+
+  /**
+   * @return The average of the given variable over its trajectory so far.
+   */
+  public double mean(int variableIndex)
+  {
+    final VariableState state = states[variableIndex];
+    if (state.time == 0.0)
+      throw new RuntimeException();
+    return state.integral / state.time;
+  }
+
+  /**
+   * @return The average of x_i x_j over the time where both are processed.
+   */
+  public double crossMoment(int pairIndex)
+  {
+    final double time = pairTime(pairIndex);
+    if (time == 0.0)
+      throw new RuntimeException();
+    return crossIntegrals[pairIndex] / time;
+  }
+
+  public double covariance(int pairIndex)
+  {
+    final int [] pair = pairs[pairIndex];
+    return crossMoment(pairIndex) - mean(pair[0]) * mean(pair[1]);
+  }
+
+  private double pairTime(int pairIndex)
+  {
+    final int [] pair = pairs[pairIndex];
+    return Math.min(states[pair[0]].time, states[pair[1]].time);
+  }
+
+  private void process(VariableState state, double deltaTime, double x, double v)
+  {
+    final double start = state.time, end = start + deltaTime;
+    final Dynamics dynamics = variables.get(state.index).dynamics;
+    state.integral += state.meanIntegrator.evaluate(x, v, deltaTime);
+    for (int k = 0; k < state.partners.length; k++)
+    {
+      final int pairIndex = state.pairIndices[k];
+      if (state.partners[k] == state.index)
+      {
+        crossIntegrals[pairIndex] += crossIntegral(dynamics, x, v, dynamics, x, v, deltaTime);
+        continue;
+      }
+      // the segments of the partner reported so far all end before this one
+      final VariableState partner = states[state.partners[k]];
+      final Dynamics partnerDynamics = variables.get(partner.index).dynamics;
+      for (int s = partner.first; s < partner.size; s++)
+      {
+        final int offset = SEGMENT_SIZE * s;
+        final double partnerStart = partner.segments[offset], partnerEnd = partner.segments[offset + 1];
+        if (partnerEnd <= start)
+          continue;
+        final double overlapStart = Math.max(start, partnerStart), overlap = Math.min(end, partnerEnd) - overlapStart;
+        if (overlap <= 0.0)
+          continue;
+        final double
+          px = partner.segments[offset + 2], pv = partner.segments[offset + 3],
+          partnerDelta = overlapStart - partnerStart, delta = overlapStart - start;
+        crossIntegrals[pairIndex] += crossIntegral(
+            dynamics,
+            dynamics.extrapolatePosition(delta, x, v),
+            dynamics.extrapolateVelocity(delta, x, v),
+            partnerDynamics,
+            partnerDynamics.extrapolatePosition(partnerDelta, px, pv),
+            partnerDynamics.extrapolateVelocity(partnerDelta, px, pv),
+            overlap);
+      }
+    }
+    state.time = end;
+    state.add(start, end, x, v);
+    state.prune();
+  }
+
+  private static double crossIntegral(Dynamics d1, double x1, double v1, Dynamics d2, double x2, double v2, double length)
+  {
+    if (d1 instanceof PiecewiseLinear && d2 instanceof PiecewiseLinear)
+      return x1 * x2 * length + (x1 * v2 + x2 * v1) * length * length / 2.0 + v1 * v2 * length * length * length / 3.0;
+    if (d1 instanceof IsotropicHamiltonian && d2 instanceof IsotropicHamiltonian)
+    {
+      // x(t) = a cos(t) + b sin(t), b = v / precision
+      final double
+        b1 = v1 / ((IsotropicHamiltonian) d1).getPrecision(),
+        b2 = v2 / ((IsotropicHamiltonian) d2).getPrecision();
+      final double sin = Math.sin(length), sin2 = Math.sin(2.0 * length);
+      final double
+        cosSquared = length / 2.0 + sin2 / 4.0,
+        sinSquared = length / 2.0 - sin2 / 4.0,
+        sinCos = sin * sin / 2.0;
+      return x1 * x2 * cosSquared + (x1 * b2 + x2 * b1) * sinCos + b1 * b2 * sinSquared;
+    }
+    throw new RuntimeException("Only PiecewiseLinear and IsotropicHamiltonian dynamics are supported");
+  }
+
+  // segments are stored as (start time, end time, start position, start velocity)
+  private static final int SEGMENT_SIZE = 4;
+
+  private class VariableState
+  {
+    private final int index;
+    private final MomentIntegrator meanIntegrator = new MomentIntegrator(1);
+    private int [] partners, pairIndices;
+
+    private double time = 0.0, integral = 0.0;
+
+    // segments[first .. size - 1] are kept for the partners lagging behind
+    private double [] segments = new double[SEGMENT_SIZE * 4];
+    private int first = 0, size = 0;
+
+    private VariableState(int index)
+    {
+      this.index = index;
+      meanIntegrator.setup(variables.get(index).dynamics);
+    }
+
+    private void add(double start, double end, double x, double v)
+    {
+      if (SEGMENT_SIZE * (size + 1) > segments.length)
+      {
+        // compact, then grow if still needed
+        System.arraycopy(segments, SEGMENT_SIZE * first, segments, 0, SEGMENT_SIZE * (size - first));
+        size -= first;
+        first = 0;
+        if (SEGMENT_SIZE * (size + 1) > segments.length)
+          segments = Arrays.copyOf(segments, 2 * segments.length);
+      }
+      final int offset = SEGMENT_SIZE * size++;
+      segments[offset] = start;
+      segments[offset + 1] = end;
+      segments[offset + 2] = x;
+      segments[offset + 3] = v;
+    }
+
+    // drop the segments all the partners have moved past
+    private void prune()
+    {
+      double minPartnerTime = Double.POSITIVE_INFINITY;
+      for (int partner : partners)
+        if (partner != index)
+          minPartnerTime = Math.min(minPartnerTime, states[partner].time);
+      while (first < size && segments[SEGMENT_SIZE * first + 1] <= minPartnerTime)
+        first++;
+      if (first == size)
+        first = size = 0;
+    }
+
+    private void writeState(DataOutput out) throws IOException
+    {
+      out.writeDouble(time);
+      out.writeDouble(integral);
+      out.writeInt(size - first);
+      for (int i = SEGMENT_SIZE * first; i < SEGMENT_SIZE * size; i++)
+        out.writeDouble(segments[i]);
+      // the pairs are saved by their first variable
+      for (int pairIndex : pairIndices)
+        if (pairs[pairIndex][0] == index)
+          out.writeDouble(crossIntegrals[pairIndex]);
+    }
+
+    private void readState(DataInput in) throws IOException
+    {
+      time = in.readDouble();
+      integral = in.readDouble();
+      first = 0;
+      size = in.readInt();
+      if (segments.length < SEGMENT_SIZE * size)
+        segments = new double[SEGMENT_SIZE * size];
+      for (int i = 0; i < SEGMENT_SIZE * size; i++)
+        segments[i] = in.readDouble();
+      for (int pairIndex : pairIndices)
+        if (pairs[pairIndex][0] == index)
+          crossIntegrals[pairIndex] = in.readDouble();
+    }
+  }
+
+  private class VariableProcessor extends PositionVelocityDependent implements Processor, Checkpointable
+  {
+    private final VariableState state;
+    private final PositionVelocity variable;
+
+    private VariableProcessor(VariableState state)
+    {
+      super(Collections.singletonList(variables.get(state.index)));
+      this.state = state;
+      this.variable = variables.get(state.index);
+    }
+
+    @Override
+    public void process(double deltaTime, int jumpProcessIndex)
+    {
+      OnlineCovariance.this.process(state, deltaTime, variable.position.get(), variable.velocity.get());
+    }
+
+    @Override
+    public void writeState(DataOutput out) throws IOException
+    {
+      state.writeState(out);
+    }
+
+    @Override
+    public void readState(DataInput in) throws IOException
+    {
+      state.readState(in);
+    }
+  }
+}
@@ -0,0 +1,249 @@
+package ca.ubc.bps.processors;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+
+import ca.ubc.bps.state.Dynamics;
+import ca.ubc.bps.state.PositionVelocity;
+import ca.ubc.bps.state.PositionVelocityDependent;
+import ca.ubc.pdmp.AsynchronousProcessor;
+import ca.ubc.pdmp.Checkpointable;
+
+/**
+ * Batch means estimates of the effective sample sizes of test functions, computed as the
+ * segments arrive, in constant memory (unlike EffectiveSampleSize.ess(..), which needs a
+ * memorized trajectory).
+ *
+ * The trajectory is cut into batches of equal length. The first batch length is the length
+ * of the first segment; each time maxBatches batches are completed, consecutive pairs are
+ * merged and the batch length doubles, so that there are between maxBatches/2 and maxBatches
+ * complete batches (once enough time has elapsed). The incomplete batch is only used in the
+ * means and in the integrals of the squared test functions.
+ *
+ * Several test functions can share the batches, see forMoments(..).
+ *
+ * @author bouchard
+ *
+ */
+public class OnlineEffectiveSampleSize extends PositionVelocityDependent implements AsynchronousProcessor, Checkpointable
+{
+  final PositionVelocity variable;
+  private final Dynamics dynamics;
+  private final MultiSegmentIntegrator testFunctions, testFunctionsSquared;
+  private final int nTestFunctions;
+
+  // integrals of each test function over each complete batch: batchIntegrals[testFunction][batch]
+  private final double [][] batchIntegrals;
+  private final int maxBatches;
+  private int nBatches = 0;
+  private double batchLength = 0.0; // 0.0 before the first non-empty segment
+  private final double [] currentIntegrals;
+  private double currentLength = 0.0;
+
+  private double totalLength = 0.0;
+  private final double [] integrals, squareIntegrals, pieceIntegrals;
+
+  public OnlineEffectiveSampleSize(PositionVelocity variable, SegmentIntegrator testFunction, SegmentIntegrator testFunctionSquared)
+  {
+    this(variable, 
+        MultiSegmentIntegrator.of(Collections.singletonList(testFunction)), 
+        MultiSegmentIntegrator.of(Collections.singletonList(testFunctionSquared)), 
+        DEFAULT_MAX_BATCHES);
+  }
+
+  public OnlineEffectiveSampleSize(PositionVelocity variable, MultiSegmentIntegrator testFunctions, MultiSegmentIntegrator testFunctionsSquared, int maxBatches)
+  {
+    super(Collections.singletonList(variable));
+    if (maxBatches < 4 || maxBatches % 2 != 0)
+      throw new RuntimeException("maxBatches should be even and at least 4");
+    if (testFunctions.size() != testFunctionsSquared.size())
+      throw new RuntimeException();
+    this.variable = variable;
+    this.dynamics = variable.dynamics;
+    this.testFunctions = testFunctions;
+    this.testFunctionsSquared = testFunctionsSquared;
+    testFunctions.setup(dynamics);
+    testFunctionsSquared.setup(dynamics);
+    this.nTestFunctions = testFunctions.size();
+    this.maxBatches = maxBatches;
+    this.batchIntegrals = new double[nTestFunctions][maxBatches];
+    this.currentIntegrals = new double[nTestFunctions];
+    this.integrals = new double[nTestFunctions];
+    this.squareIntegrals = new double[nTestFunctions];
+    this.pieceIntegrals = new double[nTestFunctions];
+  }
+
+  /**
+   * @return An estimator for each of the given moment degrees, in that order.
+   */
+  public static OnlineEffectiveSampleSize forMoments(PositionVelocity variable, List<Integer> degrees)
+  {
+    final List<Integer> doubled = new ArrayList<>();
+    for (int degree : degrees)
+      doubled.add(2 * degree);
+    return new OnlineEffectiveSampleSize(variable, new MomentsIntegrator(degrees), new MomentsIntegrator(doubled), DEFAULT_MAX_BATCHES);
+  }
+
+  public int numberOfTestFunctions()
+  {
+    return nTestFunctions;
+  }
+
+  @Override
+  public void process(double deltaTime, int jumpProcessIndex)
+  {
+    process(deltaTime, variable.position.get(), variable.velocity.get());
+  }
+
+  @Override
+  public void process(double deltaTime, int jumpProcessIndex, double [] state, int offset)
+  {
+    // see PositionVelocity.saveState(..)
+    process(deltaTime, state[offset], state[offset + 1]);
+  }
+
+  private void process(double deltaTime, double x, double v)
+  {
+    totalLength += deltaTime;
+    testFunctionsSquared.evaluate(x, v, deltaTime, pieceIntegrals);
+    for (int f = 0; f < nTestFunctions; f++)
+      squareIntegrals[f] += pieceIntegrals[f];
+    if (batchLength == 0.0)
+    {
+      if (deltaTime == 0.0)
+        return;
+      batchLength = deltaTime;
+    }
+    double remaining = deltaTime;
+    while (true)
+    {
+      final double missing = batchLength - currentLength;
+      final boolean completesBatch = remaining >= missing;
+      final double piece = completesBatch ? missing : remaining;
+      testFunctions.evaluate(x, v, piece, pieceIntegrals);
+      for (int f = 0; f < nTestFunctions; f++)
+        integrals[f] += pieceIntegrals[f];
+      if (!completesBatch)
+      {
+        for (int f = 0; f < nTestFunctions; f++)
+          currentIntegrals[f] += pieceIntegrals[f];
+        currentLength += piece;
+        return;
+      }
+      addBatch();
+      remaining -= piece;
+      if (remaining <= 0.0)
+        return;
+      final double nextX = dynamics.extrapolatePosition(piece, x, v);
+      v = dynamics.extrapolateVelocity(piece, x, v);
+      x = nextX;
+    }
+  }
+
+  // the last piece's integrals are in pieceIntegrals
+  private void addBatch()
+  {
+    for (int f = 0; f < nTestFunctions; f++)
+    {
+      batchIntegrals[f][nBatches] = currentIntegrals[f] + pieceIntegrals[f];
+      currentIntegrals[f] = 0.0;
+    }
+    nBatches++;
+    currentLength = 0.0;
+    if (nBatches == maxBatches)
+    {
+      nBatches /= 2;
+      for (double [] current : batchIntegrals)
+        for (int i = 0; i < nBatches; i++)
+          current[i] = current[2 * i] + current[2 * i + 1];
+      batchLength *= 2.0;
+    }
+  }
+
+  public int numberOfBatches()
+  {
+    return nBatches;
+  }
+
+  /**
+   * @return The average of the given test function over the trajectory.
+   */
+  public double mean(int testFunction)
+  {
+    if (totalLength == 0.0)
+      throw new RuntimeException();
+    return integrals[testFunction] / totalLength;
+  }
+
+  /**
+   * @return The estimated effective sample size, NaN before two batches are complete.
+   */
+  public double ess(int testFunction)
+  {
+    if (nBatches < 2)
+      return Double.NaN;
+    return bayonet.math.EffectiveSampleSize.ess(squareIntegrals[testFunction] / totalLength, batchMeanStatistics(testFunction));
+  }
+
+  /**
+   * @return The estimated Monte Carlo standard error of the mean, NaN before two batches are complete.
+   */
+  public double monteCarloStandardError(int testFunction)
+  {
+    if (nBatches < 2)
+      return Double.NaN;
+    return batchMeanStatistics(testFunction).getStandardDeviation() / Math.sqrt(nBatches);
+  }
+
+  private SummaryStatistics batchMeanStatistics(int testFunction)
+  {
+    SummaryStatistics result = new SummaryStatistics();
+    for (int i = 0; i < nBatches; i++)
+      result.addValue(batchIntegrals[testFunction][i] / batchLength);
+    return result;
+  }
+
+  @Override
+  public void writeState(DataOutput out) throws IOException
+  {
+    out.writeInt(nBatches);
+    out.writeDouble(batchLength);
+    out.writeDouble(currentLength);
+    out.writeDouble(totalLength);
+    for (int f = 0; f < nTestFunctions; f++)
+    {
+      for (int i = 0; i < nBatches; i++)
+        out.writeDouble(batchIntegrals[f][i]);
+      out.writeDouble(currentIntegrals[f]);
+      out.writeDouble(integrals[f]);
+      out.writeDouble(squareIntegrals[f]);
+    }
+  }
+
+  @Override
+  public void readState(DataInput in) throws IOException
+  {
+    nBatches = in.readInt();
+    if (nBatches > maxBatches)
+      throw new IOException("Checkpoint has more batches than maxBatches");
+    batchLength = in.readDouble();
+    currentLength = in.readDouble();
+    totalLength = in.readDouble();
+    for (int f = 0; f < nTestFunctions; f++)
+    {
+      for (int i = 0; i < nBatches; i++)
+        batchIntegrals[f][i] = in.readDouble();
+      currentIntegrals[f] = in.readDouble();
+      integrals[f] = in.readDouble();
+      squareIntegrals[f] = in.readDouble();
+    }
+  }
+
+  public static final int DEFAULT_MAX_BATCHES = 64;
+}
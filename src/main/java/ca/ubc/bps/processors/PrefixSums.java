@@ -0,0 +1,78 @@
+package ca.ubc.bps.processors;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Cumulative sums of a per segment quantity of a SegmentStore, computed lazily and 
+ * extended as the store grows. 
+ * 
+ * The sums are accumulated in segment order, so that get(i) is bit-identical to 
+ * a sequential loop over the first i + 1 segments.
+ * 
+ * The chunks holding the sums are allocated by the store, with its Storage, and 
+ * returned to it by release().
+ * 
+ * @author bouchard
+ *
+ */
+final class PrefixSums
+{
+  private final IntToDoubleFunction term;
+  private final SegmentStore store;
+  private DoubleBuffer [] chunks = new DoubleBuffer[0];
+  private int size = 0;
+  
+  PrefixSums(SegmentStore store, IntToDoubleFunction term)
+  {
+    this.store = store;
+    this.term = term;
+  }
+  
+  /**
+   * @return The sum of the terms 0, 1, .., index.
+   */
+  double get(int index)
+  {
+    if (index >= size)
+      extend(index + 1);
+    return chunks[index >>> CHUNK_BITS].get(index & CHUNK_MASK);
+  }
+  
+  void reset()
+  {
+    size = 0;
+  }
+  
+  /**
+   * Returns the chunks to the store, after which this should not be used.
+   */
+  void release()
+  {
+    for (DoubleBuffer chunk : chunks)
+      store.releaseChunk(chunk);
+    chunks = new DoubleBuffer[0];
+    size = 0;
+  }
+  
+  private void extend(int newSize)
+  {
+    double sum = size == 0 ? 0.0 : get(size - 1);
+    for (int i = size; i < newSize; i++)
+    {
+      final int chunk = i >>> CHUNK_BITS;
+      if (chunk == chunks.length)
+      {
+        chunks = Arrays.copyOf(chunks, chunk + 1);
+        chunks[chunk] = store.newChunk();
+      }
+      sum += term.applyAsDouble(i);
+      chunks[chunk].put(i & CHUNK_MASK, sum);
+    }
+    size = newSize;
+  }
+  
+  private static final int CHUNK_BITS = SegmentStore.CHUNK_BITS;
+  private static final int CHUNK_MASK = SegmentStore.CHUNK_MASK;
+}
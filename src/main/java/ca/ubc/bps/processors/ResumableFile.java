@@ -0,0 +1,128 @@
+package ca.ubc.bps.processors;
+
+import java.io.BufferedWriter;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An output file which a resumed run continues, see ResumableOutput.
+ *
+ * A new run truncates the file. A resumed run opens the file written by the interrupted
+ * run and discards the writes made before resumeAt(..) (e.g. headers, which the file already
+ * contains), which truncates the file to its length at the checkpoint (dropping what was
+ * written between the checkpoint and the interruption) and appends to it from then on.
+ *
+ * Writes are not buffered, see newBufferedWriter().
+ *
+ * @author bouchard
+ *
+ */
+public class ResumableFile extends OutputStream
+{
+  public final File file;
+  private final RandomAccessFile out;
+
+  // bytes in the file, including those before the resume
+  private long length = 0;
+  private boolean resuming;
+
+  public ResumableFile(File file, boolean resume)
+  {
+    this.file = file;
+    try
+    {
+      if (resume && !file.exists())
+        throw new RuntimeException("The file to resume does not exist: " + file);
+      this.out = new RandomAccessFile(file, "rw");
+      if (!resume)
+        out.setLength(0);
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+    this.resuming = resume;
+  }
+
+  /**
+   * @return The number of bytes of the file, as checkpointed by ResumableOutputs.
+   */
+  public long length()
+  {
+    return length;
+  }
+
+  public Writer newBufferedWriter()
+  {
+    return new BufferedWriter(new OutputStreamWriter(this, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Writes the length of the file (if any, a processor can also write to a Writer or
+   * OutputStream), once the writes up to the checkpoint are flushed to it.
+   */
+  static void writeLength(ResumableFile file, DataOutput out) throws IOException
+  {
+    out.writeLong(file == null ? -1L : file.length());
+  }
+
+  /**
+   * Reads what writeLength(..) wrote and resumes the file (if any) at this length, once the
+   * writes made since it was opened are flushed to it.
+   */
+  static void readLength(ResumableFile file, DataInput in) throws IOException
+  {
+    final long length = in.readLong();
+    if (file == null)
+      return;
+    if (length < 0)
+      throw new RuntimeException("The checkpointed run did not write to a file: " + file);
+    file.resumeAt(length);
+  }
+
+  /**
+   * Truncates the file to the given length, and appends the writes made from now on.
+   */
+  public void resumeAt(long length) throws IOException
+  {
+    if (!resuming)
+      throw new RuntimeException("Not a resumed file: " + file);
+    if (out.length() < length)
+      throw new RuntimeException("The file " + file + " is shorter than at the checkpoint (" + out.length() + " < " + length + " bytes)");
+    out.setLength(length);
+    out.seek(length);
+    this.length = length;
+    resuming = false;
+  }
+
+  @Override
+  public void write(int b) throws IOException
+  {
+    if (resuming)
+      return;
+    out.write(b);
+    length++;
+  }
+
+  @Override
+  public void write(byte [] b, int off, int len) throws IOException
+  {
+    if (resuming)
+      return;
+    out.write(b, off, len);
+    length += len;
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    out.close();
+  }
+}
@@ -0,0 +1,32 @@
+package ca.ubc.bps.processors;
+
+import ca.ubc.pdmp.Checkpointable;
+
+/**
+ * A processor writing rows to a file, which keeps track of the rows written so far in its
+ * checkpointed state, and flushes them when a checkpoint is taken.
+ *
+ * When a run is resumed from a checkpoint (see PDMPSimulator.resume(..)) and the rows are
+ * written to a ResumableFile, the file of the interrupted run is truncated to its length at 
+ * the checkpoint (dropping the rows written between the checkpoint and the interruption), and 
+ * the rows written after the checkpoint are appended to it. Otherwise the new output only
+ * contains these rows (after the header), to follow the first rowsBeforeResume() rows of
+ * the interrupted run's output.
+ *
+ * @author bouchard
+ *
+ */
+public interface ResumableOutput extends Checkpointable
+{
+  /**
+   * @return The number of rows written before the checkpoint this run was resumed from,
+   *   or zero if it was not resumed.
+   */
+  long rowsBeforeResume();
+
+  /**
+   * @return The trajectory time at the start of the first row written after the
+   *   checkpoint, or zero if the run was not resumed.
+   */
+  double timeBeforeResume();
+}
@@ -0,0 +1,301 @@
+package ca.ubc.bps.processors;
+
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.ubc.pdmp.Checkpointable;
+
+/**
+ * Growable columnar storage of trajectory segments (delta time, start position, start velocity),
+ * in chunks of primitive doubles instead of one TrajectorySegment object per segment.
+ *
+ * The chunks can be kept on the Java heap, off-heap (direct buffers), or in a memory-mapped
+ * temporary file (so that the operating system can page them out).
+ *
+ * Appends (add(..) and clear()) should be made by a single thread, and reads once these
+ * appends are visible to the reading thread. Several threads can then read concurrently:
+ * endTime(..) and integral(..), which extend caches lazily, are synchronized.
+ * 
+ * The caches of cumulative sums (see PrefixSums) are stored like the segments.
+ *
+ * @author bouchard
+ *
+ */
+public class SegmentStore implements Closeable
+{
+  public static enum Storage { HEAP, OFF_HEAP, MAPPED }
+
+  private final Storage storage;
+
+  // chunk index -> column
+  private DoubleBuffer [] deltaTimes = new DoubleBuffer[0], positions = new DoubleBuffer[0], velocities = new DoubleBuffer[0];
+  private int size = 0;
+
+  // MAPPED only
+  private RandomAccessFile file = null;
+  private long mappedBytes = 0;
+  
+  // time index, and per segment integrals (a few most recently used)
+  private final PrefixSums endTimes = new PrefixSums(this, this::deltaTime);
+  private final Map<SegmentIntegrator, PrefixSums> integrals = new LinkedHashMap<SegmentIntegrator, PrefixSums>(16, 0.75f, true)
+  {
+    private static final long serialVersionUID = 1L;
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<SegmentIntegrator, PrefixSums> eldest)
+    {
+      if (size() <= MAX_CACHED_INTEGRALS)
+        return false;
+      eldest.getValue().release();
+      return true;
+    }
+  };
+  
+  // chunks of released PrefixSums, reused before allocating new ones
+  private final List<DoubleBuffer> freeChunks = new ArrayList<>();
+
+  public SegmentStore()
+  {
+    this(Storage.HEAP);
+  }
+
+  public SegmentStore(Storage storage)
+  {
+    this.storage = storage;
+  }
+
+  public Storage getStorage()
+  {
+    return storage;
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  public double deltaTime(int index)
+  {
+    return deltaTimes[index >>> CHUNK_BITS].get(index & CHUNK_MASK);
+  }
+
+  public double startPosition(int index)
+  {
+    return positions[index >>> CHUNK_BITS].get(index & CHUNK_MASK);
+  }
+
+  public double startVelocity(int index)
+  {
+    return velocities[index >>> CHUNK_BITS].get(index & CHUNK_MASK);
+  }
+
+  /**
+   * @return The sum of the delta times of the segments 0, 1, .., index.
+   */
+  public synchronized double endTime(int index)
+  {
+    return endTimes.get(index);
+  }
+  
+  /**
+   * @param integral Already setup for the dynamics of this store's segments, and with 
+   *   consistent equals(..) and hashCode() if the sums should be reused across instances.
+   * @return The sum of the integrals of the segments 0, 1, .., index.
+   */
+  public synchronized double integral(SegmentIntegrator integral, int index)
+  {
+    return integrals.computeIfAbsent(integral, 
+        key -> new PrefixSums(this, i -> key.evaluate(startPosition(i), startVelocity(i), deltaTime(i)))).get(index);
+  }
+
+  public void add(double deltaTime, double startPosition, double startVelocity)
+  {
+    final int chunk = size >>> CHUNK_BITS, offset = size & CHUNK_MASK;
+    if (chunk == deltaTimes.length || offset == deltaTimes[chunk].capacity())
+      grow(chunk);
+    deltaTimes[chunk].put(offset, deltaTime);
+    positions[chunk].put(offset, startPosition);
+    velocities[chunk].put(offset, startVelocity);
+    size++;
+  }
+
+  /**
+   * Removes all the segments, keeping the allocated chunks.
+   */
+  public synchronized void clear()
+  {
+    size = 0;
+    endTimes.reset();
+    for (PrefixSums sums : integrals.values())
+      sums.release();
+    integrals.clear();
+  }
+
+  /**
+   * Writes the number of segments, then (delta time, start position, start velocity) for each.
+   */
+  public void writeSegments(DataOutput out) throws IOException
+  {
+    snapshot().writeTo(out);
+  }
+
+  /**
+   * @return Writes the segments added so far as writeSegments(..) would now, possibly later and
+   *   from another thread while segments are appended (but not after clear()). Costs O(number
+   *   of chunks), since the chunks holding these segments are not modified by later appends
+   *   (the first chunk is copied when it grows).
+   */
+  public Checkpointable.Snapshot snapshot()
+  {
+    final int size = this.size;
+    final DoubleBuffer []
+      deltaTimes = this.deltaTimes.clone(),
+      positions = this.positions.clone(),
+      velocities = this.velocities.clone();
+    return out ->
+    {
+      out.writeInt(size);
+      for (int i = 0; i < size; i++)
+      {
+        final int chunk = i >>> CHUNK_BITS, offset = i & CHUNK_MASK;
+        out.writeDouble(deltaTimes[chunk].get(offset));
+        out.writeDouble(positions[chunk].get(offset));
+        out.writeDouble(velocities[chunk].get(offset));
+      }
+    };
+  }
+
+  /**
+   * Only releases the temporary file in MAPPED mode, the chunks stay readable.
+   */
+  @Override
+  public void close()
+  {
+    if (file != null)
+      try { file.close(); }
+      catch (IOException e) { throw new RuntimeException(e); }
+    file = null;
+  }
+
+  private void grow(int chunk)
+  {
+    if (chunk < deltaTimes.length)
+    {
+      // only the first heap chunk grows, by doubling, so that short trajectories stay small
+      final int capacity = Math.min(CHUNK_SIZE, 2 * deltaTimes[chunk].capacity());
+      deltaTimes[chunk] = copy(deltaTimes[chunk], capacity);
+      positions[chunk] = copy(positions[chunk], capacity);
+      velocities[chunk] = copy(velocities[chunk], capacity);
+      return;
+    }
+    deltaTimes = Arrays.copyOf(deltaTimes, chunk + 1);
+    positions = Arrays.copyOf(positions, chunk + 1);
+    velocities = Arrays.copyOf(velocities, chunk + 1);
+    switch (storage)
+    {
+      case HEAP :
+        final int capacity = chunk == 0 ? INITIAL_CAPACITY : CHUNK_SIZE;
+        deltaTimes[chunk] = DoubleBuffer.allocate(capacity);
+        positions[chunk] = DoubleBuffer.allocate(capacity);
+        velocities[chunk] = DoubleBuffer.allocate(capacity);
+        break;
+      case OFF_HEAP :
+        final ByteBuffer direct = ByteBuffer.allocateDirect(3 * CHUNK_BYTES).order(ByteOrder.nativeOrder());
+        setColumns(chunk, direct);
+        break;
+      case MAPPED :
+        setColumns(chunk, map(3L * CHUNK_BYTES));
+        break;
+      default :
+        throw new RuntimeException();
+    }
+  }
+
+  /**
+   * @return A column of CHUNK_SIZE doubles, allocated with this store's Storage (see PrefixSums).
+   */
+  DoubleBuffer newChunk()
+  {
+    if (!freeChunks.isEmpty())
+      return freeChunks.remove(freeChunks.size() - 1);
+    switch (storage)
+    {
+      case HEAP :
+        return DoubleBuffer.allocate(CHUNK_SIZE);
+      case OFF_HEAP :
+        return column(ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.nativeOrder()), 0);
+      case MAPPED :
+        return column(map(CHUNK_BYTES), 0);
+      default :
+        throw new RuntimeException();
+    }
+  }
+  
+  void releaseChunk(DoubleBuffer chunk)
+  {
+    freeChunks.add(chunk);
+  }
+
+  private void setColumns(int chunk, ByteBuffer buffer)
+  {
+    deltaTimes[chunk] = column(buffer, 0);
+    positions[chunk] = column(buffer, 1);
+    velocities[chunk] = column(buffer, 2);
+  }
+
+  private static DoubleBuffer column(ByteBuffer buffer, int column)
+  {
+    final ByteBuffer result = buffer.duplicate();
+    result.position(column * CHUNK_BYTES);
+    result.limit((column + 1) * CHUNK_BYTES);
+    return result.slice().order(ByteOrder.nativeOrder()).asDoubleBuffer();
+  }
+
+  /**
+   * @return The next region of the given size of the temporary file.
+   */
+  private ByteBuffer map(long bytes)
+  {
+    try
+    {
+      if (file == null)
+      {
+        File temp = File.createTempFile("segments", ".bin");
+        file = new RandomAccessFile(temp, "rw");
+        // the mappings stay valid after the file is deleted (on Windows, the file is deleted at exit instead)
+        if (!temp.delete())
+          temp.deleteOnExit();
+      }
+      final ByteBuffer result = file.getChannel().map(FileChannel.MapMode.READ_WRITE, mappedBytes, bytes);
+      mappedBytes += bytes;
+      return result;
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static DoubleBuffer copy(DoubleBuffer buffer, int capacity)
+  {
+    return DoubleBuffer.wrap(Arrays.copyOf(buffer.array(), capacity));
+  }
+
+  static final int CHUNK_BITS = 13;
+  static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  private static final int CHUNK_BYTES = 8 * CHUNK_SIZE;
+  private static final int INITIAL_CAPACITY = 16;
+  private static final int MAX_CACHED_INTEGRALS = 8;
+}
@@ -0,0 +1,50 @@
+package ca.ubc.bps.processors;
+
+import java.io.Closeable;
+
+/**
+ * Forward-only access to the segments of a trajectory, e.g. read lazily from a file 
+ * (see loaders.SampleFileSegmentStream).
+ * 
+ * @author bouchard
+ *
+ */
+public interface SegmentStream extends Closeable
+{
+  /**
+   * @return If there is a next segment, in which case it becomes the current segment.
+   */
+  boolean next();
+  
+  double deltaTime();
+  double startPosition();
+  double startVelocity();
+  
+  /**
+   * Skips whole segments ending at or before the given time (measured from the start of the
+   * trajectory) when this can be done without reading them, e.g. blocks of a binary file
+   * (see loaders.SampleFileSegmentStream). Only called before the first call of next().
+   * 
+   * @return The total length of the skipped segments, summed in order from the start of the 
+   *   trajectory (zero when nothing is skipped, the default).
+   */
+  default double skip(double time)
+  {
+    return 0.0;
+  }
+  
+  @Override
+  default void close() {}
+  
+  public static SegmentStream of(Trajectory trajectory)
+  {
+    return new SegmentStream()
+    {
+      int index = -1;
+      @Override public boolean next()          { return ++index < trajectory.size(); }
+      @Override public double deltaTime()      { return trajectory.deltaTime(index); }
+      @Override public double startPosition()  { return trajectory.startPosition(index); }
+      @Override public double startVelocity()  { return trajectory.startVelocity(index); }
+    };
+  }
+}
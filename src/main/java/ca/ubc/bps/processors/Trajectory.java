@@ -1,5 +1,6 @@
 package ca.ubc.bps.processors;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -10,27 +11,193 @@ import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import bayonet.math.NumericalUtils;
 import ca.ubc.bps.state.Dynamics;
 
+/**
+ * A trajectory backed by a SegmentStore, or a view of a time interval of such trajectory 
+ * (see split(..)), in which case the first and last segments can be fractions of segments
+ * of the store.
+ * 
+ * The segments list is a read-only view, creating TrajectorySegment objects on demand (except that 
+ * segments can be appended to a trajectory which is not a view); the deltaTime(..), startPosition(..) 
+ * and startVelocity(..) accessors avoid these allocations.
+ * 
+ * @author bouchard
+ *
+ */
 public class Trajectory
 {
   public final Dynamics dynamics;
-  public final List<TrajectorySegment> segments;
+  public final List<TrajectorySegment> segments = new Segments();
   
+  private final SegmentStore store;
+  
+  // For views: first segment of the store, time within it where the view starts, 
+  // last segment (inclusive), time within it where the view ends. 
+  private final boolean isView;
+  private final int first, last;
+  private final double firstStart, lastEnd;
+  
+  /**
+   * A trajectory following all the segments of the store, including those appended later.
+   */
+  public Trajectory(Dynamics dynamics, SegmentStore store)
+  {
+    this(dynamics, store, false, 0, -1, 0.0, 0.0);
+  }
+  
+  /**
+   * Copies the segments into a new SegmentStore.
+   */
   public Trajectory(Dynamics dynamics, List<TrajectorySegment> segments)
   {
-    this.dynamics = dynamics;
-    this.segments = segments;
+    this(dynamics);
+    for (TrajectorySegment segment : segments)
+      store.add(segment.deltaTime, segment.startPosition, segment.startVelocity);
   }
   
   public Trajectory(Dynamics dynamics)
   {
-    this(dynamics, new ArrayList<>());
+    this(dynamics, new SegmentStore());
+  }
+  
+  private Trajectory(Dynamics dynamics, SegmentStore store, boolean isView, int first, int last, double firstStart, double lastEnd)
+  {
+    this.dynamics = dynamics;
+    this.store = store;
+    this.isView = isView;
+    this.first = first;
+    this.last = last;
+    this.firstStart = firstStart;
+    this.lastEnd = lastEnd;
+  }
+  
+  public int size()
+  {
+    return isView ? last - first + 1 : store.size();
   }
   
+  public double deltaTime(int index)
+  {
+    final int storeIndex = first + index;
+    final double end = isView && storeIndex == last ? lastEnd : store.deltaTime(storeIndex);
+    return index == 0 ? end - firstStart : end;
+  }
+  
+  public double startPosition(int index)
+  {
+    final int storeIndex = first + index;
+    if (index == 0 && firstStart > 0.0)
+      return dynamics.extrapolatePosition(firstStart, store.startPosition(storeIndex), store.startVelocity(storeIndex));
+    return store.startPosition(storeIndex);
+  }
+  
+  public double startVelocity(int index)
+  {
+    final int storeIndex = first + index;
+    if (index == 0 && firstStart > 0.0)
+      return dynamics.extrapolateVelocity(firstStart, store.startPosition(storeIndex), store.startVelocity(storeIndex));
+    return store.startVelocity(storeIndex);
+  }
+  
+  /**
+   * O(1), using the time index of the store (see SegmentStore.endTime(..)).
+   */
   public double totalTime()
   {
-    return segments.stream()
-      .mapToDouble(s -> s.deltaTime)
-      .sum();
+    return endTime() - startTime();
+  }
+  
+  /**
+   * @param time Time since the beginning of this trajectory.
+   * @return The index of the segment containing the given time, 
+   *   in O(log n) (the last segment if time is past the end).
+   */
+  public int segmentIndex(double time)
+  {
+    if (size() == 0)
+      throw new RuntimeException("Empty trajectory");
+    return storeIndex(startTime() + time) - first;
+  }
+  
+  /**
+   * @param time Time since the beginning of this trajectory.
+   */
+  public double positionAt(double time)
+  {
+    final int storeIndex = storeIndex(startTime() + time);
+    final double delta = startTime() + time - storeStartTime(storeIndex);
+    return dynamics.extrapolatePosition(delta, store.startPosition(storeIndex), store.startVelocity(storeIndex));
+  }
+  
+  /**
+   * @param time Time since the beginning of this trajectory.
+   */
+  public double velocityAt(double time)
+  {
+    final int storeIndex = storeIndex(startTime() + time);
+    final double delta = startTime() + time - storeStartTime(storeIndex);
+    return dynamics.extrapolateVelocity(delta, store.startPosition(storeIndex), store.startVelocity(storeIndex));
+  }
+  
+  /**
+   * @return The integral of the segment integrator divided by the total time. 
+   * 
+   * Uses per segment prefix sums cached in the store, so that integrating the blocks 
+   * of a split costs O(1) per block once they are computed.
+   */
+  public double integrate(SegmentIntegrator integral)
+  {
+    integral.setup(dynamics);
+    final double totalTime = totalTime();
+    if (totalTime == 0.0)
+      throw new RuntimeException();
+    final int size = size();
+    final double sum;
+    if (!isView)
+      sum = store.integral(integral, size - 1);
+    else if (size == 1)
+      sum = integral.evaluate(startPosition(0), startVelocity(0), deltaTime(0));
+    else
+      sum = 
+        integral.evaluate(startPosition(0), startVelocity(0), deltaTime(0)) + 
+        (store.integral(integral, last - 1) - store.integral(integral, first)) + 
+        integral.evaluate(store.startPosition(last), store.startVelocity(last), lastEnd);
+    return sum / totalTime;
+  }
+  
+  // times in the store's time coordinates
+  
+  private double startTime()
+  {
+    return isView ? storeStartTime(first) + firstStart : 0.0;
+  }
+  
+  private double endTime()
+  {
+    if (isView)
+      return storeStartTime(last) + lastEnd;
+    return store.size() == 0 ? 0.0 : store.endTime(store.size() - 1);
+  }
+  
+  private double storeStartTime(int storeIndex)
+  {
+    return storeIndex == 0 ? 0.0 : store.endTime(storeIndex - 1);
+  }
+  
+  /**
+   * @return The first segment of this trajectory ending after the given time, or the last one.
+   */
+  private int storeIndex(double storeTime)
+  {
+    int low = first, high = first + size() - 1;
+    while (low < high)
+    {
+      final int mid = (low + high) >>> 1;
+      if (store.endTime(mid) > storeTime)
+        high = mid;
+      else
+        low = mid + 1;
+    }
+    return low;
   }
   
   public List<Trajectory> split(int nBlocks)
@@ -55,6 +222,13 @@ public class Trajectory
     return splitInTwo(fractionToBurnOut).get(1);
   }
   
+  /**
+   * @return Consecutive views of the given lengths (the last one extends to the end of 
+   *   the trajectory), sharing the store of this trajectory. A segment crossing a block 
+   *   boundary is shared by the two blocks, each covering a fraction of it.
+   *   
+   *   Each boundary is found in O(log n) using the time index of the store.
+   */
   public List<Trajectory> split(List<Double> blockSizes)
   {
     final double sumBlockSizes = blockSizes.stream().reduce(0.0, Double::sum);
@@ -65,53 +239,69 @@ public class Trajectory
     final int nBlocks = blockSizes.size();
     List<Trajectory> result = new ArrayList<>(nBlocks);
     
-    if (segments.isEmpty())
+    final int size = size();
+    if (size == 0)
       return result;
+    final int lastIndex = first + size - 1;
+    final double lastIndexEnd = isView ? lastEnd : store.deltaTime(lastIndex);
     
-    double remainingLenCurrentBlock = blockSizes.get(0);
-    double remainingLenCurrentSegment = segments.get(0).deltaTime;
-    
-    Trajectory currentTraj = new Trajectory(this.dynamics);
-    
-    int currentSegIndex = 0;
-    int currentBlockIndex = 0;
+    // start of the current block
+    int blockFirst = first;
+    double blockFirstStart = firstStart;
     
-    loop:while (true)
+    double blockEnd = startTime();
+    for (int block = 0; block < nBlocks - 1; block++)
     {
-      TrajectorySegment currentSeg = segments.get(currentSegIndex);
-      double consumedLength = Math.min(
-          remainingLenCurrentBlock, 
-          remainingLenCurrentSegment);
-      TrajectorySegment current = new TrajectorySegment(
-          consumedLength, 
-          currentSeg.startPosition, 
-          currentSeg.startVelocity);
-      currentTraj.segments.add(current);
-      remainingLenCurrentBlock -= consumedLength;
-      remainingLenCurrentSegment -= consumedLength;
-      if (NumericalUtils.isClose(0.0, remainingLenCurrentBlock, 1e-4) || currentSegIndex + 1 == segments.size())
-      {
-        result.add(currentTraj);
-        if (result.size() == nBlocks)
-          break loop;
-        currentTraj = new Trajectory(this.dynamics, new ArrayList<>());
-        remainingLenCurrentBlock = blockSizes.get(++currentBlockIndex);
-      }
-      if (NumericalUtils.isClose(0.0, remainingLenCurrentSegment, 1e-4))
-        remainingLenCurrentSegment = segments.get(++currentSegIndex).deltaTime;
+      blockEnd += blockSizes.get(block);
+      final int current = storeIndex(blockEnd);
+      final double currentEnd = current == lastIndex ? lastIndexEnd : store.deltaTime(current);
+      final double currentTime = Math.min(currentEnd, Math.max(current == first ? firstStart : 0.0, blockEnd - storeStartTime(current)));
+      if (currentTime == 0.0 && current > blockFirst)
+        // the block ends exactly at the end of the previous segment
+        result.add(view(blockFirst, current - 1, blockFirstStart, store.deltaTime(current - 1)));
+      else
+        result.add(view(blockFirst, current, blockFirstStart, currentTime));
+      blockFirst = current;
+      blockFirstStart = currentTime;
     }
-    
+    result.add(view(blockFirst, lastIndex, blockFirstStart, lastIndexEnd));
     return result;
   }
-
-  public double numberOfSegments()
+  
+  private Trajectory view(int first, int last, double firstStart, double lastEnd)
   {
-    return segments.size();
+    return new Trajectory(dynamics, store, true, first, last, firstStart, lastEnd);
   }
   
-  public double integrate(SegmentIntegrator integrator)
+  private class Segments extends AbstractList<TrajectorySegment>
   {
-    return IntegrateTrajectory.integrate(this, integrator);
+    @Override
+    public TrajectorySegment get(int index)
+    {
+      if (index < 0 || index >= size())
+        throw new IndexOutOfBoundsException("" + index);
+      return new TrajectorySegment(deltaTime(index), startPosition(index), startVelocity(index));
+    }
+
+    @Override
+    public int size()
+    {
+      return Trajectory.this.size();
+    }
+    
+    @Override
+    public boolean add(TrajectorySegment segment)
+    {
+      if (isView)
+        throw new UnsupportedOperationException("Views are read-only");
+      store.add(segment.deltaTime, segment.startPosition, segment.startVelocity);
+      return true;
+    }
+  }
+
+  public double numberOfSegments()
+  {
+    return size();
   }
   
   public double moment(int degree)
@@ -133,8 +323,8 @@ public class Trajectory
   public SummaryStatistics segmentLengthSummaryStatistics()
   {
     SummaryStatistics result = new SummaryStatistics();
-    for (TrajectorySegment segment : segments)
-      result.addValue(segment.deltaTime);
+    for (int i = 0; i < size(); i++)
+      result.addValue(deltaTime(i));
     return result;
   }
   
@@ -0,0 +1,23 @@
+package ca.ubc.bps.processors;
+
+/**
+ * Formats of the trajectory files written by WriteTrajectory (CSV) and
+ * WriteBinaryTrajectory (BINARY and COMPRESSED_BINARY, see BinaryTrajectoryWriter).
+ * 
+ * @author bouchard
+ *
+ */
+public enum TrajectoryFormat
+{
+  CSV, BINARY, COMPRESSED_BINARY;
+  
+  public boolean isBinary()
+  {
+    return this != CSV;
+  }
+  
+  public String fileExtension()
+  {
+    return isBinary() ? "bin" : "csv";
+  }
+}
@@ -0,0 +1,111 @@
+package ca.ubc.bps.processors;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import ca.ubc.bps.state.PositionVelocity;
+import ca.ubc.bps.state.PositionVelocityDependent;
+import ca.ubc.pdmp.AsynchronousProcessor;
+
+/**
+ * Same columns as WriteTrajectory, in the binary format of BinaryTrajectoryWriter.
+ * 
+ * close() should be called once the simulation is done. Each checkpoint writes the current
+ * block, possibly partial, see ResumableOutput.
+ * 
+ * @author bouchard
+ *
+ */
+public class WriteBinaryTrajectory extends PositionVelocityDependent implements AsynchronousProcessor, Closeable, ResumableOutput
+{
+  final PositionVelocity variable;
+  final BinaryTrajectoryWriter writer;
+  private final ResumableFile file;
+  
+  // the rows are counted by the writer
+  private long rowsBeforeResume = 0, rowsOffset = 0;
+  private double time = 0.0, timeBeforeResume = 0.0;
+  
+  public WriteBinaryTrajectory(PositionVelocity variable, OutputStream out, boolean compress)
+  {
+    this(variable, out, compress, null);
+  }
+  
+  /**
+   * Continues the file when resumed, see ResumableFile.
+   */
+  public WriteBinaryTrajectory(PositionVelocity variable, ResumableFile file, boolean compress)
+  {
+    this(variable, file, compress, file);
+  }
+  
+  private WriteBinaryTrajectory(PositionVelocity variable, OutputStream out, boolean compress, ResumableFile file)
+  {
+    super(Collections.singletonList(variable));
+    this.variable = variable;
+    this.writer = new BinaryTrajectoryWriter(out, COLUMN_NAMES, compress);
+    this.file = file;
+  }
+  
+  @Override
+  public void process(double deltaTime, int jumpProcessIndex)
+  {
+    writer.append(deltaTime, variable.position.get(), variable.velocity.get(), jumpProcessIndex);
+    time += deltaTime;
+  }
+  
+  @Override
+  public void process(double deltaTime, int jumpProcessIndex, double [] state, int offset)
+  {
+    // see PositionVelocity.saveState(..)
+    writer.append(deltaTime, state[offset], state[offset + 1], jumpProcessIndex);
+    time += deltaTime;
+  }
+  
+  @Override
+  public void writeState(DataOutput out) throws IOException
+  {
+    writer.flush();
+    out.writeLong(rowsOffset + writer.numberOfRows());
+    out.writeDouble(time);
+    ResumableFile.writeLength(file, out);
+  }
+
+  @Override
+  public void readState(DataInput in) throws IOException
+  {
+    // rows written by this instance are counted from the resume
+    rowsBeforeResume = in.readLong();
+    rowsOffset = rowsBeforeResume - writer.numberOfRows();
+    time = timeBeforeResume = in.readDouble();
+    // the header is already in the file
+    ResumableFile.readLength(file, in);
+  }
+  
+  @Override
+  public long rowsBeforeResume()
+  {
+    return rowsBeforeResume;
+  }
+
+  @Override
+  public double timeBeforeResume()
+  {
+    return timeBeforeResume;
+  }
+  
+  @Override
+  public void close()
+  {
+    writer.close();
+  }
+  
+  public static final List<String> COLUMN_NAMES = 
+      Collections.unmodifiableList(Arrays.asList("deltaTime", "initialPosition", "initialVelocity", "jumpProcessIndex"));
+}
@@ -1,23 +1,46 @@
 package ca.ubc.bps.processors;
 
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.Collections;
 
 import ca.ubc.bps.state.PositionVelocityDependent;
 import ca.ubc.bps.state.PositionVelocity;
-import ca.ubc.pdmp.Processor;
+import ca.ubc.pdmp.AsynchronousProcessor;
 
-public class WriteTrajectory extends PositionVelocityDependent implements Processor
+public class WriteTrajectory extends PositionVelocityDependent implements AsynchronousProcessor, ResumableOutput, Closeable
 {
   final PositionVelocity variable;
   final Writer writer;
+  private final ResumableFile file;
+  
+  // rows written and their total length, see ResumableOutput
+  private long rows = 0, rowsBeforeResume = 0;
+  private double time = 0.0, timeBeforeResume = 0.0;
   
   public WriteTrajectory(PositionVelocity variable, Writer writer)
+  {
+    this(variable, writer, null);
+  }
+  
+  /**
+   * Continues the file when resumed, see ResumableFile. close() should be called once 
+   * the simulation is done.
+   */
+  public WriteTrajectory(PositionVelocity variable, ResumableFile file)
+  {
+    this(variable, file.newBufferedWriter(), file);
+  }
+  
+  private WriteTrajectory(PositionVelocity variable, Writer writer, ResumableFile file)
   {
     super(Collections.singletonList(variable));
     this.variable = variable;
     this.writer = writer;
+    this.file = file;
     println("deltaTime", "initialPosition", "initialVelocity", "jumpProcessIndex");
   } 
   
@@ -25,6 +48,54 @@ public class WriteTrajectory extends PositionVelocityDependent implements Proces
   public void process(double deltaTime, int jumpProcessIndex)
   {
     println(Double.toString(deltaTime), Double.toString(variable.position.get()), Double.toString(variable.velocity.get()), Integer.toString(jumpProcessIndex));
+    rows++;
+    time += deltaTime;
+  }
+  
+  @Override
+  public void process(double deltaTime, int jumpProcessIndex, double [] state, int offset)
+  {
+    // see PositionVelocity.saveState(..)
+    println(Double.toString(deltaTime), Double.toString(state[offset]), Double.toString(state[offset + 1]), Integer.toString(jumpProcessIndex));
+    rows++;
+    time += deltaTime;
+  }
+  
+  @Override
+  public void writeState(DataOutput out) throws IOException
+  {
+    writer.flush();
+    out.writeLong(rows);
+    out.writeDouble(time);
+    ResumableFile.writeLength(file, out);
+  }
+
+  @Override
+  public void readState(DataInput in) throws IOException
+  {
+    rows = rowsBeforeResume = in.readLong();
+    time = timeBeforeResume = in.readDouble();
+    // the header is already in the file
+    writer.flush();
+    ResumableFile.readLength(file, in);
+  }
+  
+  @Override
+  public long rowsBeforeResume()
+  {
+    return rowsBeforeResume;
+  }
+
+  @Override
+  public double timeBeforeResume()
+  {
+    return timeBeforeResume;
+  }
+  
+  @Override
+  public void close() throws IOException
+  {
+    writer.close();
   }
   
   private void println(Object deltaTime, Object pos, String vel, Object jumpProcessIndex)
@@ -14,6 +14,7 @@ import ca.ubc.bps.factory.BPSFactory.BPS;
 import ca.ubc.bps.factory.MonitoredIndices;
 import ca.ubc.bps.processors.ConvertToGlobalProcessor;
 import ca.ubc.bps.processors.GlobalProcessor;
+import ca.ubc.bps.state.PositionVelocity;
 
 public abstract class GlobalTrajectoryLoader extends Experiment
 {
@@ -31,6 +32,14 @@ public abstract class GlobalTrajectoryLoader extends Experiment
   @Arg @DefaultValue("all")
   private MonitoredIndices variables = all;
   
+  @Arg(description = "Number of threads processing slices of the global trajectory (see ConvertToGlobalProcessor.convertInParallel)") 
+                  @DefaultValue("1")
+  public int nThreads = 1;
+  
+  @Arg(description = "Number of slices of the global trajectory when nThreads > 1 (0 for 4 per thread)") 
+                  @DefaultValue("0")
+  public int nSlices = 0;
+  
   /**
    * @return The intersection of the requested indices and those that were output.
    */
@@ -46,16 +55,39 @@ public abstract class GlobalTrajectoryLoader extends Experiment
   @Override
   public void run()
   {
-    // read the trajectories
+    // stream the trajectories
     List<Integer> indices = indices();
-    ConvertToGlobalProcessor converter = new ConvertToGlobalProcessor(createGlobalProcessor(bps));
+    ConvertToGlobalProcessor converter = new ConvertToGlobalProcessor(nThreads > 1 ? null : createGlobalProcessor(bps));
+    List<PositionVelocity> variables = bps.positionVelocityCoordinates();
     for (int index : indices)
     {
-      MemorizeTrajectoryLoader trajLoader = new MemorizeTrajectoryLoader(bps, TrajectoryLoader.getSampleFile(bpsExecFolder, index), index);
-      converter.addTrajectory(index, trajLoader.getTrajectory());
+      File samples = TrajectoryLoader.getSampleFile(bpsExecFolder, index);
+      if (nThreads > 1)
+        converter.addTrajectory(index, variables.get(index).dynamics, SampleFileSegmentStream.indexedStreams(samples));
+      else
+        converter.addTrajectory(index, variables.get(index).dynamics, () -> new SampleFileSegmentStream(samples));
     }
-    converter.convert();
+    if (nThreads > 1)
+      converter.convertInParallel(nSlices > 0 ? nSlices : 4 * nThreads, nThreads, slice -> createSliceProcessor(bps, slice), this::combine);
+    else
+      converter.convert();
   }
   
   public abstract GlobalProcessor createGlobalProcessor(BPS bps);
+  
+  /**
+   * Override, together with combine(..), to support nThreads > 1.
+   */
+  public GlobalProcessor createSliceProcessor(BPS bps, int slice)
+  {
+    throw new RuntimeException(getClass().getSimpleName() + " does not support nThreads > 1");
+  }
+  
+  /**
+   * Called in the order of the slices, see ConvertToGlobalProcessor.convertInParallel(..).
+   */
+  public void combine(int slice, GlobalProcessor sliceProcessor)
+  {
+    throw new RuntimeException(getClass().getSimpleName() + " does not support nThreads > 1");
+  }
 }
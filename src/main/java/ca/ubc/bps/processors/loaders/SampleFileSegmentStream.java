@@ -0,0 +1,151 @@
+package ca.ubc.bps.processors.loaders;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.function.Supplier;
+
+import ca.ubc.bps.processors.BinaryTrajectoryReader;
+import ca.ubc.bps.processors.BinaryTrajectoryReader.BlockIndex;
+import ca.ubc.bps.processors.SegmentStream;
+
+/**
+ * Reads lazily the segments of a trajectory written by WriteTrajectory (CSV) or 
+ * WriteBinaryTrajectory (binary, detected from the file's header).
+ * 
+ * Binary files can be read from any time without reading the earlier blocks given an index 
+ * of their blocks, see indexedStreams(..).
+ * 
+ * @author bouchard
+ *
+ */
+public class SampleFileSegmentStream implements SegmentStream
+{
+  // exactly one of the two is null
+  private final BinaryTrajectoryReader binary;
+  private final BufferedReader csv;
+  
+  // null for CSV files, or when not indexed
+  private final BlockIndex index;
+  
+  private double deltaTime, startPosition, startVelocity;
+  private int jumpProcessIndex;
+  
+  public SampleFileSegmentStream(File samples)
+  {
+    this(samples, null);
+  }
+  
+  /**
+   * @param index Built from the deltaTime column (see indexedStreams(..)), or null.
+   */
+  public SampleFileSegmentStream(File samples, BlockIndex index)
+  {
+    this.index = index;
+    try
+    {
+      if (BinaryTrajectoryReader.isBinaryTrajectory(samples))
+      {
+        binary = new BinaryTrajectoryReader(samples);
+        csv = null;
+      }
+      else
+      {
+        binary = null;
+        csv = new BufferedReader(new FileReader(samples));
+        csv.readLine(); // header
+      }
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @return Streams of the given file sharing an index of its blocks when it is binary (built once, 
+   *   by this call, in one pass reading only the block headers and the deltaTime column), 
+   *   so that they skip(..) in time logarithmic in the number of blocks.
+   */
+  public static Supplier<SegmentStream> indexedStreams(File samples)
+  {
+    if (!BinaryTrajectoryReader.isBinaryTrajectory(samples))
+      return () -> new SampleFileSegmentStream(samples);
+    final BlockIndex index;
+    try (BinaryTrajectoryReader reader = new BinaryTrajectoryReader(samples))
+    {
+      index = reader.index(0);
+    }
+    return () -> new SampleFileSegmentStream(samples, index);
+  }
+  
+  @Override
+  public double skip(double time)
+  {
+    if (index == null)
+      return 0.0;
+    final int nBlocks = index.numberOfBlocksEndingBefore(time);
+    binary.seek(index, nBlocks);
+    return index.sumBefore(nBlocks);
+  }
+
+  @Override
+  public boolean next()
+  {
+    if (binary != null)
+    {
+      if (!binary.next())
+        return false;
+      deltaTime = binary.get(0);
+      startPosition = binary.get(1);
+      startVelocity = binary.get(2);
+      jumpProcessIndex = (int) binary.get(3);
+      return true;
+    }
+    final String line;
+    try { line = csv.readLine(); }
+    catch (IOException e) { throw new RuntimeException(e); }
+    if (line == null || line.isEmpty())
+      return false;
+    final String [] fields = line.split(",");
+    deltaTime = Double.parseDouble(fields[0]);
+    startPosition = Double.parseDouble(fields[1]);
+    startVelocity = Double.parseDouble(fields[2]);
+    jumpProcessIndex = Integer.parseInt(fields[3]);
+    return true;
+  }
+
+  @Override
+  public double deltaTime()
+  {
+    return deltaTime;
+  }
+
+  @Override
+  public double startPosition()
+  {
+    return startPosition;
+  }
+
+  @Override
+  public double startVelocity()
+  {
+    return startVelocity;
+  }
+  
+  public int jumpProcessIndex()
+  {
+    return jumpProcessIndex;
+  }
+
+  @Override
+  public void close()
+  {
+    if (binary != null)
+      binary.close();
+    else
+      try { csv.close(); }
+      catch (IOException e) { throw new RuntimeException(e); }
+  }
+}
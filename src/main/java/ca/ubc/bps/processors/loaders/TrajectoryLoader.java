@@ -5,7 +5,6 @@ import java.io.File;
 import java.util.List;
 
 import blang.inits.experiments.Experiment;
-import briefj.BriefIO;
 import ca.ubc.bps.factory.BPSFactory;
 import ca.ubc.bps.factory.BPSFactory.BPS;
 import ca.ubc.bps.state.PositionVelocity;
@@ -32,11 +31,16 @@ public abstract class TrajectoryLoader extends Experiment
     this.index = index;
   }
   
+  /**
+   * @return The binary trajectory file if there is one, the CSV file otherwise.
+   */
   public static File getSampleFile(File bpsExecFolder, int index)
   {
-    return new File(bpsExecFolder, 
+    File directory = new File(bpsExecFolder, 
         BPSFactory.CONTINUOUSLY_EVOLVING_SAMPLES_DIR_NAME + "/" + 
-        BPSFactory.VARIABLE_KEY + "=" + index + "/" + BPSFactory.DATA_FILE_NAME);
+        BPSFactory.VARIABLE_KEY + "=" + index);
+    File binary = new File(directory, BPSFactory.BINARY_DATA_FILE_NAME);
+    return binary.exists() ? binary : new File(directory, BPSFactory.DATA_FILE_NAME);
   }
   
   @Override
@@ -46,16 +50,14 @@ public abstract class TrajectoryLoader extends Experiment
     PositionVelocity theVar = vars.get(index);
     Processor p = createProcessor(theVar, bps);
     
-    for (List<String> line : BriefIO.readLines(samples).splitCSV().skip(1))
+    try (SampleFileSegmentStream segments = new SampleFileSegmentStream(samples))
     {
-      final double 
-        delta = Double.parseDouble(line.get(0)),
-        x = Double.parseDouble(line.get(1)),
-        v = Double.parseDouble(line.get(2));
-      theVar.position.set(x);
-      theVar.velocity.set(v); 
-      final int jumpProcessIndex = Integer.parseInt(line.get(3));
-      p.process(delta, jumpProcessIndex);
+      while (segments.next())
+      {
+        theVar.position.set(segments.startPosition());
+        theVar.velocity.set(segments.startVelocity()); 
+        p.process(segments.deltaTime(), segments.jumpProcessIndex());
+      }
     }
   }
 
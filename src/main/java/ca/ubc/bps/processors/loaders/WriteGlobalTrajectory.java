@@ -1,22 +1,58 @@
 package ca.ubc.bps.processors.loaders;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
 
 import com.google.common.base.Joiner;
 
+import blang.inits.Arg;
 import blang.inits.ConstructorArg;
+import blang.inits.DefaultValue;
 import blang.inits.DesignatedConstructor;
 import blang.inits.experiments.Experiment;
 import briefj.BriefIO;
 import ca.ubc.bps.factory.BPSFactory;
 import ca.ubc.bps.factory.BPSFactory.BPS;
+import ca.ubc.bps.processors.BinaryTrajectoryReader;
+import ca.ubc.bps.processors.BinaryTrajectoryWriter;
 import ca.ubc.bps.processors.ConvertToGlobalProcessor.GlobalProcessorContext;
+import ca.ubc.bps.processors.DiscretizeGlobalTrajectory;
 import ca.ubc.bps.processors.GlobalProcessor;
+import ca.ubc.bps.processors.TrajectoryFormat;
 import ca.ubc.bps.state.PositionVelocity;
 
+/**
+ * Reads the per variable trajectories, in CSV or binary format, and writes the 
+ * global trajectory in the requested format.
+ * 
+ * With nThreads > 1, each slice is written to a temporary file, appended to the 
+ * output in order.
+ * 
+ * With gridInterval > 0, the rows are (time, positions) at a fixed grid instead of 
+ * (delta, positions at the start of each global segment).
+ */
 public class WriteGlobalTrajectory extends GlobalTrajectoryLoader
 {
+  @Arg @DefaultValue("CSV")
+  public TrajectoryFormat format = TrajectoryFormat.CSV;
+  
+  @Arg(description = "If positive, write the positions at the multiples of this interval instead of the global segments (see DiscretizeGlobalTrajectory)") 
+                  @DefaultValue("0.0")
+  public double gridInterval = 0.0;
+  
+  private BufferedWriter csvWriter = null;
+  private BinaryTrajectoryWriter binaryWriter = null;
+  
   @DesignatedConstructor
   public WriteGlobalTrajectory(@ConstructorArg("bpsExecFolder") File bpsExecFolder)
   {
@@ -24,26 +60,168 @@ public class WriteGlobalTrajectory extends GlobalTrajectoryLoader
   }
 
   public static String GLOBAL_TRAJ_FILE_NAME = "globalTrajectory.csv";
+  public static String BINARY_GLOBAL_TRAJ_FILE_NAME = "globalTrajectory.bin";
+  
+  @Override
+  public void run()
+  {
+    openOutput();
+    super.run();
+    if (binaryWriter != null)
+      binaryWriter.close();
+  }
 
   @Override
   public GlobalProcessor createGlobalProcessor(BPS bps)
   {
-    BufferedWriter writer = results.getAutoClosedBufferedWriter(GLOBAL_TRAJ_FILE_NAME);
-    BriefIO.println(writer, "delta," + Joiner.on(",").join(indices().stream().map(i -> BPSFactory.VARIABLE_KEY + "_" + i).iterator()));
-    String [] stringArray = new String[indices().size()];
+    if (format.isBinary())
+      return rowProcessor(binaryWriter::append);
+    return rowProcessor(row -> writeCSV(csvWriter, row));
+  }
+  
+  @Override
+  public GlobalProcessor createSliceProcessor(BPS bps, int slice)
+  {
+    return new SliceProcessor(slice);
+  }
+  
+  @Override
+  public void combine(int slice, GlobalProcessor sliceProcessor)
+  {
+    ((SliceProcessor) sliceProcessor).appendTo(this);
+  }
+  
+  private List<String> columnNames()
+  {
+    List<String> columnNames = new ArrayList<>();
+    columnNames.add(gridInterval > 0.0 ? "time" : "delta");
+    for (int i : indices())
+      columnNames.add(BPSFactory.VARIABLE_KEY + "_" + i);
+    return columnNames;
+  }
+  
+  private void openOutput()
+  {
+    if (format.isBinary())
+      binaryWriter = binaryWriter(results.getFileInResultFolder(BINARY_GLOBAL_TRAJ_FILE_NAME));
+    else
+    {
+      csvWriter = results.getAutoClosedBufferedWriter(GLOBAL_TRAJ_FILE_NAME);
+      BriefIO.println(csvWriter, Joiner.on(",").join(columnNames()));
+    }
+  }
+  
+  private BinaryTrajectoryWriter binaryWriter(File file)
+  {
+    try 
+    {
+      return new BinaryTrajectoryWriter(new FileOutputStream(file), columnNames(), format == TrajectoryFormat.COMPRESSED_BINARY);
+    } 
+    catch (FileNotFoundException e) 
+    {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  /**
+   * @param output Receives the global delta (or grid time) followed by the positions, the array is reused.
+   */
+  private GlobalProcessor rowProcessor(Consumer<double[]> output)
+  {
+    if (gridInterval > 0.0)
+      return new DiscretizeGlobalTrajectory(gridInterval, output);
+    double [] row = new double[indices().size() + 1];
     return new GlobalProcessor()
     {
       @Override
       public void process(GlobalProcessorContext context)
       {
         int i = 0;
+        row[i++] = context.getGlobalDelta();
         for (PositionVelocity var : context.allVariables())
-          stringArray[i++] = String.valueOf(var.position.get());
-        BriefIO.println(writer, String.valueOf(context.getGlobalDelta()) + "," + Joiner.on(",").join(stringArray));
+          row[i++] = var.position.get();
+        output.accept(row);
       }
     };
   }
   
+  private static void writeCSV(Writer writer, double [] row)
+  {
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < row.length; i++)
+      line.append(i == 0 ? "" : ",").append(String.valueOf(row[i]));
+    BriefIO.println(writer, line.toString());
+  }
+  
+  private class SliceProcessor implements GlobalProcessor
+  {
+    private final File file;
+    private final BufferedWriter csv;
+    private final BinaryTrajectoryWriter binary;
+    private final GlobalProcessor processor;
+    
+    private SliceProcessor(int slice)
+    {
+      this.file = results.getFileInResultFolder(".slice-" + slice + "." + format.fileExtension());
+      if (format.isBinary())
+      {
+        this.csv = null;
+        this.binary = binaryWriter(file);
+        this.processor = rowProcessor(binary::append);
+      }
+      else
+      {
+        this.binary = null;
+        try { this.csv = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8); }
+        catch (IOException e) { throw new RuntimeException(e); }
+        this.processor = rowProcessor(row -> writeCSV(csv, row));
+      }
+    }
+
+    @Override
+    public void process(GlobalProcessorContext context)
+    {
+      processor.process(context);
+    }
+    
+    private void appendTo(WriteGlobalTrajectory output)
+    {
+      try
+      {
+        if (binary != null)
+        {
+          binary.close();
+          try (BinaryTrajectoryReader reader = new BinaryTrajectoryReader(file))
+          {
+            double [] row = new double[reader.numberOfColumns()];
+            while (reader.next())
+            {
+              for (int i = 0; i < row.length; i++)
+                row[i] = reader.get(i);
+              output.binaryWriter.append(row);
+            }
+          }
+        }
+        else
+        {
+          csv.close();
+          try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+          {
+            char [] buffer = new char[1 << 16];
+            int length;
+            while ((length = reader.read(buffer)) != -1)
+              output.csvWriter.write(buffer, 0, length);
+          }
+        }
+        Files.delete(file.toPath());
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+  
   public static void main(String [] args) 
   {
     Experiment.startAutoExit(args);
@@ -54,13 +54,20 @@ public interface RefreshmentFactory
     @DefaultValue("1.0")
     public double rate = 1.0;
     
+    @Arg(description = "Use a single jump process for all the local refreshments (see SuperposedRefreshment)")
+    @DefaultValue("false")
+    public boolean superposed = false;
+    
     @Override
     public void addRefreshment(final PDMP pdmp) 
     {
       List<PositionVelocity> _continuousCoordinates = BPSStaticUtils.continuousCoordinates(pdmp.coordinates);
       int _size = _continuousCoordinates.size();
       double _divide = (this.rate / ((double) _size));
-      addLocal(pdmp, _divide);
+      if (superposed)
+        addSuperposedLocal(pdmp, _divide);
+      else
+        addLocal(pdmp, _divide);
     }
   }
   
@@ -102,7 +109,7 @@ public interface RefreshmentFactory
       @Override
       public double evaluate(double delta)
       {
-        double [] velocity = extrapolateVelocity(delta);
+        double [] velocity = viewVelocity(delta);
         return 1.0 + Math.pow(norm(denseCopy(velocity)), power);
       }
     }
@@ -119,6 +126,20 @@ public interface RefreshmentFactory
       add(pdmp, rate, singleton(coordinate), false);
   }
   
+  /**
+   * Same as addLocal(..) in distribution, with one jump process instead of one per coordinate.
+   */
+  public static void addSuperposedLocal(PDMP pdmp, double rate)
+  {
+    List<PositionVelocity> continuousCoordinates = continuousCoordinates(pdmp.coordinates);
+    if (continuousCoordinates.isEmpty())
+      return;
+    pdmp.jumpProcesses.add(
+        new JumpProcess(
+            new HomogeneousPP(rate * continuousCoordinates.size()), 
+            new SuperposedRefreshment(continuousCoordinates)));
+  }
+  
   public static void add(
       PDMP pdmp, 
       double rate, 
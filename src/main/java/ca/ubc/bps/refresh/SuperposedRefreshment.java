@@ -0,0 +1,121 @@
+package ca.ubc.bps.refresh;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import ca.ubc.bps.state.PositionVelocity;
+import ca.ubc.pdmp.Coordinate;
+import ca.ubc.pdmp.MixtureJumpKernel;
+
+/**
+ * Local refreshments of several coordinates as a single jump process: each jump refreshes
+ * the velocity of one coordinate, picked uniformly or proportionally to the given weights.
+ *
+ * Combined with a HomogeneousPP at the total rate, this is equal in distribution to one
+ * refreshment process per coordinate (see RefreshmentFactory.addLocal(..)), while using
+ * a single queue entry.
+ *
+ * Weighted selection uses Walker's alias method, so each jump takes constant time.
+ *
+ * @author bouchard
+ *
+ */
+public class SuperposedRefreshment implements MixtureJumpKernel
+{
+  private final List<PositionVelocity> coordinates;
+
+  // null for uniform selection
+  private final double [] probabilities;
+  private final int [] aliases;
+
+  public SuperposedRefreshment(List<PositionVelocity> coordinates)
+  {
+    this.coordinates = new ArrayList<>(coordinates);
+    this.probabilities = null;
+    this.aliases = null;
+  }
+
+  /**
+   * @param weights Unnormalized selection weights, one per coordinate.
+   */
+  public SuperposedRefreshment(List<PositionVelocity> coordinates, double [] weights)
+  {
+    if (weights.length != coordinates.size())
+      throw new RuntimeException("Expected one weight per coordinate");
+    this.coordinates = new ArrayList<>(coordinates);
+    final int size = weights.length;
+    this.probabilities = new double[size];
+    this.aliases = new int[size];
+    double total = 0.0;
+    for (double weight : weights)
+    {
+      if (!(weight >= 0.0) || Double.isInfinite(weight))
+        throw new RuntimeException("Invalid weight: " + weight);
+      total += weight;
+    }
+    if (!(total > 0.0))
+      throw new RuntimeException("At least one weight should be positive");
+    final int [] small = new int[size], large = new int[size];
+    int nSmall = 0, nLarge = 0;
+    for (int i = 0; i < size; i++)
+    {
+      probabilities[i] = weights[i] * size / total;
+      aliases[i] = i;
+      if (probabilities[i] < 1.0)
+        small[nSmall++] = i;
+      else
+        large[nLarge++] = i;
+    }
+    while (nSmall > 0 && nLarge > 0)
+    {
+      final int less = small[--nSmall], more = large[--nLarge];
+      aliases[less] = more;
+      probabilities[more] -= 1.0 - probabilities[less];
+      if (probabilities[more] < 1.0)
+        small[nSmall++] = more;
+      else
+        large[nLarge++] = more;
+    }
+    // the remaining ones are equal to one up to rounding
+    while (nSmall > 0)
+      probabilities[small[--nSmall]] = 1.0;
+    while (nLarge > 0)
+      probabilities[large[--nLarge]] = 1.0;
+  }
+
+  @Override
+  public int numberOfComponents()
+  {
+    return coordinates.size();
+  }
+
+  @Override
+  public Collection<? extends Coordinate> requiredVariables(int component)
+  {
+    return Collections.singletonList(coordinates.get(component));
+  }
+
+  @Override
+  public Collection<? extends Coordinate> requiredVariables()
+  {
+    return Collections.unmodifiableList(coordinates);
+  }
+
+  @Override
+  public int sampleComponent(Random random)
+  {
+    final int uniform = random.nextInt(coordinates.size());
+    if (probabilities == null)
+      return uniform;
+    return random.nextDouble() < probabilities[uniform] ? uniform : aliases[uniform];
+  }
+
+  @Override
+  public void simulate(int component, Random random)
+  {
+    coordinates.get(component).velocity.set(random.nextGaussian());
+  }
+}
@@ -7,4 +7,16 @@ public class Discretized implements Dynamics
   {
     // nothing to do; dynamics acts on jumps
   }
+  
+  @Override
+  public double extrapolatePosition(double deltaTime, double position, double velocity)
+  {
+    return position;
+  }
+  
+  @Override
+  public double extrapolateVelocity(double deltaTime, double position, double velocity)
+  {
+    return velocity;
+  }
 }
@@ -6,4 +6,35 @@ import blang.inits.Implementations;
 public interface Dynamics
 {
   void extrapolateInPlace(double deltaTime, MutableDouble position, MutableDouble velocity);
+  
+  /**
+   * Read-only version of extrapolateInPlace(..).
+   * 
+   * The default implementation goes through temporary mutable doubles, 
+   * implementations should override it.
+   * 
+   * @return The position after deltaTime, starting at the given position and velocity.
+   */
+  default double extrapolatePosition(double deltaTime, double position, double velocity)
+  {
+    MutableDouble x = new SimpleMutableDouble(), v = new SimpleMutableDouble();
+    x.set(position);
+    v.set(velocity);
+    extrapolateInPlace(deltaTime, x, v);
+    return x.get();
+  }
+  
+  /**
+   * See extrapolatePosition(..)
+   * 
+   * @return The velocity after deltaTime, starting at the given position and velocity.
+   */
+  default double extrapolateVelocity(double deltaTime, double position, double velocity)
+  {
+    MutableDouble x = new SimpleMutableDouble(), v = new SimpleMutableDouble();
+    x.set(position);
+    v.set(velocity);
+    extrapolateInPlace(deltaTime, x, v);
+    return v.get();
+  }
 }
@@ -19,6 +19,18 @@ public class Hyperbolic implements Dynamics
       _position.set(toUnbCoord(toBdCoord(_position.get()) + deltaTime * velocity.get())); 
     }
   } 
+  
+  @Override
+  public double extrapolatePosition(double deltaTime, double position, double velocity)
+  {
+    return toUnbCoord(toBdCoord(position) + deltaTime * velocity);
+  }
+  
+  @Override
+  public double extrapolateVelocity(double deltaTime, double position, double velocity)
+  {
+    return velocity;
+  }
     
   public static double toBdCoord(double unb)
   {
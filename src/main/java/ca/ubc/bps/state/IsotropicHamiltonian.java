@@ -24,4 +24,20 @@ public class IsotropicHamiltonian implements Dynamics
     position.set(+ oldV * Math.sin(deltaTime) / precision + oldX * Math.cos(deltaTime));
     velocity.set(- oldX * Math.sin(deltaTime) * precision + oldV * Math.cos(deltaTime));
   }
+  
+  @Override
+  public double extrapolatePosition(double deltaTime, double position, double velocity)
+  {
+    if (Double.isNaN(precision))
+      throw new RuntimeException();
+    return + velocity * Math.sin(deltaTime) / precision + position * Math.cos(deltaTime);
+  }
+  
+  @Override
+  public double extrapolateVelocity(double deltaTime, double position, double velocity)
+  {
+    if (Double.isNaN(precision))
+      throw new RuntimeException();
+    return - position * Math.sin(deltaTime) * precision + velocity * Math.cos(deltaTime);
+  }
 }
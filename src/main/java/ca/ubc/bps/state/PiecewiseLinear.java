@@ -11,4 +11,16 @@ public class PiecewiseLinear implements Dynamics
   {
     position.set(position.get() + deltaTime * velocity.get());
   } 
+  
+  @Override
+  public double extrapolatePosition(double deltaTime, double position, double velocity)
+  {
+    return position + deltaTime * velocity;
+  }
+  
+  @Override
+  public double extrapolateVelocity(double deltaTime, double position, double velocity)
+  {
+    return velocity;
+  }
 }
\ No newline at end of file
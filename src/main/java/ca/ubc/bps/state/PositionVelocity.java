@@ -1,12 +1,17 @@
 package ca.ubc.bps.state;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import ca.ubc.bps.state.MonitoredMutableDouble.ModCount;
-import ca.ubc.pdmp.Coordinate;
+import ca.ubc.pdmp.Checkpointable;
+import ca.ubc.pdmp.LazyCoordinate;
+import ca.ubc.pdmp.SavableCoordinate;
 
-public class PositionVelocity implements Coordinate
+public class PositionVelocity implements LazyCoordinate, SavableCoordinate, Checkpointable
 {
   public final MutableDouble position;
   public final MutableDouble velocity;
@@ -58,6 +63,95 @@ public class PositionVelocity implements Coordinate
     dynamics.extrapolateInPlace(deltaTime, position, velocity);
   }
   
+  /**
+   * The saved state consists in position.get(), velocity.get(), and for Hyperbolic 
+   * dynamics, the bounded coordinate (which allows exact restoration even when the 
+   * unbounded position is out of bound, i.e. NaN).
+   */
+  @Override
+  public int stateSize()
+  {
+    return position instanceof TransformedMutableDouble ? 3 : 2;
+  }
+  
+  @Override
+  public void saveState(double [] buffer, int offset)
+  {
+    buffer[offset] = position.get();
+    buffer[offset + 1] = velocity.get();
+    if (position instanceof TransformedMutableDouble)
+      buffer[offset + 2] = ((TransformedMutableDouble) position).getBounded();
+  }
+  
+  @Override
+  public void restoreState(double [] buffer, int offset)
+  {
+    if (position instanceof TransformedMutableDouble)
+      ((TransformedMutableDouble) position).restore(buffer[offset], buffer[offset + 2]);
+    else
+      position.set(buffer[offset]);
+    velocity.set(buffer[offset + 1]);
+  }
+  
+  @Override
+  public void writeState(DataOutput out) throws IOException
+  {
+    // unlike saveState(..), keep both representations for Hyperbolic to resume exactly
+    out.writeDouble(position.get());
+    if (position instanceof TransformedMutableDouble)
+      out.writeDouble(((TransformedMutableDouble) position).getBounded());
+    out.writeDouble(velocity.get());
+  }
+  
+  @Override
+  public void readState(DataInput in) throws IOException
+  {
+    final double x = in.readDouble();
+    if (position instanceof TransformedMutableDouble)
+      ((TransformedMutableDouble) position).restore(x, in.readDouble());
+    else
+      position.set(x);
+    velocity.set(in.readDouble());
+  }
+  
+  private double pendingDeltaTime = 0.0;
+  
+  @Override
+  public void setPendingDeltaTime(double deltaTime)
+  {
+    this.pendingDeltaTime = deltaTime;
+  }
+  
+  public double getPendingDeltaTime()
+  {
+    return pendingDeltaTime;
+  }
+  
+  /**
+   * @return The position extrapolated by the pending delta time (see LazyCoordinate) plus 
+   *   the given deltaTime, without modifying the state.
+   */
+  public double viewPosition(double deltaTime)
+  {
+    final double total = getPendingDeltaTime() + deltaTime;
+    final double x = position.get();
+    if (total == 0.0)
+      return x;
+    return dynamics.extrapolatePosition(total, x, velocity.get());
+  }
+  
+  /**
+   * See viewPosition(..)
+   */
+  public double viewVelocity(double deltaTime)
+  {
+    final double total = getPendingDeltaTime() + deltaTime;
+    final double v = velocity.get();
+    if (total == 0.0)
+      return v;
+    return dynamics.extrapolateVelocity(total, position.get(), v);
+  }
+  
   public String toString() 
   {
     return key.toString();
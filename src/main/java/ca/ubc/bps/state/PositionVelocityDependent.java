@@ -4,6 +4,7 @@ import java.util.Collection;
 import java.util.List;
 
 import ca.ubc.bps.BPSStaticUtils;
+import ca.ubc.bps.state.PositionVelocityStore.StoredPositionVelocity;
 import ca.ubc.pdmp.Coordinate;
 import ca.ubc.pdmp.StateDependentBase;
 
@@ -13,6 +14,13 @@ public abstract class PositionVelocityDependent extends StateDependentBase
   protected final List<PositionVelocity> continuousCoordinates;
   protected final boolean isPiecewiseLinear;
   
+  // when all continuous coordinates are views in the same contiguous store, vectors  
+  // are read and written directly from the store's arrays (otherwise, these are null)
+  private final PositionVelocityStore store;
+  private final int [] storeIndices;
+  
+  private final double [] positionBuffer, velocityBuffer;
+  
   public PositionVelocityDependent(Collection<? extends Coordinate> requiredVariables)
   {
     // maintain all the dependencies (some of which may not be continuously evolving)
@@ -20,17 +28,35 @@ public abstract class PositionVelocityDependent extends StateDependentBase
     // identify the subset that is continuously evolving (getting rid of potential duplicates at same time)
     continuousCoordinates = BPSStaticUtils.continuousCoordinates(requiredVariables);
     isPiecewiseLinear = _isPiecewiseLinear(continuousCoordinates);
+    store = commonStore(continuousCoordinates);
+    storeIndices = store == null ? null : storeIndices(continuousCoordinates);
+    positionBuffer = new double[continuousCoordinates.size()];
+    velocityBuffer = new double[continuousCoordinates.size()];
   }
-
-  private void extrapolate(double deltaTime)
+  
+  private static PositionVelocityStore commonStore(List<PositionVelocity> continuousCoordinates)
   {
-    if (deltaTime == 0.0 || deltaTime == -0.0)
-      return;
-    // avoid building iterator here as this will be in inner loop
-    for (int i = 0; i < continuousCoordinates.size(); i++)
-      continuousCoordinates.get(i).extrapolateInPlace(deltaTime);
+    PositionVelocityStore result = null;
+    for (PositionVelocity coordinate : continuousCoordinates)
+    {
+      if (!(coordinate instanceof StoredPositionVelocity))
+        return null;
+      PositionVelocityStore current = ((StoredPositionVelocity) coordinate).store;
+      if (result != null && result != current)
+        return null;
+      result = current;
+    }
+    return result;
   }
   
+  private static int [] storeIndices(List<PositionVelocity> continuousCoordinates)
+  {
+    int [] result = new int[continuousCoordinates.size()];
+    for (int i = 0; i < result.length; i++)
+      result[i] = ((StoredPositionVelocity) continuousCoordinates.get(i)).index;
+    return result;
+  }
+
   private static boolean _isPiecewiseLinear(Collection<PositionVelocity> continuousCoordinates)
   {
     for (PositionVelocity coordinate : continuousCoordinates)
@@ -39,41 +65,78 @@ public abstract class PositionVelocityDependent extends StateDependentBase
     return true;
   }
 
+  /*
+   * Read-only: the coordinates are viewed at their pending delta time (see LazyCoordinate) 
+   * plus deltaTime, instead of being extrapolated and rolled back.
+   */
   private double [] extrapolateVector(double deltaTime, boolean forPosition)
   {
-    extrapolate(deltaTime);
-    double [] result = PositionVelocity.toArray(continuousCoordinates, forPosition);
-    extrapolate( - deltaTime);
+    final double [] result = forPosition ? positionBuffer : velocityBuffer;
+    if (store != null)
+      store.gatherView(storeIndices, forPosition, deltaTime, result);
+    else
+      // avoid building iterator here as this will be in inner loop
+      for (int i = 0; i < result.length; i++)
+      {
+        final PositionVelocity coordinate = continuousCoordinates.get(i);
+        result[i] = forPosition ? coordinate.viewPosition(deltaTime) : coordinate.viewVelocity(deltaTime);
+      }
     return result;
   }
   
+  /**
+   * Same as extrapolatePosition(..) without allocating: the returned array is a buffer 
+   * owned by this object, overwritten by the next call (viewVelocity(..) uses another one). 
+   * Callers should neither keep nor modify it.
+   */
+  protected double [] viewPosition(double deltaTime)
+  {
+    return extrapolateVector(deltaTime, true);
+  }
+  
+  /**
+   * Same as extrapolateVelocity(..) without allocating, see viewPosition(..).
+   */
+  protected double [] viewVelocity(double deltaTime)
+  {
+    return extrapolateVector(isPiecewiseLinear ? 0.0 : deltaTime, false);
+  }
+  
   public double [] currentVelocity()
   {
-    return extrapolateVector(0.0, false);
+    return viewVelocity(0.0).clone();
   }
   
   public double [] extrapolateVelocity(double deltaTime)
   {
-    return isPiecewiseLinear ? currentVelocity() : extrapolateVector(deltaTime, false);
+    return viewVelocity(deltaTime).clone();
   }
   
   public double [] currentPosition()
   {
-    return extrapolateVector(0.0, true);
+    return viewPosition(0.0).clone();
   }
   
   public double [] extrapolatePosition(double deltaTime)
   {
-    return extrapolateVector(deltaTime, true);
+    return viewPosition(deltaTime).clone();
   }
   
   public void setPosition(double [] position)
   {
-    PositionVelocity.set(continuousCoordinates, position, true);
+    set(position, true);
   }
   
   public void setVelocity(double [] velocity)
   {
-    PositionVelocity.set(continuousCoordinates, velocity, false);
+    set(velocity, false);
+  }
+  
+  private void set(double [] vector, boolean forPosition)
+  {
+    if (store != null)
+      store.scatter(storeIndices, forPosition, vector);
+    else
+      PositionVelocity.set(continuousCoordinates, vector, forPosition);
   }
 }
\ No newline at end of file
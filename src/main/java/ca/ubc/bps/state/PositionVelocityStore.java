@@ -0,0 +1,205 @@
+package ca.ubc.bps.state;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.ubc.bps.BPSStaticUtils;
+import ca.ubc.bps.state.MonitoredMutableDouble.ModCount;
+
+/**
+ * Struct-of-arrays storage for a block of continuously evolving coordinates:
+ * all positions are stored in one contiguous double array, and likewise for velocities.
+ *
+ * The PositionVelocity objects returned by buildCoordinates() are index-based views
+ * into this store, so that the coordinate API is unchanged, while extrapolation (for
+ * piecewise linear dynamics) and vector reads/writes (see PositionVelocityDependent)
+ * work directly on the primitive arrays.
+ *
+ * Hyperbolic dynamics is not supported since it needs to keep track of the bounded
+ * coordinate (see TransformedMutableDouble).
+ *
+ * @author bouchard
+ *
+ */
+public class PositionVelocityStore
+{
+  public final double [] positions;
+  public final double [] velocities;
+  final double [] pendingDeltaTimes;
+  public final Dynamics dynamics;
+  final boolean isPiecewiseLinear;
+  private final ModCount modCount; // could be null
+
+  public PositionVelocityStore(int size, Dynamics dynamics, ModCount modCount)
+  {
+    if (dynamics instanceof Hyperbolic)
+      throw new RuntimeException("The contiguous state store does not support Hyperbolic dynamics.");
+    this.positions = new double[size];
+    this.velocities = new double[size];
+    this.pendingDeltaTimes = new double[size];
+    this.dynamics = dynamics;
+    this.isPiecewiseLinear = BPSStaticUtils.isPiecewiseLinear(dynamics);
+    this.modCount = modCount;
+  }
+
+  public int size()
+  {
+    return positions.length;
+  }
+
+  /**
+   * @return One view per index, with keys 0, 1, 2, ...
+   */
+  public List<PositionVelocity> buildCoordinates()
+  {
+    List<PositionVelocity> result = new ArrayList<>(size());
+    for (int i = 0; i < size(); i++)
+      result.add(new StoredPositionVelocity(this, i));
+    return result;
+  }
+
+  void extrapolateLinear(int index, double deltaTime)
+  {
+    if (modCount != null)
+      modCount.count++;
+    positions[index] += deltaTime * velocities[index];
+  }
+
+  void setPosition(int index, double value)
+  {
+    if (modCount != null)
+      modCount.count++;
+    positions[index] = value;
+  }
+
+  void gather(int [] indices, boolean forPosition, double [] result)
+  {
+    final double [] source = forPosition ? positions : velocities;
+    for (int i = 0; i < indices.length; i++)
+      result[i] = source[indices[i]];
+  }
+
+  /**
+   * Read-only extrapolation, see PositionVelocity.viewPosition(..)
+   */
+  void gatherView(int [] indices, boolean forPosition, double deltaTime, double [] result)
+  {
+    if (!forPosition && (isPiecewiseLinear || dynamics instanceof Discretized))
+      gather(indices, false, result);
+    else if (isPiecewiseLinear)
+      for (int i = 0; i < indices.length; i++)
+      {
+        final int index = indices[i];
+        result[i] = positions[index] + (pendingDeltaTimes[index] + deltaTime) * velocities[index];
+      }
+    else
+      for (int i = 0; i < indices.length; i++)
+      {
+        final int index = indices[i];
+        final double total = pendingDeltaTimes[index] + deltaTime;
+        result[i] = forPosition ? 
+            dynamics.extrapolatePosition(total, positions[index], velocities[index]) : 
+            dynamics.extrapolateVelocity(total, positions[index], velocities[index]);
+      }
+  }
+
+  void scatter(int [] indices, boolean forPosition, double [] vector)
+  {
+    if (vector.length != indices.length)
+      throw new RuntimeException();
+    if (forPosition && modCount != null)
+      modCount.count += indices.length;
+    final double [] destination = forPosition ? positions : velocities;
+    for (int i = 0; i < indices.length; i++)
+      destination[indices[i]] = vector[i];
+  }
+
+  /**
+   * A PositionVelocity whose position and velocity live in a PositionVelocityStore.
+   */
+  public static class StoredPositionVelocity extends PositionVelocity
+  {
+    public final PositionVelocityStore store;
+    public final int index;
+
+    private StoredPositionVelocity(PositionVelocityStore store, int index)
+    {
+      super(
+          new StoredPosition(store, index),
+          new StoredVelocity(store, index),
+          store.dynamics,
+          index);
+      this.store = store;
+      this.index = index;
+    }
+
+    @Override
+    public void extrapolateInPlace(double deltaTime)
+    {
+      if (store.isPiecewiseLinear)
+        store.extrapolateLinear(index, deltaTime);
+      else
+        super.extrapolateInPlace(deltaTime);
+    }
+    
+    @Override
+    public void setPendingDeltaTime(double deltaTime)
+    {
+      store.pendingDeltaTimes[index] = deltaTime;
+    }
+    
+    @Override
+    public double getPendingDeltaTime()
+    {
+      return store.pendingDeltaTimes[index];
+    }
+  }
+
+  private static class StoredPosition implements MutableDouble
+  {
+    private final PositionVelocityStore store;
+    private final int index;
+
+    private StoredPosition(PositionVelocityStore store, int index)
+    {
+      this.store = store;
+      this.index = index;
+    }
+
+    @Override
+    public void set(double value)
+    {
+      store.setPosition(index, value);
+    }
+
+    @Override
+    public double get()
+    {
+      return store.positions[index];
+    }
+  }
+
+  private static class StoredVelocity implements MutableDouble
+  {
+    private final double [] velocities;
+    private final int index;
+
+    private StoredVelocity(PositionVelocityStore store, int index)
+    {
+      this.velocities = store.velocities;
+      this.index = index;
+    }
+
+    @Override
+    public void set(double value)
+    {
+      velocities[index] = value;
+    }
+
+    @Override
+    public double get()
+    {
+      return velocities[index];
+    }
+  }
+}
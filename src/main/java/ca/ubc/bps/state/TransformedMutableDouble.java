@@ -41,6 +41,16 @@ public class TransformedMutableDouble implements MutableDouble
     this.unbounded.set(bd2un.apply(bd));  
   }
 
+  /**
+   * Set both coordinates as previously read from get() and getBounded(), without recomputing 
+   * one from the other, e.g. when resuming from a checkpoint.
+   */
+  void restore(double unb, double bd)
+  {
+    this.unbounded.set(unb);
+    this.bounded = bd;
+  }
+
   /**
    * This could be NaN if out of bound.
    */
@@ -53,6 +53,6 @@ public class BruteForceTimer extends PositionVelocityDependent implements Clock
   
   public double eval(double t)
   {
-    return energy.valueAt(extrapolatePosition(t));
+    return energy.valueAt(viewPosition(t));
   }
 }
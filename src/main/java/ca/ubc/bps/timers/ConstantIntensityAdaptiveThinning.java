@@ -1,10 +1,14 @@
 package ca.ubc.bps.timers;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Random;
 
 import ca.ubc.bps.BPSStaticUtils;
 import ca.ubc.bps.state.PositionVelocityDependent;
+import ca.ubc.pdmp.Checkpointable;
 import ca.ubc.pdmp.Clock;
 import ca.ubc.pdmp.Coordinate;
 import ca.ubc.pdmp.DeltaTime;
@@ -22,7 +26,7 @@ import ca.ubc.pdmp.DeltaTime;
  * @author bouchard
  *
  */
-public class ConstantIntensityAdaptiveThinning extends PositionVelocityDependent implements Clock
+public class ConstantIntensityAdaptiveThinning extends PositionVelocityDependent implements Clock, Checkpointable
 {
   private Random jitter = jitterProvider.get();
   private double currentInitialStepSize = INITIAL_STEP + jitter.nextDouble();
@@ -36,79 +40,91 @@ public class ConstantIntensityAdaptiveThinning extends PositionVelocityDependent
 
   @Override
   public DeltaTime next(Random random)
+  {
+    return DeltaTime.decode(nextEncoded(random));
+  }
+
+  @Override
+  public double nextEncoded(Random random)
   {
     // compute the adaptive bound
-    Bound bound = new Bound(currentInitialStepSize, intensity.evaluate(0.0));
-    if      (bound.expectedNPoints < LOW_THRESHOLD)
-      bound = tryIterativeGrow(bound);
-    else if (bound.expectedNPoints > HIGH_THRESHOLD)
-      bound = iterativeShrink(bound);
+    final double currentPotential = intensity.evaluate(0.0);
+    setBound(currentInitialStepSize, currentPotential);
+    if      (boundExpectedNPoints < LOW_THRESHOLD)
+      tryIterativeGrow(currentPotential);
+    else if (boundExpectedNPoints > HIGH_THRESHOLD)
+      iterativeShrink(currentPotential);
     
     // sample using this bound
-    final double boundRate = bound.rate;
-    final double stepSize = bound.stepSize;
+    final double boundRate = this.boundRate;
+    final double stepSize = boundStepSize;
     if (boundRate == 0.0)
-      return DeltaTime.isGreaterThan(stepSize);
+      return DeltaTime.encodeGreaterThan(stepSize);
     double sample = BPSStaticUtils.sampleExponential(random, boundRate);
     if (sample > stepSize)
-      return DeltaTime.isGreaterThan(stepSize);
+      return DeltaTime.encodeGreaterThan(stepSize);
     double ratio = intensity.evaluate(sample) / boundRate;
     if (BPSStaticUtils.sampleBernoulli(random, ratio))
-      return DeltaTime.isEqualTo(sample);
+      return DeltaTime.encodeEqualTo(sample);
     else
-      return DeltaTime.isGreaterThan(sample);
+      return DeltaTime.encodeGreaterThan(sample);
   }
   
-  private Bound tryIterativeGrow(Bound bound)
+  @Override
+  public void writeState(DataOutput out) throws IOException
+  {
+    out.writeDouble(currentInitialStepSize);
+  }
+
+  @Override
+  public void readState(DataInput in) throws IOException
+  {
+    currentInitialStepSize = in.readDouble();
+  }
+  
+  private void tryIterativeGrow(double currentPotential)
   {
     currentInitialStepSize *= SHRINK_GROW_FACTOR;
-    Bound prev = null;
     for (int iter = 0; iter < MAX_INTER; iter++) 
     {
-      prev = bound;
-      bound = bound.grow();
-      if (bound.expectedNPoints >= LOW_THRESHOLD && 
-          bound.expectedNPoints <= HIGH_THRESHOLD)
-        return bound;
-      if (bound.expectedNPoints > HIGH_THRESHOLD)
-        return prev; // overshot
+      final double 
+        previousStepSize = boundStepSize, 
+        previousRate = boundRate, 
+        previousExpectedNPoints = boundExpectedNPoints;
+      setBound(boundStepSize * SHRINK_GROW_FACTOR, currentPotential);
+      if (boundExpectedNPoints >= LOW_THRESHOLD && 
+          boundExpectedNPoints <= HIGH_THRESHOLD)
+        return;
+      if (boundExpectedNPoints > HIGH_THRESHOLD)
+      {
+        // overshot
+        boundStepSize = previousStepSize;
+        boundRate = previousRate;
+        boundExpectedNPoints = previousExpectedNPoints;
+        return; 
+      }
     }
-    return bound;
   }
 
-  private Bound iterativeShrink(Bound bound)
+  private void iterativeShrink(double currentPotential)
   {
     currentInitialStepSize /= SHRINK_GROW_FACTOR;
     for (int iter = 0; iter < MAX_INTER; iter++) 
     {
-      bound = bound.shrink();
-      if (bound.expectedNPoints <= HIGH_THRESHOLD)
-        return bound;
+      setBound(boundStepSize / SHRINK_GROW_FACTOR, currentPotential);
+      if (boundExpectedNPoints <= HIGH_THRESHOLD)
+        return;
     }
-    return bound;
   }
 
-  private class Bound
+  // the current bound, in fields rather than an object so that nextEncoded(..) does not allocate
+  private double boundStepSize, boundRate, boundExpectedNPoints;
+  
+  private void setBound(double stepSize, double currentPotential)
   {
-    private final double stepSize;
-    private final double rate;
-    private final double expectedNPoints;
-    private final double currentPotential;
-    private Bound(double stepSize, double currentPotential)
-    {
-      this.currentPotential = currentPotential;
-      this.stepSize = stepSize;
-      this.rate = Math.max(currentPotential, intensity.evaluate(stepSize));
-      this.expectedNPoints = rate * stepSize;
-    }
-    private Bound shrink()
-    {
-      return new Bound(stepSize / SHRINK_GROW_FACTOR, currentPotential);
-    }
-    private Bound grow()
-    {
-      return new Bound(stepSize * SHRINK_GROW_FACTOR, currentPotential);
-    }
+    boundStepSize = stepSize;
+    boundRate = Math.max(currentPotential, intensity.evaluate(stepSize));
+    boundExpectedNPoints = boundRate * stepSize;
   }
   
   private static final double INITIAL_STEP = 1.0;
@@ -21,7 +21,13 @@ public class HomogeneousPP implements Clock
   @Override
   public DeltaTime next(Random random)
   {
-    return DeltaTime.isEqualTo(BPSStaticUtils.sampleExponential(random, rate));
+    return DeltaTime.decode(nextEncoded(random));
+  }
+
+  @Override
+  public double nextEncoded(Random random)
+  {
+    return DeltaTime.encodeEqualTo(BPSStaticUtils.sampleExponential(random, rate));
   }
 
   @Override
@@ -44,19 +44,25 @@ public HyperbolicJacobianTimer(PositionVelocity variable)
   @Override
   public DeltaTime next(Random random)
   {
-    final double b = Hyperbolic.toBdCoord(variable.position.get());
-    final double v = variable.velocity.get();
+    return DeltaTime.decode(nextEncoded(random));
+  }
+
+  @Override
+  public double nextEncoded(Random random)
+  {
+    final double b = Hyperbolic.toBdCoord(variable.viewPosition(0.0));
+    final double v = variable.viewVelocity(0.0);
     if (b * v >= 0.0)
-      return DeltaTime.infinity(); // isEqualTo(((v >= 0 ? +1 : -1) - b) / v - 1e-5);
+      return DeltaTime.encodedInfinity(); // isEqualTo(((v >= 0 ? +1 : -1) - b) / v - 1e-5);
     final double h = 2.0 * log(1.0 - abs(b));
     final double e = BPSStaticUtils.sampleUnitRateExponential(random);
     if (e > abs(h))
-      return DeltaTime.infinity(); // isEqualTo(((v >= 0 ? +1 : -1) - b) / v - 1e-5);
+      return DeltaTime.encodedInfinity(); // isEqualTo(((v >= 0 ? +1 : -1) - b) / v - 1e-5);
     final double hPrime = h + e; 
     final double bPrimeAbs = 1.0 - exp(hPrime / 2.0);
     final double deltaXAbs = abs(b) - bPrimeAbs;
     final double result = deltaXAbs / abs(v);
-    return DeltaTime.isEqualTo(result);
+    return DeltaTime.encodeEqualTo(result);
   }
 
   @Override
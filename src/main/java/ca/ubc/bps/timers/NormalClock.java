@@ -41,11 +41,17 @@ public class NormalClock extends PositionVelocityDependent implements Clock
 
   @Override
   public DeltaTime next(Random random)
+  {
+    return DeltaTime.decode(nextEncoded(random));
+  }
+
+  @Override
+  public double nextEncoded(Random random)
   {
     double xv, vv;
     
-    double [] currentPos = currentPosition();
-    double [] currentVel = currentVelocity();
+    double [] currentPos = viewPosition(0.0);
+    double [] currentVel = viewVelocity(0.0);
     
     if (cachedBinary)
     {
@@ -68,9 +74,9 @@ public class NormalClock extends PositionVelocityDependent implements Clock
     final double delta = normalCollisionTime(e, xv, vv);
     
     if (Double.isNaN(delta))
-      return DeltaTime.infinity(); // This arises when the factor is part of a local decomposition where the energy is decreasing on (0, infty), e.g. pseudo-precision (0, -1; -1, 0)
+      return DeltaTime.encodedInfinity(); // This arises when the factor is part of a local decomposition where the energy is decreasing on (0, infty), e.g. pseudo-precision (0, -1; -1, 0)
     
-    return DeltaTime.isEqualTo(delta);
+    return DeltaTime.encodeEqualTo(delta);
   }
   
   public static double generateUnitRateExponential(Random random)
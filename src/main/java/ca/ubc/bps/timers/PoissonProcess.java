@@ -12,4 +12,12 @@ import ca.ubc.pdmp.DeltaTime;
 public interface PoissonProcess extends Intensity
 {
   DeltaTime next(Random random);
+  
+  /**
+   * See Clock.nextEncoded(..)
+   */
+  default double nextEncoded(Random random)
+  {
+    return DeltaTime.encode(next(random));
+  }
 }
@@ -72,7 +72,7 @@ public class QuasiConvexTimer extends PositionVelocityDependent implements Clock
     if (minTime == Double.POSITIVE_INFINITY)
       return DeltaTime.infinity();
     
-    final double initialEnergy = energy.valueAt(extrapolatePosition(minTime));
+    final double initialEnergy = energy.valueAt(viewPosition(minTime));
     if (initialEnergy == Double.POSITIVE_INFINITY)
       throw new RuntimeException();
     
@@ -81,7 +81,7 @@ public class QuasiConvexTimer extends PositionVelocityDependent implements Clock
       @Override
       public double value(final double time)
       {
-        final double candidateEnergy = energy.valueAt(extrapolatePosition(time + minTime));
+        final double candidateEnergy = energy.valueAt(viewPosition(time + minTime));
         final double delta = candidateEnergy - initialEnergy; 
         if (delta < - NumericalUtils.THRESHOLD)
         {
@@ -119,16 +119,16 @@ public class QuasiConvexTimer extends PositionVelocityDependent implements Clock
     public double[] derivativeAt(double[] _time)
     {
       double time = _time[0];
-      double [] position = extrapolatePosition(time); 
+      double [] position = viewPosition(time); 
       DoubleMatrix fullDerivative = new DoubleMatrix(energy.gradient(position));
-      double directionalDeriv = fullDerivative.dot(new DoubleMatrix(extrapolateVelocity(time)));
+      double directionalDeriv = fullDerivative.dot(new DoubleMatrix(viewVelocity(time)));
       return new double[]{directionalDeriv};
     }
 
     @Override
     public double value(double time)
     {
-      double [] position = extrapolatePosition(time); 
+      double [] position = viewPosition(time); 
       return energy.valueAt(position);
     }
   }
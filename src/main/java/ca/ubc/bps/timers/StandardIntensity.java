@@ -20,8 +20,8 @@ public class StandardIntensity extends PositionVelocityDependent implements Inte
   @Override
   public double evaluate(double delta)
   {
-    double [] velocity = extrapolateVelocity(delta);
-    double [] curGradient = gradient.gradient(extrapolatePosition(delta));
+    double [] velocity = viewVelocity(delta);
+    double [] curGradient = gradient.gradient(viewPosition(delta));
     return canonicalRate(velocity, curGradient);
   }
   
@@ -46,8 +46,8 @@ public class Superposition extends PositionVelocityDependent implements PoissonP
   @Override
   public double evaluate(double deltaT)
   {
-    double [] velocity = extrapolateVelocity(deltaT);
-    double [] position = extrapolatePosition(deltaT); 
+    double [] velocity = viewVelocity(deltaT);
+    double [] position = viewPosition(deltaT); 
     double intensity = 0.0;
     for (BPSPotential potential : potentials)
       intensity += StandardIntensity.canonicalRate(velocity, potential.energy.gradient(position));
@@ -57,20 +57,27 @@ public class Superposition extends PositionVelocityDependent implements PoissonP
   @Override
   public DeltaTime next(Random random)
   {
-    DeltaTime result = null;
+    return DeltaTime.decode(nextEncoded(random));
+  }
+
+  @Override
+  public double nextEncoded(Random random)
+  {
+    if (potentials.isEmpty())
+      throw new RuntimeException();
+    double result = Double.NaN;
     double min = Double.POSITIVE_INFINITY;
     
-    for (BPSPotential potential : potentials)
+    for (int i = 0; i < potentials.size(); i++)
     {
-      DeltaTime current = potential.clock.next(random);
-      if (current.deltaTime < min)
+      final double current = potentials.get(i).clock.nextEncoded(random);
+      final double currentDelta = DeltaTime.deltaTime(current);
+      if (i == 0 || currentDelta < min)
       {
-        min = current.deltaTime;
+        min = currentDelta;
         result = current;
       }
     }
-    if (result == null)
-      throw new RuntimeException();
     return result;
   }
 }
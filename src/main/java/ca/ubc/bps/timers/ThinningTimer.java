@@ -29,21 +29,28 @@ public class ThinningTimer extends PositionVelocityDependent implements Clock
   @Override
   public DeltaTime next(Random random)
   {
-    DeltaTime proposal = intensityUpperBound.next(random);
+    return DeltaTime.decode(nextEncoded(random));
+  }
+
+  @Override
+  public double nextEncoded(Random random)
+  {
+    final double proposal = intensityUpperBound.nextEncoded(random);
     
-    if (proposal.isBound)
+    if (DeltaTime.isBound(proposal))
       return proposal;
     
-    if (BPSStaticUtils.sampleBernoulli(random, acceptanceProbability(proposal.deltaTime)))
-      return DeltaTime.isEqualTo(proposal.deltaTime);
+    final double deltaTime = DeltaTime.deltaTime(proposal);
+    if (BPSStaticUtils.sampleBernoulli(random, acceptanceProbability(deltaTime)))
+      return DeltaTime.encodeEqualTo(deltaTime);
     else
-      return DeltaTime.isGreaterThan(proposal.deltaTime);
+      return DeltaTime.encodeGreaterThan(deltaTime);
   }
 
   private double acceptanceProbability(double deltaT)
   {
-    double [] velocity = extrapolateVelocity(deltaT);
-    double [] position = extrapolatePosition(deltaT);
+    double [] velocity = viewVelocity(deltaT);
+    double [] position = viewPosition(deltaT);
     double num = StandardIntensity.canonicalRate(velocity, energy.gradient(position));
     double denom = intensityUpperBound.evaluate(deltaT);
     if (denom < num - NumericalUtils.THRESHOLD)
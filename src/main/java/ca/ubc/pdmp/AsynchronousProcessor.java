@@ -0,0 +1,20 @@
+package ca.ubc.pdmp;
+
+/**
+ * A processor which can run on another thread than the simulation (see
+ * PDMPSimulator.setAsynchronousProcessors(..)).
+ *
+ * Instead of reading its variable, it receives a copy of the variable's state, as
+ * written by SavableCoordinate.saveState(..) at the time process(deltaTime, jumpProcessIndex)
+ * would have been called.
+ *
+ * All the calls for a given processor are made by the same thread, in the order
+ * of the synchronous mode.
+ *
+ * @author bouchard
+ *
+ */
+public interface AsynchronousProcessor extends Processor
+{
+  void process(double deltaTime, int jumpProcessIndex, double [] state, int offset);
+}
@@ -0,0 +1,55 @@
+package ca.ubc.pdmp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A coordinate, clock, kernel or processor whose state can be written to and
+ * read back from a checkpoint (see PDMPSimulator.setCheckpoints(..)).
+ *
+ * Coordinates are required to implement this interface when checkpoints are used.
+ * Clocks, kernels and processors which do not implement it are assumed to carry
+ * no state that affects the rest of the run.
+ *
+ * readState(..) should restore exactly what writeState(..) saw, so that resumed
+ * runs are bit-for-bit identical to uninterrupted ones.
+ *
+ * @author bouchard
+ *
+ */
+public interface Checkpointable
+{
+  void writeState(DataOutput out) throws IOException;
+
+  void readState(DataInput in) throws IOException;
+  
+  /**
+   * Called by the simulation thread when a checkpoint is taken. The returned Snapshot is 
+   * written later, by a background thread, while the simulation continues, and should 
+   * write what writeState(..) would have written at the time of this call.
+   * 
+   * By default, the state is written to memory right away. Components with a large state 
+   * which is only appended to (e.g. a memorized trajectory) should instead record its 
+   * size, and write that prefix from the Snapshot, so that the simulation only pauses 
+   * in proportion to the size of the rest of the state.
+   */
+  default Snapshot snapshot() throws IOException
+  {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes))
+    {
+      writeState(out);
+    }
+    final byte [] contents = bytes.toByteArray();
+    return out -> out.write(contents);
+  }
+  
+  @FunctionalInterface
+  public static interface Snapshot
+  {
+    void writeTo(DataOutput out) throws IOException;
+  }
+}
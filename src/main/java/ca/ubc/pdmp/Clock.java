@@ -17,4 +17,19 @@ public interface Clock extends StateDependent
    * @return
    */
   DeltaTime next(Random random);
+  
+  /**
+   * Same as next(random) but without allocation: the delta time and the isBound 
+   * flag are encoded in the returned primitive (see DeltaTime.encode()). 
+   * 
+   * This is what PDMPSimulator calls. By default it adapts next(random); clocks used 
+   * in inner loops should override it (and implement next(random) via DeltaTime.decode()).
+   * 
+   * @param random
+   * @return
+   */
+  default double nextEncoded(Random random)
+  {
+    return DeltaTime.encode(next(random));
+  }
 }
\ No newline at end of file
@@ -0,0 +1,179 @@
+package ca.ubc.pdmp;
+
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * An immutable list of integer lists in compressed sparse row (CSR) format: the
+ * entries of row r are values[offsets[r]], .., values[offsets[r+1] - 1]. All rows
+ * share the same backing array, instead of one small array per row.
+ *
+ * By convention, a row consisting of the single entry ALL stands for all indices
+ * (see markingAll(..)).
+ *
+ * @author bouchard
+ *
+ */
+final class CompressedRows
+{
+  static final int ALL = -1;
+
+  final int [] offsets;
+  final int [] values;
+
+  private CompressedRows(int [] offsets, int [] values)
+  {
+    this.offsets = offsets;
+    this.values = values;
+  }
+
+  int numberOfRows()
+  {
+    return offsets.length - 1;
+  }
+
+  int start(int row)
+  {
+    return offsets[row];
+  }
+
+  int end(int row)
+  {
+    return offsets[row + 1];
+  }
+
+  int size(int row)
+  {
+    return offsets[row + 1] - offsets[row];
+  }
+
+  boolean isAll(int row)
+  {
+    return size(row) == 1 && values[offsets[row]] == ALL;
+  }
+
+  int maxSize()
+  {
+    int result = 0;
+    for (int row = 0; row < numberOfRows(); row++)
+      result = Math.max(result, size(row));
+    return result;
+  }
+
+  /**
+   * @return A copy where the rows with size equal to total are replaced by the single entry ALL,
+   *   or this if there are no such rows.
+   */
+  CompressedRows markingAll(int total)
+  {
+    final int nRows = numberOfRows();
+    int newLength = 0;
+    boolean found = false;
+    for (int row = 0; row < nRows; row++)
+    {
+      final boolean isAll = total > 0 && size(row) == total;
+      found = found || isAll;
+      newLength += isAll ? 1 : size(row);
+    }
+    if (!found)
+      return this;
+    final int [] newOffsets = new int[nRows + 1];
+    final int [] newValues = new int[newLength];
+    for (int row = 0; row < nRows; row++)
+    {
+      final int newStart = newOffsets[row];
+      if (total > 0 && size(row) == total)
+      {
+        newValues[newStart] = ALL;
+        newOffsets[row + 1] = newStart + 1;
+      }
+      else
+      {
+        System.arraycopy(values, start(row), newValues, newStart, size(row));
+        newOffsets[row + 1] = newStart + size(row);
+      }
+    }
+    return new CompressedRows(newOffsets, newValues);
+  }
+
+  /**
+   * @return The transpose, i.e. row c of the result lists the rows containing c, in increasing order.
+   *   Should not contain ALL entries.
+   */
+  CompressedRows transpose(int nColumns)
+  {
+    final int [] newOffsets = new int[nColumns + 1];
+    for (int value : values)
+      newOffsets[value + 1]++;
+    for (int column = 0; column < nColumns; column++)
+      newOffsets[column + 1] += newOffsets[column];
+    final int [] fill = new int[nColumns];
+    final int [] newValues = new int[values.length];
+    for (int row = 0; row < numberOfRows(); row++)
+      for (int i = start(row); i < end(row); i++)
+      {
+        final int column = values[i];
+        newValues[newOffsets[column] + fill[column]++] = row;
+      }
+    return new CompressedRows(newOffsets, newValues);
+  }
+
+  @FunctionalInterface
+  static interface RowBuilder
+  {
+    void build(int row, Appender result);
+  }
+
+  /**
+   * Builds the rows in parallel, in blocks of consecutive rows. Each block obtains its
+   * own RowBuilder from the supplier, so builders can hold non-thread-safe scratch space.
+   */
+  static CompressedRows build(int nRows, Supplier<RowBuilder> rowBuilders)
+  {
+    final int nBlocks = Math.max(1, Math.min(nRows / MIN_ROWS_PER_BLOCK, 4 * Runtime.getRuntime().availableProcessors()));
+    final int [] offsets = new int[nRows + 1];
+    final Appender [] blockValues = new Appender[nBlocks];
+    IntStream.range(0, nBlocks).parallel().forEach(block ->
+    {
+      final RowBuilder builder = rowBuilders.get();
+      final Appender appender = new Appender();
+      for (int row = blockStart(block, nBlocks, nRows); row < blockStart(block + 1, nBlocks, nRows); row++)
+      {
+        final int before = appender.size;
+        builder.build(row, appender);
+        offsets[row + 1] = appender.size - before;
+      }
+      blockValues[block] = appender;
+    });
+    for (int row = 0; row < nRows; row++)
+      offsets[row + 1] += offsets[row];
+    final int [] values = new int[offsets[nRows]];
+    IntStream.range(0, nBlocks).parallel().forEach(block ->
+      System.arraycopy(blockValues[block].values, 0, values, offsets[blockStart(block, nBlocks, nRows)], blockValues[block].size));
+    return new CompressedRows(offsets, values);
+  }
+
+  private static int blockStart(int block, int nBlocks, int nRows)
+  {
+    return (int) ((long) block * nRows / nBlocks);
+  }
+
+  private static final int MIN_ROWS_PER_BLOCK = 1024;
+
+  static final class Appender
+  {
+    private int [] values = new int[16];
+    private int size = 0;
+
+    void add(int value)
+    {
+      if (size == values.length)
+      {
+        final int [] newValues = new int[2 * values.length];
+        System.arraycopy(values, 0, newValues, 0, size);
+        values = newValues;
+      }
+      values[size++] = value;
+    }
+  }
+}
@@ -1,7 +1,5 @@
 package ca.ubc.pdmp;
 
-import java.util.Random;
-
 public class DeltaTime
 {
   public final double deltaTime;
@@ -25,13 +23,56 @@ public class DeltaTime
     return new DeltaTime(time, true);
   }
   
+  /**
+   * Used when no event will happen unless the state is modified by another jump. 
+   * The simulator parks such events outside of its queue.
+   */
   public static DeltaTime infinity()
   {
-    if (PDMPSimulator.USING_DEFAULT_CHUNK_LENGTH)
-      return DeltaTime.isGreaterThan(LARGE_VALUE);
-    else 
-      // To avoid collisions in the priority queue
-      return DeltaTime.isGreaterThan(LARGE_VALUE + jitter.get().nextDouble());
+    return INFINITY;
+  }
+
+  /*
+   * Allocation-free encoding of a DeltaTime as a single primitive double: the magnitude 
+   * is the delta time, and the sign is negative if and only if isBound is true. This is 
+   * unambiguous since valid delta times are strictly positive.
+   */
+  
+  public static double encode(DeltaTime deltaTime)
+  {
+    return deltaTime.isBound ? - deltaTime.deltaTime : deltaTime.deltaTime;
+  }
+  
+  public static double encodeEqualTo(double time)
+  {
+    return time;
+  }
+  
+  public static double encodeGreaterThan(double time)
+  {
+    return - time;
+  }
+  
+  public static double encodedInfinity()
+  {
+    return Double.NEGATIVE_INFINITY;
+  }
+  
+  public static boolean isBound(double encoded)
+  {
+    return encoded < 0.0;
+  }
+  
+  public static double deltaTime(double encoded)
+  {
+    return Math.abs(encoded);
+  }
+  
+  public static DeltaTime decode(double encoded)
+  {
+    if (encoded == Double.NEGATIVE_INFINITY)
+      return INFINITY;
+    return new DeltaTime(deltaTime(encoded), isBound(encoded));
   }
 
   @Override
@@ -40,9 +81,5 @@ public class DeltaTime
     return "DeltaTime" + (isBound ? ">" : "=") + deltaTime;
   }
   
-  final static double LARGE_VALUE = 1.0 + PDMPSimulator.DEFAULT_CHUNK_LENGTH;
-  private static ThreadLocal<Random> jitter = new ThreadLocal<Random>() 
-  {
-    @Override protected Random initialValue() { return new Random(49586); }
-  };
+  private static final DeltaTime INFINITY = isGreaterThan(Double.POSITIVE_INFINITY);
 }
\ No newline at end of file
@@ -0,0 +1,220 @@
+package ca.ubc.pdmp;
+
+import java.util.Arrays;
+
+/**
+ * A priority queue over events labelled by the integers 0, 1, ..., capacity - 1
+ * (in PDMPSimulator, the jump process indices), sorted by their scheduled time.
+ * Several events can share the same time: ties are broken by the event label, so
+ * the order is the lexicographic order on (time, event) and does not depend on the
+ * history of insertions.
+ *
+ * Events scheduled at an infinite time (i.e. that will never happen unless
+ * rescheduled) are parked outside of the heap, so they cost nothing.
+ *
+ * Implemented as an indexed binary min-heap backed by primitive arrays: adding, removing,
+ * polling and rescheduling an event (decrease or increase key) are all O(log n) and
+ * do not allocate, in contrast to EventQueue which boxes times and labels.
+ *
+ * @author bouchard
+ *
+ */
+public class IndexedEventQueue
+{
+  // heap position -> event
+  private final int [] heap;
+
+  // event -> heap position, or NOT_IN_QUEUE
+  private final int [] positions;
+
+  // event -> scheduled time (only meaningful while the event is in the queue)
+  private final double [] times;
+
+  private int size = 0;
+
+  public IndexedEventQueue(int capacity)
+  {
+    this.heap = new int[capacity];
+    this.positions = new int[capacity];
+    this.times = new double[capacity];
+    Arrays.fill(positions, NOT_IN_QUEUE);
+  }
+
+  /**
+   * Remove the event with the smallest time. Use peekTime() beforehand to get its time.
+   */
+  public int pollEvent()
+  {
+    if (size == 0)
+      throw new RuntimeException("Polling an empty EventQueue");
+    final int result = heap[0];
+    removeAt(0);
+    return result;
+  }
+
+  public int peekEvent()
+  {
+    if (size == 0)
+      throw new RuntimeException("Peeking an empty EventQueue");
+    return heap[0];
+  }
+
+  public double peekTime()
+  {
+    if (size == 0)
+      throw new RuntimeException("Peeking an empty EventQueue");
+    return times[heap[0]];
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  public boolean isEmpty()
+  {
+    return size == 0;
+  }
+
+  public int capacity()
+  {
+    return heap.length;
+  }
+
+  public boolean contains(int event)
+  {
+    return positions[event] != NOT_IN_QUEUE;
+  }
+
+  /**
+   * @return The time currently associated to the event, or NaN if not in the queue.
+   */
+  public double time(int event)
+  {
+    return contains(event) ? times[event] : Double.NaN;
+  }
+
+  public void remove(int event)
+  {
+    final int position = positions[event];
+    if (position != NOT_IN_QUEUE)
+      removeAt(position);
+  }
+
+  public void add(int event, double time)
+  {
+    if (contains(event))
+      throw new RuntimeException("An event cannot be associated to two times.");
+    schedule(event, time);
+  }
+
+  /**
+   * Insert the event if needed, otherwise change its time in place (decrease or increase key).
+   * Events with infinite times are parked, i.e. removed from the heap.
+   */
+  public void schedule(int event, double time)
+  {
+    if (Double.isInfinite(time))
+    {
+      remove(event);
+      return;
+    }
+    if (Double.isNaN(time))
+      throw new RuntimeException("Invalid time for event " + event + ": " + time);
+    int position = positions[event];
+    if (position == NOT_IN_QUEUE)
+    {
+      position = size++;
+      heap[position] = event;
+      positions[event] = position;
+      times[event] = time;
+      siftUp(position);
+    }
+    else
+    {
+      times[event] = time;
+      siftDown(position);
+      if (heap[position] == event)
+        siftUp(position);
+    }
+  }
+
+  /**
+   * Add delta to the times of all the events in the queue, e.g. to move the time origin.
+   * The heap is rebuilt (in linear time) as rounding could create new ties.
+   */
+  public void shiftTimes(double delta)
+  {
+    for (int position = 0; position < size; position++)
+      times[heap[position]] += delta;
+    for (int position = (size >>> 1) - 1; position >= 0; position--)
+      siftDown(position);
+  }
+
+  private void removeAt(int position)
+  {
+    final int removed = heap[position];
+    positions[removed] = NOT_IN_QUEUE;
+    final int last = --size;
+    if (position == last)
+      return;
+    final int moved = heap[last];
+    heap[position] = moved;
+    positions[moved] = position;
+    siftDown(position);
+    if (heap[position] == moved)
+      siftUp(position);
+  }
+
+  private void siftUp(int position)
+  {
+    final int event = heap[position];
+    while (position > 0)
+    {
+      final int parentPosition = (position - 1) >>> 1;
+      final int parent = heap[parentPosition];
+      if (!precedes(event, parent))
+        break;
+      heap[position] = parent;
+      positions[parent] = position;
+      position = parentPosition;
+    }
+    heap[position] = event;
+    positions[event] = position;
+  }
+
+  private void siftDown(int position)
+  {
+    final int event = heap[position];
+    final int half = size >>> 1;
+    while (position < half)
+    {
+      int childPosition = 2 * position + 1;
+      int child = heap[childPosition];
+      final int rightPosition = childPosition + 1;
+      if (rightPosition < size && precedes(heap[rightPosition], child))
+        child = heap[childPosition = rightPosition];
+      if (!precedes(child, event))
+        break;
+      heap[position] = child;
+      positions[child] = position;
+      position = childPosition;
+    }
+    heap[position] = event;
+    positions[event] = position;
+  }
+
+  private boolean precedes(int event1, int event2)
+  {
+    final double time1 = times[event1], time2 = times[event2];
+    return time1 < time2 || (time1 == time2 && event1 < event2);
+  }
+
+  @Override
+  public String toString()
+  {
+    return "EventQueue[nextTime=" + (isEmpty() ? "NA" : peekTime()) + ",nEvents=" + size() + "]";
+  }
+
+  private static final int NOT_IN_QUEUE = -1;
+}
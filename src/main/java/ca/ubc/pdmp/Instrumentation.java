@@ -0,0 +1,173 @@
+package ca.ubc.pdmp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Per jump process counters and timings collected by PDMPSimulator when
+ * setInstrumented(true) is called: queue polls, bound versus real events,
+ * nanoseconds spent in Clock.nextEncoded(..) and JumpKernel.simulate(..), and
+ * number of variables updated for the events of the jump process.
+ *
+ * Entries of distinct jump processes can be updated concurrently, since in parallel
+ * mode a clock is never resampled by two events processed at the same time.
+ *
+ * In parallel mode, timings include the work done for events which were later
+ * rejected, while polls and event counts only include accepted events.
+ *
+ * @author bouchard
+ *
+ */
+public class Instrumentation
+{
+  private final PDMP pdmp;
+
+  // JumpProcess -> counts
+  private final long [] polls, boundEvents, clockCalls, clockNanos, kernelNanos, variablesTouched;
+
+  Instrumentation(PDMP pdmp)
+  {
+    this.pdmp = pdmp;
+    final int size = pdmp.jumpProcesses.size();
+    this.polls = new long[size];
+    this.boundEvents = new long[size];
+    this.clockCalls = new long[size];
+    this.clockNanos = new long[size];
+    this.kernelNanos = new long[size];
+    this.variablesTouched = new long[size];
+  }
+
+  void recordEvent(int jumpProcessIndex, boolean isBound, int nVariablesTouched)
+  {
+    polls[jumpProcessIndex]++;
+    if (isBound)
+      boundEvents[jumpProcessIndex]++;
+    variablesTouched[jumpProcessIndex] += nVariablesTouched;
+  }
+
+  void recordClock(int jumpProcessIndex, long nanos)
+  {
+    clockCalls[jumpProcessIndex]++;
+    clockNanos[jumpProcessIndex] += nanos;
+  }
+
+  void recordKernel(int jumpProcessIndex, long nanos)
+  {
+    kernelNanos[jumpProcessIndex] += nanos;
+  }
+
+  public long getNumberOfQueuePolls(int jumpProcessIndex)
+  {
+    return polls[jumpProcessIndex];
+  }
+
+  public long getNumberOfBoundEvents(int jumpProcessIndex)
+  {
+    return boundEvents[jumpProcessIndex];
+  }
+
+  public long getNumberOfJumps(int jumpProcessIndex)
+  {
+    return polls[jumpProcessIndex] - boundEvents[jumpProcessIndex];
+  }
+
+  public long getNumberOfClockCalls(int jumpProcessIndex)
+  {
+    return clockCalls[jumpProcessIndex];
+  }
+
+  public long getClockNanos(int jumpProcessIndex)
+  {
+    return clockNanos[jumpProcessIndex];
+  }
+
+  public long getKernelNanos(int jumpProcessIndex)
+  {
+    return kernelNanos[jumpProcessIndex];
+  }
+
+  public long getNumberOfVariablesTouched(int jumpProcessIndex)
+  {
+    return variablesTouched[jumpProcessIndex];
+  }
+
+  /**
+   * @return Totals grouped by clock class, in the tab separated key-value format
+   *   of PDMPSimulator.summaryStatistics().
+   *
+   *   Each group also has a histogram, over its jump processes, of the average
+   *   nanoseconds per clock call, with bins [2^k, 2^(k+1)) reported as 2^k:count.
+   */
+  public String summary()
+  {
+    final Map<String, long []> totals = new LinkedHashMap<>();
+    final Map<String, TreeMap<Long, Integer>> histograms = new LinkedHashMap<>();
+    for (int jumpProcessIndex = 0; jumpProcessIndex < polls.length; jumpProcessIndex++)
+    {
+      final String key = className(pdmp.jumpProcesses.get(jumpProcessIndex).clock);
+      final long [] total = totals.computeIfAbsent(key, k -> new long[SUMMARY_FIELDS.length]);
+      total[0]++;
+      total[1] += polls[jumpProcessIndex];
+      total[2] += boundEvents[jumpProcessIndex];
+      total[3] += getNumberOfJumps(jumpProcessIndex);
+      total[4] += clockCalls[jumpProcessIndex];
+      total[5] += clockNanos[jumpProcessIndex];
+      total[6] += kernelNanos[jumpProcessIndex];
+      total[7] += variablesTouched[jumpProcessIndex];
+      if (clockCalls[jumpProcessIndex] > 0)
+      {
+        final long bin = Long.highestOneBit(Math.max(1, clockNanos[jumpProcessIndex] / clockCalls[jumpProcessIndex]));
+        histograms.computeIfAbsent(key, k -> new TreeMap<>()).merge(bin, 1, Integer::sum);
+      }
+    }
+    final StringBuilder result = new StringBuilder();
+    for (String key : totals.keySet())
+    {
+      final long [] total = totals.get(key);
+      for (int field = 0; field < SUMMARY_FIELDS.length; field++)
+        result.append("clock[" + key + "]." + SUMMARY_FIELDS[field] + "\t" + total[field] + "\n");
+      final StringBuilder histogram = new StringBuilder();
+      if (histograms.containsKey(key))
+        for (Map.Entry<Long, Integer> entry : histograms.get(key).entrySet())
+          histogram.append((histogram.length() == 0 ? "" : " ") + entry.getKey() + ":" + entry.getValue());
+      result.append("clock[" + key + "].clockNanosPerCallHistogram\t" + histogram + "\n");
+    }
+    return result.toString();
+  }
+
+  /**
+   * @return One line per jump process, with a header.
+   */
+  public String toCSV()
+  {
+    final StringBuilder result = new StringBuilder();
+    result.append("jumpProcess,clock,kernel,nQueuePolls,nBoundEvents,nJumps,nClockCalls,clockNanos,kernelNanos,nVariablesTouched\n");
+    for (int jumpProcessIndex = 0; jumpProcessIndex < polls.length; jumpProcessIndex++)
+    {
+      final JumpProcess jumpProcess = pdmp.jumpProcesses.get(jumpProcessIndex);
+      result.append(
+          jumpProcessIndex + "," +
+          className(jumpProcess.clock) + "," +
+          className(jumpProcess.kernel) + "," +
+          polls[jumpProcessIndex] + "," +
+          boundEvents[jumpProcessIndex] + "," +
+          getNumberOfJumps(jumpProcessIndex) + "," +
+          clockCalls[jumpProcessIndex] + "," +
+          clockNanos[jumpProcessIndex] + "," +
+          kernelNanos[jumpProcessIndex] + "," +
+          variablesTouched[jumpProcessIndex] + "\n");
+    }
+    return result.toString();
+  }
+
+  private static String className(Object object)
+  {
+    final String result = object.getClass().getSimpleName();
+    return result.isEmpty() ? object.getClass().getName() : result;
+  }
+
+  private static final String [] SUMMARY_FIELDS = {
+      "nJumpProcesses", "nQueuePolls", "nBoundEvents", "nJumps",
+      "nClockCalls", "clockNanos", "kernelNanos", "nVariablesTouched"};
+}
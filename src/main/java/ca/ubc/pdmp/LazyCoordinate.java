@@ -0,0 +1,21 @@
+package ca.ubc.pdmp;
+
+/**
+ * A coordinate that can be read as if it had been extrapolated by some delta time, 
+ * without modifying its underlying state.
+ * 
+ * PDMPSimulator uses this instead of extrapolateInPlace(..) followed by a roll back 
+ * whenever a coordinate needs to be up to date for the computation of a clock but 
+ * the move is not committed. 
+ * 
+ * The pending delta time is only meaningful until the next event: the simulator 
+ * sets it before any read through the view, and resets it to zero when it commits 
+ * a move.
+ * 
+ * @author bouchard
+ *
+ */
+public interface LazyCoordinate extends Coordinate
+{
+  void setPendingDeltaTime(double deltaTime);
+}
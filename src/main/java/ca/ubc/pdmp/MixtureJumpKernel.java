@@ -0,0 +1,42 @@
+package ca.ubc.pdmp;
+
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * A jump kernel which, each time it is applied, picks one of several components
+ * and only modifies the variables of that component.
+ *
+ * For example, the superposition of independent homogeneous Poisson processes can be
+ * represented by a single jump process with a clock at the total rate and a mixture
+ * kernel picking each component with probability proportional to its rate.
+ *
+ * PDMPSimulator uses the dependencies of the selected component instead of the union
+ * returned by requiredVariables(): only the selected component's variables are
+ * updated, and only the clocks depending on them are resampled. The union is
+ * never computed by the simulator, so it can be built lazily.
+ *
+ * The probabilities of selecting the components should not depend on the state.
+ *
+ * @author bouchard
+ *
+ */
+public interface MixtureJumpKernel extends JumpKernel
+{
+  int numberOfComponents();
+
+  /**
+   * @return The variables modified by the given component.
+   */
+  Collection<? extends Coordinate> requiredVariables(int component);
+
+  int sampleComponent(Random random);
+
+  void simulate(int component, Random random);
+
+  @Override
+  default void simulate(Random random)
+  {
+    simulate(sampleComponent(random), random);
+  }
+}
@@ -0,0 +1,102 @@
+package ca.ubc.pdmp;
+
+/**
+ * Splits the jump processes of a PDMP into partitions of (almost) equal sizes,
+ * grouping jump processes that share coordinates.
+ *
+ * The jump processes are ordered by a breadth first traversal of the graph where two
+ * jump processes are connected if they share a coordinate (through their clock or kernel),
+ * and this order is cut into contiguous blocks.
+ *
+ * Built from the neighbourhood caches of PDMPSimulator, in time linear in their size.
+ * Used to assign the jump processes to worker threads in optimistic mode, where events
+ * sharing coordinates wait for each other, and to nodes in a PartitionedSimulation.
+ *
+ * @author bouchard
+ *
+ */
+final class PDMPPartition
+{
+  // JumpProcess -> partition
+  private final int [] jumpProcessPartitions;
+
+  /**
+   * @param nd JumpProcess -> Coordinate, for the clocks
+   * @param nk JumpProcess -> Coordinate, for the kernels
+   *
+   * Rows marked ALL (see CompressedRows) are ignored: these jump processes are never
+   * processed concurrently.
+   */
+  PDMPPartition(CompressedRows nd, CompressedRows nk, int numberOfVariables, int nPartitions)
+  {
+    if (nPartitions < 1)
+      throw new RuntimeException("Invalid number of partitions: " + nPartitions);
+    final int nJumpProcesses = nd.numberOfRows();
+    this.jumpProcessPartitions = new int[nJumpProcesses];
+
+    // JumpProcess -> Coordinate (union of nd and nk), and its transpose
+    final CompressedRows dependencies = CompressedRows.build(nJumpProcesses, () ->
+    {
+      final int [] marks = new int[numberOfVariables];
+      return (jumpProcessIndex, result) ->
+      {
+        add(nd, jumpProcessIndex, marks, result);
+        add(nk, jumpProcessIndex, marks, result);
+      };
+    });
+    final CompressedRows dependents = dependencies.transpose(numberOfVariables);
+
+    final int [] order = new int[nJumpProcesses];
+    final boolean [] visited = new boolean[nJumpProcesses];
+    final boolean [] expanded = new boolean[numberOfVariables];
+    int head = 0, tail = 0;
+    for (int root = 0; root < nJumpProcesses; root++)
+    {
+      if (visited[root])
+        continue;
+      visited[root] = true;
+      order[tail++] = root;
+      while (head < tail)
+      {
+        final int current = order[head++];
+        for (int i = dependencies.start(current); i < dependencies.end(current); i++)
+        {
+          final int coordinateIndex = dependencies.values[i];
+          if (expanded[coordinateIndex])
+            continue;
+          expanded[coordinateIndex] = true;
+          for (int j = dependents.start(coordinateIndex); j < dependents.end(coordinateIndex); j++)
+          {
+            final int neighbour = dependents.values[j];
+            if (!visited[neighbour])
+            {
+              visited[neighbour] = true;
+              order[tail++] = neighbour;
+            }
+          }
+        }
+      }
+    }
+
+    for (int rank = 0; rank < nJumpProcesses; rank++)
+      jumpProcessPartitions[order[rank]] = (int) ((long) rank * nPartitions / nJumpProcesses);
+  }
+
+  int partitionOfJumpProcess(int jumpProcessIndex)
+  {
+    return jumpProcessPartitions[jumpProcessIndex];
+  }
+
+  private static void add(CompressedRows variables, int row, int [] marks, CompressedRows.Appender result)
+  {
+    if (variables.isAll(row))
+      return;
+    final int stamp = row + 1;
+    for (int i = variables.start(row); i < variables.end(row); i++)
+      if (marks[variables.values[i]] != stamp)
+      {
+        marks[variables.values[i]] = stamp;
+        result.add(variables.values[i]);
+      }
+  }
+}
@@ -1,16 +1,34 @@
 package ca.ubc.pdmp;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.IdentityHashMap;
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.List;
 import java.util.Random;
-import java.util.Set;
-import java.util.function.Function;
-
-import briefj.BriefMaps;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * A simulator for Piecewise Deterministic Poisson Processes (DPMP). 
@@ -20,6 +38,14 @@ import briefj.BriefMaps;
  * This implementation is tailored to situations where the rates and jumps 
  * act on sparse subsets of variables, as in the local BPS algorithm.
  * 
+ * Events scheduled at the same time are processed in increasing order of 
+ * jump process index.
+ * 
+ * Optionally, independent events can be processed concurrently, see 
+ * setParallelism(..).
+ * 
+ * Runs can be checkpointed and resumed, see setCheckpoints(..) and resume(..).
+ * 
  * See Bouchard, Vollmer, Doucet 2015, The Bouncy particle sampler.
  * 
  * @author bouchard
@@ -34,12 +60,51 @@ public class PDMPSimulator
     this.pdmp = pdmp; 
     this.numberOfJumpProcesses = pdmp.jumpProcesses.size();
     this.numberOfVariables = pdmp.coordinates.size();
-    this.nd = new int[numberOfJumpProcesses][];
-    this.nk = new int[numberOfJumpProcesses][];
-    this.Nd_nk_plus_id = new int[numberOfJumpProcesses][];
-    this.nd_Nd_nk_plus_nd_minus_nk = new int[numberOfJumpProcesses][];
-    this.processors = new int[numberOfVariables][];
-    buildCaches();
+    final Dependencies deps = new Dependencies(pdmp);
+    this.nd = deps.nd.markingAll(numberOfVariables);
+    this.nk = deps.nk.markingAll(numberOfVariables);
+    final CompressedRows _Nd_nk_plus_id = deps.Nd_nk_plus_id();
+    this.Nd_nk_plus_id = _Nd_nk_plus_id.markingAll(numberOfJumpProcesses);
+    this.nd_Nd_nk_plus_nd_minus_nk = deps.nd_Nd_nk_plus_nd_minus_nk(_Nd_nk_plus_id).markingAll(numberOfVariables);
+    final CompressedRows processorVariables = deps.processorVariables();
+    this.processors = deps.processors(processorVariables, false);
+    final CompressedRows _jointProcessors = deps.processors(processorVariables, true);
+    this.jointProcessors = _jointProcessors.values.length > 0 ? _jointProcessors : null;
+    this.processorVariables = jointProcessors != null ? processorVariables : null;
+    this.mixtureKernels = deps.mixtureKernels;
+    this.componentOffsets = deps.componentOffsets;
+    this.componentNk = deps.numberOfComponents > 0 ? deps.componentNk() : null;
+    this.Nd = deps.numberOfComponents > 0 ? deps.Nd : null;
+    this.dynamicJumpProcesses = new int[deps.numberOfComponents > 0 ? numberOfJumpProcesses : 0];
+    this.dynamicVariables = new int[deps.numberOfComponents > 0 ? numberOfVariables : 0];
+    this.dynamicMarks = new int[deps.numberOfComponents > 0 ? Math.max(numberOfJumpProcesses, numberOfVariables) : 0];
+    this.lazyCoordinates = new LazyCoordinate[numberOfVariables];
+    for (int variableIndex = 0; variableIndex < numberOfVariables; variableIndex++)
+      if (pdmp.coordinates.get(variableIndex) instanceof LazyCoordinate)
+        lazyCoordinates[variableIndex] = (LazyCoordinate) pdmp.coordinates.get(variableIndex);
+    this.savableCoordinates = new SavableCoordinate[numberOfVariables];
+    for (int variableIndex = 0; variableIndex < numberOfVariables; variableIndex++)
+      if (pdmp.coordinates.get(variableIndex) instanceof SavableCoordinate)
+        savableCoordinates[variableIndex] = (SavableCoordinate) pdmp.coordinates.get(variableIndex);
+    this.isParallelizable = new boolean[numberOfJumpProcesses];
+    for (int jumpProcessIndex = 0; jumpProcessIndex < numberOfJumpProcesses; jumpProcessIndex++)
+      isParallelizable[jumpProcessIndex] = isParallelizable(jumpProcessIndex);
+    this.checkpointableClocks = new Checkpointable[numberOfJumpProcesses];
+    this.checkpointableKernels = new Checkpointable[numberOfJumpProcesses];
+    boolean _hasCheckpointableComponents = false;
+    for (int jumpProcessIndex = 0; jumpProcessIndex < numberOfJumpProcesses; jumpProcessIndex++)
+    {
+      final JumpProcess jumpProcess = pdmp.jumpProcesses.get(jumpProcessIndex);
+      if (jumpProcess.clock instanceof Checkpointable)
+        checkpointableClocks[jumpProcessIndex] = (Checkpointable) jumpProcess.clock;
+      if (jumpProcess.kernel instanceof Checkpointable)
+        checkpointableKernels[jumpProcessIndex] = (Checkpointable) jumpProcess.kernel;
+      _hasCheckpointableComponents |= 
+          checkpointableClocks[jumpProcessIndex] != null || 
+          checkpointableKernels[jumpProcessIndex] != null;
+    }
+    this.hasCheckpointableComponents = _hasCheckpointableComponents;
+    this.jointProcessorStates = new double[jointProcessors != null ? maxJointStateSize() : 0];
   }
   
   ///// Permanent caches : 
@@ -61,19 +126,57 @@ public class PDMPSimulator
    * For example, Nd_nk[j]: 
    *   for given JumpProcess index j, this returns Nd(nk(j)), 
    *   a list of variables.
+   *   
+   * Each of these is stored as one CompressedRows (one row per input index), where 
+   * the row {CompressedRows.ALL} stands for all variables or jump processes.
    */
 
   // JumpProcess -> Coordinate
-  private final int [][] nd, nk;
+  private final CompressedRows nd, nk;
   
   // JumpProcess -> JumpProcess
-  private final int [][] Nd_nk_plus_id;
+  private final CompressedRows Nd_nk_plus_id;
   
   // JumpProcess -> Coordinate
-  private final int [][] nd_Nd_nk_plus_nd_minus_nk; 
+  private final CompressedRows nd_Nd_nk_plus_nd_minus_nk; 
+  
+  // Coordinate -> Processors depending on this coordinate only
+  private final CompressedRows processors;
+  
+  // Coordinate -> Processors depending on several coordinates, see callJointProcessor(..), 
+  // or null if there are none
+  private final CompressedRows jointProcessors;
+  
+  // Processor -> Coordinate (null if there are no joint processors)
+  private final CompressedRows processorVariables;
+  
+  // scratch space for the states saved by callJointProcessor(..)
+  private final double []      jointProcessorStates;
+  
+  // Coordinate -> itself if it supports read-only views, null otherwise
+  private final LazyCoordinate [] lazyCoordinates;
+  
+  /*
+   * Mixture kernels (see MixtureJumpKernel): for these jump processes, nk is empty and the 
+   * dependencies are computed at each jump from the selected component (see simulateMixtureJump(..)).
+   */
+  
+  // JumpProcess -> its kernel if it is a mixture, null otherwise
+  private final MixtureJumpKernel [] mixtureKernels;
+  
+  // JumpProcess -> row of componentNk for its first component
+  private final int [] componentOffsets;
   
-  // Coordinate -> Processors
-  private final int [][] processors;
+  // Mixture component -> Coordinate (null if there are no mixtures)
+  private final CompressedRows componentNk;
+  
+  // Coordinate -> JumpProcess (null if there are no mixtures)
+  private final CompressedRows Nd;
+  
+  // scratch space for the dynamic dependencies of the last mixture jump
+  private final int []         dynamicJumpProcesses, dynamicVariables, dynamicMarks;
+  private int                  nDynamicJumpProcesses, nDynamicVariables, dynamicStamp = 0;
+  private int                  lastComponentRow;
   
   
   ///// Data updated during simulation :
@@ -81,11 +184,14 @@ public class PDMPSimulator
   private double               time;
   
   // queue over jump processes and their next schedule time
-  private EventQueue<Integer>  queue;
+  private IndexedEventQueue    queue;
   
   // variable -> last updated time
   private double  []           lastUpdateTimes; 
   
+  // processor -> time of its last call (joint processors only, null if there are none)
+  private double  []           jointProcessorTimes;
+  
   // jump processes -> isBound?
   private boolean []           isBoundIndicators;
   
@@ -99,13 +205,28 @@ public class PDMPSimulator
   
   private double               maxTrajectoryLengthPerChunk = DEFAULT_CHUNK_LENGTH;
   
+  // see setRebaseTimes(..)
+  private boolean              rebaseTimes = false;
+  
+  // events after this time (relative to the start of the current chunk) are parked
+  private double               horizon;
+  
+  private double               chunkLength;
+  
+  // set when the state was just restored from a checkpoint in the middle of a chunk
+  private boolean              resumingChunk = false;
+  
   private boolean              printSummaryStatistics = true;
   
+  // see setInstrumented(..), null when disabled
+  private Instrumentation      instrumentation = null;
+  
   private void init()
   {
     this.time = 0.0;
-    this.queue = new EventQueue<>();
+    this.queue = new IndexedEventQueue(numberOfJumpProcesses);
     this.lastUpdateTimes = new double[numberOfVariables];
+    this.jointProcessorTimes = jointProcessors != null ? new double[pdmp.processors.size()] : null;
     this.isBoundIndicators = new boolean[numberOfJumpProcesses];
   }
   
@@ -114,77 +235,349 @@ public class PDMPSimulator
     this.totalProcessTime = 0.0;
     this.numberOfQueuePolls = 0;
     this.numberOfJumps = 0;
-    this.timeMilliSeconds = System.currentTimeMillis();
+    this.numberOfBatchedEvents = 0;
+    this.numberOfRejectedEvents = 0;
+    this.batchSizeLimit = maxBatchSize;
+    if (instrumentation != null)
+      instrumentation = new Instrumentation(pdmp);
     this.random = random;
-    
+    this.queue = null;
+    this.resumingChunk = false;
+    run(inputStoppingRule);
+  }
+  
+  /**
+   * Continue a run from a checkpoint written by setCheckpoints(..). 
+   * 
+   * The PDMP should be built in the same way as for the run that wrote the checkpoint, 
+   * and the simulator configured identically (chunk length, parallelism, etc). The 
+   * Random is restored from the checkpoint. The input stopping rule is interpreted as 
+   * for the whole run, except for the wall clock time which is counted from now.
+   */
+  public void resume(File checkpointFile, StoppingCriterion inputStoppingRule)
+  {
+    readCheckpoint(checkpointFile);
+    run(inputStoppingRule);
+  }
+  
+  private void run(StoppingCriterion inputStoppingRule)
+  {
+    this.timeMilliSeconds = System.currentTimeMillis();
+    this.lastCheckpointMilliSeconds = timeMilliSeconds;
+    this.pendingCheckpoint = null;
+    if (parallelism > 1)
+      startPool();
+    if (checkpointFile != null)
+      checkpointWriter = Executors.newSingleThreadExecutor();
+    if (processorThreads > 0)
+      startProcessorPipeline();
+    try 
+    {
+      simulateChunks(inputStoppingRule);
+      if (checkpointWriter != null)
+        awaitCheckpointWriter();
+    }
+    finally
+    {
+      if (pool != null)
+        pool.shutdown();
+      if (workers != null)
+        workers.shutdown();
+      if (checkpointWriter != null)
+        checkpointWriter.shutdown();
+      pool = null;
+      workers = null;
+      checkpointWriter = null;
+      // waits for the pending records
+      if (processorPipeline != null)
+        processorPipeline.close();
+      processorPipeline = null;
+    }
+    this.timeMilliSeconds = System.currentTimeMillis() - timeMilliSeconds;
+    printSummaryStatistics();
+  }
+  
+  private void simulateChunks(StoppingCriterion inputStoppingRule)
+  {
     loop:while (inputStoppingRule.stochasticProcessTime - totalProcessTime > 0)
     {
-      double processIncrementTime = 
-         Math.min(
-             maxTrajectoryLengthPerChunk, 
-             inputStoppingRule.stochasticProcessTime - totalProcessTime);
+      // when resuming, the current chunk's length and horizon come from the checkpoint
+      if (!resumingChunk)
+      {
+        this.chunkLength = 
+           Math.min(
+               maxTrajectoryLengthPerChunk, 
+               inputStoppingRule.stochasticProcessTime - totalProcessTime);
+        this.horizon = rebaseTimes ? 
+            inputStoppingRule.stochasticProcessTime - totalProcessTime : 
+            chunkLength;
+      }
       this.stoppingRule = new StoppingCriterion(
-          processIncrementTime,
+          chunkLength,
           inputStoppingRule.wallClockTimeMilliseconds,
           inputStoppingRule.numberOfQueuePolls
           );
-      simulateChunk();
+      final boolean lastChunk = chunkLength == inputStoppingRule.stochasticProcessTime - totalProcessTime;
+      final boolean completed = simulateChunk(lastChunk);
       totalProcessTime += time;
       
-      if (!computeBudgetPositive())
+      if (!completed)
         break loop;
+      
+      if (rebaseTimes)
+        rebase();
     }
-    this.timeMilliSeconds = System.currentTimeMillis() - timeMilliSeconds;
-    printSummaryStatistics();
   }
   
-  private void simulateChunk()
+  /**
+   * @return If the chunk was completed, i.e. if the budget is still positive.
+   */
+  private boolean simulateChunk(boolean lastChunk)
   {
-    init();
-    
-    for (int jumpProcessIndex = 0; jumpProcessIndex < pdmp.jumpProcesses.size(); jumpProcessIndex++)
-      simulateNextEventDeltaTime(jumpProcessIndex);
+    if (resumingChunk)
+      resumingChunk = false;
+    else if (!rebaseTimes || queue == null)
+    {
+      init();
+      for (int jumpProcessIndex = 0; jumpProcessIndex < pdmp.jumpProcesses.size(); jumpProcessIndex++)
+        simulateNextEventDeltaTime(jumpProcessIndex);
+    }
     
     boolean computeBudgetPositive;
-    while ((computeBudgetPositive = computeBudgetPositive()) && !queue.isEmpty())
+    while ((computeBudgetPositive = computeBudgetPositive()) && !queue.isEmpty() && 
+        // when rebasing times, the queue contains events after the end of the chunk
+        queue.peekTime() <= stoppingRule.stochasticProcessTime)
     {
+      if (checkpointFile != null)
+        checkpointIfDue();
+      
       // retrieve info about event
-      final Entry<Double, Integer> event = queue.pollEvent();
+      time = queue.peekTime();
+      final int eventJumpProcessIndex = queue.pollEvent();
       numberOfQueuePolls++;
-
-      time = event.getKey();
-      final int eventJumpProcessIndex = event.getValue();
       
-      if (isBoundIndicators[eventJumpProcessIndex])  
-      {
-        updateVariables(nd[eventJumpProcessIndex], false, -1);
-        
-        // recompute new time
-        simulateNextEventDeltaTime(eventJumpProcessIndex);
-        
-        // undo
-        rollBack(nd[eventJumpProcessIndex]);
-      }
+      if (parallelism > 1 && formBatch(eventJumpProcessIndex))
+        simulateBatch();
       else
-      {
-        numberOfJumps++;
-        updateVariables(nk[eventJumpProcessIndex], true, eventJumpProcessIndex);
-        updateVariables(nd_Nd_nk_plus_nd_minus_nk[eventJumpProcessIndex], false, -1);
-        
-        // do the jump
-        pdmp.jumpProcesses.get(eventJumpProcessIndex).kernel.simulate(random);
-        
-        // recompute factor 'hood new times (including self) 
-        simulateNextEventDeltaTimes(Nd_nk_plus_id[eventJumpProcessIndex]);
-        
-        // extended 'hood: undo
-        rollBack(nd_Nd_nk_plus_nd_minus_nk[eventJumpProcessIndex]);
-      }
+        simulateEvent(eventJumpProcessIndex);
     }
     if (computeBudgetPositive)
       time = this.stoppingRule.stochasticProcessTime;
     // final update on all variables 
-    updateAllVariables(true, -1); 
+    if (!rebaseTimes || lastChunk || !computeBudgetPositive)
+      updateAllVariables(true, -1); 
+    return computeBudgetPositive;
+  }
+  
+  /*
+   * Make the end of the current chunk the new time origin. Pending events and the 
+   * variables which were not updated keep their (shifted) times, so that no 
+   * clock needs to be resampled.
+   */
+  private void rebase()
+  {
+    final double offset = time;
+    queue.shiftTimes(-offset);
+    for (int variableIndex = 0; variableIndex < numberOfVariables; variableIndex++)
+      lastUpdateTimes[variableIndex] -= offset;
+    if (jointProcessorTimes != null)
+      for (int processorIndex = 0; processorIndex < jointProcessorTimes.length; processorIndex++)
+        jointProcessorTimes[processorIndex] -= offset;
+    time = 0.0;
+  }
+  
+  ///// Stepping, used by PartitionedSimulation to interleave the events with those of other nodes
+  
+  /*
+   * Sequential mode only, in a single chunk: startStepping(..), then any sequence of step() and 
+   * receive(..) in time order, then finishStepping().
+   */
+  
+  void startStepping(Random random, double endTime)
+  {
+    if (parallelism > 1 || checkpointFile != null || processorThreads > 0 || rebaseTimes)
+      throw new RuntimeException("Stepping requires the default sequential configuration");
+    this.numberOfQueuePolls = 0;
+    this.numberOfJumps = 0;
+    if (instrumentation != null)
+      instrumentation = new Instrumentation(pdmp);
+    this.random = random;
+    this.horizon = endTime;
+    this.stoppingRule = StoppingCriterion.byStochasticProcessTime(endTime);
+    init();
+    for (int jumpProcessIndex = 0; jumpProcessIndex < numberOfJumpProcesses; jumpProcessIndex++)
+      simulateNextEventDeltaTime(jumpProcessIndex);
+  }
+  
+  /**
+   * @return The time of the next event, infinity if there are none before the end time.
+   */
+  double nextEventTime()
+  {
+    return queue.isEmpty() ? Double.POSITIVE_INFINITY : queue.peekTime();
+  }
+  
+  /**
+   * Process the next event. The variables updated by a jump are committed at its time.
+   * 
+   * @return The index of the jump process, or -1 if the event was a bound.
+   */
+  int step()
+  {
+    time = queue.peekTime();
+    final int eventJumpProcessIndex = queue.pollEvent();
+    numberOfQueuePolls++;
+    final boolean isBound = isBoundIndicators[eventJumpProcessIndex];
+    simulateEvent(eventJumpProcessIndex);
+    return isBound ? -1 : eventJumpProcessIndex;
+  }
+  
+  /**
+   * Set a variable to a state jumped to elsewhere, at a time between the current time and 
+   * that of the next event, and resample the given clocks (those depending on the variable).
+   */
+  void receive(int variableIndex, double atTime, DataInput state, int [] jumpProcessIndices) throws IOException
+  {
+    if (atTime < time || atTime > nextEventTime())
+      throw new RuntimeException("Received a jump at " + atTime + " outside of [" + time + ", " + nextEventTime() + "]");
+    time = atTime;
+    _updateVariable(variableIndex, true, -1);
+    ((Checkpointable) pdmp.coordinates.get(variableIndex)).readState(state);
+    for (int jumpProcessIndex : jumpProcessIndices)
+    {
+      updateVariables(nd, jumpProcessIndex, false, -1);
+      simulateNextEventDeltaTime(jumpProcessIndex);
+      rollBack(nd, jumpProcessIndex);
+    }
+  }
+  
+  /**
+   * Bring the variable to the current time, calling its processors.
+   */
+  void commit(int variableIndex)
+  {
+    _updateVariable(variableIndex, true, -1);
+  }
+  
+  void finishStepping()
+  {
+    time = stoppingRule.stochasticProcessTime;
+    updateAllVariables(true, -1);
+  }
+  
+  PDMPPartition partition(int nPartitions)
+  {
+    return new PDMPPartition(nd, nk, numberOfVariables, nPartitions);
+  }
+  
+  private void simulateEvent(int eventJumpProcessIndex)
+  {
+    final boolean isBound = isBoundIndicators[eventJumpProcessIndex];
+    if (isBound)  
+    {
+      updateVariables(nd, eventJumpProcessIndex, false, -1);
+      
+      // recompute new time
+      simulateNextEventDeltaTime(eventJumpProcessIndex);
+      
+      // undo
+      rollBack(nd, eventJumpProcessIndex);
+    }
+    else if (mixtureKernels[eventJumpProcessIndex] != null)
+    {
+      numberOfJumps++;
+      simulateMixtureJump(eventJumpProcessIndex);
+    }
+    else
+    {
+      numberOfJumps++;
+      updateVariables(nk, eventJumpProcessIndex, true, eventJumpProcessIndex);
+      updateVariables(nd_Nd_nk_plus_nd_minus_nk, eventJumpProcessIndex, false, -1);
+      
+      // do the jump
+      simulateKernel(eventJumpProcessIndex, WHOLE_KERNEL, random);
+      
+      // recompute factor 'hood new times (including self) 
+      simulateNextEventDeltaTimes(Nd_nk_plus_id, eventJumpProcessIndex);
+      
+      // extended 'hood: undo
+      rollBack(nd_Nd_nk_plus_nd_minus_nk, eventJumpProcessIndex);
+    }
+    if (instrumentation != null)
+      instrumentation.recordEvent(eventJumpProcessIndex, isBound, numberOfVariablesTouched(eventJumpProcessIndex, isBound));
+  }
+  
+  /*
+   * Same as a standard jump, with nk replaced by the variables of the selected component, 
+   * and Nd_nk_plus_id, nd_Nd_nk_plus_nd_minus_nk by their values computed for these variables.
+   */
+  private void simulateMixtureJump(int eventJumpProcessIndex)
+  {
+    final int component = mixtureKernels[eventJumpProcessIndex].sampleComponent(random);
+    final int row = componentOffsets[eventJumpProcessIndex] + component;
+    lastComponentRow = row;
+    updateVariables(componentNk, row, true, eventJumpProcessIndex);
+    computeDynamicDependencies(eventJumpProcessIndex, row);
+    for (int i = 0; i < nDynamicVariables; i++)
+      _updateVariable(dynamicVariables[i], false, -1);
+    
+    simulateKernel(eventJumpProcessIndex, component, random);
+    
+    for (int i = 0; i < nDynamicJumpProcesses; i++)
+      simulateNextEventDeltaTime(dynamicJumpProcesses[i]);
+    for (int i = 0; i < nDynamicVariables; i++)
+      _rollBack(dynamicVariables[i], time);
+  }
+  
+  // Nd(componentNk(row)) + {j} and nd(Nd(componentNk(row)) + {j}) - componentNk(row)
+  private void computeDynamicDependencies(int jumpProcessIndex, int row)
+  {
+    nDynamicJumpProcesses = 0;
+    nextDynamicStamp();
+    for (int i = componentNk.start(row); i < componentNk.end(row); i++)
+    {
+      final int variableIndex = componentNk.values[i];
+      for (int j = Nd.start(variableIndex); j < Nd.end(variableIndex); j++)
+        addIfUnmarked(Nd.values[j], dynamicJumpProcesses, true);
+    }
+    addIfUnmarked(jumpProcessIndex, dynamicJumpProcesses, true);
+    
+    nDynamicVariables = 0;
+    nextDynamicStamp();
+    // excluded by pre-marking them
+    for (int i = componentNk.start(row); i < componentNk.end(row); i++)
+      dynamicMarks[componentNk.values[i]] = dynamicStamp;
+    for (int k = 0; k < nDynamicJumpProcesses; k++)
+    {
+      final int neighbour = dynamicJumpProcesses[k];
+      if (nd.isAll(neighbour))
+        for (int variableIndex = 0; variableIndex < numberOfVariables; variableIndex++)
+          addIfUnmarked(variableIndex, dynamicVariables, false);
+      else
+        for (int i = nd.start(neighbour); i < nd.end(neighbour); i++)
+          addIfUnmarked(nd.values[i], dynamicVariables, false);
+    }
+  }
+  
+  private void addIfUnmarked(int index, int [] result, boolean isJumpProcess)
+  {
+    if (dynamicMarks[index] == dynamicStamp)
+      return;
+    dynamicMarks[index] = dynamicStamp;
+    if (isJumpProcess)
+      result[nDynamicJumpProcesses++] = index;
+    else
+      result[nDynamicVariables++] = index;
+  }
+  
+  private void nextDynamicStamp()
+  {
+    if (dynamicStamp == Integer.MAX_VALUE)
+    {
+      Arrays.fill(dynamicMarks, 0);
+      dynamicStamp = 0;
+    }
+    dynamicStamp++;
   }
   
   private boolean computeBudgetPositive()
@@ -210,222 +603,1274 @@ public class PDMPSimulator
       _updateVariable(varIdx, commit, source);
   }
   
-  private void updateVariables(int [] variables, boolean commit, int source)
+  private void updateVariables(CompressedRows variables, int row, boolean commit, int source)
   {
-    if (variables == null)
-      return;
-    
-    if (variables[0] == -1)
+    if (variables.isAll(row))
       updateAllVariables(commit, source);
     else
-      for (int variableIdx : variables)
-        _updateVariable(variableIdx, commit, source);
+      for (int i = variables.start(row), end = variables.end(row); i < end; i++)
+        _updateVariable(variables.values[i], commit, source);
   }
 
   private void _updateVariable(int variableIndex, boolean commit, int source)
   {
-    // avoid extraneous processing calls
-    if (lastUpdateTimes[variableIndex] == time)
+    if (commit && lastUpdateTimes[variableIndex] != time)
+      callProcessors(variableIndex, time - lastUpdateTimes[variableIndex], source);
+    _extrapolate(variableIndex, commit, time);
+  }
+  
+  private void callProcessors(int variableIndex, double deltaTime, int source)
+  {
+    final CompressedRows rows = processorPipeline == null ? processors : synchronousProcessors;
+    for (int i = rows.start(variableIndex), end = rows.end(variableIndex); i < end; i++)
+      pdmp.processors.get(rows.values[i]).process(deltaTime, source);
+    if (processorPipeline != null && asynchronousProcessors.size(variableIndex) > 0)
+      processorPipeline.append(variableIndex, deltaTime, source);
+    if (jointProcessors != null)
+      for (int i = jointProcessors.start(variableIndex), end = jointProcessors.end(variableIndex); i < end; i++)
+        callJointProcessor(jointProcessors.values[i], source);
+  }
+  
+  /*
+   * A processor depending on several variables is called when any of them is committed, at 
+   * most once per event time, for the segment since its previous call (during which none of 
+   * its variables jumped). As for the other processors, its variables are temporarily set to 
+   * their state at the start of that segment; since the ones which were not committed since 
+   * then are extrapolated on demand, this only costs a save and restore per variable.
+   */
+  private void callJointProcessor(int processorIndex, int source)
+  {
+    final double startTime = jointProcessorTimes[processorIndex];
+    if (startTime == time)
+      return;
+    int offset = 0;
+    for (int i = processorVariables.start(processorIndex), end = processorVariables.end(processorIndex); i < end; i++)
+    {
+      final int variableIndex = processorVariables.values[i];
+      final double deltaTime = startTime - lastUpdateTimes[variableIndex];
+      if (deltaTime == 0.0)
+        continue;
+      final SavableCoordinate savable = savableCoordinates[variableIndex];
+      if (savable != null)
+      {
+        savable.saveState(jointProcessorStates, offset);
+        offset += savable.stateSize();
+      }
+      pdmp.coordinates.get(variableIndex).extrapolateInPlace(deltaTime);
+    }
+    pdmp.processors.get(processorIndex).process(time - startTime, source);
+    offset = 0;
+    for (int i = processorVariables.start(processorIndex), end = processorVariables.end(processorIndex); i < end; i++)
+    {
+      final int variableIndex = processorVariables.values[i];
+      final double deltaTime = startTime - lastUpdateTimes[variableIndex];
+      if (deltaTime == 0.0)
+        continue;
+      final SavableCoordinate savable = savableCoordinates[variableIndex];
+      if (savable != null)
+      {
+        savable.restoreState(jointProcessorStates, offset);
+        offset += savable.stateSize();
+      }
+      else
+        pdmp.coordinates.get(variableIndex).extrapolateInPlace(-deltaTime);
+    }
+    jointProcessorTimes[processorIndex] = time;
+  }
+  
+  private int maxJointStateSize()
+  {
+    int result = 0;
+    for (int processorIndex = 0; processorIndex < pdmp.processors.size(); processorIndex++)
+    {
+      int size = 0;
+      for (int i = processorVariables.start(processorIndex); i < processorVariables.end(processorIndex); i++)
+        if (savableCoordinates[processorVariables.values[i]] != null)
+          size += savableCoordinates[processorVariables.values[i]].stateSize();
+      result = Math.max(result, size);
+    }
+    return result;
+  }
+  
+  /*
+   * Bring the variable to the given time, without calling processors.
+   * Only touches data associated with this variable, so concurrent calls on distinct 
+   * variables are safe.
+   */
+  private void _extrapolate(int variableIndex, boolean commit, double atTime)
+  {
+    final double deltaTime = atTime - lastUpdateTimes[variableIndex];
+    final LazyCoordinate lazyCoordinate = lazyCoordinates[variableIndex];
+    if (!commit && lazyCoordinate != null)
+    {
+      // no mutation (hence nothing to roll back): readers view the coordinate at the current time
+      lazyCoordinate.setPendingDeltaTime(deltaTime);
       return;
+    }
     
-    final Coordinate coordinate = pdmp.coordinates.get(variableIndex);
-    final double deltaTime = time - lastUpdateTimes[variableIndex];
+    if (deltaTime == 0.0)
+      return;
+    
+    pdmp.coordinates.get(variableIndex).extrapolateInPlace(deltaTime);
     if (commit)
     {
-      final int [] processorsForThisVar = processors[variableIndex];
-      if (processorsForThisVar != null)
-        for (int processorIdx : processorsForThisVar)
-          pdmp.processors.get(processorIdx).process(deltaTime, source);
-      lastUpdateTimes[variableIndex] = time;
+      lastUpdateTimes[variableIndex] = atTime;
+      if (lazyCoordinate != null)
+        lazyCoordinate.setPendingDeltaTime(0.0);
     }
-    coordinate.extrapolateInPlace(deltaTime);
   }
   
-  private void _rollBack(int variableIndex)
+  private void _rollBack(int variableIndex, double atTime)
   {
+    if (lazyCoordinates[variableIndex] != null)
+      return;
     final Coordinate coordinate = pdmp.coordinates.get(variableIndex);
-    final double deltaTime = time - lastUpdateTimes[variableIndex];
+    final double deltaTime = atTime - lastUpdateTimes[variableIndex];
     coordinate.extrapolateInPlace(-deltaTime);
   }
   
-  private void rollBack(int [] variableIndices)
+  private void rollBack(CompressedRows variables, int row)
   {
-    if (variableIndices == null)
-      return;
-    if (variableIndices[0] == -1)
+    if (variables.isAll(row))
       for (int i = 0; i < numberOfVariables; i++)
-        _rollBack(i);
+        _rollBack(i, time);
     else
-      for (int index : variableIndices)
-        _rollBack(index);
+      for (int i = variables.start(row), end = variables.end(row); i < end; i++)
+        _rollBack(variables.values[i], time);
   }
   
-  private void simulateNextEventDeltaTimes(int [] jumpProcessIndices)
+  private void simulateNextEventDeltaTimes(CompressedRows jumpProcesses, int row)
   {
-    if (jumpProcessIndices == null)
-      return;
-    if (jumpProcessIndices[0] == -1)
+    if (jumpProcesses.isAll(row))
       for (int i = 0; i < numberOfJumpProcesses; i++)
         simulateNextEventDeltaTime(i);
     else
-      for (int index : jumpProcessIndices)
-        simulateNextEventDeltaTime(index);
+      for (int i = jumpProcesses.start(row), end = jumpProcesses.end(row); i < end; i++)
+        simulateNextEventDeltaTime(jumpProcesses.values[i]);
   }
   
   private void simulateNextEventDeltaTime(int jumpProcessIndex)
   {
-    queue.remove(jumpProcessIndex);
-    final DeltaTime nextEvent = pdmp.jumpProcesses.get(jumpProcessIndex).clock.next(random);
-    double absoluteTime = time + nextEvent.deltaTime;
-    if (absoluteTime <= stoppingRule.stochasticProcessTime)
+    final double nextEvent = nextEncoded(jumpProcessIndex, random);
+    final double deltaTime = DeltaTime.deltaTime(nextEvent);
+    if (!(deltaTime > 0.0))
+      throw new RuntimeException("Bad delta: " + deltaTime);
+    final double absoluteTime = time + deltaTime;
+    if (absoluteTime <= horizon)
     {
-      isBoundIndicators[jumpProcessIndex] = nextEvent.isBound;
-      absoluteTime = fixNumericalIssue(absoluteTime);
-      queue.add(jumpProcessIndex, absoluteTime);
+      isBoundIndicators[jumpProcessIndex] = DeltaTime.isBound(nextEvent);
+      // reschedule in place (ties with other events are allowed)
+      queue.schedule(jumpProcessIndex, absoluteTime);
     }
+    else
+      // beyond the end of the chunk, or never: park outside of the queue
+      queue.remove(jumpProcessIndex);
   }
   
-  //// Some low-level details
+  private double nextEncoded(int jumpProcessIndex, Random random)
+  {
+    final Clock clock = pdmp.jumpProcesses.get(jumpProcessIndex).clock;
+    if (instrumentation == null)
+      return clock.nextEncoded(random);
+    final long start = System.nanoTime();
+    final double result = clock.nextEncoded(random);
+    instrumentation.recordClock(jumpProcessIndex, System.nanoTime() - start);
+    return result;
+  }
   
-  private static final double epsilon = 1;
-  private double fixNumericalIssue(double proposedTime)
+  /**
+   * @param component The component of a mixture kernel, or WHOLE_KERNEL.
+   */
+  private void simulateKernel(int jumpProcessIndex, int component, Random random)
   {
-    if (queue.containsTime(proposedTime))
-    {
-      System.err.println("The sampler has hit an event of probability zero: "
-          + "two events scheduled exactly at the same time.");
-      System.err.println("Because of numerical precision, this could possibly "
-          + "happen, but very rarely.");
-      
-      System.err.println("For internal implementation reasons, one of the "
-          + "events at time " + proposedTime + " was moved to " + (proposedTime + epsilon));
-      proposedTime += epsilon;
-    }
-    return proposedTime;
+    final long start = instrumentation == null ? 0L : System.nanoTime();
+    if (component == WHOLE_KERNEL)
+      pdmp.jumpProcesses.get(jumpProcessIndex).kernel.simulate(random);
+    else
+      mixtureKernels[jumpProcessIndex].simulate(component, random);
+    if (instrumentation != null)
+      instrumentation.recordKernel(jumpProcessIndex, System.nanoTime() - start);
+  }
+  
+  private static final int WHOLE_KERNEL = -1;
+  
+  private int numberOfVariablesTouched(int jumpProcessIndex, boolean isBound)
+  {
+    if (isBound)
+      return numberOfVariables(nd, jumpProcessIndex);
+    else if (mixtureKernels[jumpProcessIndex] != null)
+      return componentNk.size(lastComponentRow) + nDynamicVariables;
+    else
+      return numberOfVariables(nk, jumpProcessIndex) + numberOfVariables(nd_Nd_nk_plus_nd_minus_nk, jumpProcessIndex);
   }
   
-  private void buildCaches()
+  private int numberOfVariables(CompressedRows variables, int row)
   {
-    Dependencies deps = new Dependencies(pdmp);
-    
-    // processors: variable -> processors
-    Map<Integer,Set<Integer>> processorMappings = new LinkedHashMap<Integer, Set<Integer>>();
-    for (int procIdx = 0; procIdx < pdmp.processors.size(); procIdx++)
-    {
-      Processor currentProc = pdmp.processors.get(procIdx);
-      if (currentProc.requiredVariables().size() != 1)
-        throw new RuntimeException("Currently, processors depending on only one variable are " 
-            + "supported. \n" 
-            + "Other cases can be handled as post-processing without loss of generality.");
-      int variableIdx = deps.variable2Index.get(currentProc.requiredVariables().iterator().next());
-      BriefMaps.getOrPutSet(processorMappings, variableIdx).add(procIdx);
-    }
-    for (int variableIdx = 0; variableIdx < numberOfVariables; variableIdx++)
-      processors[variableIdx] = deps.convert(processorMappings.get(variableIdx), Integer.MAX_VALUE);
-    
-    // variable and factor neighborhoods
-    for (int jumpProcessIdx = 0; jumpProcessIdx < numberOfJumpProcesses; jumpProcessIdx++)
-    {
-      final Set<Integer> _nd = deps.nd(jumpProcessIdx);
-      final Set<Integer> _nk = deps.nk(jumpProcessIdx);
-      final Set<Integer> _Nd_nk = deps.Nd(_nk);
-      final Set<Integer> _nd_Nd_nk = deps.nd(_Nd_nk);
-      _nd_Nd_nk.addAll(_nd);
-      _nd_Nd_nk.removeAll(_nk);
-      final Set<Integer> _nd_Nd_nk_plus_nd_minus_n_k = _nd_Nd_nk;
-      
-      nd[jumpProcessIdx] = deps.convert(_nd, true);
-      nk[jumpProcessIdx] = deps.convert(_nk, true);
-      _Nd_nk.add(jumpProcessIdx);
-      Nd_nk_plus_id[jumpProcessIdx] = deps.convert(_Nd_nk, false);
-      nd_Nd_nk_plus_nd_minus_nk[jumpProcessIdx] = deps.convert(_nd_Nd_nk_plus_nd_minus_n_k, true);
-    }
+    return variables.isAll(row) ? numberOfVariables : variables.size(row);
   }
   
-  private static class Dependencies
+  ///// Asynchronous processors (see ProcessorPipeline)
+  
+  private int                  processorThreads = 0;
+  private int                  processorBufferSize = DEFAULT_PROCESSOR_BUFFER_SIZE;
+  private ProcessorPipeline    processorPipeline = null;
+  
+  // Coordinate -> Processor, the processors called by the pipeline and the others 
+  private CompressedRows       asynchronousProcessors, synchronousProcessors;
+  
+  private void startProcessorPipeline()
   {
-    // var -> jump timers that refer to it
-    private final Map<Integer, Set<Integer>> _Nds = new LinkedHashMap<>();
-    
-    private final IdentityHashMap<Object, Integer> variable2Index = new IdentityHashMap<>();
-    
-    private final PDMP pdmp;
-    
-    private Dependencies(PDMP pdmp)
+    asynchronousProcessors = filterProcessors(true);
+    synchronousProcessors = filterProcessors(false);
+    processorPipeline = new ProcessorPipeline(pdmp, asynchronousProcessors, savableCoordinates, processorThreads, processorBufferSize);
+  }
+  
+  private CompressedRows filterProcessors(boolean asynchronous)
+  {
+    return CompressedRows.build(numberOfVariables, () -> (variableIndex, result) -> 
     {
-      this.pdmp = pdmp;
-      // index the variables and create variable nodes
-      for (int variableIndex = 0; variableIndex < pdmp.coordinates.size(); variableIndex++)
+      for (int i = processors.start(variableIndex); i < processors.end(variableIndex); i++)
       {
-        _Nds.put(variableIndex, new LinkedHashSet<>());
-        variable2Index.put(pdmp.coordinates.get(variableIndex), variableIndex);
+        final int processorIndex = processors.values[i];
+        final boolean isAsynchronous = 
+            pdmp.processors.get(processorIndex) instanceof AsynchronousProcessor && 
+            savableCoordinates[variableIndex] != null;
+        if (isAsynchronous == asynchronous)
+          result.add(processorIndex);
       }
-      for (int factorIndex = 0; factorIndex < pdmp.jumpProcesses.size(); factorIndex++)
-        for (Object var : pdmp.jumpProcesses.get(factorIndex).clock.requiredVariables())
-          _Nds.get(variable2Index.get(var)).add(factorIndex);
-    }
-    
-    private Set<Integer> nd(int j)
+    });
+  }
+  
+  ///// Checkpoints
+  
+  /*
+   * A checkpoint is taken between two events (or batches), where the state of the run is 
+   * described by the fields above, the Random and the Checkpointable components. The fields 
+   * and the Random are copied to memory, and a Snapshot is taken of each component (see 
+   * Checkpointable.snapshot(), e.g. only the size of the memorized trajectories), so that the 
+   * event loop does not pause in proportion to the length of the run. A background thread 
+   * then writes them to a temporary file which replaces the previous checkpoint once complete 
+   * (an interruption while writing leaves the previous one intact). 
+   * 
+   * Format (see DataOutput): 
+   *   header: magic number, version, numbers of variables, jump processes and processors, rebaseTimes
+   *   position in the run: totalProcessTime, time, chunkLength, horizon, counters, batchSizeLimit
+   *   queue: size, then (jump process index, time, isBound) for each pending event 
+   *   lastUpdateTimes, then the times of the last calls of the joint processors (if any)
+   *   Random: length, then its serialized form
+   *   Checkpointable coordinates, clocks, kernels and processors, in this order
+   * 
+   * The layout of the heap is not saved: ties being broken by index, the order in which 
+   * events are polled does not depend on it.
+   */
+  
+  private File                 checkpointFile = null;
+  private long                 checkpointIntervalMilliSeconds;
+  private long                 lastCheckpointMilliSeconds;
+  private ExecutorService      checkpointWriter = null;
+  private Future<?>            pendingCheckpoint = null;
+  private int                  lastCheckpointSize = 1024;
+  
+  private void checkpointIfDue()
+  {
+    if (System.currentTimeMillis() - lastCheckpointMilliSeconds < checkpointIntervalMilliSeconds)
+      return;
+    if (processorPipeline != null)
+      processorPipeline.drain();
+    final Checkpointable.Snapshot contents = captureCheckpoint();
+    awaitCheckpointWriter();
+    pendingCheckpoint = checkpointWriter.submit(() -> 
     {
-      return n_(j, pdmp.jumpProcesses.get(j).clock);
-    }
-    
-    private Set<Integer> nd(Set<Integer> js)
+      writeCheckpointFile(contents);
+      return null;
+    });
+    lastCheckpointMilliSeconds = System.currentTimeMillis();
+  }
+  
+  private Checkpointable.Snapshot captureCheckpoint()
+  {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(lastCheckpointSize);
+    final List<Checkpointable.Snapshot> components = new ArrayList<>();
+    try (DataOutputStream out = new DataOutputStream(bytes))
     {
-      return lift(js, (Integer j) -> nd(j));
+      writeCheckpointHeader(out);
+      for (Checkpointable component : checkpointableComponents())
+        components.add(component.snapshot());
     }
-    
-    private Set<Integer> Nd(int v)
+    catch (IOException e)
     {
-      return _Nds.get(v);
+      throw new RuntimeException(e);
     }
-    
-    private Set<Integer> Nd(Set<Integer> vs)
+    lastCheckpointSize = bytes.size();
+    final byte [] header = bytes.toByteArray();
+    return out -> 
+    {
+      out.write(header);
+      for (Checkpointable.Snapshot component : components)
+        component.writeTo(out);
+    };
+  }
+  
+  private void writeCheckpointFile(Checkpointable.Snapshot contents) throws IOException
+  {
+    final File temporary = new File(checkpointFile.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary))))
     {
-      return lift(vs, (Integer j) -> Nd(j));
+      contents.writeTo(out);
     }
-    
-    private Set<Integer> nk(int j)
+    Files.move(temporary.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+  
+  private void awaitCheckpointWriter()
+  {
+    if (pendingCheckpoint == null)
+      return;
+    try 
     {
-      return n_(j, pdmp.jumpProcesses.get(j).kernel);
+      pendingCheckpoint.get();
     }
-    
-    private Set<Integer> n_(int j, StateDependent stateDep)
+    catch (InterruptedException e)
     {
-      LinkedHashSet<Integer> result = new LinkedHashSet<>();
-      for (Object variable : stateDep.requiredVariables())
-        result.add(variable2Index.get(variable));
-      return result;
+      throw new RuntimeException(e);
     }
-    
-    private static <T> Set<T> lift(Set<T> input, Function<T, Set<T>> singleInputVersion)
+    catch (ExecutionException e)
     {
-      Set<T> result = new LinkedHashSet<T>();
-      for (T item : input)
-        result.addAll(singleInputVersion.apply(item));
-      return result;
+      throw new RuntimeException("Failed to write the checkpoint " + checkpointFile, e.getCause());
     }
+    pendingCheckpoint = null;
+  }
+  
+  // all but the Checkpointable components
+  private void writeCheckpointHeader(DataOutput out) throws IOException
+  {
+    out.writeInt(CHECKPOINT_MAGIC_NUMBER);
+    out.writeInt(CHECKPOINT_VERSION);
+    out.writeInt(numberOfVariables);
+    out.writeInt(numberOfJumpProcesses);
+    out.writeInt(pdmp.processors.size());
+    out.writeBoolean(rebaseTimes);
+    
+    out.writeDouble(totalProcessTime);
+    out.writeDouble(time);
+    out.writeDouble(chunkLength);
+    out.writeDouble(horizon);
+    out.writeLong(numberOfQueuePolls);
+    out.writeLong(numberOfJumps);
+    out.writeLong(numberOfBatchedEvents);
+    out.writeLong(numberOfRejectedEvents);
+    out.writeInt(batchSizeLimit);
+    
+    out.writeInt(queue.size());
+    for (int jumpProcessIndex = 0; jumpProcessIndex < numberOfJumpProcesses; jumpProcessIndex++)
+      if (queue.contains(jumpProcessIndex))
+      {
+        out.writeInt(jumpProcessIndex);
+        out.writeDouble(queue.time(jumpProcessIndex));
+        out.writeBoolean(isBoundIndicators[jumpProcessIndex]);
+      }
+    for (int variableIndex = 0; variableIndex < numberOfVariables; variableIndex++)
+      out.writeDouble(lastUpdateTimes[variableIndex]);
+    if (jointProcessorTimes != null)
+      for (int processorIndex = 0; processorIndex < jointProcessorTimes.length; processorIndex++)
+        out.writeDouble(jointProcessorTimes[processorIndex]);
     
-    private int [] convert(Collection<Integer> collection, boolean isVar)
+    final ByteArrayOutputStream randomState = new ByteArrayOutputStream();
+    try (ObjectOutputStream randomOut = new ObjectOutputStream(randomState))
     {
-      return convert(collection, (isVar ? pdmp.coordinates.size() : pdmp.jumpProcesses.size()));
+      randomOut.writeObject(random);
     }
-    
-    private int [] convert(Collection<Integer> collection, int size)
+    out.writeInt(randomState.size());
+    out.write(randomState.toByteArray());
+  }
+  
+  private void readCheckpoint(File file)
+  {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
     {
-      if (collection == null || collection.isEmpty())
-        return null;
+      if (in.readInt() != CHECKPOINT_MAGIC_NUMBER)
+        throw new RuntimeException("Not a checkpoint file: " + file);
+      final int version = in.readInt();
+      if (version != CHECKPOINT_VERSION)
+        throw new RuntimeException("Unsupported checkpoint version: " + version);
+      if (in.readInt() != numberOfVariables || 
+          in.readInt() != numberOfJumpProcesses || 
+          in.readInt() != pdmp.processors.size())
+        throw new RuntimeException("The checkpoint " + file + " was written for a different PDMP");
+      if (in.readBoolean() != rebaseTimes)
+        throw new RuntimeException("The checkpoint " + file + " was written with rebaseTimes=" + !rebaseTimes);
       
-      if (collection.size() == size)
-        return new int[]{-1};
+      init();
+      totalProcessTime = in.readDouble();
+      time = in.readDouble();
+      chunkLength = in.readDouble();
+      horizon = in.readDouble();
+      numberOfQueuePolls = in.readLong();
+      numberOfJumps = in.readLong();
+      numberOfBatchedEvents = in.readLong();
+      numberOfRejectedEvents = in.readLong();
+      batchSizeLimit = in.readInt();
       
-      int [] result = new int[collection.size()];
+      final int queueSize = in.readInt();
+      for (int i = 0; i < queueSize; i++)
+      {
+        final int jumpProcessIndex = in.readInt();
+        queue.schedule(jumpProcessIndex, in.readDouble());
+        isBoundIndicators[jumpProcessIndex] = in.readBoolean();
+      }
+      for (int variableIndex = 0; variableIndex < numberOfVariables; variableIndex++)
+        lastUpdateTimes[variableIndex] = in.readDouble();
+      if (jointProcessorTimes != null)
+        for (int processorIndex = 0; processorIndex < jointProcessorTimes.length; processorIndex++)
+          jointProcessorTimes[processorIndex] = in.readDouble();
       
-      int idx = 0;
-      for (Integer item : collection)
-        result[idx++] = item;
+      final byte [] randomState = new byte[in.readInt()];
+      in.readFully(randomState);
+      try (ObjectInputStream randomIn = new ObjectInputStream(new ByteArrayInputStream(randomState)))
+      {
+        random = (Random) randomIn.readObject();
+      }
       
-      return result;
+      for (Checkpointable component : checkpointableComponents())
+        component.readState(in);
+      if (in.read() != -1)
+        throw new RuntimeException("Unexpected data at the end of the checkpoint " + file);
+    }
+    catch (IOException | ClassNotFoundException e)
+    {
+      throw new RuntimeException(e);
+    }
+    for (LazyCoordinate lazyCoordinate : lazyCoordinates)
+      if (lazyCoordinate != null)
+        lazyCoordinate.setPendingDeltaTime(0.0);
+    resumingChunk = true;
+  }
+  
+  private List<Checkpointable> checkpointableComponents()
+  {
+    final List<Checkpointable> result = new ArrayList<>();
+    for (Coordinate coordinate : pdmp.coordinates)
+      if (coordinate instanceof Checkpointable)
+        result.add((Checkpointable) coordinate);
+      else
+        throw new RuntimeException("Checkpoints require all coordinates to implement Checkpointable: " + coordinate.getClass().getName());
+    for (JumpProcess jumpProcess : pdmp.jumpProcesses)
+    {
+      if (jumpProcess.clock instanceof Checkpointable)
+        result.add((Checkpointable) jumpProcess.clock);
+      if (jumpProcess.kernel instanceof Checkpointable)
+        result.add((Checkpointable) jumpProcess.kernel);
+    }
+    for (Processor processor : pdmp.processors)
+      if (processor instanceof Checkpointable)
+        result.add((Checkpointable) processor);
+    return result;
+  }
+  
+  private static final int CHECKPOINT_MAGIC_NUMBER = 0x50444d50; // "PDMP"
+  private static final int CHECKPOINT_VERSION = 1;
+  
+  ///// Parallel mode: concurrent processing of independent events
+  
+  /*
+   * Front events of the queue are grouped into a batch as long as their footprints are 
+   * pairwise disjoint. The footprint of a jump event consists in the variables nk and 
+   * nd_Nd_nk_plus_nd_minus_nk, and the queue entries Nd_nk_plus_id; for a bound event, 
+   * the variables nd and its own queue entry. 
+   * 
+   * The events of a batch are simulated concurrently, each with its own Random seeded 
+   * from the main one. New event times are buffered instead of being inserted in the queue.
+   * 
+   * The batch is then validated sequentially in time order: event i is accepted if it 
+   * precedes all the new times produced by the accepted events 0, 1, .., i-1 (otherwise 
+   * the sequential algorithm could have processed one of these first). The remaining 
+   * events are undone using saved states (see SavableCoordinate) and put back in the queue. 
+   * The state of the Checkpointable clocks and kernels they called (e.g. the adaptive step of 
+   * ConstantIntensityAdaptiveThinning) is saved and restored as well. The random draws of the 
+   * rejected events are not given back: each event is simulated with its own Random, seeded 
+   * whether or not it is accepted, so that parallel runs are equivalent to sequential ones in 
+   * distribution, not draw for draw. 
+   * Processors are called during validation, so that they receive the same calls as in 
+   * sequential mode. When there are joint processors, which also read variables updated 
+   * by later events of the batch, the whole batch is first rewound to its initial state and 
+   * the accepted events are then replayed one at a time.
+   * 
+   * In optimistic mode (see setOptimistic(..)), batches are not required to have disjoint 
+   * footprints, in the spirit of Time Warp. The jump processes are partitioned across worker 
+   * threads (grouping neighbours together, see PDMPPartition), and each worker processes 
+   * the batch events of its partition in time order, speculatively. The only synchronization 
+   * is that an event waits for the previous batch events sharing variables with it, possibly owned 
+   * by other workers. Causality violations are detected at validation: in addition to the 
+   * rule above, an event is rejected if its clock was resampled by an accepted event 
+   * (i.e. its time was cancelled). Rejected events are undone in reverse time order, and 
+   * the new times they produced (which were buffered) are simply discarded, playing the 
+   * role of anti-messages.
+   */
+  
+  private int                  parallelism = 1;
+  private int                  maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+  private boolean              optimistic = false;
+  private ForkJoinPool         pool = null;
+  
+  // optimistic mode only
+  private ExecutorService      workers = null;
+  private List<Callable<Void>> workerTasks;
+  private PDMPPartition        partition;
+  private volatile boolean     workerFailed;
+  
+  // Coordinate -> itself if it can be saved, null otherwise
+  private final SavableCoordinate [] savableCoordinates;
+  
+  // JumpProcess -> can be processed concurrently with others
+  private final boolean []     isParallelizable;
+  
+  // JumpProcess -> its clock (resp. kernel) if it is Checkpointable, null otherwise
+  private final Checkpointable [] checkpointableClocks, checkpointableKernels;
+  private final boolean        hasCheckpointableComponents;
+  
+  private BatchSlot []         batch;
+  private int                  batchSize;
+  private int []               variableStamps, jumpProcessStamps, rescheduledStamps;
+  private int                  currentStamp;
+  
+  // adapted to the number of events accepted in the previous batch, at most maxBatchSize
+  private int                  batchSizeLimit;
+  
+  // variable -> last batch slot touching it (optimistic mode)
+  private int []               variableLastSlots;
+  
+  private long                 numberOfBatchedEvents, 
+                               numberOfRejectedEvents;
+  
+  private boolean isParallelizable(int jumpProcessIndex)
+  {
+    if (mixtureKernels[jumpProcessIndex] != null)
+      return false;
+    if (nd.isAll(jumpProcessIndex) || 
+        nk.isAll(jumpProcessIndex) || 
+        nd_Nd_nk_plus_nd_minus_nk.isAll(jumpProcessIndex) || 
+        Nd_nk_plus_id.isAll(jumpProcessIndex))
+      return false;
+    for (int i = nk.start(jumpProcessIndex); i < nk.end(jumpProcessIndex); i++)
+      if (savableCoordinates[nk.values[i]] == null)
+        return false;
+    return true;
+  }
+  
+  private void startPool()
+  {
+    if (optimistic)
+      startWorkers();
+    else
+      pool = new ForkJoinPool(parallelism);
+    int maxStateSize = 0, maxNk = 0, maxRescheduled = 0, maxFootprint = 0;
+    for (SavableCoordinate coordinate : savableCoordinates)
+      if (coordinate != null)
+        maxStateSize = Math.max(maxStateSize, coordinate.stateSize());
+    for (int jumpProcessIndex = 0; jumpProcessIndex < numberOfJumpProcesses; jumpProcessIndex++)
+      if (isParallelizable[jumpProcessIndex])
+      {
+        maxNk = Math.max(maxNk, nk.size(jumpProcessIndex));
+        maxRescheduled = Math.max(maxRescheduled, Nd_nk_plus_id.size(jumpProcessIndex));
+        maxFootprint = Math.max(maxFootprint, 
+            Math.max(nd.size(jumpProcessIndex), nk.size(jumpProcessIndex) + nd_Nd_nk_plus_nd_minus_nk.size(jumpProcessIndex)));
+      }
+    batch = new BatchSlot[maxBatchSize];
+    for (int i = 0; i < maxBatchSize; i++)
+      batch[i] = new BatchSlot(maxStateSize, maxNk, maxRescheduled, optimistic ? maxFootprint : 0);
+    variableStamps = new int[numberOfVariables];
+    jumpProcessStamps = new int[numberOfJumpProcesses];
+    rescheduledStamps = new int[numberOfJumpProcesses];
+    variableLastSlots = optimistic ? new int[numberOfVariables] : null;
+    currentStamp = 0;
+  }
+  
+  private void startWorkers()
+  {
+    workers = Executors.newFixedThreadPool(parallelism);
+    partition = new PDMPPartition(nd, nk, numberOfVariables, parallelism);
+    workerTasks = new ArrayList<>(parallelism);
+    for (int worker = 0; worker < parallelism; worker++)
+    {
+      final int workerIndex = worker;
+      workerTasks.add(() -> 
+      {
+        try
+        {
+          for (int i = 0; i < batchSize; i++)
+          {
+            final BatchSlot slot = batch[i];
+            if (partition.partitionOfJumpProcess(slot.event) == workerIndex)
+            {
+              slot.awaitPredecessors();
+              slot.simulate();
+              slot.done = true;
+            }
+          }
+        }
+        catch (RuntimeException e)
+        {
+          workerFailed = true;
+          throw e;
+        }
+        return null;
+      });
+    }
+  }
+  
+  /**
+   * @return If a batch with at least two events was formed.
+   */
+  private boolean formBatch(int firstEvent)
+  {
+    if (!isParallelizable[firstEvent])
+      return false;
+    currentStamp++;
+    batchSize = 0;
+    addToBatch(firstEvent, time);
+    while (batchSize < batchSizeLimit && !queue.isEmpty() && queue.peekTime() <= stoppingRule.stochasticProcessTime)
+    {
+      final int event = queue.peekEvent();
+      if (!isParallelizable[event] || 
+          (optimistic ? 
+            // the clock will be resampled by a previous jump, so the event would be cancelled
+            jumpProcessStamps[event] == currentStamp : 
+            overlaps(event)))
+        break;
+      addToBatch(event, queue.peekTime());
+      queue.pollEvent();
+    }
+    return batchSize > 1;
+  }
+  
+  private boolean overlaps(int event)
+  {
+    if (isBoundIndicators[event])
+      return 
+          isMarked(nd, event, variableStamps) || 
+          jumpProcessStamps[event] == currentStamp;
+    else
+      return 
+          isMarked(nk, event, variableStamps) || 
+          isMarked(nd_Nd_nk_plus_nd_minus_nk, event, variableStamps) || 
+          isMarked(Nd_nk_plus_id, event, jumpProcessStamps);
+  }
+  
+  private void addToBatch(int event, double eventTime)
+  {
+    final BatchSlot slot = batch[batchSize];
+    slot.event = event;
+    slot.eventTime = eventTime;
+    slot.isBound = isBoundIndicators[event];
+    if (optimistic)
+    {
+      slot.done = false;
+      slot.nPredecessors = 0;
+      if (slot.isBound)
+        linkPredecessors(slot, nd, event);
+      else
+      {
+        linkPredecessors(slot, nk, event);
+        linkPredecessors(slot, nd_Nd_nk_plus_nd_minus_nk, event);
+      }
+    }
+    batchSize++;
+    if (slot.isBound)
+    {
+      mark(nd, event, variableStamps);
+      jumpProcessStamps[event] = currentStamp;
+    }
+    else
+    {
+      mark(nk, event, variableStamps);
+      mark(nd_Nd_nk_plus_nd_minus_nk, event, variableStamps);
+      mark(Nd_nk_plus_id, event, jumpProcessStamps);
+    }
+  }
+  
+  // the last previous slot touching each variable in the footprint, then register this slot
+  private void linkPredecessors(BatchSlot slot, CompressedRows variables, int row)
+  {
+    final int slotIndex = batchSize;
+    for (int i = variables.start(row); i < variables.end(row); i++)
+    {
+      final int variableIndex = variables.values[i];
+      if (variableStamps[variableIndex] == currentStamp)
+      {
+        final int predecessor = variableLastSlots[variableIndex];
+        if (predecessor != slotIndex && !slot.hasPredecessor(predecessor))
+          slot.predecessors[slot.nPredecessors++] = predecessor;
+      }
+      variableLastSlots[variableIndex] = slotIndex;
+      variableStamps[variableIndex] = currentStamp;
+    }
+  }
+  
+  private boolean isMarked(CompressedRows indices, int row, int [] stamps)
+  {
+    for (int i = indices.start(row); i < indices.end(row); i++)
+      if (stamps[indices.values[i]] == currentStamp)
+        return true;
+    return false;
+  }
+  
+  private void mark(CompressedRows indices, int row, int [] stamps)
+  {
+    for (int i = indices.start(row); i < indices.end(row); i++)
+      stamps[indices.values[i]] = currentStamp;
+  }
+  
+  private void simulateBatch()
+  {
+    for (int i = 0; i < batchSize; i++)
+      batch[i].random.setSeed(random.nextLong());
+    
+    if (optimistic)
+      runWorkers();
+    else
+      pool.invoke(new BatchAction(0, batchSize));
+    
+    if (jointProcessors != null)
+      for (int i = batchSize - 1; i >= 0; i--)
+        batch[i].rewind();
+    
+    // validate in time order
+    double minNewTime = Double.POSITIVE_INFINITY;
+    int minNewEvent = Integer.MAX_VALUE;
+    int nAccepted = 0;
+    for (; nAccepted < batchSize; nAccepted++)
+    {
+      final BatchSlot slot = batch[nAccepted];
+      if (!(slot.eventTime < minNewTime || (slot.eventTime == minNewTime && slot.event < minNewEvent)) || 
+          rescheduledStamps[slot.event] == currentStamp)
+        break;
+      time = slot.eventTime;
+      slot.callProcessors();
+      for (int i = 0; i < slot.nRescheduled; i++)
+      {
+        final int jumpProcessIndex = slot.rescheduled[i];
+        final double nextEvent = slot.encodedDeltaTimes[i];
+        final double absoluteTime = time + DeltaTime.deltaTime(nextEvent);
+        rescheduledStamps[jumpProcessIndex] = currentStamp;
+        if (absoluteTime <= horizon)
+        {
+          isBoundIndicators[jumpProcessIndex] = DeltaTime.isBound(nextEvent);
+          queue.schedule(jumpProcessIndex, absoluteTime);
+          if (absoluteTime < minNewTime || (absoluteTime == minNewTime && jumpProcessIndex < minNewEvent))
+          {
+            minNewTime = absoluteTime;
+            minNewEvent = jumpProcessIndex;
+          }
+        }
+        else
+          queue.remove(jumpProcessIndex);
+      }
+      if (!slot.isBound)
+        numberOfJumps++;
+      if (instrumentation != null)
+        instrumentation.recordEvent(slot.event, slot.isBound, numberOfVariablesTouched(slot.event, slot.isBound));
+    }
+    
+    // the first event was already counted
+    numberOfQueuePolls += nAccepted - 1;
+    numberOfBatchedEvents += nAccepted;
+    numberOfRejectedEvents += batchSize - nAccepted;
+    batchSizeLimit = Math.max(2, Math.min(maxBatchSize, 2 * nAccepted));
+    
+    // reverse order, since in optimistic mode the rejected events may have touched the same variables
+    for (int i = batchSize - 1; i >= nAccepted; i--)
+      batch[i].undo();
+  }
+  
+  private void runWorkers()
+  {
+    workerFailed = false;
+    try
+    {
+      for (Future<Void> future : workers.invokeAll(workerTasks))
+        future.get();
+    }
+    catch (InterruptedException e)
+    {
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e)
+    {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new RuntimeException(e.getCause());
+    }
+  }
+  
+  private class BatchAction extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+    private final int from, to;
+    
+    private BatchAction(int from, int to)
+    {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if (to - from == 1)
+        batch[from].simulate();
+      else
+      {
+        final int middle = (from + to) >>> 1;
+        invokeAll(new BatchAction(from, middle), new BatchAction(middle, to));
+      }
+    }
+  }
+  
+  private class BatchSlot
+  {
+    private int event;
+    private double eventTime;
+    private boolean isBound;
+    private final Random random = new Random();
+    
+    // optimistic mode: slots that have to be processed before this one
+    private int nPredecessors;
+    private final int [] predecessors;
+    private volatile boolean done;
+    
+    // state of nk before the jump, used by undo and processors
+    private final double [] savedStates, savedLastUpdateTimes, scratch;
+    
+    // state of nk after the jump, when the batch is rewound (see rewind())
+    private final double [] jumpedStates;
+    
+    // buffered new times
+    private int nRescheduled;
+    private final int [] rescheduled;
+    private final double [] encodedDeltaTimes;
+    
+    // state of the Checkpointable clocks and kernel before the event, used by undo (null if there are none)
+    private final ExposedByteArrayOutputStream savedComponents;
+    private final DataOutputStream savedComponentsOut;
+    
+    private BatchSlot(int maxStateSize, int maxNk, int maxRescheduled, int maxPredecessors)
+    {
+      this.predecessors = new int[maxPredecessors];
+      this.savedStates = new double[maxStateSize * maxNk];
+      this.savedLastUpdateTimes = new double[maxNk];
+      this.scratch = new double[maxStateSize];
+      this.jumpedStates = new double[jointProcessors != null ? maxStateSize * maxNk : 0];
+      this.rescheduled = new int[maxRescheduled];
+      this.encodedDeltaTimes = new double[maxRescheduled];
+      this.savedComponents = hasCheckpointableComponents ? new ExposedByteArrayOutputStream() : null;
+      this.savedComponentsOut = hasCheckpointableComponents ? new DataOutputStream(savedComponents) : null;
+    }
+    
+    private boolean hasPredecessor(int slotIndex)
+    {
+      for (int i = 0; i < nPredecessors; i++)
+        if (predecessors[i] == slotIndex)
+          return true;
+      return false;
+    }
+    
+    private void awaitPredecessors()
+    {
+      for (int i = 0; i < nPredecessors; i++)
+        while (!batch[predecessors[i]].done)
+        {
+          if (workerFailed)
+            throw new RuntimeException("Another worker failed");
+          Thread.yield();
+        }
+    }
+    
+    // called concurrently on slots having disjoint footprints (or, in optimistic mode, after the predecessors)
+    private void simulate()
+    {
+      nRescheduled = 0;
+      saveComponents();
+      if (isBound)
+      {
+        extrapolateAll(nd, false);
+        resample(event);
+        rollBackAll(nd);
+      }
+      else
+      {
+        save();
+        extrapolateAll(nk, true);
+        extrapolateAll(nd_Nd_nk_plus_nd_minus_nk, false);
+        simulateKernel(event, WHOLE_KERNEL, random);
+        for (int i = Nd_nk_plus_id.start(event); i < Nd_nk_plus_id.end(event); i++)
+          resample(Nd_nk_plus_id.values[i]);
+        rollBackAll(nd_Nd_nk_plus_nd_minus_nk);
+      }
+    }
+    
+    private void extrapolateAll(CompressedRows variables, boolean commit)
+    {
+      for (int i = variables.start(event); i < variables.end(event); i++)
+        _extrapolate(variables.values[i], commit, eventTime);
+    }
+    
+    private void rollBackAll(CompressedRows variables)
+    {
+      for (int i = variables.start(event); i < variables.end(event); i++)
+        _rollBack(variables.values[i], eventTime);
+    }
+    
+    private void resample(int jumpProcessIndex)
+    {
+      final double nextEvent = nextEncoded(jumpProcessIndex, random);
+      if (!(DeltaTime.deltaTime(nextEvent) > 0.0))
+        throw new RuntimeException("Bad delta: " + DeltaTime.deltaTime(nextEvent));
+      rescheduled[nRescheduled] = jumpProcessIndex;
+      encodedDeltaTimes[nRescheduled++] = nextEvent;
+    }
+    
+    private void save()
+    {
+      int offset = 0;
+      for (int i = 0; i < nk.size(event); i++)
+      {
+        final int variableIndex = nk.values[nk.start(event) + i];
+        final SavableCoordinate coordinate = savableCoordinates[variableIndex];
+        coordinate.saveState(savedStates, offset);
+        offset += coordinate.stateSize();
+        savedLastUpdateTimes[i] = lastUpdateTimes[variableIndex];
+      }
+    }
+    
+    // the kernel (unless bound), then the clocks to be resampled, in the order of the rows
+    private void saveComponents()
+    {
+      if (savedComponents == null)
+        return;
+      savedComponents.reset();
+      try
+      {
+        if (isBound)
+          writeState(checkpointableClocks[event]);
+        else
+        {
+          writeState(checkpointableKernels[event]);
+          for (int i = Nd_nk_plus_id.start(event); i < Nd_nk_plus_id.end(event); i++)
+            writeState(checkpointableClocks[Nd_nk_plus_id.values[i]]);
+        }
+        savedComponentsOut.flush();
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+    
+    private void writeState(Checkpointable component) throws IOException
+    {
+      if (component != null)
+        component.writeState(savedComponentsOut);
+    }
+    
+    private void restoreComponents()
+    {
+      if (savedComponents == null)
+        return;
+      final DataInputStream in = new DataInputStream(savedComponents.toInputStream());
+      try
+      {
+        if (isBound)
+          readState(checkpointableClocks[event], in);
+        else
+        {
+          readState(checkpointableKernels[event], in);
+          for (int i = Nd_nk_plus_id.start(event); i < Nd_nk_plus_id.end(event); i++)
+            readState(checkpointableClocks[Nd_nk_plus_id.values[i]], in);
+        }
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+    
+    private void readState(Checkpointable component, DataInputStream in) throws IOException
+    {
+      if (component != null)
+        component.readState(in);
+    }
+    
+    private void undo()
+    {
+      restoreComponents();
+      if (!isBound)
+      {
+        int offset = 0;
+        for (int i = 0; i < nk.size(event); i++)
+        {
+          final int variableIndex = nk.values[nk.start(event) + i];
+          final SavableCoordinate coordinate = savableCoordinates[variableIndex];
+          coordinate.restoreState(savedStates, offset);
+          offset += coordinate.stateSize();
+          lastUpdateTimes[variableIndex] = savedLastUpdateTimes[i];
+          if (lazyCoordinates[variableIndex] != null)
+            lazyCoordinates[variableIndex].setPendingDeltaTime(0.0);
+        }
+      }
+      // unless cancelled by an accepted event, which already rescheduled it
+      if (rescheduledStamps[event] != currentStamp)
+        queue.schedule(event, eventTime);
+    }
+    
+    // processors expect the state before the update, so temporarily restore it
+    private void callProcessors()
+    {
+      if (isBound)
+        return;
+      if (jointProcessors != null)
+      {
+        replay();
+        return;
+      }
+      int offset = 0;
+      for (int i = 0; i < nk.size(event); i++)
+      {
+        final int variableIndex = nk.values[nk.start(event) + i];
+        final SavableCoordinate coordinate = savableCoordinates[variableIndex];
+        final double deltaTime = eventTime - savedLastUpdateTimes[i];
+        if (processors.size(variableIndex) > 0 && deltaTime != 0.0)
+        {
+          coordinate.saveState(scratch, 0);
+          coordinate.restoreState(savedStates, offset);
+          PDMPSimulator.this.callProcessors(variableIndex, deltaTime, event);
+          coordinate.restoreState(scratch, 0);
+        }
+        offset += coordinate.stateSize();
+      }
+    }
+    
+    // back to the state before the jump, keeping the state after it for replay()
+    private void rewind()
+    {
+      if (isBound)
+        return;
+      int offset = 0;
+      for (int i = 0; i < nk.size(event); i++)
+      {
+        final int variableIndex = nk.values[nk.start(event) + i];
+        final SavableCoordinate coordinate = savableCoordinates[variableIndex];
+        coordinate.saveState(jumpedStates, offset);
+        coordinate.restoreState(savedStates, offset);
+        offset += coordinate.stateSize();
+        lastUpdateTimes[variableIndex] = savedLastUpdateTimes[i];
+        if (lazyCoordinates[variableIndex] != null)
+          lazyCoordinates[variableIndex].setPendingDeltaTime(0.0);
+      }
+    }
+    
+    // commit the jump as in sequential mode, the previous accepted events being replayed
+    private void replay()
+    {
+      int offset = 0;
+      for (int i = 0; i < nk.size(event); i++)
+      {
+        final int variableIndex = nk.values[nk.start(event) + i];
+        final SavableCoordinate coordinate = savableCoordinates[variableIndex];
+        if (lastUpdateTimes[variableIndex] != eventTime)
+          PDMPSimulator.this.callProcessors(variableIndex, eventTime - lastUpdateTimes[variableIndex], event);
+        coordinate.restoreState(jumpedStates, offset);
+        offset += coordinate.stateSize();
+        lastUpdateTimes[variableIndex] = eventTime;
+      }
+    }
+  }
+  
+  // gives access to the bytes written so far without copying them
+  private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream
+  {
+    private ByteArrayInputStream toInputStream()
+    {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+  
+  /*
+   * Builds the neighbourhood caches in compressed sparse row format, processing the 
+   * jump processes in parallel. Duplicates are removed with marker arrays (one per 
+   * block of rows, stamped with the row index), preserving the order of first 
+   * occurrence.
+   */
+  private static class Dependencies
+  {
+    private final PDMP pdmp;
+    private final int numberOfVariables, numberOfJumpProcesses;
+    private final IdentityHashMap<Object, Integer> variable2Index = new IdentityHashMap<>();
+    
+    // JumpProcess -> Coordinate
+    private final CompressedRows nd, nk;
+    
+    // Coordinate -> JumpProcess (timers that refer to it)
+    private final CompressedRows Nd;
+    
+    // JumpProcess -> its kernel if it is a mixture, null otherwise
+    private final MixtureJumpKernel [] mixtureKernels;
+    
+    // JumpProcess -> index of its first mixture component
+    private final int [] componentOffsets;
+    private final int numberOfComponents;
+    
+    private Dependencies(PDMP pdmp)
+    {
+      this.pdmp = pdmp;
+      this.numberOfVariables = pdmp.coordinates.size();
+      this.numberOfJumpProcesses = pdmp.jumpProcesses.size();
+      for (int variableIndex = 0; variableIndex < numberOfVariables; variableIndex++)
+        variable2Index.put(pdmp.coordinates.get(variableIndex), variableIndex);
+      this.mixtureKernels = new MixtureJumpKernel[numberOfJumpProcesses];
+      this.componentOffsets = new int[numberOfJumpProcesses];
+      int nComponents = 0;
+      for (int jumpProcessIndex = 0; jumpProcessIndex < numberOfJumpProcesses; jumpProcessIndex++)
+      {
+        final JumpKernel kernel = pdmp.jumpProcesses.get(jumpProcessIndex).kernel;
+        componentOffsets[jumpProcessIndex] = nComponents;
+        if (kernel instanceof MixtureJumpKernel)
+        {
+          mixtureKernels[jumpProcessIndex] = (MixtureJumpKernel) kernel;
+          nComponents += mixtureKernels[jumpProcessIndex].numberOfComponents();
+        }
+      }
+      this.numberOfComponents = nComponents;
+      this.nd = n_(true);
+      this.nk = n_(false);
+      this.Nd = nd.transpose(numberOfVariables);
+    }
+    
+    private CompressedRows n_(boolean forClock)
+    {
+      return CompressedRows.build(numberOfJumpProcesses, () -> 
+      {
+        final int [] marks = new int[numberOfVariables];
+        return (jumpProcessIndex, result) -> 
+        {
+          final JumpProcess jumpProcess = pdmp.jumpProcesses.get(jumpProcessIndex);
+          // the dependencies of mixture kernels are handled per component
+          if (!forClock && mixtureKernels[jumpProcessIndex] != null)
+            return;
+          final StateDependent stateDependent = forClock ? jumpProcess.clock : jumpProcess.kernel;
+          addVariables(stateDependent.requiredVariables(), jumpProcessIndex, marks, result);
+        };
+      });
+    }
+    
+    // Mixture component -> Coordinate
+    private CompressedRows componentNk()
+    {
+      final int [] owners = new int[numberOfComponents];
+      for (int jumpProcessIndex = 0; jumpProcessIndex < numberOfJumpProcesses; jumpProcessIndex++)
+        if (mixtureKernels[jumpProcessIndex] != null)
+          Arrays.fill(owners, 
+              componentOffsets[jumpProcessIndex], 
+              componentOffsets[jumpProcessIndex] + mixtureKernels[jumpProcessIndex].numberOfComponents(), 
+              jumpProcessIndex);
+      return CompressedRows.build(numberOfComponents, () -> 
+      {
+        final int [] marks = new int[numberOfVariables];
+        return (row, result) -> 
+        {
+          final int jumpProcessIndex = owners[row];
+          final int component = row - componentOffsets[jumpProcessIndex];
+          addVariables(mixtureKernels[jumpProcessIndex].requiredVariables(component), row, marks, result);
+        };
+      });
+    }
+    
+    private void addVariables(Collection<?> variables, int row, int [] marks, CompressedRows.Appender result)
+    {
+      for (Object variable : variables)
+      {
+        final Integer variableIndex = variable2Index.get(variable);
+        if (variableIndex == null)
+          throw new RuntimeException("Variable not registered in the PDMP: " + variable);
+        addIfUnmarked(variableIndex, row, marks, result);
+      }
+    }
+    
+    // Nd(nk(j)) + {j}
+    private CompressedRows Nd_nk_plus_id()
+    {
+      return CompressedRows.build(numberOfJumpProcesses, () -> 
+      {
+        final int [] marks = new int[numberOfJumpProcesses];
+        return (jumpProcessIndex, result) -> 
+        {
+          for (int i = nk.start(jumpProcessIndex); i < nk.end(jumpProcessIndex); i++)
+          {
+            final int variableIndex = nk.values[i];
+            for (int j = Nd.start(variableIndex); j < Nd.end(variableIndex); j++)
+              addIfUnmarked(Nd.values[j], jumpProcessIndex, marks, result);
+          }
+          addIfUnmarked(jumpProcessIndex, jumpProcessIndex, marks, result);
+        };
+      });
+    }
+    
+    // nd(Nd(nk(j)) + {j}) - nk(j), which is equal to nd(Nd(nk(j))) + nd(j) - nk(j)
+    private CompressedRows nd_Nd_nk_plus_nd_minus_nk(CompressedRows Nd_nk_plus_id)
+    {
+      return CompressedRows.build(numberOfJumpProcesses, () -> 
+      {
+        final int [] marks = new int[numberOfVariables];
+        return (jumpProcessIndex, result) -> 
+        {
+          final int stamp = jumpProcessIndex + 1;
+          // excluded by pre-marking them
+          for (int i = nk.start(jumpProcessIndex); i < nk.end(jumpProcessIndex); i++)
+            marks[nk.values[i]] = stamp;
+          for (int i = Nd_nk_plus_id.start(jumpProcessIndex); i < Nd_nk_plus_id.end(jumpProcessIndex); i++)
+          {
+            final int neighbour = Nd_nk_plus_id.values[i];
+            for (int j = nd.start(neighbour); j < nd.end(neighbour); j++)
+              addIfUnmarked(nd.values[j], jumpProcessIndex, marks, result);
+          }
+        };
+      });
+    }
+    
+    // Processor -> Coordinate
+    private CompressedRows processorVariables()
+    {
+      return CompressedRows.build(pdmp.processors.size(), () -> 
+      {
+        final int [] marks = new int[numberOfVariables];
+        return (processorIndex, result) -> 
+        {
+          final Processor processor = pdmp.processors.get(processorIndex);
+          if (processor.requiredVariables().isEmpty())
+            throw new RuntimeException("Processors should depend on at least one variable: " + processor);
+          addVariables(processor.requiredVariables(), processorIndex, marks, result);
+        };
+      });
+    }
+    
+    // Coordinate -> Processor, restricted to the processors depending on several variables if joint, one otherwise
+    private CompressedRows processors(CompressedRows processorVariables, boolean joint)
+    {
+      return CompressedRows.build(pdmp.processors.size(), () -> 
+        (processorIndex, result) -> 
+        {
+          if ((processorVariables.size(processorIndex) > 1) == joint)
+            for (int i = processorVariables.start(processorIndex); i < processorVariables.end(processorIndex); i++)
+              result.add(processorVariables.values[i]);
+        }).transpose(numberOfVariables);
+    }
+    
+    private static void addIfUnmarked(int index, int row, int [] marks, CompressedRows.Appender result)
+    {
+      final int stamp = row + 1;
+      if (marks[index] != stamp)
+      {
+        marks[index] = stamp;
+        result.add(index);
+      }
     }
   }
   
@@ -438,12 +1883,96 @@ public class PDMPSimulator
 
   public void setMaxTrajectoryLengthPerChunk(double maxTrajectoryLengthPerChunk)
   {
-    USING_DEFAULT_CHUNK_LENGTH = false;
     this.maxTrajectoryLengthPerChunk = maxTrajectoryLengthPerChunk;
   }
   
   static double                DEFAULT_CHUNK_LENGTH = 10_000;
-  static boolean               USING_DEFAULT_CHUNK_LENGTH = true;
+  
+  public boolean isRebaseTimes()
+  {
+    return rebaseTimes;
+  }
+  
+  /**
+   * By default, the queue is rebuilt at the beginning of each chunk (see 
+   * setMaxTrajectoryLengthPerChunk(..)), i.e. all clocks are resampled and all variables 
+   * updated at the end of the chunk. If set to true, pending events are instead carried 
+   * across chunks, by subtracting the chunk length from the event and last update times. 
+   * 
+   * The sequential algorithm then gives the trajectory of a single chunk, up to rounding. In 
+   * parallel, batches end at the end of the chunks, which changes the Randoms of their events. 
+   */
+  public void setRebaseTimes(boolean rebaseTimes)
+  {
+    this.rebaseTimes = rebaseTimes;
+  }
+  
+  public int getParallelism()
+  {
+    return parallelism;
+  }
+  
+  /**
+   * Number of threads used to process independent events concurrently. 
+   * The default, 1, is the sequential algorithm.
+   * 
+   * For a given seed and maximum batch size, the output does not depend on the number of 
+   * threads (when it is greater than one), but it differs from the sequential output since 
+   * each event in a batch uses its own Random.
+   */
+  public void setParallelism(int nThreads)
+  {
+    if (nThreads < 1)
+      throw new RuntimeException("Invalid number of threads: " + nThreads);
+    this.parallelism = nThreads;
+  }
+  
+  public boolean isOptimistic()
+  {
+    return optimistic;
+  }
+  
+  /**
+   * Use optimistic rather than conservative batches in parallel mode, see the 
+   * section on parallel mode for details. Has no effect unless setParallelism(..) 
+   * is called with more than one thread.
+   */
+  public void setOptimistic(boolean optimistic)
+  {
+    this.optimistic = optimistic;
+  }
+  
+  public int getMaxBatchSize()
+  {
+    return maxBatchSize;
+  }
+
+  public void setMaxBatchSize(int maxBatchSize)
+  {
+    if (maxBatchSize < 1)
+      throw new RuntimeException("Invalid batch size: " + maxBatchSize);
+    this.maxBatchSize = maxBatchSize;
+  }
+  
+  static int                   DEFAULT_MAX_BATCH_SIZE = 256;
+  
+  /**
+   * Periodically save the state of the run to the given file (overwriting the previous 
+   * checkpoint), which can be used to continue the run with resume(..). 
+   * 
+   * Requires all coordinates to implement Checkpointable, and so should clocks, kernels and 
+   * processors holding state (e.g. MemorizeTrajectory). 
+   * 
+   * @param file Where to write checkpoints, or null to disable them (the default).
+   * @param intervalMilliseconds Minimum wall clock time between two checkpoints.
+   */
+  public void setCheckpoints(File file, long intervalMilliseconds)
+  {
+    if (intervalMilliseconds < 0)
+      throw new RuntimeException("Invalid checkpoint interval: " + intervalMilliseconds);
+    this.checkpointFile = file;
+    this.checkpointIntervalMilliSeconds = intervalMilliseconds;
+  }
 
   public long getNumberOfQueuePolls()
   {
@@ -455,6 +1984,60 @@ public class PDMPSimulator
     return numberOfJumps;
   }
   
+  /**
+   * Collect per jump process counts and timings, see Instrumentation. Disabled by default, 
+   * in which case the cost is one null check per clock or kernel call. 
+   * Counts are reset at each call of simulate(..).
+   */
+  public void setInstrumented(boolean instrumented)
+  {
+    this.instrumentation = instrumented ? new Instrumentation(pdmp) : null;
+  }
+  
+  public boolean isInstrumented()
+  {
+    return instrumentation != null;
+  }
+  
+  /**
+   * @return The instrumentation of the last run, or null if not enabled.
+   */
+  public Instrumentation getInstrumentation()
+  {
+    return instrumentation;
+  }
+  
+  public int getAsynchronousProcessors()
+  {
+    return processorThreads;
+  }
+  
+  /**
+   * Number of threads calling the processors implementing AsynchronousProcessor, 
+   * which then overlap with the simulation, or 0 (the default) to call all processors 
+   * on the simulation thread. Processors of coordinates which are not SavableCoordinates, 
+   * and processors depending on several coordinates, are always called on the simulation thread.
+   */
+  public void setAsynchronousProcessors(int nThreads)
+  {
+    if (nThreads < 0)
+      throw new RuntimeException("Invalid number of threads: " + nThreads);
+    this.processorThreads = nThreads;
+  }
+  
+  /**
+   * Capacity, in number of records, of the buffer of each asynchronous processor thread. 
+   * When it is full, the simulation waits.
+   */
+  public void setProcessorBufferSize(int nRecords)
+  {
+    if (nRecords < 1)
+      throw new RuntimeException("Invalid buffer size: " + nRecords);
+    this.processorBufferSize = nRecords;
+  }
+  
+  static int                   DEFAULT_PROCESSOR_BUFFER_SIZE = 1 << 16;
+  
   public void setPrintSummaryStatistics(boolean value) 
   {
     this.printSummaryStatistics = value;
@@ -466,7 +2049,11 @@ public class PDMPSimulator
         "wallClockTimeMillis\t" + timeMilliSeconds + "\n" +
         "trajectoryLength\t" + totalProcessTime + "\n" +
         "nJumps\t" + getNumberOfJumps() + "\n" + 
-        "nQueuePolls\t" + getNumberOfQueuePolls() + "\n";
+        "nQueuePolls\t" + getNumberOfQueuePolls() + "\n" + 
+        (parallelism > 1 ? 
+          "nBatchedEvents\t" + numberOfBatchedEvents + "\n" + 
+          "nRejectedEvents\t" + numberOfRejectedEvents + "\n" : "") + 
+        (instrumentation != null ? instrumentation.summary() : "");
   }
   
   private void printSummaryStatistics()
@@ -0,0 +1,400 @@
+package ca.ubc.pdmp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * One node of a simulation where the jump processes of a PDMP are split into partitions
+ * (see PDMPPartition), each simulated by its own node, typically in a separate process,
+ * with a PDMPSimulator over the part of the PDMP it refers to.
+ *
+ * Each node builds the whole PDMP in the same way, so that the indices agree across nodes,
+ * and keeps its jump processes, the coordinates these refer to, and the processors of the
+ * coordinates it owns (the lowest partition referring to a coordinate owns it, partition 0
+ * owns the others). The coordinates of cut factors, referred to by several partitions, are
+ * replicated: after each jump, the new states of the ones required by the kernel are sent
+ * to the other nodes holding them, which resample the clocks depending on them. Messages
+ * go through a Coordinator.
+ *
+ * Synchronization is conservative, in rounds. Each node reports the time of its next event.
+ * Since an update can trigger events in the receiving partition, and these further updates,
+ * without any minimal delay, no update can be sent before the earliest of these times. The
+ * node holding it therefore processes its events preceding the next events of all the other
+ * partitions (ties being broken by partition index), and up to the first event sending an
+ * update, which may cause earlier events in the receiving partitions. The updates are
+ * delivered at the end of the round, and applied before the next one. This is the
+ * sequential algorithm with the events of the partitions interleaved, hence a valid
+ * simulation of the whole PDMP (each node uses its own Random). Each round processes the
+ * events of a partition until it interacts with another one, so that the rounds are few
+ * when the partitions are large and few of their jump processes are cut.
+ *
+ * @author bouchard
+ *
+ */
+public class PartitionedSimulation
+{
+  /**
+   * The part of the PDMP simulated by this node. After simulate(..), its coordinates are
+   * at the end time.
+   */
+  public final PDMP part;
+
+  private final int nPartitions, partitionIndex;
+
+  private final PDMPSimulator simulator;
+
+  // Coordinate -> its index in part, or -1, and back
+  private final int [] localIndices, globalIndices;
+
+  // Coordinate (of part) -> the other partitions holding it
+  private final int [][] otherPartitions;
+
+  // JumpProcess (of part) -> replicated coordinates (of part) required by its kernel
+  private final int [][] sharedKernelVariables;
+
+  // Coordinate (of part) -> JumpProcesses (of part) whose clock depends on it
+  private final int [][] dependentClocks;
+
+  public PartitionedSimulation(PDMP pdmp, int nPartitions, int partitionIndex)
+  {
+    if (partitionIndex < 0 || partitionIndex >= nPartitions)
+      throw new RuntimeException("Invalid partition " + partitionIndex + " of " + nPartitions);
+    this.nPartitions = nPartitions;
+    this.partitionIndex = partitionIndex;
+    final int nVariables = pdmp.coordinates.size();
+    final IdentityHashMap<Coordinate, Integer> indices = new IdentityHashMap<>();
+    for (int variableIndex = 0; variableIndex < nVariables; variableIndex++)
+      indices.put(pdmp.coordinates.get(variableIndex), variableIndex);
+
+    final PDMPPartition partition = new PDMPSimulator(pdmp).partition(nPartitions);
+    final BitSet [] holders = new BitSet[nVariables];
+    for (int variableIndex = 0; variableIndex < nVariables; variableIndex++)
+      holders[variableIndex] = new BitSet(nPartitions);
+    for (int jumpProcessIndex = 0; jumpProcessIndex < pdmp.jumpProcesses.size(); jumpProcessIndex++)
+    {
+      final JumpProcess jumpProcess = pdmp.jumpProcesses.get(jumpProcessIndex);
+      final int jumpProcessPartition = partition.partitionOfJumpProcess(jumpProcessIndex);
+      for (Coordinate coordinate : jumpProcess.clock.requiredVariables())
+        holders[index(indices, coordinate)].set(jumpProcessPartition);
+      for (Coordinate coordinate : jumpProcess.kernel.requiredVariables())
+        holders[index(indices, coordinate)].set(jumpProcessPartition);
+    }
+    for (int variableIndex = 0; variableIndex < nVariables; variableIndex++)
+      if (holders[variableIndex].isEmpty())
+        holders[variableIndex].set(0);
+
+    this.localIndices = new int[nVariables];
+    final List<Coordinate> coordinates = new ArrayList<>();
+    final List<int []> others = new ArrayList<>();
+    for (int variableIndex = 0; variableIndex < nVariables; variableIndex++)
+    {
+      if (!holders[variableIndex].get(partitionIndex))
+      {
+        localIndices[variableIndex] = -1;
+        continue;
+      }
+      final Coordinate coordinate = pdmp.coordinates.get(variableIndex);
+      final int [] current = holders[variableIndex].stream().filter(p -> p != partitionIndex).toArray();
+      if (current.length > 0 && !(coordinate instanceof Checkpointable))
+        throw new RuntimeException("Coordinates shared by partitions should implement Checkpointable: " + coordinate.getClass().getName());
+      localIndices[variableIndex] = coordinates.size();
+      coordinates.add(coordinate);
+      others.add(current);
+    }
+    this.otherPartitions = others.toArray(new int[others.size()][]);
+    this.globalIndices = new int[coordinates.size()];
+    for (int variableIndex = 0; variableIndex < nVariables; variableIndex++)
+      if (localIndices[variableIndex] != -1)
+        globalIndices[localIndices[variableIndex]] = variableIndex;
+
+    this.part = new PDMP(coordinates);
+    for (int jumpProcessIndex = 0; jumpProcessIndex < pdmp.jumpProcesses.size(); jumpProcessIndex++)
+      if (partition.partitionOfJumpProcess(jumpProcessIndex) == partitionIndex)
+        part.jumpProcesses.add(pdmp.jumpProcesses.get(jumpProcessIndex));
+    for (Processor processor : pdmp.processors)
+    {
+      int owner = 0;
+      for (Coordinate coordinate : processor.requiredVariables())
+      {
+        owner = holders[index(indices, coordinate)].nextSetBit(0);
+        break;
+      }
+      if (owner != partitionIndex)
+        continue;
+      for (Coordinate coordinate : processor.requiredVariables())
+        if (localIndices[index(indices, coordinate)] == -1)
+          throw new RuntimeException("The variables of a processor should belong to one partition: " + processor.getClass().getName());
+      part.processors.add(processor);
+    }
+
+    final int nJumpProcesses = part.jumpProcesses.size();
+    this.sharedKernelVariables = new int[nJumpProcesses][];
+    final List<List<Integer>> clocks = new ArrayList<>();
+    for (int i = 0; i < coordinates.size(); i++)
+      clocks.add(new ArrayList<>());
+    for (int jumpProcessIndex = 0; jumpProcessIndex < nJumpProcesses; jumpProcessIndex++)
+    {
+      final JumpProcess jumpProcess = part.jumpProcesses.get(jumpProcessIndex);
+      for (Coordinate coordinate : jumpProcess.clock.requiredVariables())
+      {
+        final List<Integer> current = clocks.get(localIndices[index(indices, coordinate)]);
+        if (current.isEmpty() || current.get(current.size() - 1) != jumpProcessIndex)
+          current.add(jumpProcessIndex);
+      }
+      sharedKernelVariables[jumpProcessIndex] = jumpProcess.kernel.requiredVariables().stream()
+          .mapToInt(coordinate -> localIndices[index(indices, coordinate)])
+          .filter(localIndex -> otherPartitions[localIndex].length > 0)
+          .distinct()
+          .toArray();
+    }
+    this.dependentClocks = new int[coordinates.size()][];
+    for (int i = 0; i < coordinates.size(); i++)
+      dependentClocks[i] = clocks.get(i).stream().mapToInt(Integer::intValue).toArray();
+
+    this.simulator = new PDMPSimulator(part);
+    simulator.setPrintSummaryStatistics(false);
+  }
+
+  /**
+   * E.g. to enable instrumentation. Only the default sequential configuration is supported.
+   */
+  public PDMPSimulator getSimulator()
+  {
+    return simulator;
+  }
+
+  /**
+   * Simulate this partition up to the given time, exchanging updates with the other
+   * nodes through the coordinator at the given address.
+   */
+  public void simulate(Random random, double endTime, InetSocketAddress coordinator) throws IOException
+  {
+    try (Socket socket = new Socket(coordinator.getAddress(), coordinator.getPort()))
+    {
+      socket.setTcpNoDelay(true);
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      out.writeInt(nPartitions);
+      out.writeInt(partitionIndex);
+
+      simulator.startStepping(random, endTime);
+      final double [] nextTimes = new double[nPartitions];
+      final ByteArrayOutputStream state = new ByteArrayOutputStream();
+      final DataOutputStream stateOut = new DataOutputStream(state);
+      final List<Update> received = new ArrayList<>();
+      while (true)
+      {
+        out.writeDouble(simulator.nextEventTime());
+        out.flush();
+        boolean done = true;
+        for (int other = 0; other < nPartitions; other++)
+        {
+          nextTimes[other] = in.readDouble();
+          done = done && nextTimes[other] == Double.POSITIVE_INFINITY;
+        }
+        if (done)
+          break;
+
+        while (isSafe(simulator.nextEventTime(), nextTimes))
+        {
+          final double time = simulator.nextEventTime();
+          final int jumpProcessIndex = simulator.step();
+          if (jumpProcessIndex == -1)
+            continue;
+          for (int localIndex : sharedKernelVariables[jumpProcessIndex])
+          {
+            simulator.commit(localIndex);
+            state.reset();
+            ((Checkpointable) part.coordinates.get(localIndex)).writeState(stateOut);
+            stateOut.flush();
+            for (int other : otherPartitions[localIndex])
+            {
+              out.writeInt(other);
+              out.writeInt(globalIndices[localIndex]);
+              out.writeDouble(time);
+              out.writeInt(state.size());
+              state.writeTo(out);
+              nextTimes[other] = Math.min(nextTimes[other], time);
+            }
+          }
+        }
+        out.writeInt(-1);
+        out.flush();
+
+        for (int variableIndex; (variableIndex = in.readInt()) != -1; )
+        {
+          final double time = in.readDouble();
+          final byte [] bytes = new byte[in.readInt()];
+          in.readFully(bytes);
+          received.add(new Update(localIndices[variableIndex], time, bytes));
+        }
+        received.sort(Comparator.comparingDouble(update -> update.time));
+        for (Update update : received)
+          simulator.receive(update.localIndex, update.time, new DataInputStream(new ByteArrayInputStream(update.state)), dependentClocks[update.localIndex]);
+        received.clear();
+      }
+      simulator.finishStepping();
+    }
+  }
+
+  // the next event can be processed if no other partition can send updates before
+  private boolean isSafe(double time, double [] nextTimes)
+  {
+    if (time == Double.POSITIVE_INFINITY)
+      return false;
+    for (int other = 0; other < nPartitions; other++)
+      if (other != partitionIndex && 
+          (time > nextTimes[other] || (time == nextTimes[other] && other < partitionIndex)))
+        return false;
+    return true;
+  }
+
+  private static int index(IdentityHashMap<Coordinate, Integer> indices, Coordinate coordinate)
+  {
+    final Integer result = indices.get(coordinate);
+    if (result == null)
+      throw new RuntimeException("Coordinate not in the PDMP: " + coordinate);
+    return result;
+  }
+
+  private static class Update
+  {
+    private final int localIndex;
+    private final double time;
+    private final byte [] state;
+
+    private Update(int localIndex, double time, byte [] state)
+    {
+      this.localIndex = localIndex;
+      this.time = time;
+      this.state = state;
+    }
+  }
+
+  /**
+   * Relays the messages of the nodes of a partitioned simulation, round by round (see
+   * PartitionedSimulation). The nodes connect to its address, e.g. a loopback address
+   * when they run on one machine.
+   */
+  public static class Coordinator implements Closeable
+  {
+    private final int nPartitions;
+    private final ServerSocket serverSocket;
+
+    /**
+     * @param address Use port 0 to pick a free one, then see getAddress().
+     */
+    public Coordinator(int nPartitions, InetSocketAddress address) throws IOException
+    {
+      this.nPartitions = nPartitions;
+      this.serverSocket = new ServerSocket();
+      serverSocket.bind(address);
+    }
+
+    public InetSocketAddress getAddress()
+    {
+      return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+    }
+
+    /**
+     * Wait for the nodes to connect, and relay their messages until the end of the simulation.
+     */
+    public void run() throws IOException
+    {
+      final Socket [] sockets = new Socket[nPartitions];
+      final DataInputStream [] ins = new DataInputStream[nPartitions];
+      final DataOutputStream [] outs = new DataOutputStream[nPartitions];
+      try
+      {
+        for (int i = 0; i < nPartitions; i++)
+        {
+          final Socket socket = serverSocket.accept();
+          socket.setTcpNoDelay(true);
+          final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+          final int nodePartitions = in.readInt(), node = in.readInt();
+          if (nodePartitions != nPartitions || sockets[node] != null)
+          {
+            socket.close();
+            throw new RuntimeException("Unexpected node " + node + " of " + nodePartitions);
+          }
+          sockets[node] = socket;
+          ins[node] = in;
+          outs[node] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        final double [] nextTimes = new double[nPartitions];
+        final ByteArrayOutputStream [] mailboxes = new ByteArrayOutputStream[nPartitions];
+        final DataOutputStream [] mailboxOuts = new DataOutputStream[nPartitions];
+        for (int i = 0; i < nPartitions; i++)
+        {
+          mailboxes[i] = new ByteArrayOutputStream();
+          mailboxOuts[i] = new DataOutputStream(mailboxes[i]);
+        }
+        while (true)
+        {
+          boolean done = true;
+          for (int node = 0; node < nPartitions; node++)
+          {
+            nextTimes[node] = ins[node].readDouble();
+            done = done && nextTimes[node] == Double.POSITIVE_INFINITY;
+          }
+          for (int node = 0; node < nPartitions; node++)
+          {
+            for (double time : nextTimes)
+              outs[node].writeDouble(time);
+            outs[node].flush();
+          }
+          if (done)
+            return;
+
+          for (int node = 0; node < nPartitions; node++)
+            for (int destination; (destination = ins[node].readInt()) != -1; )
+            {
+              final DataOutputStream mailbox = mailboxOuts[destination];
+              mailbox.writeInt(ins[node].readInt());
+              mailbox.writeDouble(ins[node].readDouble());
+              final byte [] bytes = new byte[ins[node].readInt()];
+              ins[node].readFully(bytes);
+              mailbox.writeInt(bytes.length);
+              mailbox.write(bytes);
+            }
+          for (int node = 0; node < nPartitions; node++)
+          {
+            mailboxOuts[node].flush();
+            mailboxes[node].writeTo(outs[node]);
+            mailboxes[node].reset();
+            outs[node].writeInt(-1);
+            outs[node].flush();
+          }
+        }
+      }
+      finally
+      {
+        for (Socket socket : sockets)
+          if (socket != null)
+            socket.close();
+      }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      serverSocket.close();
+    }
+  }
+}
@@ -1,5 +1,19 @@
 package ca.ubc.pdmp;
 
+/**
+ * Receives the trajectory of its required variables, one deterministic segment at a time.
+ * 
+ * A processor requiring several variables (a joint processor) is called once for each event 
+ * ending a segment for any of them, even if several of them are updated by the same event. 
+ * Its segments are therefore the intervals between such events, during which all of its 
+ * variables are deterministic. Joint processors are always called on the simulation thread 
+ * (see PDMPSimulator.setAsynchronousProcessors(..)), and each call costs at least one save 
+ * and restore per variable, so a set of processors requiring one variable each scales better 
+ * when the variables are updated independently.
+ * 
+ * @author bouchard
+ *
+ */
 public interface Processor extends StateDependent
 {
   /**
@@ -8,6 +22,8 @@ public interface Processor extends StateDependent
    * 
    * The PDMPSimulator ensures that the state is set to the 
    * value at the beginning of the the deterministic segment.
+   * For joint processors, this holds for all the required variables, 
+   * including those not updated by the event ending the segment.
    * 
    * These are called in an order sorted by the time of the end of the 
    * deterministic intervals.
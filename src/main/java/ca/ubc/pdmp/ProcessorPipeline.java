@@ -0,0 +1,192 @@
+package ca.ubc.pdmp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Calls AsynchronousProcessors on consumer threads.
+ *
+ * The simulation thread appends records (variable, jump process, delta time, saved state
+ * of the variable) to single producer, single consumer ring buffers of primitives. Each
+ * variable is assigned to one consumer, so that the calls for a given processor are made
+ * in order by a single thread. Consumers drain all the available records at once, and
+ * publish their progress once per batch.
+ *
+ * When a ring is full, the simulation thread waits for its consumer (back-pressure).
+ *
+ * @author bouchard
+ *
+ */
+final class ProcessorPipeline
+{
+  private final PDMP pdmp;
+
+  // Coordinate -> AsynchronousProcessor
+  private final CompressedRows processors;
+
+  private final SavableCoordinate [] coordinates;
+  private final Ring [] rings;
+  private final Thread [] consumers;
+
+  private volatile boolean closed = false;
+  private volatile Throwable failure = null;
+
+  ProcessorPipeline(PDMP pdmp, CompressedRows asynchronousProcessors, SavableCoordinate [] coordinates, int nThreads, int ringCapacity)
+  {
+    this.pdmp = pdmp;
+    this.processors = asynchronousProcessors;
+    this.coordinates = coordinates;
+    int stride = 0;
+    for (int variableIndex = 0; variableIndex < coordinates.length; variableIndex++)
+      if (processors.size(variableIndex) > 0)
+        stride = Math.max(stride, coordinates[variableIndex].stateSize());
+    this.rings = new Ring[nThreads];
+    this.consumers = new Thread[nThreads];
+    for (int i = 0; i < nThreads; i++)
+    {
+      final Ring ring = new Ring(ringCapacity, stride);
+      rings[i] = ring;
+      consumers[i] = new Thread(() -> consume(ring), "pdmp-processors-" + i);
+      consumers[i].setDaemon(true);
+      consumers[i].start();
+    }
+  }
+
+  /**
+   * Simulation thread only.
+   */
+  void append(int variableIndex, double deltaTime, int jumpProcessIndex)
+  {
+    final Ring ring = rings[variableIndex % rings.length];
+    final long position = ring.producerTail;
+    if (position - ring.cachedHead >= ring.capacity)
+      ring.cachedHead = awaitHead(ring, position - ring.capacity + 1);
+    final int slot = (int) position & ring.mask;
+    ring.variableIndices[slot] = variableIndex;
+    ring.jumpProcessIndices[slot] = jumpProcessIndex;
+    ring.deltaTimes[slot] = deltaTime;
+    coordinates[variableIndex].saveState(ring.states, slot * ring.stride);
+    ring.producerTail = position + 1;
+    ring.tail.lazySet(position + 1);
+  }
+
+  /**
+   * Simulation thread only: wait until all appended records are processed.
+   */
+  void drain()
+  {
+    for (Ring ring : rings)
+      ring.cachedHead = awaitHead(ring, ring.producerTail);
+  }
+
+  /**
+   * Simulation thread only: drain, then stop the consumers.
+   *
+   * Throws if a processor failed, including when the failure was not yet noticed by append(..)
+   * or drain(), since the outputs are then incomplete.
+   */
+  void close()
+  {
+    try
+    {
+      if (failure == null)
+        drain();
+    }
+    finally
+    {
+      closed = true;
+      for (Thread consumer : consumers)
+        LockSupport.unpark(consumer);
+    }
+    if (failure != null)
+      throw new RuntimeException("An asynchronous processor failed", failure);
+  }
+
+  private long awaitHead(Ring ring, long target)
+  {
+    long head;
+    while ((head = ring.head.get()) < target)
+    {
+      if (failure != null)
+        throw new RuntimeException("An asynchronous processor failed", failure);
+      Thread.yield();
+    }
+    return head;
+  }
+
+  private void consume(Ring ring)
+  {
+    long head = ring.head.get();
+    int nIdle = 0;
+    try
+    {
+      while (true)
+      {
+        final long tail = ring.tail.get();
+        if (tail == head)
+        {
+          if (closed)
+            return;
+          nIdle = idle(nIdle);
+          continue;
+        }
+        nIdle = 0;
+        for (; head < tail; head++)
+          process(ring, (int) head & ring.mask);
+        ring.head.lazySet(head);
+      }
+    }
+    catch (Throwable t)
+    {
+      failure = t;
+    }
+  }
+
+  private void process(Ring ring, int slot)
+  {
+    final int variableIndex = ring.variableIndices[slot];
+    for (int i = processors.start(variableIndex), end = processors.end(variableIndex); i < end; i++)
+      ((AsynchronousProcessor) pdmp.processors.get(processors.values[i])).process(
+          ring.deltaTimes[slot], ring.jumpProcessIndices[slot], ring.states, slot * ring.stride);
+  }
+
+  // spin, then yield, then sleep for short periods
+  private static int idle(int nIdle)
+  {
+    if (nIdle >= SPINS + YIELDS)
+      LockSupport.parkNanos(SLEEP_NANOS);
+    else if (nIdle >= SPINS)
+      Thread.yield();
+    return nIdle + 1;
+  }
+
+  private static final int SPINS = 100, YIELDS = 100;
+  private static final long SLEEP_NANOS = 50_000;
+
+  private static final class Ring
+  {
+    private final int capacity, mask, stride;
+    private final int [] variableIndices, jumpProcessIndices;
+    private final double [] deltaTimes, states;
+
+    // next record to process, written by the consumer
+    private final AtomicLong head = new AtomicLong();
+
+    // next record to write, published by the producer
+    private final AtomicLong tail = new AtomicLong();
+
+    // producer's copies
+    private long producerTail = 0, cachedHead = 0;
+
+    private Ring(int minCapacity, int stride)
+    {
+      this.capacity = Integer.highestOneBit(Math.max(2, minCapacity - 1)) << 1;
+      this.mask = capacity - 1;
+      this.stride = stride;
+      this.variableIndices = new int[capacity];
+      this.jumpProcessIndices = new int[capacity];
+      this.deltaTimes = new double[capacity];
+      this.states = new double[capacity * stride];
+    }
+  }
+}
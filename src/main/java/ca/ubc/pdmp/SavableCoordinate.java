@@ -0,0 +1,22 @@
+package ca.ubc.pdmp;
+
+/**
+ * A coordinate whose state can be copied to and from a primitive buffer.
+ * 
+ * Used by PDMPSimulator to undo speculative moves, e.g. when events are 
+ * processed concurrently (see PDMPSimulator.setParallelism(..)).
+ * 
+ * @author bouchard
+ *
+ */
+public interface SavableCoordinate extends Coordinate
+{
+  /**
+   * @return Number of doubles written by saveState(..)
+   */
+  int stateSize();
+  
+  void saveState(double [] buffer, int offset);
+  
+  void restoreState(double [] buffer, int offset);
+}
@@ -0,0 +1,163 @@
+package ca.ubc.bps;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import ca.ubc.bps.refresh.RefreshmentFactory;
+import ca.ubc.bps.state.Dynamics;
+import ca.ubc.bps.state.PiecewiseLinear;
+import ca.ubc.bps.state.PositionVelocity;
+import ca.ubc.bps.state.PositionVelocityDependent;
+import ca.ubc.bps.timers.NormalClock;
+import ca.ubc.pdmp.Clock;
+import ca.ubc.pdmp.DeltaTime;
+import ca.ubc.pdmp.JumpKernel;
+import ca.ubc.pdmp.JumpProcess;
+import ca.ubc.pdmp.PDMP;
+
+/**
+ * Test fixture: a local BPS targeting a Gaussian chain with precision
+ * unary * I + pair * L, where L is the Laplacian of the path graph, i.e. with
+ * energy sum_i unary x_i^2 / 2 + sum_i pair (x_i - x_{i+1})^2 / 2.
+ *
+ * Built directly from one factor per term (exact clock, standard bounce), so that
+ * it does not depend on the model factories.
+ *
+ * @author bouchard
+ *
+ */
+public class GaussianChain
+{
+  public final List<PositionVelocity> variables;
+  public final PDMP pdmp;
+  public final double unary, pair;
+
+  public GaussianChain(int size, double unary, double pair)
+  {
+    this(size, unary, pair, new PiecewiseLinear(), false);
+  }
+
+  /**
+   * @param superposedRefreshment Use RefreshmentFactory.addSuperposedLocal(..) instead of addLocal(..).
+   */
+  public GaussianChain(int size, double unary, double pair, Dynamics dynamics, boolean superposedRefreshment)
+  {
+    this(PositionVelocity.buildArray(size, dynamics), unary, pair, superposedRefreshment);
+  }
+
+  /**
+   * @param variables E.g. the coordinates of a PositionVelocityStore.
+   */
+  public GaussianChain(List<PositionVelocity> variables, double unary, double pair, boolean superposedRefreshment)
+  {
+    final int size = variables.size();
+    this.unary = unary;
+    this.pair = pair;
+    this.variables = variables;
+    Random init = new Random(1);
+    for (PositionVelocity variable : variables)
+      variable.velocity.set(init.nextGaussian());
+    this.pdmp = new PDMP(variables);
+    for (int i = 0; i < size; i++)
+    {
+      addFactor(new QuadraticFactor(variables.subList(i, i + 1), new double[][]{{unary}}));
+      if (i < size - 1)
+        addFactor(new QuadraticFactor(variables.subList(i, i + 2), new double[][]{{pair, -pair},{-pair, pair}}));
+    }
+    if (superposedRefreshment)
+      RefreshmentFactory.addSuperposedLocal(pdmp, 1.0);
+    else
+      RefreshmentFactory.addLocal(pdmp, 1.0);
+  }
+
+  private void addFactor(QuadraticFactor factor)
+  {
+    pdmp.jumpProcesses.add(new JumpProcess(factor, factor));
+  }
+
+  /**
+   * @return The exact covariance matrix (inverse of the precision, by Gauss-Jordan elimination).
+   */
+  public double [][] covariance()
+  {
+    final int n = variables.size();
+    double [][] a = new double[n][2 * n];
+    for (int i = 0; i < n; i++)
+    {
+      a[i][i] = unary + pair * ((i > 0 ? 1 : 0) + (i < n - 1 ? 1 : 0));
+      if (i > 0)     a[i][i - 1] = -pair;
+      if (i < n - 1) a[i][i + 1] = -pair;
+      a[i][n + i] = 1.0;
+    }
+    for (int col = 0; col < n; col++)
+    {
+      final double pivot = a[col][col];
+      for (int j = 0; j < 2 * n; j++)
+        a[col][j] /= pivot;
+      for (int row = 0; row < n; row++)
+        if (row != col)
+        {
+          final double factor = a[row][col];
+          for (int j = 0; j < 2 * n; j++)
+            a[row][j] -= factor * a[col][j];
+        }
+    }
+    double [][] result = new double[n][];
+    for (int i = 0; i < n; i++)
+      result[i] = Arrays.copyOfRange(a[i], n, 2 * n);
+    return result;
+  }
+
+  /**
+   * Energy x' A x / 2 over a few variables, for piecewise linear dynamics.
+   */
+  public static class QuadraticFactor extends PositionVelocityDependent implements Clock, JumpKernel
+  {
+    private final double [][] precision;
+
+    public QuadraticFactor(List<PositionVelocity> variables, double [][] precision)
+    {
+      super(variables);
+      this.precision = precision;
+    }
+
+    @Override
+    public DeltaTime next(Random random)
+    {
+      final double [] x = viewPosition(0.0);
+      final double [] v = viewVelocity(0.0);
+      final double [] av = times(v);
+      final double time = NormalClock.normalCollisionTime(
+          NormalClock.generateUnitRateExponential(random), dot(x, av), dot(v, av));
+      return Double.isNaN(time) ? DeltaTime.infinity() : DeltaTime.isEqualTo(time);
+    }
+
+    @Override
+    public void simulate(Random random)
+    {
+      final double [] gradient = times(currentPosition());
+      final double [] v = currentVelocity();
+      final double scale = 2.0 * dot(v, gradient) / dot(gradient, gradient);
+      for (int i = 0; i < v.length; i++)
+        v[i] -= scale * gradient[i];
+      setVelocity(v);
+    }
+
+    private double [] times(double [] vector)
+    {
+      double [] result = new double[vector.length];
+      for (int i = 0; i < vector.length; i++)
+        result[i] = dot(precision[i], vector);
+      return result;
+    }
+
+    private static double dot(double [] a, double [] b)
+    {
+      double sum = 0.0;
+      for (int i = 0; i < a.length; i++)
+        sum += a[i] * b[i];
+      return sum;
+    }
+  }
+}
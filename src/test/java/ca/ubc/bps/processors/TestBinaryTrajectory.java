@@ -0,0 +1,115 @@
+package ca.ubc.bps.processors;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ca.ubc.bps.GaussianChain;
+import ca.ubc.bps.processors.loaders.SampleFileSegmentStream;
+import ca.ubc.pdmp.PDMPSimulator;
+import ca.ubc.pdmp.StoppingCriterion;
+
+public class TestBinaryTrajectory
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  static final List<String> COLUMNS = Arrays.asList("a", "b", "jumpProcessIndex");
+
+  @Test
+  public void testRoundTrip() throws IOException
+  {
+    for (boolean compress : new boolean[]{false, true})
+      for (int blockSize : new int[]{1, 7, BinaryTrajectoryWriter.DEFAULT_BLOCK_SIZE})
+        roundTrip(compress, blockSize);
+  }
+
+  private void roundTrip(boolean compress, int blockSize) throws IOException
+  {
+    Random random = new Random(1);
+    List<double[]> rows = new ArrayList<>();
+    // special values, then constant columns (compressible), then random ones (not compressible)
+    for (double special : new double[]{Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, -0.0, Double.MIN_VALUE, Double.MAX_VALUE})
+      rows.add(new double[]{special, -special, 1.0});
+    for (int i = 0; i < 3000; i++)
+      rows.add(i < 1500 ?
+          new double[]{1.0, 2.0, i} :
+          new double[]{random.nextGaussian(), random.nextDouble(), random.nextInt(100)});
+
+    File file = folder.newFile();
+    try (BinaryTrajectoryWriter writer = new BinaryTrajectoryWriter(new FileOutputStream(file), COLUMNS, compress, blockSize))
+    {
+      for (int i = 0; i < rows.size(); i++)
+      {
+        writer.append(rows.get(i));
+        // partial blocks, as written by checkpoints
+        if (i % 1000 == 500)
+          writer.flush();
+      }
+      Assert.assertEquals(rows.size(), writer.numberOfRows());
+    }
+
+    Assert.assertTrue(BinaryTrajectoryReader.isBinaryTrajectory(file));
+    try (BinaryTrajectoryReader reader = new BinaryTrajectoryReader(file))
+    {
+      Assert.assertEquals(COLUMNS, reader.columnNames());
+      for (double [] row : rows)
+      {
+        Assert.assertTrue(reader.next());
+        for (int column = 0; column < COLUMNS.size(); column++)
+          Assert.assertEquals(Double.doubleToRawLongBits(row[column]), Double.doubleToRawLongBits(reader.get(column)));
+      }
+      Assert.assertFalse(reader.next());
+    }
+  }
+
+  /*
+   * Binary and CSV files written during the same simulation are read identically.
+   */
+  @Test
+  public void testAgainstCSV() throws IOException
+  {
+    GaussianChain chain = new GaussianChain(2, 1.0, 2.0);
+    File binary = folder.newFile("samples.bin"), csv = folder.newFile("samples.csv");
+    WriteBinaryTrajectory binaryWriter = new WriteBinaryTrajectory(chain.variables.get(0), new FileOutputStream(binary), true);
+    BufferedWriter csvWriter = new BufferedWriter(new FileWriter(csv));
+    chain.pdmp.processors.add(binaryWriter);
+    chain.pdmp.processors.add(new WriteTrajectory(chain.variables.get(0), csvWriter));
+    PDMPSimulator simulator = new PDMPSimulator(chain.pdmp);
+    simulator.setPrintSummaryStatistics(false);
+    simulator.simulate(new Random(1), StoppingCriterion.byStochasticProcessTime(3000.0));
+    binaryWriter.close();
+    csvWriter.close();
+
+    Assert.assertFalse(BinaryTrajectoryReader.isBinaryTrajectory(csv));
+    int nSegments = 0;
+    try (SampleFileSegmentStream fromBinary = new SampleFileSegmentStream(binary);
+         SampleFileSegmentStream fromCSV = new SampleFileSegmentStream(csv))
+    {
+      while (fromCSV.next())
+      {
+        Assert.assertTrue(fromBinary.next());
+        Assert.assertEquals(fromCSV.deltaTime(), fromBinary.deltaTime(), 0.0);
+        Assert.assertEquals(fromCSV.startPosition(), fromBinary.startPosition(), 0.0);
+        Assert.assertEquals(fromCSV.startVelocity(), fromBinary.startVelocity(), 0.0);
+        Assert.assertEquals(fromCSV.jumpProcessIndex(), fromBinary.jumpProcessIndex());
+        nSegments++;
+      }
+      Assert.assertFalse(fromBinary.next());
+    }
+    Assert.assertTrue(nSegments > BinaryTrajectoryWriter.DEFAULT_BLOCK_SIZE);
+    // compressed, since the jump process indices are small integers
+    Assert.assertTrue(binary.length() < 8L * 4 * nSegments);
+  }
+}
@@ -0,0 +1,229 @@
+package ca.ubc.bps.processors;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ca.ubc.bps.GaussianChain;
+import ca.ubc.bps.processors.loaders.SampleFileSegmentStream;
+import ca.ubc.bps.state.PositionVelocity;
+import ca.ubc.pdmp.PDMPSimulator;
+import ca.ubc.pdmp.StoppingCriterion;
+
+public class TestConvertToGlobalProcessor
+{
+  @ClassRule
+  public static TemporaryFolder folder = new TemporaryFolder();
+
+  static final int SIZE = 5;
+  static final double T = 5000.0;
+
+  static GaussianChain chain;
+  static List<Trajectory> trajectories = new ArrayList<>();
+  static List<File> files = new ArrayList<>();
+
+  @BeforeClass
+  public static void simulate() throws IOException
+  {
+    chain = new GaussianChain(SIZE, 1.0, 2.0);
+    List<MemorizeTrajectory> memorized = new ArrayList<>();
+    List<WriteBinaryTrajectory> writers = new ArrayList<>();
+    for (int i = 0; i < SIZE; i++)
+    {
+      MemorizeTrajectory processor = new MemorizeTrajectory(chain.variables.get(i));
+      memorized.add(processor);
+      chain.pdmp.processors.add(processor);
+      File file = folder.newFile("samples" + i + ".bin");
+      files.add(file);
+      // both stored and compressed blocks
+      WriteBinaryTrajectory writer = new WriteBinaryTrajectory(chain.variables.get(i), new FileOutputStream(file), i % 2 == 0);
+      writers.add(writer);
+      chain.pdmp.processors.add(writer);
+    }
+    PDMPSimulator simulator = new PDMPSimulator(chain.pdmp);
+    simulator.setMaxTrajectoryLengthPerChunk(T / 7.0);
+    simulator.setPrintSummaryStatistics(false);
+    simulator.simulate(new Random(1), StoppingCriterion.byStochasticProcessTime(T));
+    for (WriteBinaryTrajectory writer : writers)
+      writer.close();
+    for (MemorizeTrajectory processor : memorized)
+      trajectories.add(processor.getTrajectory());
+  }
+
+  /*
+   * The merged trajectory has one event per distinct end time of the segments of the
+   * variables, with the states of the trajectories.
+   */
+  @Test
+  public void testMerge()
+  {
+    List<double[]> rows = convert(this::fromMemory);
+
+    List<Double> endTimes = new ArrayList<>();
+    for (Trajectory trajectory : trajectories)
+    {
+      double time = 0.0;
+      for (int i = 0; i < trajectory.size(); i++)
+        endTimes.add(time += trajectory.deltaTime(i));
+    }
+    endTimes.sort(null);
+    // close end times (e.g. at chunk boundaries, or of variables updated by the same event) are merged
+    int nDistinct = 1, nSeparated = 1;
+    for (int i = 1; i < endTimes.size(); i++)
+    {
+      if (endTimes.get(i) > endTimes.get(i - 1))
+        nDistinct++;
+      if (endTimes.get(i) - endTimes.get(i - 1) > 1e-12)
+        nSeparated++;
+    }
+    Assert.assertTrue(rows.size() >= nSeparated && rows.size() <= nDistinct);
+
+    double total = 0.0;
+    for (double [] row : rows)
+    {
+      final double time = row[0], delta = row[1];
+      Assert.assertEquals(total, time, 1e-9);
+      total += delta;
+      for (int i = 0; i < SIZE; i++)
+      {
+        Assert.assertEquals(trajectories.get(i).positionAt(time), row[2 + 2 * i], 1e-9);
+        Assert.assertEquals(trajectories.get(i).velocityAt(time + delta / 2.0), row[3 + 2 * i], 0.0);
+      }
+    }
+    Assert.assertEquals(trajectories.get(0).totalTime(), total, 1e-9);
+  }
+
+  @Test
+  public void testFiles()
+  {
+    List<double[]> expected = convert(this::fromMemory);
+    assertEquals(expected, convert(i -> () -> new SampleFileSegmentStream(files.get(i))), 0.0);
+    assertEquals(expected, convert(i -> SampleFileSegmentStream.indexedStreams(files.get(i))), 0.0);
+  }
+
+  /*
+   * The slices have the events of the whole trajectory, plus the slice boundaries.
+   */
+  @Test
+  public void testSlices()
+  {
+    final int nSlices = 5;
+    List<double[]> expected = convert(this::fromMemory);
+    List<double[]> sliced = convertInParallel(this::fromMemory, nSlices);
+    Assert.assertEquals(expected.size() + nSlices - 1, sliced.size());
+    int j = 0;
+    for (double [] row : sliced)
+    {
+      if (j < expected.size() && Math.abs(expected.get(j)[0] - row[0]) < 1e-9)
+      {
+        // the last event before a boundary is shortened
+        final double [] expectedRow = expected.get(j++).clone();
+        Assert.assertTrue(row[1] <= expectedRow[1] + 1e-9);
+        expectedRow[1] = row[1];
+        assertEquals(expectedRow, row, 1e-9);
+      }
+      else
+      {
+        // a slice boundary, within the previous event of the whole trajectory
+        final double [] previous = expected.get(j - 1);
+        Assert.assertTrue(row[0] > previous[0] && row[0] < previous[0] + previous[1]);
+      }
+    }
+    Assert.assertEquals(expected.size(), j);
+
+    // skipping blocks of binary files gives exactly the same result as reading them
+    try (BinaryTrajectoryReader reader = new BinaryTrajectoryReader(files.get(0)))
+    {
+      Assert.assertTrue(reader.index(0).numberOfBlocks() > nSlices);
+    }
+    List<double[]> fromFiles = convertInParallel(i -> () -> new SampleFileSegmentStream(files.get(i)), nSlices);
+    assertEquals(fromFiles, convertInParallel(i -> SampleFileSegmentStream.indexedStreams(files.get(i)), nSlices), 0.0);
+    assertEquals(sliced, fromFiles, 0.0);
+  }
+
+  @Test
+  public void testIndex()
+  {
+    try (BinaryTrajectoryReader reader = new BinaryTrajectoryReader(files.get(1)))
+    {
+      BinaryTrajectoryReader.BlockIndex index = reader.index(0);
+      Assert.assertEquals(trajectories.get(1).totalTime(), index.sumBefore(index.numberOfBlocks()), 1e-9);
+      final int block = index.numberOfBlocksEndingBefore(T / 2.0);
+      Assert.assertTrue(index.sumBefore(block) <= T / 2.0 && index.sumBefore(block + 1) > T / 2.0);
+      reader.seek(index, block);
+      Assert.assertTrue(reader.next());
+      final int segment = BinaryTrajectoryWriter.DEFAULT_BLOCK_SIZE * block;
+      Assert.assertEquals(trajectories.get(1).deltaTime(segment), reader.get(0), 0.0);
+      Assert.assertEquals(trajectories.get(1).startPosition(segment), reader.get(1), 0.0);
+    }
+  }
+
+  private Supplier<SegmentStream> fromMemory(int variable)
+  {
+    return () -> SegmentStream.of(trajectories.get(variable));
+  }
+
+  private static List<double[]> convert(Function<Integer, Supplier<SegmentStream>> sources)
+  {
+    Recorder recorder = new Recorder();
+    ConvertToGlobalProcessor converter = new ConvertToGlobalProcessor(recorder);
+    for (int i = 0; i < SIZE; i++)
+      converter.addTrajectory(i, chain.variables.get(i).dynamics, sources.apply(i));
+    converter.convert();
+    return recorder.rows;
+  }
+
+  private static List<double[]> convertInParallel(Function<Integer, Supplier<SegmentStream>> sources, int nSlices)
+  {
+    List<double[]> result = new ArrayList<>();
+    ConvertToGlobalProcessor converter = new ConvertToGlobalProcessor(null);
+    for (int i = 0; i < SIZE; i++)
+      converter.addTrajectory(i, chain.variables.get(i).dynamics, sources.apply(i));
+    converter.convertInParallel(nSlices, 3, slice -> new Recorder(), (slice, recorder) -> result.addAll(recorder.rows));
+    return result;
+  }
+
+  private static void assertEquals(List<double[]> expected, List<double[]> actual, double tolerance)
+  {
+    Assert.assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++)
+      assertEquals(expected.get(i), actual.get(i), tolerance);
+  }
+
+  private static void assertEquals(double [] expected, double [] actual, double tolerance)
+  {
+    Assert.assertArrayEquals(Arrays.toString(expected) + " vs " + Arrays.toString(actual), expected, actual, tolerance);
+  }
+
+  private static class Recorder implements GlobalProcessor
+  {
+    final List<double[]> rows = new ArrayList<>();
+
+    @Override
+    public void process(ConvertToGlobalProcessor.GlobalProcessorContext context)
+    {
+      final List<PositionVelocity> variables = context.allVariables();
+      double [] row = new double[2 + 2 * variables.size()];
+      row[0] = context.getGlobalTime();
+      row[1] = context.getGlobalDelta();
+      for (int i = 0; i < variables.size(); i++)
+      {
+        row[2 + 2 * i] = variables.get(i).position.get();
+        row[3 + 2 * i] = variables.get(i).velocity.get();
+      }
+      rows.add(row);
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package ca.ubc.bps.processors;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ca.ubc.bps.GaussianChain;
+import ca.ubc.pdmp.PDMPSimulator;
+import ca.ubc.pdmp.StoppingCriterion;
+
+public class TestDiscretizeTrajectory
+{
+  @ClassRule
+  public static TemporaryFolder folder = new TemporaryFolder();
+
+  static final int SIZE = 3;
+  static final double T = 500.0, INTERVAL = 0.37;
+
+  static GaussianChain chain;
+  static List<Trajectory> trajectories = new ArrayList<>();
+  static List<StringWriter> csvs = new ArrayList<>();
+  static List<File> binaries = new ArrayList<>();
+
+  @BeforeClass
+  public static void simulate() throws IOException
+  {
+    chain = new GaussianChain(SIZE, 1.0, 2.0);
+    List<MemorizeTrajectory> memorized = new ArrayList<>();
+    List<DiscretizeTrajectory> binaryWriters = new ArrayList<>();
+    for (int i = 0; i < SIZE; i++)
+    {
+      MemorizeTrajectory processor = new MemorizeTrajectory(chain.variables.get(i));
+      memorized.add(processor);
+      chain.pdmp.processors.add(processor);
+      StringWriter csv = new StringWriter();
+      csvs.add(csv);
+      chain.pdmp.processors.add(new DiscretizeTrajectory(chain.variables.get(i), INTERVAL, csv));
+      File binary = folder.newFile("discretized" + i + ".bin");
+      binaries.add(binary);
+      DiscretizeTrajectory binaryWriter = new DiscretizeTrajectory(chain.variables.get(i), INTERVAL, new FileOutputStream(binary), true);
+      binaryWriters.add(binaryWriter);
+      chain.pdmp.processors.add(binaryWriter);
+    }
+    PDMPSimulator simulator = new PDMPSimulator(chain.pdmp);
+    // chunk boundaries fall between grid points
+    simulator.setMaxTrajectoryLengthPerChunk(T / 7.0);
+    simulator.setPrintSummaryStatistics(false);
+    simulator.simulate(new Random(1), StoppingCriterion.byStochasticProcessTime(T));
+    for (DiscretizeTrajectory writer : binaryWriters)
+      writer.close();
+    for (MemorizeTrajectory processor : memorized)
+      trajectories.add(processor.getTrajectory());
+  }
+
+  /*
+   * One row per grid time before the end of the trajectory, with the position of the
+   * memorized trajectory at that time, in both formats.
+   */
+  @Test
+  public void testGrid() throws IOException
+  {
+    for (int i = 0; i < SIZE; i++)
+    {
+      Trajectory trajectory = trajectories.get(i);
+      List<double[]> rows = readCSV(csvs.get(i).toString());
+      checkGrid(rows.size(), trajectory.totalTime());
+      for (int k = 0; k < rows.size(); k++)
+      {
+        final double [] row = rows.get(k);
+        Assert.assertEquals(k * INTERVAL, row[0], 0.0);
+        Assert.assertEquals(trajectory.positionAt(row[0]), row[1], 1e-9);
+      }
+
+      try (BinaryTrajectoryReader reader = new BinaryTrajectoryReader(binaries.get(i)))
+      {
+        Assert.assertEquals(DiscretizeTrajectory.COLUMN_NAMES, reader.columnNames());
+        for (double [] row : rows)
+        {
+          Assert.assertTrue(reader.next());
+          Assert.assertEquals(row[0], reader.get(0), 0.0);
+          Assert.assertEquals(row[1], reader.get(1), 0.0);
+        }
+        Assert.assertFalse(reader.next());
+      }
+    }
+  }
+
+  /*
+   * The global version emits each grid time once, with the positions of all the memorized
+   * trajectories, also when the conversion is sliced.
+   */
+  @Test
+  public void testGlobal()
+  {
+    List<double[]> rows = new ArrayList<>();
+    ConvertToGlobalProcessor converter = new ConvertToGlobalProcessor(new DiscretizeGlobalTrajectory(INTERVAL, row -> rows.add(row.clone())));
+    for (int i = 0; i < SIZE; i++)
+      converter.addTrajectory(i, trajectories.get(i));
+    converter.convert();
+    checkGrid(rows.size(), trajectories.get(0).totalTime());
+    for (int k = 0; k < rows.size(); k++)
+    {
+      final double [] row = rows.get(k);
+      Assert.assertEquals(SIZE + 1, row.length);
+      Assert.assertEquals(k * INTERVAL, row[0], 0.0);
+      for (int i = 0; i < SIZE; i++)
+        Assert.assertEquals(trajectories.get(i).positionAt(row[0]), row[1 + i], 1e-9);
+    }
+
+    for (int nSlices : new int[]{1, 4, 13})
+    {
+      List<double[]> sliced = new ArrayList<>();
+      converter.convertInParallel(nSlices, 3, slice -> new SliceRecorder(), (slice, recorder) -> sliced.addAll(recorder.rows));
+      Assert.assertEquals(rows.size(), sliced.size());
+      for (int k = 0; k < rows.size(); k++)
+        Assert.assertArrayEquals(rows.get(k), sliced.get(k), 1e-9);
+    }
+  }
+
+  private static void checkGrid(int nRows, double totalTime)
+  {
+    Assert.assertTrue(nRows > 0);
+    Assert.assertTrue((nRows - 1) * INTERVAL < totalTime + 1e-9);
+    Assert.assertTrue(nRows * INTERVAL >= totalTime - 1e-9);
+  }
+
+  private static List<double[]> readCSV(String contents) throws IOException
+  {
+    List<double[]> result = new ArrayList<>();
+    BufferedReader reader = new BufferedReader(new StringReader(contents));
+    Assert.assertEquals(String.join(",", DiscretizeTrajectory.COLUMN_NAMES), reader.readLine());
+    String line;
+    while ((line = reader.readLine()) != null)
+    {
+      String [] fields = line.split(",");
+      result.add(new double[]{Double.parseDouble(fields[0]), Double.parseDouble(fields[1])});
+    }
+    return result;
+  }
+
+  private static class SliceRecorder implements GlobalProcessor
+  {
+    final List<double[]> rows = new ArrayList<>();
+    final DiscretizeGlobalTrajectory discretize = new DiscretizeGlobalTrajectory(INTERVAL, row -> rows.add(row.clone()));
+
+    @Override
+    public void process(ConvertToGlobalProcessor.GlobalProcessorContext context)
+    {
+      discretize.process(context);
+    }
+  }
+}
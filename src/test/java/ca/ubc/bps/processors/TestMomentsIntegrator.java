@@ -0,0 +1,143 @@
+package ca.ubc.bps.processors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.math3.analysis.integration.IterativeLegendreGaussIntegrator;
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.ubc.bps.GaussianChain;
+import ca.ubc.bps.state.Dynamics;
+import ca.ubc.bps.state.Hyperbolic;
+import ca.ubc.bps.state.IsotropicHamiltonian;
+import ca.ubc.bps.state.PiecewiseLinear;
+import ca.ubc.bps.state.PositionVelocity;
+import ca.ubc.pdmp.PDMPSimulator;
+import ca.ubc.pdmp.StoppingCriterion;
+
+public class TestMomentsIntegrator
+{
+  static final List<Integer> DEGREES = Arrays.asList(0, 1, 2, 3, 4, 5, 6);
+
+  @Test
+  public void testPiecewiseLinear()
+  {
+    PiecewiseLinear dynamics = new PiecewiseLinear();
+    MomentsIntegrator integrator = moments(dynamics);
+    MomentQuadrature quadrature = new MomentQuadrature(dynamics, DEGREES.stream().mapToInt(Integer::intValue).toArray());
+    double [] result = new double[DEGREES.size()], approximation = new double[DEGREES.size()];
+    Random random = new Random(1);
+    for (int iteration = 0; iteration < 1000; iteration++)
+    {
+      final double x = 2.0 * random.nextGaussian(), v = random.nextGaussian(), deltaT = -Math.log(random.nextDouble());
+      integrator.evaluate(x, v, deltaT, result);
+      quadrature.evaluate(x, v, deltaT, approximation);
+      for (int i = 0; i < DEGREES.size(); i++)
+      {
+        MomentIntegrator single = new MomentIntegrator(DEGREES.get(i));
+        single.setup(dynamics);
+        final double scale = scale(x, Math.abs(v) * deltaT, DEGREES.get(i), deltaT);
+        Assert.assertEquals(single.evaluate(x, v, deltaT), result[i], 1e-12 * scale);
+        Assert.assertEquals(result[i], approximation[i], 1e-9 * scale);
+      }
+    }
+  }
+
+  @Test
+  public void testIsotropicHamiltonian()
+  {
+    IsotropicHamiltonian dynamics = new IsotropicHamiltonian();
+    dynamics.setPrecision(2.5);
+    Random random = new Random(1);
+    for (int iteration = 0; iteration < 200; iteration++)
+    {
+      final double x = random.nextGaussian(), v = random.nextGaussian();
+      // including short segments, where the closed form is the least accurate
+      final double deltaT = iteration % 3 == 0 ? 1e-3 * random.nextDouble() : 10.0 * random.nextDouble();
+      final double amplitude = Math.sqrt(x * x + v * v / 2.5);
+      checkAgainstReference(dynamics, x, v, deltaT, amplitude);
+    }
+  }
+
+  @Test
+  public void testHyperbolic()
+  {
+    Hyperbolic dynamics = new Hyperbolic();
+    Random random = new Random(1);
+    for (int iteration = 0; iteration < 200; iteration++)
+    {
+      final double x = 3.0 * random.nextGaussian(), v = 0.3 * random.nextGaussian(), deltaT = -Math.log(random.nextDouble());
+      if (Double.isNaN(dynamics.extrapolatePosition(deltaT, x, v)))
+        continue;
+      final double amplitude = Math.max(Math.abs(x), Math.abs(dynamics.extrapolatePosition(deltaT, x, v)));
+      checkAgainstReference(dynamics, x, v, deltaT, amplitude);
+    }
+  }
+
+  /*
+   * Against numerical integration (for each degree separately), and MomentIntegrator.
+   */
+  private static void checkAgainstReference(Dynamics dynamics, double x, double v, double deltaT, double amplitude)
+  {
+    double [] result = new double[DEGREES.size()];
+    moments(dynamics).evaluate(x, v, deltaT, result);
+    for (int i = 0; i < DEGREES.size(); i++)
+    {
+      final int degree = DEGREES.get(i);
+      final double reference = new IterativeLegendreGaussIntegrator(16, 1e-12, 1e-14).integrate(Integer.MAX_VALUE,
+          t -> Math.pow(dynamics.extrapolatePosition(t, x, v), degree), 0.0, deltaT);
+      // quadratures also have an absolute tolerance
+      final double tolerance = 1e-9 * scale(amplitude, 0.0, degree, deltaT) + 10.0 * MomentQuadrature.ABSOLUTE_TOLERANCE;
+      Assert.assertEquals(reference, result[i], tolerance);
+      // for quadratures, the intervals are bisected differently for a single degree
+      MomentIntegrator single = new MomentIntegrator(degree);
+      single.setup(dynamics);
+      Assert.assertEquals(result[i], single.evaluate(x, v, deltaT), tolerance);
+    }
+  }
+
+  /*
+   * IntegrateMoments against one IntegrateTrajectory per degree, and its views.
+   */
+  @Test
+  public void testIntegrateMoments()
+  {
+    GaussianChain chain = new GaussianChain(3, 1.0, 2.0);
+    PositionVelocity variable = chain.variables.get(0);
+    IntegrateMoments fused = new IntegrateMoments(variable, DEGREES);
+    chain.pdmp.processors.add(fused);
+    List<IntegrateTrajectory> separate = new ArrayList<>();
+    for (int degree : DEGREES)
+    {
+      IntegrateTrajectory processor = new IntegrateTrajectory(variable, new MomentIntegrator(degree));
+      separate.add(processor);
+      chain.pdmp.processors.add(processor);
+    }
+    PDMPSimulator simulator = new PDMPSimulator(chain.pdmp);
+    simulator.setPrintSummaryStatistics(false);
+    simulator.simulate(new Random(1), StoppingCriterion.byStochasticProcessTime(1000.0));
+    for (int i = 0; i < DEGREES.size(); i++)
+    {
+      final double expected = separate.get(i).integrate();
+      Assert.assertEquals(DEGREES.get(i).intValue(), fused.degree(i));
+      Assert.assertEquals(expected, fused.integrate(i), 1e-12 * Math.max(1.0, Math.abs(expected)));
+      Assert.assertEquals(fused.integrate(i), IntegrateTrajectory.momentOf(fused, i).integrate(), 0.0);
+    }
+  }
+
+  private static MomentsIntegrator moments(Dynamics dynamics)
+  {
+    MomentsIntegrator result = new MomentsIntegrator(DEGREES);
+    result.setup(dynamics);
+    return result;
+  }
+
+  // order of magnitude of the integral of |x(t)|^degree
+  private static double scale(double x, double displacement, int degree, double deltaT)
+  {
+    return Math.max(1e-300, Math.pow(Math.abs(x) + displacement, degree) * deltaT);
+  }
+}
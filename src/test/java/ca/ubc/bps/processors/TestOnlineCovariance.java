@@ -0,0 +1,182 @@
+package ca.ubc.bps.processors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import org.apache.commons.math3.analysis.integration.IterativeLegendreGaussIntegrator;
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.ubc.bps.GaussianChain;
+import ca.ubc.bps.state.Dynamics;
+import ca.ubc.bps.state.IsotropicHamiltonian;
+import ca.ubc.bps.state.PositionVelocity;
+import ca.ubc.pdmp.PDMPSimulator;
+import ca.ubc.pdmp.StoppingCriterion;
+
+public class TestOnlineCovariance
+{
+  static final int SIZE = 4;
+  static final double T = 2000.0;
+
+  @Test
+  public void testSequential()
+  {
+    checkAgainstMemorized(simulator -> {});
+  }
+
+  @Test
+  public void testChunked()
+  {
+    checkAgainstMemorized(simulator -> simulator.setMaxTrajectoryLengthPerChunk(T / 7.0));
+  }
+
+  @Test
+  public void testParallel()
+  {
+    checkAgainstMemorized(simulator -> simulator.setParallelism(2));
+  }
+
+  /*
+   * The covariances are those of the memorized trajectories (integrated numerically over
+   * the merged trajectory), and roughly those of the target (T is short, see TestParallelSimulation
+   * for the accuracy of the marginal variances).
+   */
+  private static void checkAgainstMemorized(Consumer<PDMPSimulator> configuration)
+  {
+    GaussianChain chain = new GaussianChain(SIZE, 1.0, 2.0);
+    OnlineCovariance covariances = OnlineCovariance.allPairs(chain.variables);
+    chain.pdmp.processors.addAll(covariances.processors());
+    List<MemorizeTrajectory> memorized = new ArrayList<>();
+    for (PositionVelocity variable : chain.variables)
+    {
+      MemorizeTrajectory processor = new MemorizeTrajectory(variable);
+      memorized.add(processor);
+      chain.pdmp.processors.add(processor);
+    }
+    PDMPSimulator simulator = new PDMPSimulator(chain.pdmp);
+    simulator.setPrintSummaryStatistics(false);
+    configuration.accept(simulator);
+    simulator.simulate(new Random(1), StoppingCriterion.byStochasticProcessTime(T));
+
+    List<Trajectory> trajectories = new ArrayList<>();
+    for (MemorizeTrajectory processor : memorized)
+      trajectories.add(processor.getTrajectory());
+    Assert.assertEquals(SIZE * (SIZE + 1) / 2, covariances.numberOfPairs());
+    checkAgainstReference(covariances, trajectories);
+
+    final double [][] exact = chain.covariance();
+    for (int p = 0; p < covariances.numberOfPairs(); p++)
+    {
+      final int [] pair = covariances.pair(p);
+      Assert.assertEquals(exact[pair[0]][pair[1]], covariances.covariance(p), 0.25 * Math.sqrt(exact[pair[0]][pair[0]] * exact[pair[1]][pair[1]]));
+    }
+  }
+
+  /*
+   * Processors called directly, in the order of the end times of the segments, with
+   * IsotropicHamiltonian dynamics.
+   */
+  @Test
+  public void testIsotropicHamiltonian()
+  {
+    IsotropicHamiltonian dynamics = new IsotropicHamiltonian();
+    dynamics.setPrecision(2.5);
+    List<PositionVelocity> variables = PositionVelocity.buildArray(3, dynamics);
+    OnlineCovariance covariances = OnlineCovariance.allPairs(variables);
+    Random random = new Random(1);
+    final double horizon = 100.0;
+    final double [] starts = new double[3], lengths = new double[3], positions = new double[3], velocities = new double[3];
+    List<List<TrajectorySegment>> segments = new ArrayList<>();
+    for (int i = 0; i < 3; i++)
+    {
+      segments.add(new ArrayList<>());
+      positions[i] = random.nextGaussian();
+      velocities[i] = random.nextGaussian();
+      lengths[i] = -Math.log(random.nextDouble());
+    }
+    while (true)
+    {
+      int next = -1;
+      for (int i = 0; i < 3; i++)
+        if (starts[i] < horizon && (next == -1 || starts[i] + lengths[i] < starts[next] + lengths[next]))
+          next = i;
+      if (next == -1)
+        break;
+      // all the trajectories end at the horizon
+      final double length = Math.min(lengths[next], horizon - starts[next]);
+      variables.get(next).position.set(positions[next]);
+      variables.get(next).velocity.set(velocities[next]);
+      covariances.processors().get(next).process(length, 0);
+      segments.get(next).add(new TrajectorySegment(length, positions[next], velocities[next]));
+      positions[next] = dynamics.extrapolatePosition(length, positions[next], velocities[next]);
+      velocities[next] = random.nextGaussian();
+      starts[next] += length;
+      lengths[next] = -Math.log(random.nextDouble());
+    }
+
+    List<Trajectory> trajectories = new ArrayList<>();
+    for (List<TrajectorySegment> trajectory : segments)
+      trajectories.add(new Trajectory(dynamics, trajectory));
+    checkAgainstReference(covariances, trajectories);
+  }
+
+  private static void checkAgainstReference(OnlineCovariance covariances, List<Trajectory> trajectories)
+  {
+    CrossIntegrals reference = new CrossIntegrals(trajectories.size());
+    ConvertToGlobalProcessor converter = new ConvertToGlobalProcessor(reference);
+    for (int i = 0; i < trajectories.size(); i++)
+      converter.addTrajectory(i, trajectories.get(i));
+    converter.convert();
+    final double totalTime = trajectories.get(0).totalTime();
+    Assert.assertEquals(totalTime, reference.time, 1e-9);
+
+    for (int i = 0; i < trajectories.size(); i++)
+    {
+      final double mean = trajectories.get(i).integrate(new MomentIntegrator(1));
+      Assert.assertEquals(mean, covariances.mean(i), 1e-9);
+    }
+    for (int p = 0; p < covariances.numberOfPairs(); p++)
+    {
+      final int [] pair = covariances.pair(p);
+      final double
+        crossMoment = reference.integrals[pair[0]][pair[1]] / totalTime,
+        expected = crossMoment - covariances.mean(pair[0]) * covariances.mean(pair[1]);
+      Assert.assertEquals(crossMoment, covariances.crossMoment(p), 1e-8 * Math.max(1.0, Math.abs(crossMoment)));
+      Assert.assertEquals(expected, covariances.covariance(p), 1e-8 * Math.max(1.0, Math.abs(crossMoment)));
+    }
+  }
+
+  private static class CrossIntegrals implements GlobalProcessor
+  {
+    final double [][] integrals;
+    double time = 0.0;
+
+    CrossIntegrals(int size)
+    {
+      integrals = new double[size][size];
+    }
+
+    @Override
+    public void process(ConvertToGlobalProcessor.GlobalProcessorContext context)
+    {
+      final List<PositionVelocity> variables = context.allVariables();
+      final double delta = context.getGlobalDelta();
+      time += delta;
+      if (delta == 0.0)
+        return;
+      for (int i = 0; i < variables.size(); i++)
+        for (int j = i; j < variables.size(); j++)
+        {
+          final Dynamics di = variables.get(i).dynamics, dj = variables.get(j).dynamics;
+          final double
+            xi = variables.get(i).position.get(), vi = variables.get(i).velocity.get(),
+            xj = variables.get(j).position.get(), vj = variables.get(j).velocity.get();
+          integrals[i][j] += new IterativeLegendreGaussIntegrator(16, 1e-12, 1e-14).integrate(Integer.MAX_VALUE,
+              t -> di.extrapolatePosition(t, xi, vi) * dj.extrapolatePosition(t, xj, vj), 0.0, delta);
+        }
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package ca.ubc.bps.processors;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.ubc.bps.GaussianChain;
+import ca.ubc.bps.state.PositionVelocity;
+import ca.ubc.pdmp.PDMPSimulator;
+import ca.ubc.pdmp.StoppingCriterion;
+
+public class TestOnlineEffectiveSampleSize
+{
+  @Test
+  public void testAgainstMemorized()
+  {
+    final List<Integer> degrees = Arrays.asList(1, 2, 3);
+    GaussianChain chain = new GaussianChain(3, 1.0, 2.0);
+    PositionVelocity variable = chain.variables.get(1);
+    MemorizeTrajectory memorized = new MemorizeTrajectory(variable);
+    OnlineEffectiveSampleSize online = OnlineEffectiveSampleSize.forMoments(variable, degrees);
+    chain.pdmp.processors.add(memorized);
+    chain.pdmp.processors.add(online);
+    PDMPSimulator simulator = new PDMPSimulator(chain.pdmp);
+    simulator.setPrintSummaryStatistics(false);
+    simulator.simulate(new Random(1), StoppingCriterion.byStochasticProcessTime(20_000));
+
+    Trajectory trajectory = memorized.getTrajectory();
+    Assert.assertTrue(online.numberOfBatches() >= OnlineEffectiveSampleSize.DEFAULT_MAX_BATCHES / 2);
+    for (int i = 0; i < degrees.size(); i++)
+    {
+      final int degree = degrees.get(i);
+      final double moment = trajectory.moment(degree);
+      Assert.assertEquals(moment, online.mean(i), 1e-9 * Math.max(1.0, Math.abs(moment)));
+      // different batch sizes, so only approximately equal
+      final double essRatio = online.ess(i) / trajectory.momentEss(degree);
+      Assert.assertTrue("degree " + degree + ": ratio " + essRatio, essRatio > 0.5 && essRatio < 2.0);
+      final double variance = trajectory.moment(2 * degree) - moment * moment;
+      final double mcseRatio = online.monteCarloStandardError(i) / Math.sqrt(variance / trajectory.momentEss(degree));
+      Assert.assertTrue("degree " + degree + ": ratio " + mcseRatio, mcseRatio > 0.7 && mcseRatio < 1.4);
+    }
+  }
+}
@@ -0,0 +1,198 @@
+package ca.ubc.bps.processors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.ubc.bps.processors.SegmentStore.Storage;
+import ca.ubc.bps.state.PiecewiseLinear;
+import ca.ubc.pdmp.Checkpointable;
+
+public class TestSegmentStore
+{
+  // more than two chunks
+  static final int SIZE = 20000;
+
+  @Test
+  public void testHeap()
+  {
+    test(Storage.HEAP);
+  }
+
+  @Test
+  public void testOffHeap()
+  {
+    test(Storage.OFF_HEAP);
+  }
+
+  @Test
+  public void testMapped()
+  {
+    test(Storage.MAPPED);
+  }
+
+  /*
+   * A snapshot writes the segments at the time it was taken, also after more segments are added
+   * (including when the first chunk grows, and when new chunks are allocated).
+   */
+  @Test
+  public void testSnapshot() throws IOException
+  {
+    for (int snapshotSize : new int[]{0, 3, 1000, SegmentStore.CHUNK_SIZE, SIZE / 2})
+    {
+      SegmentStore store = new SegmentStore(), expected = new SegmentStore();
+      Random random = new Random(1);
+      Checkpointable.Snapshot snapshot = null;
+      for (int i = 0; i <= SIZE; i++)
+      {
+        if (i == snapshotSize)
+          snapshot = store.snapshot();
+        if (i == SIZE)
+          break;
+        final double deltaTime = -Math.log(random.nextDouble()), position = random.nextGaussian(), velocity = random.nextGaussian();
+        if (i < snapshotSize)
+          expected.add(deltaTime, position, velocity);
+        store.add(deltaTime, position, velocity);
+      }
+      Assert.assertArrayEquals(bytes(expected::writeSegments), bytes(snapshot));
+    }
+  }
+
+  private static byte [] bytes(Checkpointable.Snapshot snapshot) throws IOException
+  {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(result))
+    {
+      snapshot.writeTo(out);
+    }
+    return result.toByteArray();
+  }
+
+  private void test(Storage storage)
+  {
+    try (SegmentStore store = new SegmentStore(storage))
+    {
+      Random random = new Random(1);
+      fill(store, random);
+      check(store, random);
+      // the caches are reset
+      store.clear();
+      fill(store, random);
+      check(store, random);
+    }
+  }
+
+  private static void fill(SegmentStore store, Random random)
+  {
+    for (int i = 0; i < SIZE; i++)
+      store.add(-Math.log(random.nextDouble()), random.nextGaussian(), random.nextGaussian());
+  }
+
+  private static void check(SegmentStore store, Random random)
+  {
+    Trajectory trajectory = new Trajectory(new PiecewiseLinear(), store);
+    Assert.assertEquals(SIZE, trajectory.size());
+
+    // positionAt(..) against a linear scan
+    for (int i = 0; i < 100; i++)
+    {
+      final double time = random.nextDouble() * trajectory.totalTime();
+      Assert.assertEquals(positionAt(trajectory, time), trajectory.positionAt(time), 1e-12);
+    }
+
+    // views, including integrals with more integrators than cached ones
+    final int nBlocks = 7;
+    List<Trajectory> blocks = trajectory.split(nBlocks);
+    Assert.assertEquals(nBlocks, blocks.size());
+    double start = 0.0;
+    for (Trajectory block : blocks)
+    {
+      Assert.assertEquals(trajectory.totalTime() / nBlocks, block.totalTime(), 1e-9);
+      for (int i = 0; i < 10; i++)
+      {
+        final double time = random.nextDouble() * block.totalTime();
+        Assert.assertEquals(trajectory.positionAt(start + time), block.positionAt(time), 1e-9);
+      }
+      start += block.totalTime();
+    }
+    for (int pass = 0; pass < 2; pass++)
+      for (int degree = 0; degree < 12; degree++)
+      {
+        double sum = 0.0;
+        for (Trajectory block : blocks)
+        {
+          final double expected = integrate(block, new MomentIntegrator(degree));
+          final double actual = block.integrate(new MomentIntegrator(degree));
+          Assert.assertEquals(expected, actual, 1e-9 * Math.max(1.0, Math.abs(expected)));
+          sum += actual * block.totalTime();
+        }
+        final double whole = trajectory.integrate(new MomentIntegrator(degree));
+        Assert.assertEquals(whole, sum / trajectory.totalTime(), 1e-9 * Math.max(1.0, Math.abs(whole)));
+      }
+    checkConcurrentReads(blocks);
+  }
+
+  /*
+   * Several threads reading the (lazily extended) caches.
+   */
+  private static void checkConcurrentReads(List<Trajectory> blocks)
+  {
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try
+    {
+      List<Future<double[]>> results = new ArrayList<>();
+      for (int thread = 0; thread < 8; thread++)
+        results.add(pool.submit(() ->
+        {
+          double [] result = new double[blocks.size()];
+          for (int i = 0; i < blocks.size(); i++)
+            result[i] = blocks.get(i).integrate(new MomentIntegrator(20 + i)) + blocks.get(i).positionAt(blocks.get(i).totalTime() / 2.0);
+          return result;
+        }));
+      for (Future<double[]> result : results)
+        Assert.assertArrayEquals(results.get(0).get(), result.get(), 0.0);
+    }
+    catch (Exception e)
+    {
+      throw new RuntimeException(e);
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+  }
+
+  private static double positionAt(Trajectory trajectory, double time)
+  {
+    double start = 0.0;
+    for (int i = 0; i < trajectory.size(); i++)
+    {
+      final double end = start + trajectory.deltaTime(i);
+      if (end > time || i == trajectory.size() - 1)
+        return trajectory.startPosition(i) + (time - start) * trajectory.startVelocity(i);
+      start = end;
+    }
+    throw new RuntimeException();
+  }
+
+  private static double integrate(Trajectory trajectory, SegmentIntegrator integrator)
+  {
+    integrator.setup(trajectory.dynamics);
+    double sum = 0.0, totalTime = 0.0;
+    for (int i = 0; i < trajectory.size(); i++)
+    {
+      sum += integrator.evaluate(trajectory.startPosition(i), trajectory.startVelocity(i), trajectory.deltaTime(i));
+      totalTime += trajectory.deltaTime(i);
+    }
+    return sum / totalTime;
+  }
+}
@@ -0,0 +1,173 @@
+package ca.ubc.bps.state;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.ubc.bps.bounces.StandardBounce;
+import ca.ubc.bps.energies.Energy;
+import ca.ubc.bps.processors.MemorizeTrajectory;
+import ca.ubc.bps.processors.Trajectory;
+import ca.ubc.bps.refresh.RefreshmentFactory;
+import ca.ubc.bps.timers.ConstantIntensityAdaptiveThinning;
+import ca.ubc.bps.timers.Intensity;
+import ca.ubc.bps.timers.StandardIntensity;
+import ca.ubc.pdmp.JumpProcess;
+import ca.ubc.pdmp.PDMP;
+import ca.ubc.pdmp.PDMPSimulator;
+import ca.ubc.pdmp.StoppingCriterion;
+
+public class TestPositionVelocityDependent
+{
+  static final int SIZE = 4;
+  static final double T = 300.0;
+
+  /*
+   * The views are those of the allocating methods, which return new arrays.
+   */
+  @Test
+  public void testViews()
+  {
+    IsotropicHamiltonian dynamics = hamiltonian();
+    List<PositionVelocity> variables = PositionVelocity.buildArray(SIZE, dynamics);
+    Random random = new Random(1);
+    for (PositionVelocity variable : variables)
+    {
+      variable.position.set(random.nextGaussian());
+      variable.velocity.set(random.nextGaussian());
+    }
+    Reader reader = new Reader(variables);
+    for (double delta : new double[]{0.0, 0.3, 1.7})
+    {
+      double [] position = reader.extrapolatePosition(delta), velocity = reader.extrapolateVelocity(delta);
+      Assert.assertNotSame(position, reader.extrapolatePosition(delta));
+      Assert.assertArrayEquals(position, reader.viewPosition(delta), 0.0);
+      Assert.assertArrayEquals(velocity, reader.viewVelocity(delta), 0.0);
+      for (int i = 0; i < SIZE; i++)
+      {
+        Assert.assertEquals(dynamics.extrapolatePosition(delta, variables.get(i).position.get(), variables.get(i).velocity.get()), position[i], 0.0);
+        Assert.assertEquals(dynamics.extrapolateVelocity(delta, variables.get(i).position.get(), variables.get(i).velocity.get()), velocity[i], 0.0);
+      }
+    }
+    Assert.assertArrayEquals(reader.extrapolatePosition(0.0), reader.currentPosition(), 0.0);
+    Assert.assertArrayEquals(reader.extrapolateVelocity(0.0), reader.currentVelocity(), 0.0);
+  }
+
+  /*
+   * A thinning clock evaluating its intensity through views (StandardIntensity) gives the
+   * same trajectories as one allocating new arrays for each evaluation.
+   */
+  @Test
+  public void testThinning() throws Exception
+  {
+    for (Dynamics dynamics : new Dynamics[]{new PiecewiseLinear(), hamiltonian()})
+    {
+      List<Trajectory> expected = simulate(dynamics, false), actual = simulate(dynamics, true);
+      for (int i = 0; i < SIZE; i++)
+      {
+        Trajectory e = expected.get(i), a = actual.get(i);
+        Assert.assertTrue(e.size() > 100);
+        Assert.assertEquals(e.size(), a.size());
+        for (int s = 0; s < e.size(); s++)
+        {
+          Assert.assertEquals(e.deltaTime(s), a.deltaTime(s), 0.0);
+          Assert.assertEquals(e.startPosition(s), a.startPosition(s), 0.0);
+          Assert.assertEquals(e.startVelocity(s), a.startVelocity(s), 0.0);
+        }
+      }
+    }
+  }
+
+  /*
+   * In a new thread, since ConstantIntensityAdaptiveThinning jitters its initial step with
+   * a thread local random.
+   */
+  private static List<Trajectory> simulate(Dynamics dynamics, boolean views) throws Exception
+  {
+    List<Trajectory> result = new ArrayList<>();
+    ExecutorService thread = Executors.newSingleThreadExecutor();
+    thread.submit(() ->
+    {
+      List<PositionVelocity> variables = PositionVelocity.buildArray(SIZE, dynamics);
+      Random init = new Random(1);
+      for (PositionVelocity variable : variables)
+        variable.velocity.set(init.nextGaussian());
+      PDMP pdmp = new PDMP(variables);
+      for (int i = 0; i < SIZE - 1; i++)
+      {
+        List<PositionVelocity> pair = variables.subList(i, i + 2);
+        Intensity intensity = views ? new StandardIntensity(pair, PAIR_ENERGY) : new AllocatingIntensity(pair);
+        pdmp.jumpProcesses.add(new JumpProcess(new ConstantIntensityAdaptiveThinning(pair, intensity), new StandardBounce(pair, PAIR_ENERGY)));
+      }
+      RefreshmentFactory.addLocal(pdmp, 1.0);
+      List<MemorizeTrajectory> memorized = new ArrayList<>();
+      for (PositionVelocity variable : variables)
+      {
+        MemorizeTrajectory processor = new MemorizeTrajectory(variable);
+        memorized.add(processor);
+        pdmp.processors.add(processor);
+      }
+      PDMPSimulator simulator = new PDMPSimulator(pdmp);
+      simulator.setPrintSummaryStatistics(false);
+      simulator.simulate(new Random(1), StoppingCriterion.byStochasticProcessTime(T));
+      for (MemorizeTrajectory processor : memorized)
+        result.add(processor.getTrajectory());
+    }).get();
+    thread.shutdown();
+    return result;
+  }
+
+  private static IsotropicHamiltonian hamiltonian()
+  {
+    IsotropicHamiltonian result = new IsotropicHamiltonian();
+    result.setPrecision(1.5);
+    return result;
+  }
+
+  // (x0 - x1)^2 + x0^4 / 4 (so that the intensity is not linear in time)
+  static final Energy PAIR_ENERGY = new Energy()
+  {
+    @Override
+    public double valueAt(double [] point)
+    {
+      final double d = point[0] - point[1];
+      return d * d + Math.pow(point[0], 4) / 4.0;
+    }
+
+    @Override
+    public double [] gradient(double [] point)
+    {
+      final double d = point[0] - point[1];
+      return new double[]{2.0 * d + Math.pow(point[0], 3), -2.0 * d};
+    }
+  };
+
+  private static class AllocatingIntensity extends PositionVelocityDependent implements Intensity
+  {
+    AllocatingIntensity(List<PositionVelocity> variables)
+    {
+      super(variables);
+    }
+
+    @Override
+    public double evaluate(double delta)
+    {
+      double [] velocity = extrapolateVelocity(delta);
+      double [] gradient = PAIR_ENERGY.gradient(extrapolatePosition(delta));
+      return StandardIntensity.canonicalRate(velocity, gradient);
+    }
+  }
+
+  private static class Reader extends PositionVelocityDependent
+  {
+    Reader(List<PositionVelocity> variables)
+    {
+      super(variables);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package ca.ubc.bps.state;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.ubc.bps.GaussianChain;
+import ca.ubc.bps.factory.ModelBuildingContext;
+import ca.ubc.bps.processors.MemorizeTrajectory;
+import ca.ubc.bps.processors.Trajectory;
+import ca.ubc.pdmp.PDMPSimulator;
+import ca.ubc.pdmp.StoppingCriterion;
+
+public class TestPositionVelocityStore
+{
+  static final int SIZE = 5;
+  static final double T = 300.0;
+
+  @Test
+  public void testSequential()
+  {
+    check(simulator -> {});
+  }
+
+  @Test
+  public void testParallel()
+  {
+    check(simulator -> simulator.setParallelism(2));
+  }
+
+  @Test
+  public void testChunked()
+  {
+    check(simulator -> simulator.setMaxTrajectoryLengthPerChunk(7.0));
+  }
+
+  @Test
+  public void testHyperbolicRejected()
+  {
+    ModelBuildingContext context = new ModelBuildingContext(new Random(1), new Hyperbolic(), null);
+    context.useContiguousStore = true;
+    try
+    {
+      context.buildAndRegisterPositionVelocityCoordinates(SIZE);
+      Assert.fail();
+    }
+    catch (RuntimeException e)
+    {
+      Assert.assertTrue(e.getMessage().contains("Hyperbolic"));
+    }
+    Assert.assertEquals(SIZE, new ModelBuildingContext(new Random(1), new Hyperbolic(), null).buildAndRegisterPositionVelocityCoordinates(SIZE).size());
+  }
+
+  /*
+   * Same seed, same trajectories with the variables in a contiguous store (contiguousStateStore=true)
+   * as with the default ones, also with the superposed (thinned) refreshments.
+   */
+  private static void check(Consumer<PDMPSimulator> configuration)
+  {
+    for (boolean superposed : new boolean[]{false, true})
+    {
+      List<Trajectory>
+        expected = simulate(PositionVelocity.buildArray(SIZE, new PiecewiseLinear()), superposed, configuration),
+        actual = simulate(new PositionVelocityStore(SIZE, new PiecewiseLinear(), null).buildCoordinates(), superposed, configuration);
+      for (int i = 0; i < SIZE; i++)
+      {
+        Trajectory e = expected.get(i), a = actual.get(i);
+        Assert.assertTrue(e.size() > 100);
+        Assert.assertEquals(e.size(), a.size());
+        for (int s = 0; s < e.size(); s++)
+        {
+          Assert.assertEquals(e.deltaTime(s), a.deltaTime(s), 0.0);
+          Assert.assertEquals(e.startPosition(s), a.startPosition(s), 0.0);
+          Assert.assertEquals(e.startVelocity(s), a.startVelocity(s), 0.0);
+        }
+      }
+    }
+  }
+
+  private static List<Trajectory> simulate(List<PositionVelocity> variables, boolean superposed, Consumer<PDMPSimulator> configuration)
+  {
+    GaussianChain chain = new GaussianChain(variables, 1.0, 2.0, superposed);
+    List<MemorizeTrajectory> memorized = new ArrayList<>();
+    for (PositionVelocity variable : chain.variables)
+    {
+      MemorizeTrajectory processor = new MemorizeTrajectory(variable);
+      memorized.add(processor);
+      chain.pdmp.processors.add(processor);
+    }
+    PDMPSimulator simulator = new PDMPSimulator(chain.pdmp);
+    simulator.setPrintSummaryStatistics(false);
+    configuration.accept(simulator);
+    simulator.simulate(new Random(1), StoppingCriterion.byStochasticProcessTime(T));
+    List<Trajectory> result = new ArrayList<>();
+    for (MemorizeTrajectory processor : memorized)
+      result.add(processor.getTrajectory());
+    return result;
+  }
+}
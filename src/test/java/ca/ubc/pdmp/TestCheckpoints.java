@@ -0,0 +1,167 @@
+package ca.ubc.pdmp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ca.ubc.bps.GaussianChain;
+import ca.ubc.bps.processors.BinaryTrajectoryReader;
+import ca.ubc.bps.processors.DiscretizeTrajectory;
+import ca.ubc.bps.processors.IntegrateMoments;
+import ca.ubc.bps.processors.ResumableFile;
+import ca.ubc.bps.processors.WriteTrajectory;
+import ca.ubc.bps.state.PositionVelocity;
+
+public class TestCheckpoints
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  static final double T = 200.0;
+
+  @Test
+  public void testSequential() throws IOException
+  {
+    test(1, 3000);
+  }
+
+  @Test
+  public void testParallel() throws IOException
+  {
+    test(2, 3000);
+  }
+
+  @Test
+  public void testChunked() throws IOException
+  {
+    test(1, 3000, 7.0);
+  }
+
+  private void test(int parallelism, long interruptAfter) throws IOException
+  {
+    test(parallelism, interruptAfter, Double.POSITIVE_INFINITY);
+  }
+
+  /*
+   * Interrupt a run, resume it from its last checkpoint, and check the final state and the
+   * output files (continued by the resumed run) against an uninterrupted run.
+   */
+  private void test(int parallelism, long interruptAfter, double chunkLength) throws IOException
+  {
+    File checkpoint = folder.newFile("checkpoint.bin");
+
+    Run reference = new Run(parallelism, chunkLength, folder.newFolder("reference"), false);
+    reference.simulator.simulate(new Random(2), StoppingCriterion.byStochasticProcessTime(T));
+    reference.close();
+
+    File interruptedFolder = folder.newFolder("interrupted");
+    Run interrupted = new Run(parallelism, chunkLength, interruptedFolder, false);
+    interrupted.simulator.setCheckpoints(checkpoint, 0);
+    interrupted.simulator.simulate(new Random(2), new StoppingCriterion(T, Long.MAX_VALUE, interruptAfter));
+    interrupted.close();
+    // as if rows were written between the last checkpoint and the interruption
+    for (File file : interrupted.files)
+      try (FileOutputStream out = new FileOutputStream(file, true))
+      {
+        out.write("0.5,1.5,-2.5,7\n".getBytes("UTF-8"));
+      }
+
+    Run resumed = new Run(parallelism, chunkLength, interruptedFolder, true);
+    resumed.simulator.resume(checkpoint, StoppingCriterion.byStochasticProcessTime(T));
+    resumed.close();
+
+    Assert.assertArrayEquals(reference.finalState(), resumed.finalState(), 0.0);
+    for (WriteTrajectory output : resumed.trajectories)
+      Assert.assertTrue(output.rowsBeforeResume() > 0);
+    for (int f = 0; f < reference.files.size(); f++)
+    {
+      File expected = reference.files.get(f), actual = resumed.files.get(f);
+      if (actual.getName().endsWith(".bin"))
+        // the binary blocks end at the checkpoints
+        Assert.assertEquals(binaryRows(expected), binaryRows(actual));
+      else
+        Assert.assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(actual.toPath()));
+    }
+  }
+
+  private static List<List<Double>> binaryRows(File file)
+  {
+    List<List<Double>> result = new ArrayList<>();
+    try (BinaryTrajectoryReader reader = new BinaryTrajectoryReader(file))
+    {
+      while (reader.next())
+        result.add(Arrays.asList(reader.get(0), reader.get(1)));
+    }
+    return result;
+  }
+
+  private static class Run
+  {
+    final GaussianChain chain = new GaussianChain(10, 1.0, 2.0);
+    final PDMPSimulator simulator;
+    final List<File> files = new ArrayList<>();
+    final List<WriteTrajectory> trajectories = new ArrayList<>();
+    final List<DiscretizeTrajectory> discretized = new ArrayList<>();
+    final List<IntegrateMoments> moments = new ArrayList<>();
+
+    Run(int parallelism, double chunkLength, File folder, boolean resume)
+    {
+      for (int i = 0; i < chain.variables.size(); i += 3)
+      {
+        PositionVelocity variable = chain.variables.get(i);
+        WriteTrajectory trajectory = new WriteTrajectory(variable, file(folder, "trajectory" + i + ".csv", resume));
+        trajectories.add(trajectory);
+        chain.pdmp.processors.add(trajectory);
+        DiscretizeTrajectory discretize = new DiscretizeTrajectory(variable, 0.37, file(folder, "discretized" + i + ".bin", resume), true);
+        discretized.add(discretize);
+        chain.pdmp.processors.add(discretize);
+        IntegrateMoments moment = new IntegrateMoments(variable, Arrays.asList(1, 2));
+        moment.setOutput(1, file(folder, "moment" + i + ".csv", resume), false);
+        moments.add(moment);
+        chain.pdmp.processors.add(moment);
+      }
+      simulator = new PDMPSimulator(chain.pdmp);
+      simulator.setParallelism(parallelism);
+      simulator.setMaxTrajectoryLengthPerChunk(chunkLength);
+      simulator.setPrintSummaryStatistics(false);
+    }
+
+    ResumableFile file(File folder, String name, boolean resume)
+    {
+      File file = new File(folder, name);
+      files.add(file);
+      return new ResumableFile(file, resume);
+    }
+
+    void close() throws IOException
+    {
+      for (WriteTrajectory output : trajectories)
+        output.close();
+      for (DiscretizeTrajectory output : discretized)
+        output.close();
+      for (IntegrateMoments output : moments)
+        output.close();
+    }
+
+    double [] finalState()
+    {
+      double [] result = new double[2 * chain.variables.size()];
+      for (int i = 0; i < chain.variables.size(); i++)
+      {
+        result[2 * i] = chain.variables.get(i).position.get();
+        result[2 * i + 1] = chain.variables.get(i).velocity.get();
+      }
+      return result;
+    }
+  }
+}
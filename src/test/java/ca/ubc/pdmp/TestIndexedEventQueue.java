@@ -0,0 +1,84 @@
+package ca.ubc.pdmp;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestIndexedEventQueue
+{
+  @Test
+  public void testAgainstNaiveQueue()
+  {
+    final int capacity = 50;
+    Random rand = new Random(1);
+    IndexedEventQueue queue = new IndexedEventQueue(capacity);
+    double [] naive = new double[capacity];
+    Arrays.fill(naive, Double.NaN);
+
+    for (int iter = 0; iter < 100_000; iter++)
+    {
+      final int event = rand.nextInt(capacity);
+      final double u = rand.nextDouble();
+      if (u < 0.4)
+      {
+        final double time = rand.nextInt(100) / 10.0; // frequent ties
+        queue.schedule(event, time);
+        naive[event] = time;
+      }
+      else if (u < 0.6)
+      {
+        queue.remove(event);
+        naive[event] = Double.NaN;
+      }
+      else if (!queue.isEmpty())
+      {
+        final double time = queue.peekTime();
+        final int polled = queue.pollEvent();
+        Assert.assertEquals(naive[polled], time, 0.0);
+        for (int other = 0; other < capacity; other++)
+          if (!Double.isNaN(naive[other]) && other != polled)
+            Assert.assertTrue(time < naive[other] || (time == naive[other] && polled < other));
+        naive[polled] = Double.NaN;
+      }
+      int naiveSize = 0;
+      for (double t : naive)
+        if (!Double.isNaN(t))
+          naiveSize++;
+      Assert.assertEquals(naiveSize, queue.size());
+    }
+  }
+  
+  @Test
+  public void testParkingAndTies()
+  {
+    IndexedEventQueue queue = new IndexedEventQueue(4);
+    queue.schedule(3, 1.0);
+    queue.schedule(1, 1.0);
+    queue.schedule(2, Double.POSITIVE_INFINITY);
+    queue.schedule(0, 2.0);
+    Assert.assertEquals(3, queue.size());
+    Assert.assertFalse(queue.contains(2));
+    queue.schedule(0, Double.POSITIVE_INFINITY);
+    Assert.assertEquals(2, queue.size());
+    Assert.assertEquals(1, queue.pollEvent());
+    Assert.assertEquals(3, queue.pollEvent());
+    Assert.assertTrue(queue.isEmpty());
+  }
+  
+  @Test
+  public void testShiftTimes()
+  {
+    IndexedEventQueue queue = new IndexedEventQueue(3);
+    queue.schedule(0, 10.5);
+    queue.schedule(1, 10.25);
+    queue.schedule(2, 11.0);
+    queue.shiftTimes(-10.0);
+    Assert.assertEquals(0.25, queue.peekTime(), 0.0);
+    Assert.assertEquals(1, queue.pollEvent());
+    Assert.assertEquals(0.5, queue.time(0), 0.0);
+    Assert.assertEquals(0, queue.pollEvent());
+    Assert.assertEquals(2, queue.pollEvent());
+  }
+}
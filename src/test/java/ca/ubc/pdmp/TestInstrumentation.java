@@ -0,0 +1,124 @@
+package ca.ubc.pdmp;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.ubc.bps.GaussianChain;
+import ca.ubc.bps.refresh.RefreshmentFactory;
+
+public class TestInstrumentation
+{
+  static final double T = 300.0;
+
+  @Test
+  public void testSequential() throws Exception
+  {
+    check(simulator -> {});
+  }
+
+  @Test
+  public void testConservative() throws Exception
+  {
+    check(simulator -> simulator.setParallelism(3));
+  }
+
+  @Test
+  public void testOptimistic() throws Exception
+  {
+    check(simulator ->
+    {
+      simulator.setParallelism(3);
+      simulator.setOptimistic(true);
+    });
+  }
+
+  /*
+   * The per jump process counts sum to those of the simulator, toCSV() has one row per jump
+   * process with these counts, and instrumenting does not change the simulation.
+   */
+  private static void check(Consumer<PDMPSimulator> configuration) throws Exception
+  {
+    Run run = new Run(configuration, true);
+    GaussianChain chain = run.chain;
+    PDMPSimulator simulator = run.simulator;
+
+    Instrumentation instrumentation = simulator.getInstrumentation();
+    final int nJumpProcesses = chain.pdmp.jumpProcesses.size();
+    long polls = 0, jumps = 0, boundEvents = 0;
+    for (int i = 0; i < nJumpProcesses; i++)
+    {
+      polls += instrumentation.getNumberOfQueuePolls(i);
+      jumps += instrumentation.getNumberOfJumps(i);
+      boundEvents += instrumentation.getNumberOfBoundEvents(i);
+      Assert.assertTrue(instrumentation.getNumberOfClockCalls(i) >= instrumentation.getNumberOfQueuePolls(i));
+    }
+    Assert.assertEquals(simulator.getNumberOfQueuePolls(), polls);
+    Assert.assertEquals(simulator.getNumberOfJumps(), jumps);
+    Assert.assertEquals(polls, jumps + boundEvents);
+    // the rejected proposals of the thinned refreshment (added last)
+    final int thinned = nJumpProcesses - 1;
+    Assert.assertTrue(instrumentation.getNumberOfClockCalls(thinned) > 2 * instrumentation.getNumberOfQueuePolls(thinned));
+
+    String [] lines = instrumentation.toCSV().split("\n");
+    Assert.assertEquals(1 + nJumpProcesses, lines.length);
+    Assert.assertTrue(lines[0].startsWith("jumpProcess,clock,kernel,nQueuePolls,nBoundEvents,nJumps,"));
+    for (int i = 0; i < nJumpProcesses; i++)
+    {
+      String [] fields = lines[1 + i].split(",");
+      Assert.assertEquals(10, fields.length);
+      Assert.assertEquals(i, Integer.parseInt(fields[0]));
+      Assert.assertEquals(instrumentation.getNumberOfQueuePolls(i), Long.parseLong(fields[3]));
+      Assert.assertEquals(instrumentation.getNumberOfBoundEvents(i), Long.parseLong(fields[4]));
+      Assert.assertEquals(instrumentation.getNumberOfJumps(i), Long.parseLong(fields[5]));
+    }
+
+    Run referenceRun = new Run(configuration, false);
+    GaussianChain reference = referenceRun.chain;
+    PDMPSimulator referenceSimulator = referenceRun.simulator;
+    Assert.assertEquals(referenceSimulator.getNumberOfQueuePolls(), simulator.getNumberOfQueuePolls());
+    Assert.assertEquals(referenceSimulator.getNumberOfJumps(), simulator.getNumberOfJumps());
+    for (int i = 0; i < chain.variables.size(); i++)
+    {
+      Assert.assertEquals(reference.variables.get(i).position.get(), chain.variables.get(i).position.get(), 0.0);
+      Assert.assertEquals(reference.variables.get(i).velocity.get(), chain.variables.get(i).velocity.get(), 0.0);
+    }
+  }
+
+  private static class Run
+  {
+    GaussianChain chain;
+    PDMPSimulator simulator;
+
+    /*
+     * Built and run in a new thread, since ConstantIntensityAdaptiveThinning jitters its 
+     * initial step with a thread local random.
+     */
+    Run(Consumer<PDMPSimulator> configuration, boolean instrumented) throws Exception
+    {
+      ExecutorService thread = Executors.newSingleThreadExecutor();
+      try
+      {
+        thread.submit(() ->
+        {
+          chain = new GaussianChain(8, 1.0, 2.0);
+          // a thinned refreshment, which calls its clock several times per event
+          new RefreshmentFactory.NormDependent().addRefreshment(chain.pdmp);
+          simulator = new PDMPSimulator(chain.pdmp);
+          simulator.setPrintSummaryStatistics(false);
+          configuration.accept(simulator);
+          simulator.setInstrumented(instrumented);
+          simulator.simulate(new Random(1), StoppingCriterion.byStochasticProcessTime(T));
+        }).get();
+      }
+      finally
+      {
+        thread.shutdown();
+      }
+    }
+  }
+}
@@ -0,0 +1,264 @@
+package ca.ubc.pdmp;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ca.ubc.bps.GaussianChain;
+import ca.ubc.bps.processors.ConvertToGlobalProcessor;
+import ca.ubc.bps.processors.MemorizeTrajectory;
+import ca.ubc.bps.processors.Trajectory;
+import ca.ubc.bps.state.PositionVelocity;
+import ca.ubc.bps.state.PositionVelocityDependent;
+
+public class TestJointProcessors
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  static final int SIZE = 6;
+  static final double T = 300.0;
+
+  @Test
+  public void testSequential()
+  {
+    check(simulator -> {});
+  }
+
+  @Test
+  public void testConservative()
+  {
+    check(simulator -> simulator.setParallelism(3));
+  }
+
+  @Test
+  public void testOptimistic()
+  {
+    check(simulator ->
+    {
+      simulator.setParallelism(3);
+      simulator.setOptimistic(true);
+    });
+  }
+
+  @Test
+  public void testChunked()
+  {
+    check(simulator -> simulator.setMaxTrajectoryLengthPerChunk(7.0));
+  }
+
+  @Test
+  public void testRebase()
+  {
+    check(simulator ->
+    {
+      simulator.setMaxTrajectoryLengthPerChunk(7.0);
+      simulator.setRebaseTimes(true);
+    });
+  }
+
+  /*
+   * Joint processors stay on the simulation thread, and receive the same calls.
+   */
+  @Test
+  public void testAsynchronous()
+  {
+    for (int parallelism : new int[]{1, 3})
+    {
+      Run expected = new Run(simulator -> simulator.setParallelism(parallelism));
+      expected.simulator.simulate(new Random(1), StoppingCriterion.byStochasticProcessTime(T));
+      Run actual = new Run(simulator ->
+      {
+        simulator.setParallelism(parallelism);
+        simulator.setAsynchronousProcessors(2);
+      });
+      actual.simulator.simulate(new Random(1), StoppingCriterion.byStochasticProcessTime(T));
+      for (int j = 0; j < expected.joints.size(); j++)
+        assertEquals(expected.joints.get(j).rows, actual.joints.get(j).rows);
+      actual.check();
+    }
+  }
+
+  /*
+   * The calls before the last checkpoint, followed by those after resuming, are those of an
+   * uninterrupted run.
+   */
+  @Test
+  public void testResume() throws IOException
+  {
+    for (int parallelism : new int[]{1, 2})
+    {
+      Consumer<PDMPSimulator> configuration = simulator -> simulator.setParallelism(parallelism);
+      File checkpoint = folder.newFile();
+
+      Run reference = new Run(configuration);
+      reference.simulator.simulate(new Random(2), StoppingCriterion.byStochasticProcessTime(T));
+
+      Run interrupted = new Run(configuration);
+      interrupted.simulator.setCheckpoints(checkpoint, 0);
+      interrupted.simulator.simulate(new Random(2), new StoppingCriterion(T, Long.MAX_VALUE, 3000));
+
+      Run resumed = new Run(configuration);
+      resumed.simulator.resume(checkpoint, StoppingCriterion.byStochasticProcessTime(T));
+
+      for (int j = 0; j < reference.joints.size(); j++)
+      {
+        JointRecorder resumedJoint = resumed.joints.get(j);
+        Assert.assertTrue(resumedJoint.rowsBeforeResume > 0);
+        List<double[]> actual = new ArrayList<>(interrupted.joints.get(j).rows.subList(0, resumedJoint.rowsBeforeResume));
+        actual.addAll(resumedJoint.rows);
+        assertEquals(reference.joints.get(j).rows, actual);
+      }
+    }
+  }
+
+  private static void check(Consumer<PDMPSimulator> configuration)
+  {
+    Run run = new Run(configuration);
+    run.simulator.simulate(new Random(1), StoppingCriterion.byStochasticProcessTime(T));
+    run.check();
+  }
+
+  private static void assertEquals(List<double[]> expected, List<double[]> actual)
+  {
+    Assert.assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++)
+      Assert.assertArrayEquals(expected.get(i), actual.get(i), 0.0);
+  }
+
+  private static class Run
+  {
+    final GaussianChain chain = new GaussianChain(SIZE, 1.0, 2.0);
+    final PDMPSimulator simulator;
+    final List<MemorizeTrajectory> memorized = new ArrayList<>();
+    final List<JointRecorder> joints = new ArrayList<>();
+
+    Run(Consumer<PDMPSimulator> configuration)
+    {
+      for (PositionVelocity variable : chain.variables)
+      {
+        MemorizeTrajectory processor = new MemorizeTrajectory(variable);
+        memorized.add(processor);
+        chain.pdmp.processors.add(processor);
+      }
+      // all the variables, neighbours (sharing factors), and variables far apart
+      for (int [] indices : new int[][]{{0, 1, 2, 3, 4, 5}, {2, 3}, {4, 0}})
+      {
+        List<PositionVelocity> variables = new ArrayList<>();
+        for (int i : indices)
+          variables.add(chain.variables.get(i));
+        JointRecorder joint = new JointRecorder(variables);
+        joints.add(joint);
+        chain.pdmp.processors.add(joint);
+      }
+      simulator = new PDMPSimulator(chain.pdmp);
+      simulator.setPrintSummaryStatistics(false);
+      configuration.accept(simulator);
+    }
+
+    /*
+     * Each joint processor is called once per end of a segment of any of its variables
+     * (the events of the merged trajectory of its variables), with their states at the
+     * start of the segment, as given by the memorized trajectories.
+     */
+    void check()
+    {
+      for (JointRecorder joint : joints)
+      {
+        List<double[]> expected = new ArrayList<>();
+        ConvertToGlobalProcessor converter = new ConvertToGlobalProcessor(context ->
+        {
+          // the times of the memorized trajectories are sums of their segments, so that the end
+          // of a chunk is slightly different in each of them
+          if (context.getGlobalDelta() < 1e-9)
+            return;
+          List<PositionVelocity> variables = context.allVariables();
+          double [] row = new double[2 + 2 * variables.size()];
+          row[0] = context.getGlobalTime();
+          row[1] = context.getGlobalDelta();
+          for (int i = 0; i < variables.size(); i++)
+          {
+            row[2 + 2 * i] = variables.get(i).position.get();
+            row[3 + 2 * i] = variables.get(i).velocity.get();
+          }
+          expected.add(row);
+        });
+        for (PositionVelocity variable : joint.variables)
+        {
+          Trajectory trajectory = memorized.get(chain.variables.indexOf(variable)).getTrajectory();
+          converter.addTrajectory(variable.key, trajectory);
+        }
+        converter.convert();
+
+        Assert.assertEquals(expected.size(), joint.rows.size());
+        double time = 0.0;
+        for (int k = 0; k < expected.size(); k++)
+        {
+          final double [] row = joint.rows.get(k), reference = expected.get(k);
+          Assert.assertTrue(row[0] > 0.0);
+          Assert.assertEquals(reference[0], time, 1e-9);
+          Assert.assertEquals(reference[1], row[0], 1e-9);
+          for (int i = 0; i < joint.variables.size(); i++)
+          {
+            Assert.assertEquals(reference[2 + 2 * i], row[2 + 2 * i], 1e-9);
+            Assert.assertEquals(reference[3 + 2 * i], row[3 + 2 * i], 0.0);
+          }
+          time += row[0];
+        }
+        Assert.assertEquals(T, time, 1e-9);
+      }
+    }
+  }
+
+  /*
+   * Records (deltaTime, jumpProcessIndex, position and velocity of each variable) for each call.
+   */
+  private static class JointRecorder extends PositionVelocityDependent implements Processor, Checkpointable
+  {
+    final List<PositionVelocity> variables;
+    final List<double[]> rows = new ArrayList<>();
+    int rowsBeforeResume = 0;
+
+    JointRecorder(List<PositionVelocity> variables)
+    {
+      super(variables);
+      this.variables = variables;
+    }
+
+    @Override
+    public void process(double deltaTime, int jumpProcessIndex)
+    {
+      double [] row = new double[2 + 2 * variables.size()];
+      row[0] = deltaTime;
+      row[1] = jumpProcessIndex;
+      for (int i = 0; i < variables.size(); i++)
+      {
+        row[2 + 2 * i] = variables.get(i).position.get();
+        row[3 + 2 * i] = variables.get(i).velocity.get();
+      }
+      rows.add(row);
+    }
+
+    @Override
+    public void writeState(DataOutput out) throws IOException
+    {
+      out.writeInt(rows.size());
+    }
+
+    @Override
+    public void readState(DataInput in) throws IOException
+    {
+      rowsBeforeResume = in.readInt();
+    }
+  }
+}
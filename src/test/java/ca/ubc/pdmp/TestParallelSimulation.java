@@ -0,0 +1,209 @@
+package ca.ubc.pdmp;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.ubc.bps.GaussianChain;
+import ca.ubc.bps.processors.IntegrateMoments;
+import ca.ubc.bps.state.PiecewiseLinear;
+import ca.ubc.bps.state.PositionVelocity;
+
+public class TestParallelSimulation
+{
+  static final int SIZE = 8;
+  static final double T = 20_000.0;
+
+  @Test
+  public void testSequential()
+  {
+    checkMarginalVariances(false, simulator -> {});
+  }
+
+  @Test
+  public void testConservative()
+  {
+    checkMarginalVariances(false, simulator -> simulator.setParallelism(3));
+  }
+
+  @Test
+  public void testOptimistic()
+  {
+    checkMarginalVariances(false, simulator -> 
+    {
+      simulator.setParallelism(3);
+      simulator.setOptimistic(true);
+    });
+  }
+
+  @Test
+  public void testSuperposedRefreshment()
+  {
+    checkMarginalVariances(true, simulator -> {});
+    checkMarginalVariances(true, simulator -> simulator.setParallelism(3));
+  }
+
+  @Test
+  public void testRejectedEvents()
+  {
+    checkComponentStates(simulator -> simulator.setParallelism(3));
+    checkComponentStates(simulator -> 
+    {
+      simulator.setParallelism(3);
+      simulator.setOptimistic(true);
+    });
+  }
+
+  /*
+   * The Checkpointable clocks and kernels called by rejected events are restored when these 
+   * are undone: the number of calls they record is that of the accepted events only, i.e. one 
+   * call of the kernel per jump, and one call of the clock initially, at each of its own events 
+   * and at each other jump modifying a variable it depends on.
+   */
+  private static void checkComponentStates(Consumer<PDMPSimulator> configuration)
+  {
+    GaussianChain chain = new GaussianChain(SIZE, 1.0, 2.0);
+    List<JumpProcess> jumpProcesses = chain.pdmp.jumpProcesses;
+    for (int i = 0; i < jumpProcesses.size(); i++)
+      jumpProcesses.set(i, new JumpProcess(
+          new CountingClock(jumpProcesses.get(i).clock), 
+          new CountingKernel(jumpProcesses.get(i).kernel)));
+    PDMPSimulator simulator = new PDMPSimulator(chain.pdmp);
+    simulator.setPrintSummaryStatistics(false);
+    simulator.setInstrumented(true);
+    configuration.accept(simulator);
+    simulator.simulate(new Random(1), StoppingCriterion.byStochasticProcessTime(T / 10.0));
+
+    Instrumentation instrumentation = simulator.getInstrumentation();
+    for (int c = 0; c < jumpProcesses.size(); c++)
+    {
+      final JumpProcess jumpProcess = jumpProcesses.get(c);
+      final Set<Coordinate> nd = identitySet(jumpProcess.clock.requiredVariables());
+      long expectedClockCalls = 1 + instrumentation.getNumberOfBoundEvents(c);
+      for (int p = 0; p < jumpProcesses.size(); p++)
+        if (p == c || !Collections.disjoint(nd, identitySet(jumpProcesses.get(p).kernel.requiredVariables())))
+          expectedClockCalls += instrumentation.getNumberOfJumps(p);
+      Assert.assertEquals(instrumentation.getNumberOfJumps(c), ((CountingKernel) jumpProcess.kernel).count);
+      Assert.assertEquals(expectedClockCalls, ((CountingClock) jumpProcess.clock).count);
+    }
+  }
+
+  private static Set<Coordinate> identitySet(Collection<? extends Coordinate> coordinates)
+  {
+    Set<Coordinate> result = Collections.newSetFromMap(new IdentityHashMap<>());
+    result.addAll(coordinates);
+    return result;
+  }
+
+  private static class CountingClock implements Clock, Checkpointable
+  {
+    final Clock clock;
+    long count = 0;
+
+    CountingClock(Clock clock)
+    {
+      this.clock = clock;
+    }
+
+    @Override
+    public Collection<? extends Coordinate> requiredVariables()
+    {
+      return clock.requiredVariables();
+    }
+
+    @Override
+    public DeltaTime next(Random random)
+    {
+      count++;
+      return clock.next(random);
+    }
+
+    @Override
+    public void writeState(DataOutput out) throws IOException
+    {
+      out.writeLong(count);
+    }
+
+    @Override
+    public void readState(DataInput in) throws IOException
+    {
+      count = in.readLong();
+    }
+  }
+
+  private static class CountingKernel implements JumpKernel, Checkpointable
+  {
+    final JumpKernel kernel;
+    long count = 0;
+
+    CountingKernel(JumpKernel kernel)
+    {
+      this.kernel = kernel;
+    }
+
+    @Override
+    public Collection<? extends Coordinate> requiredVariables()
+    {
+      return kernel.requiredVariables();
+    }
+
+    @Override
+    public void simulate(Random random)
+    {
+      count++;
+      kernel.simulate(random);
+    }
+
+    @Override
+    public void writeState(DataOutput out) throws IOException
+    {
+      out.writeLong(count);
+    }
+
+    @Override
+    public void readState(DataInput in) throws IOException
+    {
+      count = in.readLong();
+    }
+  }
+
+  /*
+   * Simulate a Gaussian chain, and compare the marginal variances with the exact ones.
+   */
+  private static void checkMarginalVariances(boolean superposedRefreshment, Consumer<PDMPSimulator> configuration)
+  {
+    GaussianChain chain = new GaussianChain(SIZE, 1.0, 2.0, new PiecewiseLinear(), superposedRefreshment);
+    List<IntegrateMoments> moments = new ArrayList<>();
+    for (PositionVelocity variable : chain.variables)
+    {
+      IntegrateMoments processor = new IntegrateMoments(variable, Arrays.asList(1, 2));
+      moments.add(processor);
+      chain.pdmp.processors.add(processor);
+    }
+    PDMPSimulator simulator = new PDMPSimulator(chain.pdmp);
+    simulator.setPrintSummaryStatistics(false);
+    configuration.accept(simulator);
+    simulator.simulate(new Random(1), StoppingCriterion.byStochasticProcessTime(T));
+
+    double [][] covariance = chain.covariance();
+    for (int i = 0; i < SIZE; i++)
+    {
+      final double mean = moments.get(i).integrate(0);
+      final double variance = moments.get(i).integrate(1) - mean * mean;
+      Assert.assertEquals(0.0, mean, 0.05);
+      Assert.assertEquals("variable " + i, covariance[i][i], variance, 0.1 * covariance[i][i]);
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package ca.ubc.pdmp;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.ubc.bps.GaussianChain;
+import ca.ubc.bps.processors.IntegrateMoments;
+import ca.ubc.bps.state.PositionVelocity;
+
+public class TestPartitionedSimulation
+{
+  static final int SIZE = 6;
+  static final double T = 10_000.0;
+
+  @Test
+  public void testTwoPartitions() throws Exception
+  {
+    check(2);
+  }
+
+  @Test
+  public void testThreePartitions() throws Exception
+  {
+    check(3);
+  }
+
+  /*
+   * Each node builds its own copy of the model, as a separate process would, and only
+   * communicates through loopback sockets. The marginal variances computed by the owners of
+   * the variables are compared with the exact ones, and the replicas of the shared variables
+   * should agree at the end.
+   */
+  private static void check(int nPartitions) throws Exception
+  {
+    final List<Node> nodes = new ArrayList<>();
+    for (int i = 0; i < nPartitions; i++)
+      nodes.add(new Node(nPartitions, i));
+    final ExecutorService threads = Executors.newFixedThreadPool(nPartitions + 1);
+    try (PartitionedSimulation.Coordinator coordinator =
+        new PartitionedSimulation.Coordinator(nPartitions, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)))
+    {
+      final List<Future<?>> futures = new ArrayList<>();
+      futures.add(threads.submit(() ->
+      {
+        coordinator.run();
+        return null;
+      }));
+      for (Node node : nodes)
+        futures.add(threads.submit(() ->
+        {
+          node.simulation.simulate(new Random(node.index + 1), T, coordinator.getAddress());
+          return null;
+        }));
+      for (Future<?> future : futures)
+        future.get();
+    }
+    finally
+    {
+      threads.shutdown();
+    }
+
+    double [][] covariance = nodes.get(0).chain.covariance();
+    int nReplicated = 0;
+    for (int i = 0; i < SIZE; i++)
+    {
+      int nOwners = 0;
+      PositionVelocity replica = null;
+      for (Node node : nodes)
+      {
+        final IntegrateMoments moments = node.moments.get(i);
+        final PositionVelocity variable = node.chain.variables.get(i);
+        if (node.simulation.part.processors.contains(moments))
+        {
+          nOwners++;
+          final double mean = moments.integrate(0);
+          final double variance = moments.integrate(1) - mean * mean;
+          Assert.assertEquals(0.0, mean, 0.05);
+          Assert.assertEquals("variable " + i, covariance[i][i], variance, 0.1 * covariance[i][i]);
+        }
+        if (node.simulation.part.coordinates.contains(variable))
+        {
+          if (replica != null)
+          {
+            nReplicated++;
+            Assert.assertEquals(replica.position.get(), variable.position.get(), 0.0);
+            Assert.assertEquals(replica.velocity.get(), variable.velocity.get(), 0.0);
+          }
+          replica = variable;
+        }
+      }
+      Assert.assertEquals(1, nOwners);
+    }
+    Assert.assertTrue(nReplicated > 0);
+  }
+
+  private static class Node
+  {
+    final int index;
+    final GaussianChain chain = new GaussianChain(SIZE, 1.0, 2.0);
+    final List<IntegrateMoments> moments = new ArrayList<>();
+    final PartitionedSimulation simulation;
+
+    Node(int nPartitions, int index)
+    {
+      this.index = index;
+      for (PositionVelocity variable : chain.variables)
+      {
+        IntegrateMoments processor = new IntegrateMoments(variable, Arrays.asList(1, 2));
+        moments.add(processor);
+        chain.pdmp.processors.add(processor);
+      }
+      this.simulation = new PartitionedSimulation(chain.pdmp, nPartitions, index);
+    }
+  }
+}
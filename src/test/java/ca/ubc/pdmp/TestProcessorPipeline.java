@@ -0,0 +1,140 @@
+package ca.ubc.pdmp;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.ubc.bps.GaussianChain;
+import ca.ubc.bps.processors.IntegrateMoments;
+import ca.ubc.bps.processors.WriteTrajectory;
+import ca.ubc.bps.state.PositionVelocity;
+
+public class TestProcessorPipeline
+{
+  @Test
+  public void testSequential()
+  {
+    check(simulator -> {});
+  }
+
+  @Test
+  public void testChunked()
+  {
+    check(simulator -> simulator.setMaxTrajectoryLengthPerChunk(7.0));
+  }
+
+  @Test
+  public void testParallel()
+  {
+    check(simulator -> simulator.setParallelism(2));
+  }
+
+  /*
+   * The processors called by the pipeline receive the same calls as when they are called
+   * on the simulation thread, including when the buffers are often full.
+   */
+  private static void check(Consumer<PDMPSimulator> configuration)
+  {
+    Run expected = new Run(configuration);
+    expected.simulator.simulate(new Random(1), StoppingCriterion.byStochasticProcessTime(500.0));
+    for (int nThreads : new int[]{1, 3})
+      for (int bufferSize : new int[]{1, 100, 10_000})
+      {
+        Run actual = new Run(configuration);
+        actual.simulator.setAsynchronousProcessors(nThreads);
+        actual.simulator.setProcessorBufferSize(bufferSize);
+        actual.simulator.simulate(new Random(1), StoppingCriterion.byStochasticProcessTime(500.0));
+        for (int i = 0; i < expected.writers.size(); i++)
+        {
+          Assert.assertEquals(expected.writers.get(i).toString(), actual.writers.get(i).toString());
+          for (int moment = 0; moment < 2; moment++)
+            Assert.assertEquals(expected.moments.get(i).integrate(moment), actual.moments.get(i).integrate(moment), 0.0);
+        }
+      }
+  }
+
+  /*
+   * A failure of an asynchronous processor is thrown by simulate(..), also when the
+   * simulation thread never waited for the failed consumer.
+   */
+  @Test
+  public void testFailure()
+  {
+    for (int bufferSize : new int[]{1, 1_000_000})
+    {
+      GaussianChain chain = new GaussianChain(2, 1.0, 2.0);
+      IllegalStateException expected = new IllegalStateException();
+      chain.pdmp.processors.add(new FailingProcessor(chain.variables.get(0), 10, expected));
+      PDMPSimulator simulator = new PDMPSimulator(chain.pdmp);
+      simulator.setPrintSummaryStatistics(false);
+      simulator.setAsynchronousProcessors(1);
+      simulator.setProcessorBufferSize(bufferSize);
+      try
+      {
+        simulator.simulate(new Random(1), StoppingCriterion.byStochasticProcessTime(100.0));
+        Assert.fail();
+      }
+      catch (RuntimeException e)
+      {
+        Assert.assertSame(expected, e.getCause());
+      }
+    }
+  }
+
+  private static class FailingProcessor extends StateDependentBase implements AsynchronousProcessor
+  {
+    private final RuntimeException exception;
+    private int nCallsLeft;
+
+    FailingProcessor(PositionVelocity variable, int nCalls, RuntimeException exception)
+    {
+      super(Collections.singletonList(variable));
+      this.nCallsLeft = nCalls;
+      this.exception = exception;
+    }
+
+    @Override
+    public void process(double deltaTime, int jumpProcessIndex)
+    {
+      if (nCallsLeft-- == 0)
+        throw exception;
+    }
+
+    @Override
+    public void process(double deltaTime, int jumpProcessIndex, double [] state, int offset)
+    {
+      process(deltaTime, jumpProcessIndex);
+    }
+  }
+
+  private static class Run
+  {
+    final GaussianChain chain = new GaussianChain(6, 1.0, 2.0);
+    final List<StringWriter> writers = new ArrayList<>();
+    final List<IntegrateMoments> moments = new ArrayList<>();
+    final PDMPSimulator simulator;
+
+    Run(Consumer<PDMPSimulator> configuration)
+    {
+      for (PositionVelocity variable : chain.variables)
+      {
+        StringWriter writer = new StringWriter();
+        writers.add(writer);
+        chain.pdmp.processors.add(new WriteTrajectory(variable, writer));
+        IntegrateMoments processor = new IntegrateMoments(variable, Arrays.asList(1, 2));
+        moments.add(processor);
+        chain.pdmp.processors.add(processor);
+      }
+      simulator = new PDMPSimulator(chain.pdmp);
+      simulator.setPrintSummaryStatistics(false);
+      configuration.accept(simulator);
+    }
+  }
+}
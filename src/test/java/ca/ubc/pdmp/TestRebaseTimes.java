@@ -0,0 +1,88 @@
+package ca.ubc.pdmp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.ubc.bps.GaussianChain;
+import ca.ubc.bps.processors.MemorizeTrajectory;
+import ca.ubc.bps.processors.Trajectory;
+import ca.ubc.bps.state.PositionVelocity;
+
+public class TestRebaseTimes
+{
+  static final int SIZE = 6;
+  static final double T = 500.0;
+
+  @Test
+  public void testLongChunks()
+  {
+    check(1.3);
+  }
+
+  @Test
+  public void testShortChunks()
+  {
+    check(0.1);
+  }
+
+  /*
+   * No clock is resampled at the chunk boundaries, so that many short chunks give the
+   * trajectory of a single chunk, up to the rounding of the rebased times (sequentially, 
+   * see PDMPSimulator.setRebaseTimes(..)).
+   */
+  private static void check(double chunkLength)
+  {
+    Run expected = new Run(simulator -> {});
+    Run actual = new Run(simulator ->
+    {
+      simulator.setMaxTrajectoryLengthPerChunk(chunkLength);
+      simulator.setRebaseTimes(true);
+    });
+    Assert.assertEquals(expected.simulator.getNumberOfJumps(), actual.simulator.getNumberOfJumps());
+    Assert.assertEquals(expected.simulator.getNumberOfQueuePolls(), actual.simulator.getNumberOfQueuePolls());
+    for (int i = 0; i < SIZE; i++)
+    {
+      Trajectory e = expected.trajectories.get(i), a = actual.trajectories.get(i);
+      Assert.assertEquals(T, a.totalTime(), 1e-9);
+      // the trajectories are not split at the chunk boundaries
+      Assert.assertEquals(e.size(), a.size());
+      for (int s = 0; s < e.size(); s++)
+      {
+        Assert.assertEquals(e.deltaTime(s), a.deltaTime(s), 1e-9);
+        Assert.assertEquals(e.startPosition(s), a.startPosition(s), 1e-9);
+        Assert.assertEquals(e.startVelocity(s), a.startVelocity(s), 1e-9);
+      }
+      Assert.assertEquals(expected.chain.variables.get(i).position.get(), actual.chain.variables.get(i).position.get(), 1e-9);
+      Assert.assertEquals(expected.chain.variables.get(i).velocity.get(), actual.chain.variables.get(i).velocity.get(), 1e-9);
+    }
+  }
+
+  private static class Run
+  {
+    final GaussianChain chain = new GaussianChain(SIZE, 1.0, 2.0);
+    final PDMPSimulator simulator;
+    final List<Trajectory> trajectories = new ArrayList<>();
+
+    Run(Consumer<PDMPSimulator> configuration)
+    {
+      List<MemorizeTrajectory> memorized = new ArrayList<>();
+      for (PositionVelocity variable : chain.variables)
+      {
+        MemorizeTrajectory processor = new MemorizeTrajectory(variable);
+        memorized.add(processor);
+        chain.pdmp.processors.add(processor);
+      }
+      simulator = new PDMPSimulator(chain.pdmp);
+      simulator.setPrintSummaryStatistics(false);
+      configuration.accept(simulator);
+      simulator.simulate(new Random(1), StoppingCriterion.byStochasticProcessTime(T));
+      for (MemorizeTrajectory processor : memorized)
+        trajectories.add(processor.getTrajectory());
+    }
+  }
+}